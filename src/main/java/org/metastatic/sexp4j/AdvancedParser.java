@@ -9,4 +9,16 @@ public class AdvancedParser extends ParserBase {
     public AdvancedParser(InputStream in) {
         super(new AdvancedStreamingParser(in));
     }
+
+    public AdvancedParser(InputStream in, int maxDepth) {
+        super(new AdvancedStreamingParser(in), maxDepth);
+    }
+
+    public AdvancedParser(InputStream in, ExpressionInterner interner) {
+        super(new AdvancedStreamingParser(in), DEFAULT_MAX_DEPTH, interner);
+    }
+
+    public AdvancedParser(InputStream in, int maxDepth, ExpressionInterner interner) {
+        super(new AdvancedStreamingParser(in), maxDepth, interner);
+    }
 }
@@ -1,496 +1,619 @@
 package org.metastatic.sexp4j;
 
-import com.google.common.base.Optional;
-import org.apache.commons.codec.binary.Base64;
-
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 /**
  * A streaming parser for the "advanced" encoding.
+ *
+ * <p>Input is read in blocks of 64 KiB, and parsed in two stages. The
+ * first, {@link StructuralIndex}, classifies each block eight bytes at a
+ * time into a bitmap of its structural bytes. The second walks the block,
+ * using the bitmap to skip over tokens and the plain runs of quoted
+ * strings, and delivers events to the callbacks. Tokens and verbatim
+ * atoms are passed to callbacks straight from the block, without copying;
+ * other atoms are decoded into a reusable buffer. A block is extended,
+ * or grown, when an atom runs past its end.</p>
+ *
+ * <p>Since input is read ahead a block at a time, the input stream should
+ * not be used for anything else once parsing has started.</p>
+ *
+ * <p>Transport blocks, <code>{...}</code>, are also accepted wherever an
+ * expression may appear: the base-64 is decoded as it is read, and the
+ * canonical expression inside is parsed on the fly, so the block is never
+ * held in memory. {@link TransportWriter} writes them.</p>
  */
 public class AdvancedStreamingParser extends StreamingParser {
-    private static enum State {
-        ConsumeWhitespace,
-        StartingSymbolOrVerbatim,
-        ConsumeSymbol,
-        ConsumeQuotedString,
-        ConsumeHex,
-        ConsumeBase64
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // The longest array that can be allocated reliably.
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final byte[] HEX_VALUES = new byte[256];
+    private static final byte[] BASE64_VALUES = new byte[256];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int c = '0'; c <= '9'; c++)
+            HEX_VALUES[c] = (byte) (c - '0');
+        for (int c = 'a'; c <= 'f'; c++) {
+            HEX_VALUES[c] = (byte) (c - 'a' + 10);
+            HEX_VALUES[c - 'a' + 'A'] = (byte) (c - 'a' + 10);
+        }
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < TransportEncoder.DIGITS.length; i++)
+            BASE64_VALUES[TransportEncoder.DIGITS[i]] = (byte) i;
     }
 
+    private byte[] block = new byte[BLOCK_SIZE];
+    private ByteBuffer view = StructuralIndex.view(block);
+    private long[] structure = new long[BLOCK_SIZE / 64 + 1];
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
     private int listDepth = 0;
-    private State state = State.ConsumeWhitespace;
-    private final LinkedList<Integer> tokens;
-    private Optional<Integer> quotedStringLength = Optional.absent();
-    private boolean consumingDisplayHint = false;
-    private byte[] displayHint = null;
+    // The display hint for the next atom; hintLength is -1 if there is none.
+    private byte[] hint = new byte[16];
+    private int hintLength = -1;
+    // The last simple string read, either a range of the block or of
+    // the decode buffer.
+    private byte[] decoded = new byte[64];
+    private byte[] atomBuffer;
+    private int atomOffset;
+    private int atomLength;
+
+    private TransportDecoder transportDecoder;
+    private CanonicalStreamingParser transportParser;
+    private int transportDepth = 0;
+    // Top-level expressions finished in the current transport block.
+    private int transportCount = 0;
 
     public AdvancedStreamingParser(InputStream input) {
         super(input);
-        tokens = new LinkedList<>();
+        structure[0] = -1L;
+    }
+
+    @Override
+    public void reset(InputStream input) {
+        super.reset(input);
+        if (block.length > BLOCK_SIZE) {
+            block = new byte[BLOCK_SIZE];
+            view = StructuralIndex.view(block);
+            structure = new long[BLOCK_SIZE / 64 + 1];
+        }
+        structure[0] = -1L;
+        position = limit = 0;
+        eof = false;
+        listDepth = 0;
+        hintLength = -1;
+        atomBuffer = null;
+    }
+
+    @Override
+    int readAhead() {
+        return limit - position;
     }
 
     @Override
     public void parse() throws IOException {
-        boolean keepGoing = false;
+        try {
+            parseInput();
+        } catch (IOException | RuntimeException e) {
+            parseFailed(e);
+            throw e;
+        }
+    }
+
+    private void parseInput() throws IOException {
         do {
-            switch (state) {
-                case ConsumeWhitespace:
-                    keepGoing = consumeWhitespace();
-                    break;
+            int c = skipWhitespace();
+            switch (c) {
+                case -1:
+                    if (listDepth > 0)
+                        throw new ParseException("unbalanced parentheses");
+                    if (hintLength >= 0)
+                        throw new EOFException("display hint without an atom");
+                    return;
 
-                case StartingSymbolOrVerbatim:
-                    keepGoing = consumeStartingSymbolOrVerbatim();
+                case '(':
+                    if (hintLength >= 0)
+                        throw new ParseException("display hint before list");
+                    position++;
+                    onListBegin();
+                    listDepth++;
                     break;
 
-                case ConsumeBase64:
-                    keepGoing = consumeBase64();
+                case ')':
+                    if (listDepth == 0)
+                        throw new ParseException("extra ')' in input");
+                    if (hintLength >= 0)
+                        throw new ParseException("display hint without an atom");
+                    position++;
+                    onListEnd();
+                    listDepth--;
                     break;
 
-                case ConsumeHex:
-                    keepGoing = consumeHex();
-                    break;
+                case '[':
+                    if (hintLength >= 0)
+                        throw new ParseException("nested display-hints");
+                    position++;
+                    readHint();
+                    continue;
 
-                case ConsumeQuotedString:
-                    keepGoing = consumeQuotedString();
+                case '{':
+                    if (hintLength >= 0)
+                        throw new ParseException("display hint before transport block");
+                    position++;
+                    parseTransportBlock();
                     break;
 
-                case ConsumeSymbol:
-                    keepGoing = consumeSymbol();
+                default:
+                    readSimpleString(c);
+                    if (hintLength >= 0) {
+                        onAtom(atomBuffer, atomOffset, atomLength, hint, 0, hintLength);
+                        hintLength = -1;
+                    } else {
+                        onAtom(atomBuffer, atomOffset, atomLength, null, 0, 0);
+                    }
                     break;
             }
-        } while (keepGoing);
+        } while (!stopRequested());
     }
 
-    private boolean consumeWhitespace() throws IOException {
-        int b = input.read();
-        if (b == '(') {
-            onListBegin();
-            listDepth++;
-        }
-        else if (b == ')') {
-            if (listDepth == 0)
-                throw new ParseException("extra ')' in input");
-            onListEnd();
-            listDepth--;
+    /**
+     * Read a display hint, after its opening bracket, into the hint buffer.
+     */
+    private void readHint() throws IOException {
+        int c = skipWhitespace();
+        if (c == ']') {
+            position++;
+            hintLength = 0;
+            return;
         }
-        else if (Character.isWhitespace(b))
-            return true;
-        else if (b == '[') {
-            if (consumingDisplayHint)
-                throw new ParseException("nested display-hints");
-            consumingDisplayHint = true;
-            return true;
+        if (c < 0)
+            throw new EOFException();
+        readSimpleString(c);
+        if (hint.length < atomLength)
+            hint = new byte[Math.max(atomLength, hint.length * 2)];
+        System.arraycopy(atomBuffer, atomOffset, hint, 0, atomLength);
+        c = skipWhitespace();
+        if (c < 0)
+            throw new EOFException();
+        if (c != ']')
+            throw new ParseException("unexpected token %02x", c);
+        position++;
+        hintLength = atomLength;
+    }
+
+    /**
+     * Read a token, verbatim string, quoted string, hex string or base-64
+     * string, starting with the given byte at the current position, and
+     * set the atom range to its value.
+     */
+    private void readSimpleString(int c) throws IOException {
+        if (c == '"') {
+            position++;
+            readQuotedString(-1);
         }
-        else if (b == ']') {
-            if (!consumingDisplayHint)
-                throw new ParseException("unexpected token ']'");
-            displayHint = new byte[0];
-            consumingDisplayHint = false;
+        else if (c == '#') {
+            position++;
+            readHex(-1);
         }
-        else if (b == '#')
-            state = State.ConsumeHex;
-        else if (b == '|')
-            state = State.ConsumeBase64;
-        else if (b == '"')
-            state = State.ConsumeQuotedString;
-        else if (Character.isDigit(b)) {
-            tokens.addLast(b);
-            state = State.StartingSymbolOrVerbatim;
+        else if (c == '|') {
+            position++;
+            readBase64(-1);
         }
-        else if (Character.isLetter(b)) {
-            tokens.addLast(b);
-            state = State.ConsumeSymbol;
+        else if (c >= '0' && c <= '9') {
+            // A length prefix, or a token that starts with a digit. Digits
+            // are read one at a time, so that a verbatim string does not
+            // wait on input past its end.
+            int digits = 1;
+            int next;
+            while (true) {
+                if (position + digits == limit) {
+                    if (eof) {
+                        next = -1;
+                        break;
+                    }
+                    fill();
+                    continue;
+                }
+                next = block[position + digits];
+                if (next < '0' || next > '9')
+                    break;
+                digits++;
+            }
+            if (next != ':' && next != '"' && next != '#' && next != '|') {
+                int end = tokenEnd();
+                setAtom(block, position, end - position);
+                position = end;
+                return;
+            }
+            long length = 0;
+            for (int i = 0; i < digits; i++) {
+                length = length * 10 + (block[position + i] - '0');
+                if (length > Integer.MAX_VALUE)
+                    throw new ParseException("integer overflow: atom length is greater than 2^31-1");
+            }
+            position += digits + 1;
+            if (next == ':') {
+                require((int) length);
+                setAtom(block, position, (int) length);
+                position += (int) length;
+            }
+            else if (next == '"')
+                readQuotedString((int) length);
+            else if (next == '#')
+                readHex((int) length);
+            else
+                readBase64((int) length);
         }
-        else if (b < 0) {
-            if (listDepth > 0)
-                throw new ParseException("unbalanced parentheses");
-            return false;
+        else if (StructuralIndex.isToken(c) && c != ':') {
+            int end = tokenEnd();
+            setAtom(block, position, end - position);
+            position = end;
         }
         else
-            throw new ParseException("unexpected token %c", (char) b);
-        return true;
+            throw new ParseException("unexpected token %c", (char) c);
     }
 
-    private boolean consumeStartingSymbolOrVerbatim() throws IOException {
+    private void setAtom(byte[] buffer, int offset, int length) {
+        atomBuffer = buffer;
+        atomOffset = offset;
+        atomLength = length;
+    }
+
+    /**
+     * Find the end of the token at the current position, reading more
+     * input until it is all in the block.
+     */
+    private int tokenEnd() throws IOException {
+        int scanned = 1;
         while (true) {
-            int b = input.read();
-            if (Character.isDigit(b)) {
-                tokens.push(b);
-            }
-            else if (Character.isLetter(b)) {
-                state = State.ConsumeSymbol;
-                break;
+            int end = nextStructural(position + scanned);
+            if (end < limit || eof)
+                return end;
+            scanned = end - position;
+            fill();
+        }
+    }
+
+    /**
+     * Return the index of the first structural byte at or after the given
+     * index, which is at most the limit.
+     */
+    private int nextStructural(int index) {
+        int w = index >>> 6;
+        long bits = structure[w] & (-1L << index);
+        while (bits == 0)
+            bits = structure[++w];
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    private void readQuotedString(int expectedLength) throws IOException {
+        int length = 0;
+        while (true) {
+            int end = nextStructural(position);
+            if (end > position) {
+                length = append(length, block, position, end - position);
+                position = end;
             }
-            else if (b == ':') {
-                int length = makeLength();
-                byte[] buffer = new byte[length];
-                int read = input.read(buffer);
-                if (read < length)
+            int c = next();
+            switch (c) {
+                case -1:
                     throw new EOFException();
-                if (consumingDisplayHint) {
-                    displayHint = buffer;
-                    consumeWhitespaceUntil(']');
-                    consumingDisplayHint = false;
-                } else {
-                    onAtom(buffer, Optional.fromNullable(displayHint));
-                    displayHint = null;
-                }
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b == '"') {
-                quotedStringLength = Optional.of(makeLength());
-                state = State.ConsumeQuotedString;
-                break;
+
+                case '"':
+                    if (expectedLength >= 0 && expectedLength != length)
+                        throw new ParseException("quoted string length did not match explicit length");
+                    setAtom(decoded, 0, length);
+                    return;
+
+                case '\\':
+                    length = readEscape(length);
+                    break;
+
+                default:
+                    length = append(length, (byte) c);
+                    break;
             }
-            else if (Character.isWhitespace(b)) {
-                makeSymbol();
-                state = State.ConsumeWhitespace;
-                break;
+        }
+    }
+
+    private int readEscape(int length) throws IOException {
+        int e1 = next();
+        switch (e1) {
+            case 'b':
+                return append(length, (byte) '\b');
+            case 't':
+                return append(length, (byte) '\t');
+            case 'v':
+                return append(length, (byte) 0xb);
+            case 'n':
+                return append(length, (byte) '\n');
+            case 'r':
+                return append(length, (byte) '\r');
+            case '"':
+            case '\'':
+            case '\\':
+                return append(length, (byte) e1);
+            case '0':
+            case '1':
+            case '2':
+            case '3':
+            case '4':
+            case '5':
+            case '6':
+            case '7': {
+                int e2 = next();
+                int e3 = next();
+                if (e2 < '0' || e2 > '7' || e3 < '0' || e3 > '7')
+                    throw new ParseException("invalid octal value in quoted string");
+                return append(length, (byte) (((e1 - '0') << 6) | ((e2 - '0') << 3) | (e3 - '0')));
             }
-            else if (b < 0) {
-                throw new ParseException("end-of-file reading symbol");
+            case 'x': {
+                int e2 = next();
+                int e3 = next();
+                if (e2 < 0 || e3 < 0 || HEX_VALUES[e2] < 0 || HEX_VALUES[e3] < 0)
+                    throw new ParseException("invalid hex value in quoted string");
+                return append(length, (byte) ((HEX_VALUES[e2] << 4) | HEX_VALUES[e3]));
             }
-            else
-                throw new ParseException("unexpected token: %c", (char) b);
+            case '\r':
+                // A line continuation; the newline is ignored.
+                if (peek() == '\n')
+                    position++;
+                return length;
+            case '\n':
+                if (peek() == '\r')
+                    position++;
+                return length;
+            case -1:
+                throw new EOFException();
+            default:
+                throw new ParseException("invalid escape character: %c (0x%x)", (char) e1, e1);
         }
-        return true;
     }
 
-    private void consumeWhitespaceUntil(int stopchar) throws IOException {
+    private void readHex(int expectedLength) throws IOException {
+        // Collect one digit value per byte, then pack them in place.
+        int digits = 0;
         while (true) {
-            int ch = input.read();
-            if (ch == stopchar)
+            int c = next();
+            int v = c < 0 ? -1 : HEX_VALUES[c];
+            if (v >= 0)
+                digits = append(digits, (byte) v);
+            else if (c == '#')
                 break;
-            else if (Character.isWhitespace(ch))
+            else if (isWhitespace(c))
                 continue;
-            else if (ch == -1)
+            else if (c < 0)
                 throw new EOFException();
             else
-                throw new ParseException("unexpected token %02x", ch);
+                throw new ParseException("unexpected token: 0x%x", c);
         }
+        int length = (digits + 1) / 2;
+        int i = 0;
+        int j = 0;
+        if ((digits & 1) != 0)
+            decoded[j++] = decoded[i++];
+        for (; i < digits; i += 2)
+            decoded[j++] = (byte) ((decoded[i] << 4) | decoded[i + 1]);
+        if (expectedLength >= 0 && expectedLength != length)
+            throw new ParseException("hex string length did not match explicit length");
+        setAtom(decoded, 0, length);
     }
 
-    private int makeLength() throws ParseException {
-        int length = 0;
-        while (!tokens.isEmpty()) {
-            int i = tokens.removeFirst();
-            int r = length * 10;
-            int next = (i - '0');
-            if (r < length || r + next < length)
-                throw new ParseException("integer overflow: atom length is greater than 2^31-1");
-            length = r + next;
+    private void readBase64(int expectedLength) throws IOException {
+        int digits = 0;
+        while (true) {
+            int c = next();
+            int v = c < 0 ? -1 : BASE64_VALUES[c];
+            if (v >= 0)
+                digits = append(digits, (byte) v);
+            else if (c == '|')
+                break;
+            else if (c == '=' || isWhitespace(c))
+                continue;
+            else if (c < 0)
+                throw new EOFException();
+            else
+                throw new ParseException("unexpected token: 0x%x", c);
         }
-        return length;
-    }
-
-    private void makeSymbol() throws IOException {
-        byte[] buffer = new byte[tokens.size()];
+        // A lone trailing digit holds six bits, which can't make a byte.
+        if ((digits & 3) == 1)
+            throw new ParseException("base-64 string has a dangling digit");
+        int j = 0;
         int i = 0;
-        while (!tokens.isEmpty()) {
-            buffer[i++] = tokens.removeFirst().byteValue();
+        for (; i + 4 <= digits; i += 4) {
+            int n = (decoded[i] << 18) | (decoded[i + 1] << 12) | (decoded[i + 2] << 6) | decoded[i + 3];
+            decoded[j++] = (byte) (n >>> 16);
+            decoded[j++] = (byte) (n >>> 8);
+            decoded[j++] = (byte) n;
         }
-        if (consumingDisplayHint) {
-            displayHint = buffer;
-            // note, don't need to consume whitespace until ']', because
-            // we already got it.
-            consumingDisplayHint = false;
-        } else {
-            onAtom(buffer, Optional.fromNullable(displayHint));
-            displayHint = null;
+        if (digits - i >= 2) {
+            int n = (decoded[i] << 18) | (decoded[i + 1] << 12) | (digits - i == 3 ? decoded[i + 2] << 6 : 0);
+            decoded[j++] = (byte) (n >>> 16);
+            if (digits - i == 3)
+                decoded[j++] = (byte) (n >>> 8);
         }
+        if (expectedLength >= 0 && expectedLength != j)
+            throw new ParseException("base-64 string length did not match explicit length");
+        setAtom(decoded, 0, j);
     }
 
-    private boolean consumeSymbol() throws IOException {
-        while (true) {
-            int b = input.read();
-            if (Character.isLetterOrDigit(b)) {
-                tokens.addLast(b);
-            }
-            else if (Character.isWhitespace(b)) {
-                makeSymbol();
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b == '(') {
-                makeSymbol();
-                onListBegin();
-                listDepth++;
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b == ')') {
-                if (listDepth == 0)
-                    throw new ParseException("unbalanced parentheses");
-                makeSymbol();
-                onListEnd();
-                listDepth--;
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b == ']' && consumingDisplayHint) {
-                makeSymbol();
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b < 0) {
-                if (listDepth > 0)
-                    throw new EOFException();
-                makeSymbol();
-                state = State.ConsumeWhitespace;
-                return false;
-            }
-            else {
-                throw new ParseException("unexpected token: %c", (char) b);
-            }
-        }
-        return true;
+    private int append(int length, byte b) throws ParseException {
+        if (length == decoded.length)
+            decoded = Arrays.copyOf(decoded, grow(length, length + 1L));
+        decoded[length] = b;
+        return length + 1;
+    }
+
+    private int append(int length, byte[] buffer, int offset, int count) throws ParseException {
+        if ((long) length + count > decoded.length)
+            decoded = Arrays.copyOf(decoded, grow(decoded.length, (long) length + count));
+        System.arraycopy(buffer, offset, decoded, length, count);
+        return length + count;
+    }
+
+    /**
+     * Return the new length for an array that must hold at least the
+     * given number of bytes: double its length, up to the longest array
+     * that can be allocated.
+     *
+     * @throws ParseException If the array would be longer than that.
+     */
+    private static int grow(int length, long needed) throws ParseException {
+        if (needed > MAX_ARRAY_SIZE)
+            throw new ParseException("atom longer than %d bytes", MAX_ARRAY_SIZE);
+        return (int) Math.max(needed, Math.min(length * 2L, MAX_ARRAY_SIZE));
     }
 
-    private boolean consumeBase64() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(16);
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0xb;
+    }
+
+    /**
+     * Skip whitespace, and return the next byte without consuming it, or
+     * -1 at the end of input.
+     */
+    private int skipWhitespace() throws IOException {
         while (true) {
-            int b = input.read();
-            if (Character.isLetterOrDigit(b) || b == '+' || b == '/' || b == '=') {
-                if (buffer.remaining() == 0)
-                    buffer = grow(buffer);
-                buffer.put((byte) b);
-            }
-            else if (Character.isWhitespace(b)) {
+            if (position == limit) {
+                if (eof)
+                    return -1;
+                fill();
                 continue;
             }
-            else if (b == '|') {
-                buffer.flip();
-                byte[] bytes = new byte[buffer.remaining()];
-                buffer.get(bytes);
-                bytes = Base64.decodeBase64(bytes);
-                if (consumingDisplayHint) {
-                    displayHint = bytes;
-                    consumeWhitespaceUntil(']');
-                    consumingDisplayHint = false;
-                } else {
-                    onAtom(bytes, Optional.fromNullable(displayHint));
-                    displayHint = null;
-                }
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b < 0) {
-                throw new EOFException();
-            }
-            else {
-                throw new ParseException("unexpected token: 0x%x", b);
-            }
+            int c = block[position] & 0xFF;
+            if (!isWhitespace(c))
+                return c;
+            position++;
         }
-        return true;
     }
 
-    private int hexchar(int c) {
-        if (c >= '0' && c <= '9')
-            return c - '0';
-        else if (c >= 'a' && c <= 'f')
-            return (c - 'a') + 10;
-        else if (c >= 'A' && c <= 'F')
-            return (c - 'A') + 10;
-        else
-            throw new IllegalArgumentException("unexpected char: " + (char) c);
+    private int next() throws IOException {
+        int c = peek();
+        if (c >= 0)
+            position++;
+        return c;
     }
 
-    private boolean consumeHex() throws IOException {
-        StringBuilder buffer = new StringBuilder();
-        while (true) {
-            int b = input.read();
-            if (Character.isDigit(b) || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F')) {
-                buffer.append((char) b);
-            }
-            else if (Character.isWhitespace(b)) {
-                continue;
-            }
-            else if (b == '#') {
-                if (buffer.length() % 2 == 1)
-                    buffer.insert(0, '0');
-                byte[] result = new byte[buffer.length() / 2];
-                for (int i = 0, j = 0; i + 1 < buffer.length() && j < result.length; i += 2, j++) {
-                    result[j] = (byte) ((hexchar(buffer.charAt(i)) << 4) | hexchar(buffer.charAt(i + 1)));
-                }
-                if (consumingDisplayHint) {
-                    displayHint = result;
-                    consumeWhitespaceUntil(']');
-                    consumingDisplayHint = false;
-                } else {
-                    onAtom(result, Optional.fromNullable(displayHint));
-                    displayHint = null;
-                }
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b < 0) {
+    private int peek() throws IOException {
+        while (position == limit) {
+            if (eof)
+                return -1;
+            fill();
+        }
+        return block[position] & 0xFF;
+    }
+
+    /**
+     * Read until the given number of bytes after the current position are
+     * in the block.
+     */
+    private void require(int length) throws IOException {
+        while (limit - position < length) {
+            if (eof)
                 throw new EOFException();
-            }
-            else {
-                throw new ParseException("unexpected token: 0x%x", b);
-            }
+            fill();
         }
-        return true;
     }
 
-    private static final BitSet quotedStringChars = new BitSet('}');
-    static {
-        quotedStringChars.set('0', '9' + 1);
-        quotedStringChars.set('a', 'z' + 1);
-        quotedStringChars.set('A', 'Z' + 1);
-        quotedStringChars.set(' ');
-        quotedStringChars.set('\t');
-        quotedStringChars.set('\n');
-        quotedStringChars.set('\r');
-        quotedStringChars.set('-');
-        quotedStringChars.set('.');
-        quotedStringChars.set('/');
-        quotedStringChars.set('_');
-        quotedStringChars.set(':');
-        quotedStringChars.set('*');
-        quotedStringChars.set('+');
-        quotedStringChars.set('=');
-        quotedStringChars.set('(');
-        quotedStringChars.set(')');
-        quotedStringChars.set('[');
-        quotedStringChars.set(']');
-        quotedStringChars.set('{');
-        quotedStringChars.set('}');
-        quotedStringChars.set('|');
-        quotedStringChars.set('#');
-        quotedStringChars.set('&');
+    /**
+     * Read more input into the block, and index it. The block is first
+     * shifted down by whole words of the index, so that the part already
+     * indexed keeps its bits; if nothing can be shifted out and the block
+     * is full, it is grown.
+     */
+    private void fill() throws IOException {
+        if (eof)
+            return;
+        int shift = position & ~63;
+        if (shift > 0) {
+            System.arraycopy(block, shift, block, 0, limit - shift);
+            System.arraycopy(structure, shift >>> 6, structure, 0, ((limit - shift) >>> 6) + 1);
+            position -= shift;
+            limit -= shift;
+        } else if (limit == block.length) {
+            block = Arrays.copyOf(block, grow(block.length, block.length + 1L));
+            view = StructuralIndex.view(block);
+            structure = Arrays.copyOf(structure, block.length / 64 + 1);
+        }
+        int n = input.read(block, limit, block.length - limit);
+        if (n < 0) {
+            eof = true;
+            return;
+        }
+        int from = limit & ~63;
+        limit += n;
+        StructuralIndex.index(view, from, limit, structure);
     }
 
-    private boolean consumeQuotedString() throws IOException {
-        Optional<Integer> len = quotedStringLength;
-        quotedStringLength = Optional.absent();
-        ByteBuffer buffer = ByteBuffer.allocate(len.or(16));
-        LinkedList<Integer> peek = new LinkedList<>();
-        while (true) {
-            int b;
-            if (peek.isEmpty())
-                b = input.read();
-            else
-                b = peek.removeFirst();
-            if (quotedStringChars.get(b)) {
-                buffer = doPut(buffer, (byte) b);
-            }
-            else if (b == '\\') {
-                int e1 = input.read();
-                switch (e1) {
-                    case 'b':
-                        buffer = doPut(buffer, (byte) '\b');
-                        break;
-                    case 't':
-                        buffer = doPut(buffer, (byte) '\t');
-                        break;
-                    case 'v':
-                        buffer = doPut(buffer, (byte) 0xb);
-                        break;
-                    case 'n':
-                        buffer = doPut(buffer, (byte) '\n');
-                        break;
-                    case 'r':
-                        buffer = doPut(buffer, (byte) '\r');
-                        break;
-                    case '"':
-                        buffer = doPut(buffer, (byte) '"');
-                        break;
-                    case '\'':
-                        buffer = doPut(buffer, (byte) '\'');
-                        break;
-                    case '\\':
-                        buffer = doPut(buffer, (byte) '\\');
-                        break;
-                    case '0':
-                    case '1':
-                    case '2':
-                    case '3':
-                    case '4':
-                    case '5':
-                    case '6':
-                    case '7': {
-                        int e2 = input.read();
-                        int e3 = input.read();
-                        if (e2 < '0' || e2 > '7' || e3 < '0' || e3 > '7')
-                            throw new ParseException("invalid octal value in quoted string");
-                        int value = ((e1 - '0') << 6) | ((e2 - '0') << 3) | (e3 - '0');
-                        buffer = doPut(buffer, (byte) value);
-                        break;
-                    }
-                    case 'x': {
-                        int e2 = input.read();
-                        int e3 = input.read();
-                        int value = (hexchar(e2) << 4) | (hexchar(e3));
-                        buffer = doPut(buffer, (byte) value);
-                        break;
-                    }
-                    case '\r': {
-                        int e2 = input.read();
-                        if (e2 != '\n')
-                            peek.addLast(e2);
-                        break; // ignore these characters
-                    }
-                    case '\n': {
-                        int e2 = input.read();
-                        if (e2 != '\r')
-                            peek.addLast(e2);
-                        break; // ignore these characters
-                    }
-                    default:
-                        throw new ParseException("invalid escape character: %c (0x%x)", (char) e1, e1);
+    /**
+     * Parse the canonical expression in a transport block, decoding it
+     * as it is read, and pass its events on to this parser's callbacks.
+     */
+    private void parseTransportBlock() throws IOException {
+        if (transportDecoder == null) {
+            transportDecoder = new TransportDecoder();
+            transportParser = new CanonicalStreamingParser(transportDecoder);
+            transportParser.addCallback(new RawStreamingParserCallback() {
+                @Override
+                public void beginList() throws ParseException {
+                    transportDepth++;
+                    onListBegin();
                 }
-            }
-            else if (b == '"') {
-                buffer.flip();
-                if (len.isPresent() && len.get() != buffer.remaining())
-                    throw new ParseException("quoted string length did not match explicit length");
-                byte[] bytes = new byte[buffer.remaining()];
-                buffer.get(bytes);
-                if (consumingDisplayHint) {
-                    displayHint = bytes;
-                    consumeWhitespaceUntil(']');
-                    consumingDisplayHint = false;
-                } else {
-                    onAtom(bytes, Optional.fromNullable(displayHint));
-                    displayHint = null;
+
+                @Override
+                public void endList() throws ParseException {
+                    if (transportDepth == 0)
+                        throw new ParseException("extra ')' in transport block");
+                    if (--transportDepth == 0)
+                        transportCount++;
+                    onListEnd();
                 }
-                state = State.ConsumeWhitespace;
-                break;
-            }
-            else if (b < 0) {
-                throw new EOFException();
-            }
-            else {
-                throw new ParseException("invalid character in quoted string: %c (0x%x)", (char) b, b);
-            }
+
+                @Override
+                public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen)
+                        throws ParseException {
+                    if (transportDepth == 0)
+                        transportCount++;
+                    AdvancedStreamingParser.this.onAtom(buf, off, len, hintBuf, hintOff, hintLen);
+                }
+            });
         }
-        return true;
+        transportDecoder.reset(new BlockInput());
+        transportParser.reset(transportDecoder);
+        transportDepth = 0;
+        transportCount = 0;
+        transportParser.parse();
+        if (transportDepth != 0)
+            throw new ParseException("unbalanced parentheses in transport block");
+        if (transportCount != 1)
+            throw new ParseException("transport block holds %d expressions, not one", transportCount);
     }
 
-    private ByteBuffer doPut(ByteBuffer buffer, byte value) {
-        if (!buffer.hasRemaining())
-            buffer = grow(buffer);
-        buffer.put(value);
-        return buffer;
-    }
+    /**
+     * The rest of the input, starting at the current position in the block.
+     */
+    private final class BlockInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return next();
+        }
 
-    private ByteBuffer grow(ByteBuffer buffer) {
-        int newLength;
-        buffer.flip();
-        if (buffer.remaining() > 4096)
-            newLength = buffer.remaining() + 1024;
-        else
-            newLength = buffer.remaining() * 2;
-        ByteBuffer newBuffer = ByteBuffer.allocate(newLength);
-        newBuffer.put(buffer);
-        return newBuffer;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (peek() < 0)
+                return -1;
+            int n = Math.min(len, limit - position);
+            System.arraycopy(block, position, b, off, n);
+            position += n;
+            return n;
+        }
     }
 }
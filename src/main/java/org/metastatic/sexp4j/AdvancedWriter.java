@@ -2,6 +2,7 @@ package org.metastatic.sexp4j;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -9,11 +10,18 @@ import com.google.common.base.Preconditions;
 /**
  * A {@link org.metastatic.sexp4j.Writer} implementation for the
  * advanced encoding.
+ *
+ * <p>Each atom's encoding is chosen from a single scan of its bytes, eight
+ * at a time, which is cached on the atom. Output is collected in a
+ * reusable buffer and written to the output stream once per call, so
+ * writing a whole expression costs one stream write per buffer full. Hex
+ * and base-64 text is encoded by lookup tables straight into the buffer,
+ * a buffer full at a time for large atoms.</p>
  */
 public class AdvancedWriter implements Writer {
     private final Optional<Integer> lineLength;
     private final Optional<Integer> indentAmount;
-    private final OutputStream outputStream;
+    private OutputStream outputStream;
 
     private static enum LastWritten {
         None,
@@ -23,9 +31,19 @@ public class AdvancedWriter implements Writer {
         NewLine
     }
 
+    private static final int BUFFER_SIZE = 8192;
+
     private LastWritten lastWritten = LastWritten.None;
     private int currentLineLength = 0;
     private int indentLevel = 0;
+    // Output is collected here, and written to the stream at the end of
+    // each public write call.
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    // A newline followed by spaces; a prefix of it is written for each
+    // line break.
+    private byte[] indentRun = new byte[0];
+    private WriterMeter meter;
 
     private AdvancedWriter(Optional<Integer> lineLength, Optional<Integer> indentAmount, OutputStream outputStream) {
         Preconditions.checkNotNull(lineLength);
@@ -36,6 +54,36 @@ public class AdvancedWriter implements Writer {
         this.outputStream = outputStream;
     }
 
+    /**
+     * Reset this writer to write a new expression to the given stream,
+     * keeping its line length and indent settings.
+     *
+     * @param outputStream The new output stream.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public void reset(OutputStream outputStream) {
+        Preconditions.checkNotNull(outputStream);
+        this.outputStream = outputStream;
+        lastWritten = LastWritten.None;
+        currentLineLength = 0;
+        indentLevel = 0;
+        position = 0;
+        if (meter != null)
+            meter.clear();
+    }
+
+    /**
+     * Measure this writer with the given recorder, or stop measuring it.
+     * Each top-level expression is recorded as one
+     * {@link OperationMetrics.Operation#Write} operation, as is each
+     * exception thrown from a write.
+     *
+     * @param recorder The recorder, or null to turn metrics off.
+     */
+    public void setMetrics(MetricsRecorder recorder) {
+        meter = recorder != null ? new WriterMeter(recorder) : null;
+    }
+
     /**
      * Builder class for advanced writers.
      *
@@ -137,20 +185,33 @@ public class AdvancedWriter implements Writer {
 
     private int writeHint(Atom hint) throws IOException {
         int wrote = 0; //indentOrSpace();
-        outputStream.write('[');
+        put('[');
         wrote++;
         wrote = writeAtomBytes(hint, wrote);
-        outputStream.write(']');
+        put(']');
         wrote++;
         return wrote;
     }
 
     @Override
     public int writeAtom(Atom atom) throws IOException {
+        try {
+            int wrote = writeAtom0(atom);
+            flushBuffer();
+            completed();
+            return wrote;
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    private int writeAtom0(Atom atom) throws IOException {
         int wrote = indentOrSpace();
 
-        if (atom.displayHint().isPresent()) {
-            wrote += writeHint(atom.displayHint().get().atom());
+        DisplayHint hint = atom.hint();
+        if (hint != null) {
+            wrote += writeHint(hint.atom());
         }
 
         //wrote += indentOrSpace();
@@ -158,34 +219,35 @@ public class AdvancedWriter implements Writer {
         wrote = writeAtomBytes(atom, wrote);
         currentLineLength += wrote;
         lastWritten = LastWritten.Atom;
+        if (meter != null)
+            meter.atom(atom.length(), wrote);
         return wrote;
     }
 
     private int writeAtomBytes(Atom atom, int wrote) throws IOException {
-        if (atom.canBeSymbol())
+        byte[] bytes = atom.rawBytes();
+        int classes = atom.classify();
+        if (bytes.length > 0 && (classes & Atom.SYMBOL) != 0)
         {
-            atom.writeTo(outputStream);
-            wrote += atom.length();
+            put(bytes, 0, bytes.length);
+            wrote += bytes.length;
         }
-        else if (atom.canBeQuotedString()) {
-            outputStream.write('"');
-            atom.writeTo(outputStream);
-            outputStream.write('"');
-            wrote += atom.length() + 2;
+        else if ((classes & Atom.QUOTED_STRING) != 0) {
+            put('"');
+            put(bytes, 0, bytes.length);
+            put('"');
+            wrote += bytes.length + 2;
         }
-        else if (atom.length() <= 8) {
-            outputStream.write('#');
-            byte[] hex = atom.asHexBytes();
-            outputStream.write(hex);
-            outputStream.write('#');
-            wrote += hex.length + 2;
+        else if (bytes.length <= 8) {
+            put('#');
+            putHex(bytes);
+            put('#');
+            wrote += bytes.length * 2 + 2;
         }
         else {
-            byte[] b64 = atom.asBase64Bytes();
-            outputStream.write('|');
-            outputStream.write(b64);
-            outputStream.write('|');
-            wrote += b64.length + 2;
+            put('|');
+            wrote += putBase64(bytes) + 2;
+            put('|');
         }
         return wrote;
     }
@@ -194,18 +256,18 @@ public class AdvancedWriter implements Writer {
         int wrote = 0;
         if ((lastWritten == LastWritten.Atom || lastWritten == LastWritten.EndList)) {
             if (lineLength.isPresent() && currentLineLength > lineLength.get()) {
-                outputStream.write('\n');
-                currentLineLength = -1;
-                wrote++;
-                for (int i = 0; i < indentLevel; i++) {
-                    for (int j = 0; j < indentAmount.or(0); j++) {
-                        outputStream.write(' ');
-                        wrote++;
-                    }
+                int indent = indentLevel * indentAmount.or(0);
+                if (indentRun.length < indent + 1) {
+                    indentRun = new byte[Math.max(indent + 1, indentRun.length * 2)];
+                    Arrays.fill(indentRun, (byte) ' ');
+                    indentRun[0] = '\n';
                 }
+                put(indentRun, 0, indent + 1);
+                currentLineLength = -1;
+                wrote += indent + 1;
             }
             else {
-                outputStream.write(' ');
+                put(' ');
                 wrote++;
             }
         }
@@ -214,9 +276,21 @@ public class AdvancedWriter implements Writer {
 
     @Override
     public int writeList(ExpressionList list) throws IOException {
+        try {
+            int wrote = writeList0(list);
+            flushBuffer();
+            completed();
+            return wrote;
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    private int writeList0(ExpressionList list) throws IOException {
         int wrote = beginList0();
         for (Expression e : list) {
-            wrote += writeExpression(e);
+            wrote += writeExpression0(e);
         }
         wrote += endList0();
         return wrote;
@@ -224,37 +298,127 @@ public class AdvancedWriter implements Writer {
 
     @Override
     public void beginList() throws IOException {
-        currentLineLength += beginList0();
+        try {
+            currentLineLength += beginList0();
+            flushBuffer();
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            throw e;
+        }
     }
 
     private int beginList0() throws IOException {
         int wrote = indentOrSpace();
-        outputStream.write('(');
+        put('(');
         lastWritten = LastWritten.BeginList;
         wrote += 1;
         indentLevel++;
+        if (meter != null)
+            meter.beginList(wrote);
         return wrote;
     }
 
     @Override
     public void endList() throws IOException {
-        currentLineLength += endList0();
+        try {
+            currentLineLength += endList0();
+            flushBuffer();
+            completed();
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            throw e;
+        }
     }
 
     private int endList0() throws IOException {
-        outputStream.write(')');
+        put(')');
         lastWritten = LastWritten.EndList;
         indentLevel--;
+        if (meter != null)
+            meter.endList(1);
         return 1;
     }
 
     @Override
     public int writeExpression(Expression expression) throws IOException {
+        try {
+            int wrote = writeExpression0(expression);
+            flushBuffer();
+            completed();
+            return wrote;
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+            throw e;
+        }
+    }
+
+    private void completed() {
+        if (meter != null)
+            meter.completed();
+    }
+
+    private void failed(Throwable error) {
+        if (meter != null)
+            meter.failed(error);
+    }
+
+    private int writeExpression0(Expression expression) throws IOException {
         Preconditions.checkNotNull(expression);
         if (expression instanceof ExpressionList)
-            return writeList((ExpressionList) expression);
+            return writeList0((ExpressionList) expression);
         if (expression instanceof Atom)
-            return writeAtom((Atom) expression);
+            return writeAtom0((Atom) expression);
         throw new IllegalArgumentException("don't know how to write a " + expression.getClass());
     }
+
+    private void put(int b) throws IOException {
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = (byte) b;
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.length - position) {
+            flushBuffer();
+            if (len > buffer.length) {
+                outputStream.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buffer, position, len);
+        position += len;
+    }
+
+    private void putHex(byte[] bytes) throws IOException {
+        int i = 0;
+        while (i < bytes.length) {
+            if (buffer.length - position < 2)
+                flushBuffer();
+            int n = Math.min(bytes.length - i, (buffer.length - position) / 2);
+            position += AtomEncoding.encodeHex(bytes, i, n, buffer, position);
+            i += n;
+        }
+    }
+
+    private int putBase64(byte[] bytes) throws IOException {
+        // Whole groups of three bytes go into each piece of the buffer, so
+        // that padding only comes at the end.
+        int i = 0;
+        while (i < bytes.length) {
+            if (buffer.length - position < 4)
+                flushBuffer();
+            int n = Math.min(bytes.length - i, (buffer.length - position) / 4 * 3);
+            position += AtomEncoding.encodeBase64(bytes, i, n, buffer, position);
+            i += n;
+        }
+        return AtomEncoding.base64Length(bytes.length);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            int n = position;
+            position = 0;
+            outputStream.write(buffer, 0, n);
+        }
+    }
 }
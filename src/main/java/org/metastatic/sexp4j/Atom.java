@@ -4,14 +4,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.BitSet;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import org.apache.commons.codec.binary.Base64;
 
 /**
  * An atom; that is, a sequence of bytes, with an optional display hint.
@@ -19,7 +19,8 @@ import org.apache.commons.codec.binary.Base64;
 public class Atom implements Cloneable, Expression
 {
     private final byte[] bytes;
-    private final Optional<DisplayHint> displayHint;
+    // null if this atom has no display hint.
+    private final DisplayHint displayHint;
 
     /**
      * Create an atom with the given bytes.
@@ -30,7 +31,7 @@ public class Atom implements Cloneable, Expression
     public Atom(byte[] bytes) {
         Preconditions.checkNotNull(bytes);
         this.bytes = bytes.clone();
-        displayHint = Optional.absent();
+        displayHint = null;
     }
 
     /**
@@ -43,7 +44,7 @@ public class Atom implements Cloneable, Expression
         this.bytes = new byte[bytes.length + 1];
         this.bytes[0] = code;
         System.arraycopy(bytes, 0, this.bytes, 1, bytes.length);
-        displayHint = Optional.absent();
+        displayHint = null;
     }
 
     /**
@@ -60,12 +61,13 @@ public class Atom implements Cloneable, Expression
         Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
         this.bytes = new byte[length];
         System.arraycopy(bytes, offset, this.bytes, 0, length);
-        displayHint = Optional.absent();
+        displayHint = null;
     }
 
-    private Atom(byte[] bytes, DisplayHint hint) {
+    // Takes ownership of the given array, without copying it.
+    private Atom(byte[] bytes, DisplayHint displayHint) {
         this.bytes = bytes;
-        this.displayHint = Optional.of(hint);
+        this.displayHint = displayHint;
     }
 
     /**
@@ -90,6 +92,23 @@ public class Atom implements Cloneable, Expression
         return new Atom(bytes, offset, length);
     }
 
+    /**
+     * Create an atom with a copy of a subsequence of a byte array, and
+     * the given display hint, if not null.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the bytes to copy.
+     * @param length The number of bytes to copy.
+     * @param displayHint The display hint, or null.
+     * @return The new atom.
+     */
+    public static Atom atom(byte[] bytes, int offset, int length, DisplayHint displayHint) {
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+        byte[] b = new byte[length];
+        System.arraycopy(bytes, offset, b, 0, length);
+        return new Atom(b, displayHint);
+    }
+
     /**
      * Create an atom with the given string and charset.
      *
@@ -101,7 +120,9 @@ public class Atom implements Cloneable, Expression
     public static Atom atom(String string, Charset charset) {
         Preconditions.checkNotNull(string);
         Preconditions.checkNotNull(charset);
-        return new Atom(string.getBytes(charset));
+        if (charset.equals(StandardCharsets.UTF_8))
+            return atom(string);
+        return new Atom(string.getBytes(charset), null);
     }
 
     /**
@@ -112,7 +133,8 @@ public class Atom implements Cloneable, Expression
      * @throws java.lang.NullPointerException If the argument is null.
      */
     public static Atom atom(String string) {
-        return atom(string, Charset.forName("UTF-8"));
+        Preconditions.checkNotNull(string);
+        return new Atom(Utf8.encode(string), null);
     }
 
     /**
@@ -122,7 +144,7 @@ public class Atom implements Cloneable, Expression
      * @return The new atom.
      */
     public static Atom atom(byte value) {
-        return new Atom(new byte[] { value });
+        return new Atom(new byte[] { value }, null);
     }
 
     /**
@@ -150,15 +172,15 @@ public class Atom implements Cloneable, Expression
     }
 
     public static Atom atom(short value, ByteOrder order) {
-        return new Atom(Primitives.bytes(value, order));
+        return new Atom(Primitives.bytes(value, order), null);
     }
 
     public static Atom atom(short value) {
-        return new Atom(Primitives.bytes(value));
+        return new Atom(Primitives.bytes(value), null);
     }
 
     public static Atom atom(int value, ByteOrder order) {
-        return new Atom(Primitives.bytes(value, order));
+        return new Atom(Primitives.bytes(value, order), null);
     }
 
     public static Atom atom(int value) {
@@ -166,7 +188,7 @@ public class Atom implements Cloneable, Expression
     }
 
     public static Atom atom(long value, ByteOrder order) {
-        return new Atom(Primitives.bytes(value, order));
+        return new Atom(Primitives.bytes(value, order), null);
     }
 
     public static Atom atom(long value) {
@@ -174,19 +196,122 @@ public class Atom implements Cloneable, Expression
     }
 
     public static Atom atom(float value) {
-        return new Atom(Primitives.bytes(value));
+        return new Atom(Primitives.bytes(value), null);
     }
 
     public static Atom atom(float value, ByteOrder order) {
-        return new Atom(Primitives.bytes(value, order));
+        return new Atom(Primitives.bytes(value, order), null);
     }
 
     public static Atom atom(double value) {
-        return new Atom(Primitives.bytes(value));
+        return new Atom(Primitives.bytes(value), null);
     }
 
     public static Atom atom(double value, ByteOrder order) {
-        return new Atom(Primitives.bytes(value, order));
+        return new Atom(Primitives.bytes(value, order), null);
+    }
+
+    /**
+     * Create an atom packing the given booleans, one byte each: one for
+     * true, zero for false.
+     *
+     * @param values The booleans.
+     * @return The new atom.
+     */
+    public static Atom atom(boolean[] values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            b[i] = values[i] ? (byte) 1 : (byte) 0;
+        return new Atom(b, null);
+    }
+
+    /**
+     * Create an atom packing the given shorts, two bytes each, in
+     * big-endian order.
+     *
+     * @param values The shorts.
+     * @return The new atom.
+     */
+    public static Atom atom(short[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        buffer.asShortBuffer().put(values);
+        return new Atom(buffer.array(), null);
+    }
+
+    /**
+     * Create an atom packing the given chars, two bytes each, in
+     * big-endian order.
+     *
+     * @param values The chars.
+     * @return The new atom.
+     */
+    public static Atom atom(char[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        buffer.asCharBuffer().put(values);
+        return new Atom(buffer.array(), null);
+    }
+
+    /**
+     * Create an atom packing the given ints, four bytes each, in
+     * big-endian order.
+     *
+     * @param values The ints.
+     * @return The new atom.
+     */
+    public static Atom atom(int[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        return new Atom(buffer.array(), null);
+    }
+
+    /**
+     * Create an atom packing the given longs, eight bytes each, in
+     * big-endian order.
+     *
+     * @param values The longs.
+     * @return The new atom.
+     */
+    public static Atom atom(long[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asLongBuffer().put(values);
+        return new Atom(buffer.array(), null);
+    }
+
+    /**
+     * Create an atom packing the given floats, four bytes each, as with
+     * {@link Float#floatToIntBits(float)}, in big-endian order.
+     *
+     * @param values The floats.
+     * @return The new atom.
+     */
+    public static Atom atom(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asFloatBuffer().put(values);
+        return new Atom(buffer.array(), null);
+    }
+
+    /**
+     * Create an atom packing the given doubles, eight bytes each, as
+     * with {@link Double#doubleToLongBits(double)}, in big-endian order.
+     *
+     * @param values The doubles.
+     * @return The new atom.
+     */
+    public static Atom atom(double[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asDoubleBuffer().put(values);
+        return new Atom(buffer.array(), null);
+    }
+
+    /**
+     * Create an atom with the two's complement bytes of a big integer,
+     * as from {@link BigInteger#toByteArray()}.
+     *
+     * @param value The big integer.
+     * @return The new atom.
+     */
+    public static Atom atom(BigInteger value) {
+        return new Atom(value.toByteArray(), null);
     }
 
     /**
@@ -351,7 +476,7 @@ public class Atom implements Cloneable, Expression
      * @throws java.lang.IllegalStateException If the length of this atom, minus the prefix length, is not four bytes.
      */
     public int intValue(int offset, ByteOrder order) {
-        Preconditions.checkState(bytes.length - offset != 4);
+        Preconditions.checkState(bytes.length - offset == 4);
         Preconditions.checkNotNull(order);
         return Primitives.toInt(bytes, offset, order);
     }
@@ -399,7 +524,7 @@ public class Atom implements Cloneable, Expression
      * @throws java.lang.IllegalStateException If the length of this atom, minus the prefix length, is not eight bytes.
      */
     public long longValue(int offset, ByteOrder order) {
-        Preconditions.checkState(bytes.length - offset != 8);
+        Preconditions.checkState(bytes.length - offset == 8);
         Preconditions.checkNotNull(order);
         return Primitives.toLong(bytes, offset, order);
     }
@@ -493,7 +618,7 @@ public class Atom implements Cloneable, Expression
      * @throws java.lang.IllegalStateException If the length of this atom, minus the prefix length, is not eight bytes.
      */
     public double doubleValue(int offset, ByteOrder order) {
-        Preconditions.checkState(bytes.length - offset != 8);
+        Preconditions.checkState(bytes.length - offset == 8);
         Preconditions.checkNotNull(order);
         return Primitives.toDouble(bytes, offset, order);
     }
@@ -504,7 +629,7 @@ public class Atom implements Cloneable, Expression
      * @return The string.
      */
     public String stringValue() {
-        return new String(bytes, Charset.forName("UTF-8"));
+        return Utf8.decode(bytes, 0, bytes.length);
     }
 
     /**
@@ -515,7 +640,7 @@ public class Atom implements Cloneable, Expression
      */
     public String stringValue(int offset) {
         Preconditions.checkPositionIndex(offset, bytes.length);
-        return new String(bytes, offset, bytes.length - offset, Charset.forName("UTF-8"));
+        return Utf8.decode(bytes, offset, bytes.length - offset);
     }
 
     /**
@@ -528,6 +653,8 @@ public class Atom implements Cloneable, Expression
     public String stringValue(int offset, Charset charset) {
         Preconditions.checkPositionIndex(offset, bytes.length);
         Preconditions.checkNotNull(charset);
+        if (charset.equals(StandardCharsets.UTF_8))
+            return Utf8.decode(bytes, offset, bytes.length - offset);
         return new String(bytes, offset, bytes.length - offset, charset);
     }
 
@@ -538,8 +665,20 @@ public class Atom implements Cloneable, Expression
      * @return The string.
      */
     public String stringValue(Charset charset) {
-        Preconditions.checkNotNull(charset);
-        return new String(bytes, charset);
+        return stringValue(0, charset);
+    }
+
+    /**
+     * Return this atom as a string, looking up the UTF-8 bytes in the
+     * given cache.
+     *
+     * @param cache The string cache.
+     * @return The string, which may be a shared instance.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public String stringValue(StringCache cache) {
+        Preconditions.checkNotNull(cache);
+        return cache.get(bytes, 0, bytes.length);
     }
 
     /**
@@ -590,7 +729,7 @@ public class Atom implements Cloneable, Expression
      * @return The new atom.
      */
     public Atom withHint(String displayHint) {
-        return new Atom(bytes, new DisplayHint(displayHint));
+        return new Atom(bytes, DisplayHint.of(displayHint));
     }
 
     /**
@@ -602,8 +741,7 @@ public class Atom implements Cloneable, Expression
      */
     public Atom withHint(Atom displayHint) {
         Preconditions.checkArgument(displayHint != this);
-        Preconditions.checkArgument(!displayHint.displayHint().isPresent(), "Recursive display hints not admissible");
-        return new Atom(bytes, new DisplayHint(displayHint));
+        return new Atom(bytes, DisplayHint.of(displayHint));
     }
 
     /**
@@ -613,7 +751,19 @@ public class Atom implements Cloneable, Expression
      * @return This atom, with the given byte as the display hint.
      */
     public Atom withHint(byte displayHint) {
-        return new Atom(bytes, new DisplayHint(atom(displayHint)));
+        return new Atom(bytes, DisplayHint.of(displayHint));
+    }
+
+    /**
+     * Return this atom, with the given display hint.
+     *
+     * @param displayHint The display hint.
+     * @return The new atom.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public Atom withHint(DisplayHint displayHint) {
+        Preconditions.checkNotNull(displayHint);
+        return new Atom(bytes, displayHint);
     }
 
     /**
@@ -622,7 +772,9 @@ public class Atom implements Cloneable, Expression
      * @return The display hint.
      */
     public Optional<DisplayHint> displayHint() {
-        return displayHint;
+        if (displayHint == null)
+            return Optional.absent();
+        return displayHint.asOptional();
     }
 
     @Deprecated
@@ -648,6 +800,26 @@ public class Atom implements Cloneable, Expression
         return bytes.clone();
     }
 
+    // This atom's own bytes, which callers must not modify.
+    byte[] rawBytes() {
+        return bytes;
+    }
+
+    // This atom's display hint, or null.
+    DisplayHint hint() {
+        return displayHint;
+    }
+
+    /**
+     * Return a read-only, big-endian view of this atom's bytes. The
+     * bytes are not copied.
+     *
+     * @return The byte buffer view.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
     public byte[] bytes(int offset) {
         byte[] b = new byte[bytes.length - offset];
         System.arraycopy(bytes, offset, b, 0, b.length);
@@ -683,17 +855,26 @@ public class Atom implements Cloneable, Expression
         out.write(bytes);
     }
 
-    private static final BitSet symbolChars = new BitSet(256);
-    private static final BitSet quotedStringChars = new BitSet(256);
+    static final int SYMBOL = 1;
+    static final int QUOTED_STRING = 2;
+    private static final int UNCLASSIFIED = -1;
 
-    static {
-        symbolChars.set('a', 'z' + 1);
-        symbolChars.set('A', 'Z' + 1);
-        symbolChars.set('0', '9' + 1);
+    // Cached result of classify(); racy, but every thread computes the
+    // same value, as with String.hashCode.
+    private int classes = UNCLASSIFIED;
 
-        quotedStringChars.set(0x20);
-        quotedStringChars.set('!');
-        quotedStringChars.set('#', '~' + 1);
+    /**
+     * Return the encodings this atom's bytes allow, as a mask of
+     * {@link #SYMBOL} and {@link #QUOTED_STRING}. The bytes are scanned once,
+     * and the result is kept for later calls.
+     */
+    int classify() {
+        int c = classes;
+        if (c == UNCLASSIFIED) {
+            c = AtomEncoding.classify(bytes);
+            classes = c;
+        }
+        return c;
     }
 
     /**
@@ -703,13 +884,7 @@ public class Atom implements Cloneable, Expression
      * @return True if this may be encoded as a symbol.
      */
     public boolean canBeSymbol() {
-        if (bytes.length == 0)
-            return false;
-        for (byte b : bytes) {
-            if (!symbolChars.get(b & 0xFF))
-                return false;
-        }
-        return true;
+        return (classify() & SYMBOL) != 0;
     }
 
     /**
@@ -718,18 +893,7 @@ public class Atom implements Cloneable, Expression
      * @return True if this may be encoded as a quoted string.
      */
     public boolean canBeQuotedString() {
-        for (byte b : bytes) {
-            if (!quotedStringChars.get(b & 0xff))
-                return false;
-        }
-        return true;
-    }
-
-    private byte hexByte(int i) {
-        if (i >= 0 && i < 10) {
-            return (byte) ('0' + i);
-        }
-        return (byte) ('a' + (i - 10));
+        return (classify() & QUOTED_STRING) != 0;
     }
 
     /**
@@ -740,12 +904,7 @@ public class Atom implements Cloneable, Expression
      */
     public byte[] asHexBytes() {
         byte[] result = new byte[bytes.length * 2];
-        int i = 0;
-        for (byte b : bytes) {
-            int x = b & 0xFF;
-            result[i++] = hexByte((x >> 4) & 0xf);
-            result[i++] = hexByte(x & 0xf);
-        }
+        AtomEncoding.encodeHex(bytes, 0, bytes.length, result, 0);
         return result;
     }
 
@@ -755,7 +914,28 @@ public class Atom implements Cloneable, Expression
      * @return The base 64 representation.
      */
     public byte[] asBase64Bytes() {
-        return Base64.encodeBase64(bytes);
+        byte[] result = new byte[AtomEncoding.base64Length(bytes.length)];
+        AtomEncoding.encodeBase64(bytes, 0, bytes.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Tell if this atom's bytes equal a range of a byte array. Display
+     * hints are not compared, as in {@link #equals(Object)}.
+     *
+     * @param other The byte array.
+     * @param offset The offset of the range.
+     * @param length The length of the range.
+     * @return True if the bytes are equal.
+     */
+    public boolean contentEquals(byte[] other, int offset, int length) {
+        if (bytes.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != other[offset + i])
+                return false;
+        }
+        return true;
     }
 
     @Override
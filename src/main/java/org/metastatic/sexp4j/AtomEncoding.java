@@ -0,0 +1,174 @@
+package org.metastatic.sexp4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classification of atom bytes, and their hex and base-64 encodings, for
+ * {@link Atom} and {@link AdvancedWriter}.
+ *
+ * <p>Atoms of 16 bytes or more are classified eight bytes at a time, with
+ * SWAR arithmetic on longs, as in {@link StructuralIndex}; a table handles
+ * short atoms and tails. Both encoders are table-driven, and write into a
+ * caller's array: hex emits both digits of a byte from one lookup, and
+ * base-64 emits two digits from each 12 bits.</p>
+ */
+final class AtomEncoding {
+    private static final long HIGH = 0x8080808080808080L;
+    private static final long LOW = 0x0101010101010101L;
+    private static final long FOLD = 0x2020202020202020L;
+    private static final int SWAR_MINIMUM = 16;
+
+    private static final byte[] CHAR_CLASSES = new byte[256];
+    private static final byte[] HEX_PAIRS = new byte[512];
+    private static final byte[] BASE64_PAIRS = new byte[8192];
+    private static final byte[] BASE64_DIGITS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++)
+            CHAR_CLASSES[c] |= Atom.SYMBOL;
+        for (int c = 'A'; c <= 'Z'; c++)
+            CHAR_CLASSES[c] |= Atom.SYMBOL;
+        for (int c = '0'; c <= '9'; c++)
+            CHAR_CLASSES[c] |= Atom.SYMBOL;
+
+        CHAR_CLASSES[0x20] |= Atom.QUOTED_STRING;
+        CHAR_CLASSES['!'] |= Atom.QUOTED_STRING;
+        for (int c = '#'; c <= '~'; c++)
+            CHAR_CLASSES[c] |= Atom.QUOTED_STRING;
+        // Quoted strings are written without escapes.
+        CHAR_CLASSES['\\'] &= ~Atom.QUOTED_STRING;
+
+        byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[2 * i] = hex[i >>> 4];
+            HEX_PAIRS[2 * i + 1] = hex[i & 0xF];
+        }
+        for (int i = 0; i < 4096; i++) {
+            BASE64_PAIRS[2 * i] = BASE64_DIGITS[i >>> 6];
+            BASE64_PAIRS[2 * i + 1] = BASE64_DIGITS[i & 0x3F];
+        }
+    }
+
+    private AtomEncoding() {
+    }
+
+    /**
+     * Return the encodings some bytes allow, as a mask of
+     * {@link Atom#SYMBOL} and {@link Atom#QUOTED_STRING}.
+     *
+     * @param bytes The bytes.
+     * @return The mask.
+     */
+    static int classify(byte[] bytes) {
+        int c = bytes.length == 0 ? Atom.QUOTED_STRING : Atom.SYMBOL | Atom.QUOTED_STRING;
+        int i = 0;
+        if (bytes.length >= SWAR_MINIMUM) {
+            ByteBuffer view = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (; i + 8 <= bytes.length && c != 0; i += 8)
+                c &= classify(view.getLong(i));
+        }
+        for (; i < bytes.length && c != 0; i++)
+            c &= CHAR_CLASSES[bytes[i] & 0xFF];
+        return c;
+    }
+
+    /**
+     * Classify eight bytes at once.
+     */
+    private static int classify(long x) {
+        // As in StructuralIndex: for a byte b below 0x80, the high bit of
+        // ((b | 0x80) - c) is set exactly when b >= c.
+        long h = x | HIGH;
+        long f = h | FOLD;
+        long ascii = ~x & HIGH;
+        long symbol = (ge(h, '0') & ~ge(h, '9' + 1)) | (ge(f, 'a') & ~ge(f, 'z' + 1));
+        long quoted = ge(h, 0x20) & ~ge(h, 0x7F)
+            & ~(ge(h, '"') & ~ge(h, '"' + 1))
+            & ~(ge(h, '\\') & ~ge(h, '\\' + 1));
+        int c = 0;
+        if ((symbol & ascii) == HIGH)
+            c |= Atom.SYMBOL;
+        if ((quoted & ascii) == HIGH)
+            c |= Atom.QUOTED_STRING;
+        return c;
+    }
+
+    private static long ge(long h, int c) {
+        return (h - c * LOW) & HIGH;
+    }
+
+    /**
+     * Encode bytes as lower-case hex digits.
+     *
+     * @param src The bytes to encode.
+     * @param offset The offset of the bytes.
+     * @param length The number of bytes.
+     * @param dst The array to encode into, which must have room for
+     *        <code>2 * length</code> digits.
+     * @param dstOffset The offset of the first digit.
+     * @return The number of digits written.
+     */
+    static int encodeHex(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int j = dstOffset;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int k = (src[i] & 0xFF) << 1;
+            dst[j] = HEX_PAIRS[k];
+            dst[j + 1] = HEX_PAIRS[k + 1];
+            j += 2;
+        }
+        return j - dstOffset;
+    }
+
+    /**
+     * Return the length of the padded base-64 encoding of some bytes.
+     *
+     * @param length The number of bytes.
+     * @return The number of digits.
+     */
+    static int base64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encode bytes as padded base-64. Encoding a long run in pieces gives
+     * the same digits as encoding it whole, if every piece but the last
+     * is a multiple of three bytes long.
+     *
+     * @param src The bytes to encode.
+     * @param offset The offset of the bytes.
+     * @param length The number of bytes.
+     * @param dst The array to encode into, which must have room for
+     *        {@link #base64Length(int)} digits.
+     * @param dstOffset The offset of the first digit.
+     * @return The number of digits written.
+     */
+    static int encodeBase64(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int i = offset;
+        int j = dstOffset;
+        int end = offset + length - length % 3;
+        for (; i < end; i += 3) {
+            int n = ((src[i] & 0xFF) << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i + 2] & 0xFF);
+            int hi = (n >>> 12) << 1;
+            int lo = (n & 0xFFF) << 1;
+            dst[j] = BASE64_PAIRS[hi];
+            dst[j + 1] = BASE64_PAIRS[hi + 1];
+            dst[j + 2] = BASE64_PAIRS[lo];
+            dst[j + 3] = BASE64_PAIRS[lo + 1];
+            j += 4;
+        }
+        int remaining = offset + length - end;
+        if (remaining > 0) {
+            int n = (src[i] & 0xFF) << 16;
+            if (remaining == 2)
+                n |= (src[i + 1] & 0xFF) << 8;
+            dst[j++] = BASE64_DIGITS[n >>> 18];
+            dst[j++] = BASE64_DIGITS[(n >>> 12) & 0x3F];
+            dst[j++] = remaining == 2 ? BASE64_DIGITS[(n >>> 6) & 0x3F] : (byte) '=';
+            dst[j++] = '=';
+        }
+        return j - dstOffset;
+    }
+}
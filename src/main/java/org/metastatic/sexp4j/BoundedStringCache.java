@@ -0,0 +1,127 @@
+package org.metastatic.sexp4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A fixed-size {@link org.metastatic.sexp4j.StringCache}.
+ *
+ * <p>Strings are kept in a direct-mapped table indexed by a hash of their
+ * bytes, so a lookup costs one hash pass and one comparison, and a
+ * colliding string simply replaces the previous one. Strings longer
+ * than the configured maximum length are never cached.</p>
+ *
+ * <p>Instances are safe to share between threads.</p>
+ */
+public class BoundedStringCache implements StringCache {
+    private static final class Entry {
+        final byte[] key;
+        final int hash;
+        final String value;
+
+        private Entry(byte[] key, int hash, String value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private final Entry[] table;
+    private final int mask;
+    private final int maxLength;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache with 1024 entries, caching strings up to 64 bytes long.
+     */
+    public BoundedStringCache() {
+        this(1024, 64);
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param capacity The number of entries; this is rounded up to a power of two.
+     * @param maxLength The length, in bytes, of the longest string to cache.
+     * @throws java.lang.IllegalArgumentException If the capacity is not positive, or is larger than 2^30,
+     *         or if the maximum length is negative.
+     */
+    public BoundedStringCache(int capacity, int maxLength) {
+        Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30));
+        Preconditions.checkArgument(maxLength >= 0);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.table = new Entry[size];
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public String get(byte[] bytes, int offset, int length) {
+        if (length > maxLength) {
+            misses.incrementAndGet();
+            return Utf8.decode(bytes, offset, length);
+        }
+        int hash = hash(bytes, offset, length);
+        int index = hash & mask;
+        Entry entry = table[index];
+        if (entry != null && entry.hash == hash && matches(entry.key, bytes, offset, length)) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        byte[] key = new byte[length];
+        System.arraycopy(bytes, offset, key, 0, length);
+        String value = Utf8.decode(key, 0, length);
+        table[index] = new Entry(key, hash, value);
+        return value;
+    }
+
+    /**
+     * Return the number of lookups that returned a cached string.
+     *
+     * @return The hit count.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of lookups that had to decode a new string.
+     *
+     * @return The miss count.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Remove all cached strings, and reset the hit and miss counters.
+     */
+    public void clear() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = null;
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 1;
+        for (int i = offset, end = offset + length; i < end; i++)
+            h = 31 * h + bytes[i];
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+        if (key.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[offset + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -13,4 +13,37 @@ public class CanonicalParser extends ParserBase {
     public CanonicalParser(InputStream in) {
         super(new CanonicalStreamingParser(in));
     }
+
+    /**
+     * Create a new canonical parser.
+     *
+     * @param in The input stream.
+     * @param maxDepth The maximum list depth.
+     */
+    public CanonicalParser(InputStream in, int maxDepth) {
+        super(new CanonicalStreamingParser(in), maxDepth);
+    }
+
+    /**
+     * Create a new canonical parser, which interns the expressions it
+     * builds.
+     *
+     * @param in The input stream.
+     * @param interner The interner.
+     */
+    public CanonicalParser(InputStream in, ExpressionInterner interner) {
+        super(new CanonicalStreamingParser(in), DEFAULT_MAX_DEPTH, interner);
+    }
+
+    /**
+     * Create a new canonical parser, which interns the expressions it
+     * builds.
+     *
+     * @param in The input stream.
+     * @param maxDepth The maximum list depth.
+     * @param interner The interner.
+     */
+    public CanonicalParser(InputStream in, int maxDepth, ExpressionInterner interner) {
+        super(new CanonicalStreamingParser(in), maxDepth, interner);
+    }
 }
@@ -3,7 +3,6 @@ package org.metastatic.sexp4j;
 import java.io.IOException;
 import java.io.InputStream;
 
-import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
 
 /**
@@ -11,22 +10,52 @@ import com.google.common.io.ByteStreams;
  */
 public class CanonicalStreamingParser extends StreamingParser
 {
-    private byte[] displayHint = null;
+    // Scratch buffers larger than this are dropped on reset, so that one
+    // large atom doesn't pin its buffer for the life of a reused parser.
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private byte[] buffer = new byte[64];
+    private byte[] displayHint = new byte[16];
+    // -1 if no display hint precedes the next atom.
+    private int displayHintLength = -1;
 
     /**
      * Create a new canonical streaming parser.
-     * @param input
+     *
+     * <p>Atoms are read into a buffer owned by the parser, which is
+     * reused for the next atom.</p>
+     *
+     * @param input The input stream.
      */
     public CanonicalStreamingParser(InputStream input)
     {
         super(input);
     }
 
+    @Override
+    public void reset(InputStream input)
+    {
+        super.reset(input);
+        displayHintLength = -1;
+        if (buffer.length > MAX_RETAINED_BUFFER)
+            buffer = new byte[64];
+    }
+
     @Override
     public void parse() throws IOException
+    {
+        try {
+            parseInput();
+        } catch (IOException | RuntimeException e) {
+            parseFailed(e);
+            throw e;
+        }
+    }
+
+    private void parseInput() throws IOException
     {
         int ch;
-        while ((ch = input.read()) != -1)
+        while (!stopRequested() && (ch = input.read()) != -1)
         {
             if (ch == '(') {
                 onListBegin();
@@ -36,8 +65,10 @@ public class CanonicalStreamingParser extends StreamingParser
             }
             else if (ch == '[') {
                 int len = readLength(input.read());
-                displayHint = new byte[len];
-                ByteStreams.readFully(input, displayHint);
+                if (len > displayHint.length)
+                    displayHint = new byte[len];
+                ByteStreams.readFully(input, displayHint, 0, len);
+                displayHintLength = len;
                 if (input.read() != ']') {
                     throw new ParseException("missing display hint terminator");
                 }
@@ -45,10 +76,14 @@ public class CanonicalStreamingParser extends StreamingParser
             else if (Character.isDigit(ch))
             {
                 int len = readLength(ch);
-                byte[] buffer = new byte[len];
-                ByteStreams.readFully(input, buffer);
-                onAtom(buffer, Optional.fromNullable(displayHint));
-                displayHint = null;
+                if (len > buffer.length)
+                    buffer = new byte[len];
+                ByteStreams.readFully(input, buffer, 0, len);
+                if (displayHintLength >= 0)
+                    onAtom(buffer, 0, len, displayHint, 0, displayHintLength);
+                else
+                    onAtom(buffer, 0, len, null, 0, 0);
+                displayHintLength = -1;
             }
             else if (Character.isWhitespace(ch)) {
                 continue;
@@ -61,22 +96,21 @@ public class CanonicalStreamingParser extends StreamingParser
 
     private int readLength(int char1) throws IOException
     {
+        if (char1 < '0' || char1 > '9')
+            throw char1 < 0 ? new ParseException("unexpected end of input in length")
+                : new ParseException("invalid character in length: %c", char1);
         int result = (char1 - '0');
         int ch;
-        while ((ch = input.read()) != -1)
+        while ((ch = input.read()) != ':')
         {
-            if (ch == ':')
-                break;
-            else if (Character.isDigit(ch))
-            {
-                int r = result * 10;
-                int next = (ch - '0');
-                if (r < result || r + next < result)
-                    throw new ParseException("integer overflow: atom length is greater than 2^31-1");
-                result = r + next;
-            }
-            else
+            if (ch < 0)
+                throw new ParseException("unexpected end of input in length");
+            if (ch < '0' || ch > '9')
                 throw new ParseException("invalid character in stream: %c", ch);
+            int next = (ch - '0');
+            if (result > (Integer.MAX_VALUE - next) / 10)
+                throw new ParseException("integer overflow: atom length is greater than 2^31-1");
+            result = result * 10 + next;
         }
         return result;
     }
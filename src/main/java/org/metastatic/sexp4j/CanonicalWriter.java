@@ -2,12 +2,11 @@ package org.metastatic.sexp4j;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Locale;
 
 import com.google.common.base.Preconditions;
 
 public class CanonicalWriter implements Writer {
-    private final OutputStream out;
+    private OutputStream out;
     private int listDepth = 0;
 
     private static enum WriteType
@@ -15,35 +14,90 @@ public class CanonicalWriter implements Writer {
         None, List, Atom
     }
     private WriteType firstWrite = WriteType.None;
+    // Room for the decimal digits of Integer.MAX_VALUE, plus the colon.
+    private final byte[] lengthTag = new byte[11];
+    private WriterMeter meter;
 
     public CanonicalWriter(OutputStream out)
     {
         this.out = out;
     }
 
+    /**
+     * Reset this writer to write a new expression to the given stream.
+     *
+     * @param out The new output stream.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public void reset(OutputStream out)
+    {
+        Preconditions.checkNotNull(out);
+        this.out = out;
+        listDepth = 0;
+        firstWrite = WriteType.None;
+        if (meter != null)
+            meter.clear();
+    }
+
+    /**
+     * Measure this writer with the given recorder, or stop measuring it.
+     * Each top-level expression is recorded as one
+     * {@link OperationMetrics.Operation#Write} operation, as is each
+     * exception thrown from a write.
+     *
+     * @param recorder The recorder, or null to turn metrics off.
+     */
+    public void setMetrics(MetricsRecorder recorder)
+    {
+        meter = recorder != null ? new WriterMeter(recorder) : null;
+    }
+
     @Override
     public int writeAtom(Atom atom) throws IOException {
+        if (meter == null)
+            return writeAtom0(atom);
+        try {
+            int length = writeAtom0(atom);
+            meter.atom(atom.length(), length);
+            meter.completed();
+            return length;
+        } catch (IOException | RuntimeException e) {
+            meter.failed(e);
+            throw e;
+        }
+    }
+
+    private int writeAtom0(Atom atom) throws IOException {
         if (firstWrite == WriteType.Atom)
             throw new WriteException("already wrote an atom as the first value");
         int length = 0;
         if (atom.displayHint().isPresent()) {
             Atom hintAtom = atom.displayHint().get().atom();
             out.write('[');
-            byte[] hintLengthTag = String.format(Locale.ENGLISH, "%d:", hintAtom.length()).getBytes("UTF-8");
-            out.write(hintLengthTag);
+            int hintLengthTag = writeLengthTag(hintAtom.length());
             hintAtom.writeTo(out);
             out.write(']');
-            length += 2 + hintLengthTag.length + hintAtom.length();
+            length += 2 + hintLengthTag + hintAtom.length();
         }
-        byte[] lengthTag = String.format(Locale.ENGLISH, "%d:", atom.length()).getBytes("UTF-8");
-        out.write(lengthTag);
+        int lengthTag = writeLengthTag(atom.length());
         atom.writeTo(out);
         if (firstWrite == WriteType.None)
             firstWrite = WriteType.Atom;
-        length += lengthTag.length + atom.length();
+        length += lengthTag + atom.length();
         return length;
     }
 
+    private int writeLengthTag(int length) throws IOException {
+        int i = lengthTag.length;
+        lengthTag[--i] = ':';
+        do {
+            lengthTag[--i] = (byte) ('0' + (length % 10));
+            length /= 10;
+        } while (length > 0);
+        out.write(lengthTag, i, lengthTag.length - i);
+        return lengthTag.length - i;
+    }
+
     @Override
     public int writeList(ExpressionList list) throws IOException {
         if (firstWrite == WriteType.Atom)
@@ -58,6 +112,20 @@ public class CanonicalWriter implements Writer {
 
     @Override
     public void beginList() throws IOException {
+        if (meter == null) {
+            beginList0();
+            return;
+        }
+        try {
+            beginList0();
+            meter.beginList(1);
+        } catch (IOException | RuntimeException e) {
+            meter.failed(e);
+            throw e;
+        }
+    }
+
+    private void beginList0() throws IOException {
         if (firstWrite == WriteType.Atom)
             throw new WriteException("already wrote an atom as the first value");
         out.write('(');
@@ -68,6 +136,21 @@ public class CanonicalWriter implements Writer {
 
     @Override
     public void endList() throws IOException {
+        if (meter == null) {
+            endList0();
+            return;
+        }
+        try {
+            endList0();
+            meter.endList(1);
+            meter.completed();
+        } catch (IOException | RuntimeException e) {
+            meter.failed(e);
+            throw e;
+        }
+    }
+
+    private void endList0() throws IOException {
         if (listDepth <= 0)
             throw new WriteException("can't end list, list not started");
         out.write(')');
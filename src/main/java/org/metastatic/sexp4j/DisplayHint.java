@@ -1,13 +1,29 @@
 package org.metastatic.sexp4j;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 /**
  * A display hint. Display hints prefix atoms to provide free-from
  * additional information about the atom that follows.
+ *
+ * <p>Display hints are usually drawn from a small set of values, so
+ * the {@code of} factory methods return shared instances: every
+ * single-byte hint is a constant, and longer hints are kept in a
+ * bounded cache.</p>
  */
 public class DisplayHint {
+    private static final DisplayHint[] SINGLE_BYTE = new DisplayHint[256];
+    private static final int MAX_CACHED_LENGTH = 32;
+    private static final DisplayHint[] CACHE = new DisplayHint[512];
+
+    static {
+        for (int i = 0; i < SINGLE_BYTE.length; i++)
+            SINGLE_BYTE[i] = new DisplayHint(Atom.atom((byte) i));
+    }
+
     private final Atom value;
+    private final Optional<DisplayHint> optional;
 
     /**
      * Create a new display hint.
@@ -20,6 +36,7 @@ public class DisplayHint {
         Preconditions.checkNotNull(value);
         Preconditions.checkArgument(!value.displayHint().isPresent());
         this.value = value;
+        this.optional = Optional.of(this);
     }
 
     /**
@@ -32,15 +49,109 @@ public class DisplayHint {
         this(Atom.atom(value));
     }
 
+    /**
+     * Return the shared display hint for a single byte.
+     *
+     * @param value The hint byte.
+     * @return The display hint.
+     */
+    public static DisplayHint of(byte value) {
+        return SINGLE_BYTE[value & 0xff];
+    }
+
+    /**
+     * Return a display hint for the given bytes, which may be a shared
+     * instance.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the hint bytes.
+     * @param length The number of hint bytes.
+     * @return The display hint.
+     * @throws java.lang.NullPointerException If the array is null.
+     * @throws java.lang.IndexOutOfBoundsException If the range is outside the array.
+     */
+    public static DisplayHint of(byte[] bytes, int offset, int length) {
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+        if (length == 1)
+            return of(bytes[offset]);
+        if (length > MAX_CACHED_LENGTH)
+            return new DisplayHint(Atom.atom(bytes, offset, length));
+        int h = 1;
+        for (int i = offset; i < offset + length; i++)
+            h = 31 * h + bytes[i];
+        int index = (h ^ (h >>> 16)) & (CACHE.length - 1);
+        DisplayHint hint = CACHE[index];
+        if (hint == null || !hint.value.contentEquals(bytes, offset, length)) {
+            hint = new DisplayHint(Atom.atom(bytes, offset, length));
+            CACHE[index] = hint;
+        }
+        return hint;
+    }
+
+    /**
+     * Return a display hint for the given bytes, which may be a shared
+     * instance.
+     *
+     * @param bytes The hint bytes.
+     * @return The display hint.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static DisplayHint of(byte[] bytes) {
+        return of(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Return a display hint for the given atom, which may be a shared
+     * instance.
+     *
+     * @param value The hint atom.
+     * @return The display hint.
+     * @throws java.lang.NullPointerException If the argument is null.
+     * @throws java.lang.IllegalArgumentException If the argument has a display hint.
+     */
+    public static DisplayHint of(Atom value) {
+        Preconditions.checkArgument(!value.displayHint().isPresent(), "Recursive display hints not admissible");
+        if (value.length() == 1)
+            return of(value.byteValue());
+        return new DisplayHint(value);
+    }
+
+    /**
+     * Return a display hint for a string, encoded as UTF-8, which may
+     * be a shared instance.
+     *
+     * @param value The hint string.
+     * @return The display hint.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static DisplayHint of(String value) {
+        return of(Utf8.encode(value));
+    }
+
     public Atom atom() {
         return value;
     }
 
+    /**
+     * Return this display hint as a present optional value. The same
+     * instance is returned on every call.
+     *
+     * @return This hint, as an optional value.
+     */
+    Optional<DisplayHint> asOptional() {
+        return optional;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return (obj instanceof DisplayHint) && value.equals(((DisplayHint) obj).value);
     }
 
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
     @Override
     public String toString() {
         return String.format("%s { value: %s }", super.toString(), value.stringValue());
@@ -5,15 +5,55 @@ import com.google.common.base.Preconditions;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
-import java.util.LinkedList;
 
 /**
  * A builder interface for creating expressions.
  */
 public class ExpressionBuilder {
-    private final LinkedList<ExpressionList> stack = new LinkedList<>();
+    private final ExpressionStack stack = new ExpressionStack();
+    // Non-null if this builder interns what it builds.
+    private final InterningStack interning;
+    private final int maxDepth;
     private Optional<Expression> first = Optional.absent();
 
+    /**
+     * Create a new expression builder, which allows lists to be nested
+     * {@link ParserBase#DEFAULT_MAX_DEPTH} deep.
+     */
+    public ExpressionBuilder() {
+        this(ParserBase.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Create a new expression builder.
+     *
+     * @param maxDepth The maximum list depth.
+     * @throws java.lang.IllegalArgumentException If the maximum depth is not positive.
+     */
+    public ExpressionBuilder(int maxDepth) {
+        Preconditions.checkArgument(maxDepth > 0);
+        this.maxDepth = maxDepth;
+        this.interning = null;
+    }
+
+    /**
+     * Create a new expression builder that builds shared expressions with
+     * the given interner: atoms are interned, and each list is built as an
+     * interned {@link org.metastatic.sexp4j.ImmutableExpressionList} when
+     * it ends. Lists are added to their enclosing list when they end, not
+     * when they begin.
+     *
+     * @param maxDepth The maximum list depth.
+     * @param interner The interner.
+     * @throws java.lang.IllegalArgumentException If the maximum depth is not positive.
+     * @throws java.lang.NullPointerException If the interner is null.
+     */
+    public ExpressionBuilder(int maxDepth, ExpressionInterner interner) {
+        Preconditions.checkArgument(maxDepth > 0);
+        this.maxDepth = maxDepth;
+        this.interning = new InterningStack(Preconditions.checkNotNull(interner));
+    }
+
     /**
      * Create a new expression builder.
      *
@@ -23,13 +63,39 @@ public class ExpressionBuilder {
         return new ExpressionBuilder();
     }
 
+    /**
+     * Create a new expression builder, with the given maximum list depth.
+     *
+     * @param maxDepth The maximum list depth.
+     * @return The expression builder.
+     * @throws java.lang.IllegalArgumentException If the maximum depth is not positive.
+     */
+    public static ExpressionBuilder create(int maxDepth) {
+        return new ExpressionBuilder(maxDepth);
+    }
+
+    /**
+     * Create a new expression builder, which interns the expressions it
+     * builds.
+     *
+     * @param interner The interner.
+     * @return The expression builder.
+     * @throws java.lang.NullPointerException If the interner is null.
+     */
+    public static ExpressionBuilder create(ExpressionInterner interner) {
+        return new ExpressionBuilder(ParserBase.DEFAULT_MAX_DEPTH, interner);
+    }
+
     /**
      * Build the expression.
      *
      * @return The built expression.
-     * @throws java.lang.IllegalStateException If there is nothing to build.
+     * @throws java.lang.IllegalStateException If there is nothing to build,
+     *         or if this builder interns expressions and a list has not ended.
      */
     public Expression build() {
+        if (interning != null && !interning.isEmpty())
+            throw new IllegalStateException("list not ended");
         if (first.isPresent()) {
             stack.clear();
             return first.get();
@@ -49,6 +115,16 @@ public class ExpressionBuilder {
         Preconditions.checkNotNull(atom);
         if (first.isPresent() && first.get() instanceof Atom)
             throw new IllegalStateException("first expression added was an atom");
+        if (interning != null) {
+            atom = interning.interner().intern(atom);
+            if (!interning.isEmpty())
+                interning.add(atom);
+            else if (first.isPresent())
+                throw new IllegalStateException("attempt to add atom outside of list");
+            else
+                first = Optional.<Expression> of(atom);
+            return this;
+        }
         if (stack.isEmpty())
         {
             if (first.isPresent())
@@ -93,7 +169,7 @@ public class ExpressionBuilder {
      * @return This instance.
      */
     public ExpressionBuilder atom(String atomString) {
-        return atom(atomString.getBytes());
+        return atom(Atom.atom(atomString));
     }
 
     public ExpressionBuilder atom(String atomString, Charset charset) {
@@ -108,10 +184,22 @@ public class ExpressionBuilder {
      * Append the beginning of a new list to this builder.
      *
      * @return This instance.
+     * @throws java.lang.IllegalStateException If a single atom has already been added to this builder,
+     *         or if the new list would be nested deeper than the maximum depth.
      */
     public ExpressionBuilder beginList() {
         if (first.isPresent() && first.get() instanceof Atom)
             throw new IllegalStateException("first expression added was an atom");
+        if (interning != null) {
+            if (interning.size() >= maxDepth)
+                throw new IllegalStateException("lists nested more than " + maxDepth + " deep");
+            if (interning.isEmpty() && first.isPresent())
+                throw new IllegalStateException("attempt to begin list outside of list");
+            interning.push();
+            return this;
+        }
+        if (stack.size() >= maxDepth)
+            throw new IllegalStateException("lists nested more than " + maxDepth + " deep");
         ExpressionList list = new ExpressionList();
         if (stack.isEmpty())
         {
@@ -132,6 +220,16 @@ public class ExpressionBuilder {
      */
     public ExpressionBuilder endList()
     {
+        if (interning != null) {
+            if (interning.isEmpty())
+                throw new IllegalStateException("no list to end");
+            ImmutableExpressionList list = interning.pop();
+            if (interning.isEmpty())
+                first = Optional.<Expression> of(list);
+            else
+                interning.add(list);
+            return this;
+        }
         if (stack.isEmpty())
             throw new IllegalStateException("no list to end");
         stack.pop();
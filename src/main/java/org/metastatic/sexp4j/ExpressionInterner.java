@@ -0,0 +1,233 @@
+package org.metastatic.sexp4j;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A hash-consing factory, which returns one shared instance for equal
+ * expressions.
+ *
+ * <p>Interned atoms are compared by their bytes and their display hints,
+ * and interned lists are {@link ImmutableExpressionList}s. A list is
+ * interned after its elements, so two lists are the same when their
+ * elements are the same instances; hashing and comparing a list costs one
+ * pass over its elements, and never descends into them. Lists interned
+ * this way that are equal are usually the same instance, so comparing them
+ * is usually an identity check.</p>
+ *
+ * <p>Like {@link BoundedStringCache}, the table is direct-mapped and of
+ * fixed size: a colliding expression replaces the previous one, which
+ * stays valid but is no longer shared with new expressions. Atoms longer
+ * than the configured maximum are never interned. Parsers and
+ * {@link ExpressionBuilder} take an interner as an option.</p>
+ *
+ * <p>Instances are safe to share between threads.</p>
+ */
+public class ExpressionInterner {
+    private static final class Entry {
+        final int hash;
+        final Expression value;
+
+        private Entry(int hash, Expression value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private final Entry[] table;
+    private final int mask;
+    private final int maxAtomLength;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create an interner with 4096 entries, interning atoms up to 64 bytes long.
+     */
+    public ExpressionInterner() {
+        this(4096, 64);
+    }
+
+    /**
+     * Create a new interner.
+     *
+     * @param capacity The number of entries; this is rounded up to a power of two.
+     * @param maxAtomLength The length, in bytes, of the longest atom to intern.
+     * @throws java.lang.IllegalArgumentException If the capacity is not positive, or is larger than 2^30,
+     *         or if the maximum length is negative.
+     */
+    public ExpressionInterner(int capacity, int maxAtomLength) {
+        Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30));
+        Preconditions.checkArgument(maxAtomLength >= 0);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.table = new Entry[size];
+        this.mask = size - 1;
+        this.maxAtomLength = maxAtomLength;
+    }
+
+    /**
+     * Return the shared atom equal to a range of bytes and a display hint.
+     * The bytes are only copied if there is no shared atom yet.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the atom bytes.
+     * @param length The number of atom bytes.
+     * @param displayHint The display hint, or null.
+     * @return The atom.
+     */
+    public Atom intern(byte[] bytes, int offset, int length, DisplayHint displayHint) {
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+        if (length > maxAtomLength) {
+            misses.incrementAndGet();
+            return Atom.atom(bytes, offset, length, displayHint);
+        }
+        int hash = atomHash(bytes, offset, length, displayHint);
+        int index = hash & mask;
+        Entry entry = table[index];
+        if (entry != null && entry.hash == hash && entry.value instanceof Atom) {
+            Atom atom = (Atom) entry.value;
+            if (atom.contentEquals(bytes, offset, length) && hintEquals(atom.hint(), displayHint)) {
+                hits.incrementAndGet();
+                return atom;
+            }
+        }
+        misses.incrementAndGet();
+        Atom atom = Atom.atom(bytes, offset, length, displayHint);
+        table[index] = new Entry(hash, atom);
+        return atom;
+    }
+
+    /**
+     * Return the shared atom equal to the given atom, including its display
+     * hint. If there is none yet, the argument becomes the shared atom.
+     *
+     * @param atom The atom.
+     * @return The shared atom.
+     */
+    public Atom intern(Atom atom) {
+        Preconditions.checkNotNull(atom);
+        if (atom.length() > maxAtomLength) {
+            misses.incrementAndGet();
+            return atom;
+        }
+        byte[] bytes = atom.rawBytes();
+        int hash = atomHash(bytes, 0, bytes.length, atom.hint());
+        int index = hash & mask;
+        Entry entry = table[index];
+        if (entry != null && entry.hash == hash && entry.value instanceof Atom) {
+            Atom shared = (Atom) entry.value;
+            if (shared.contentEquals(bytes, 0, bytes.length) && hintEquals(shared.hint(), atom.hint())) {
+                hits.incrementAndGet();
+                return shared;
+            }
+        }
+        misses.incrementAndGet();
+        table[index] = new Entry(hash, atom);
+        return atom;
+    }
+
+    /**
+     * Return the shared immutable list whose elements are the same
+     * instances as the given elements. The elements are not interned
+     * themselves; see {@link #intern(Expression)}.
+     *
+     * @param elements The elements.
+     * @return The shared list.
+     * @throws java.lang.NullPointerException If the argument, or any element, is null.
+     */
+    public ImmutableExpressionList internList(List<? extends Expression> elements) {
+        int h = 1;
+        for (Expression e : elements)
+            h = 31 * h + System.identityHashCode(Preconditions.checkNotNull(e));
+        int hash = (h ^ (h >>> 16)) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        int index = hash & mask;
+        Entry entry = table[index];
+        if (entry != null && entry.hash == hash && entry.value instanceof ImmutableExpressionList
+                && sameElements((ImmutableExpressionList) entry.value, elements)) {
+            hits.incrementAndGet();
+            return (ImmutableExpressionList) entry.value;
+        }
+        misses.incrementAndGet();
+        ImmutableExpressionList list = ImmutableExpressionList.builder(elements.size()).addAll(elements).build();
+        table[index] = new Entry(hash, list);
+        return list;
+    }
+
+    /**
+     * Return the shared form of an expression: atoms are interned, and
+     * lists are replaced, bottom-up, by shared immutable lists.
+     *
+     * @param expression The expression.
+     * @return The shared expression.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public Expression intern(Expression expression) {
+        Preconditions.checkNotNull(expression);
+        if (expression instanceof Atom)
+            return intern((Atom) expression);
+        ExpressionList list = (ExpressionList) expression;
+        Expression[] elements = new Expression[list.size()];
+        int i = 0;
+        for (Expression e : list)
+            elements[i++] = intern(e);
+        return internList(Arrays.asList(elements));
+    }
+
+    /**
+     * Return the number of lookups that returned a shared expression.
+     *
+     * @return The hit count.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of lookups that had to create a new expression.
+     *
+     * @return The miss count.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Forget all shared expressions, and reset the hit and miss counters.
+     */
+    public void clear() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = null;
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private static int atomHash(byte[] bytes, int offset, int length, DisplayHint hint) {
+        int h = 1;
+        for (int i = offset, end = offset + length; i < end; i++)
+            h = 31 * h + bytes[i];
+        if (hint != null)
+            h = 31 * h + hint.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean hintEquals(DisplayHint a, DisplayHint b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private static boolean sameElements(ImmutableExpressionList list, List<? extends Expression> elements) {
+        if (list.size() != elements.size())
+            return false;
+        Iterator<Expression> it = list.iterator();
+        for (Expression e : elements) {
+            if (it.next() != e)
+                return false;
+        }
+        return true;
+    }
+}
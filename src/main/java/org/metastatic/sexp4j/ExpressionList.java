@@ -42,6 +42,13 @@ public class ExpressionList extends AbstractList<Expression> implements Expressi
         this.expressions = listClass.newInstance();
     }
 
+    /**
+     * Create an expression list backed by the given list, which is not copied.
+     */
+    ExpressionList(List<Expression> expressions) {
+        this.expressions = expressions;
+    }
+
     /**
      * Create a new expression list containing the given expressions.
      *
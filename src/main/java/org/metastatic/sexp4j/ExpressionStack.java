@@ -0,0 +1,42 @@
+package org.metastatic.sexp4j;
+
+import java.util.Arrays;
+
+/**
+ * A growable, array-backed stack of the lists being built by a parser or
+ * builder. The backing array is kept across {@link #clear()}, so a reused
+ * parser does not allocate a new one.
+ */
+class ExpressionStack {
+    private ExpressionList[] elements = new ExpressionList[16];
+    private int size = 0;
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void push(ExpressionList list) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = list;
+    }
+
+    ExpressionList peek() {
+        return elements[size - 1];
+    }
+
+    ExpressionList pop() {
+        ExpressionList list = elements[--size];
+        elements[size] = null;
+        return list;
+    }
+
+    void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+}
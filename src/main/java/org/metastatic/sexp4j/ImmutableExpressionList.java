@@ -0,0 +1,499 @@
+package org.metastatic.sexp4j;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An immutable list of simpler expressions.
+ *
+ * <p>Instances may be shared freely between threads without copying.
+ * The mutating methods inherited from {@link java.util.List} throw
+ * {@link java.lang.UnsupportedOperationException}; instead, the
+ * {@link #append(Expression)}, {@link #with(int, Expression)},
+ * {@link #insert(int, Expression)}, {@link #without(int)},
+ * {@link #concat(ImmutableExpressionList)} and {@link #subList(int, int)}
+ * methods return new lists, which share most of their structure with
+ * this one.</p>
+ *
+ * <p>The elements are kept in a balanced tree of array chunks, so these
+ * operations, and {@link #get(int)}, take time logarithmic in the size
+ * of the list. A list is only as immutable as its elements: use
+ * {@link #copyOf(ExpressionList)} to convert nested lists too.</p>
+ */
+public final class ImmutableExpressionList extends ExpressionList {
+    // Chunks created by modifications hold at most this many elements.
+    private static final int CHUNK = 32;
+
+    private static final Expression[] NO_EXPRESSIONS = new Expression[0];
+    private static final ImmutableExpressionList EMPTY = new ImmutableExpressionList(new Leaf(NO_EXPRESSIONS, 0, 0));
+
+    private abstract static class Node {
+        final int size;
+        final int height;
+
+        Node(int size, int height) {
+            this.size = size;
+            this.height = height;
+        }
+
+        abstract Expression get(int index);
+    }
+
+    private static final class Leaf extends Node {
+        final Expression[] items;
+        final int offset;
+
+        Leaf(Expression[] items, int offset, int size) {
+            super(size, 0);
+            this.items = items;
+            this.offset = offset;
+        }
+
+        @Override
+        Expression get(int index) {
+            return items[offset + index];
+        }
+    }
+
+    private static final class Branch extends Node {
+        final Node left;
+        final Node right;
+
+        Branch(Node left, Node right) {
+            super(left.size + right.size, Math.max(left.height, right.height) + 1);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Expression get(int index) {
+            Node node = this;
+            while (node instanceof Branch) {
+                Branch b = (Branch) node;
+                if (index < b.left.size)
+                    node = b.left;
+                else {
+                    index -= b.left.size;
+                    node = b.right;
+                }
+            }
+            return node.get(index);
+        }
+    }
+
+    private static final class View extends AbstractList<Expression> {
+        private final Node root;
+
+        View(Node root) {
+            this.root = root;
+        }
+
+        @Override
+        public Expression get(int index) {
+            Preconditions.checkElementIndex(index, root.size);
+            return root.get(index);
+        }
+
+        @Override
+        public int size() {
+            return root.size;
+        }
+
+        @Override
+        public Iterator<Expression> iterator() {
+            return new LeafIterator(root);
+        }
+    }
+
+    private static final class LeafIterator implements Iterator<Expression> {
+        private final Deque<Node> pending = new ArrayDeque<>();
+        private Leaf leaf;
+        private int index;
+
+        LeafIterator(Node root) {
+            pending.push(root);
+            advance();
+        }
+
+        private void advance() {
+            leaf = null;
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                if (node instanceof Branch) {
+                    pending.push(((Branch) node).right);
+                    pending.push(((Branch) node).left);
+                }
+                else if (node.size > 0) {
+                    leaf = (Leaf) node;
+                    index = 0;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return leaf != null;
+        }
+
+        @Override
+        public Expression next() {
+            if (leaf == null)
+                throw new NoSuchElementException();
+            Expression e = leaf.get(index++);
+            if (index == leaf.size)
+                advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final Node root;
+
+    private ImmutableExpressionList(Node root) {
+        super(new View(root));
+        this.root = root;
+    }
+
+    private static ImmutableExpressionList create(Node root) {
+        return root.size == 0 ? EMPTY : new ImmutableExpressionList(root);
+    }
+
+    /**
+     * Return the empty list.
+     *
+     * @return The empty list.
+     */
+    public static ImmutableExpressionList of() {
+        return EMPTY;
+    }
+
+    /**
+     * Return a list of the given expressions.
+     *
+     * @param expressions The expressions.
+     * @return The new list.
+     * @throws java.lang.NullPointerException If any expression is null.
+     */
+    public static ImmutableExpressionList of(Expression... expressions) {
+        return builder(expressions.length).addAll(Arrays.asList(expressions)).build();
+    }
+
+    /**
+     * Return an immutable copy of an expression list. Nested lists are
+     * copied too, and lists that are already immutable are returned
+     * as-is, so the result shares as much as it can with the argument.
+     *
+     * @param list The list to copy.
+     * @return The immutable list.
+     * @throws java.lang.NullPointerException If the argument, or any element, is null.
+     */
+    public static ImmutableExpressionList copyOf(ExpressionList list) {
+        Preconditions.checkNotNull(list);
+        if (list instanceof ImmutableExpressionList)
+            return (ImmutableExpressionList) list;
+        Builder builder = builder(list.size());
+        for (Expression e : list) {
+            if (e instanceof ExpressionList)
+                builder.add(copyOf((ExpressionList) e));
+            else
+                builder.add(e);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @return The builder.
+     */
+    public static Builder builder() {
+        return new Builder(CHUNK);
+    }
+
+    /**
+     * Create a new builder, sized for the given number of expressions.
+     *
+     * @param capacity The expected number of expressions.
+     * @return The builder.
+     * @throws java.lang.IllegalArgumentException If the capacity is negative.
+     */
+    public static Builder builder(int capacity) {
+        Preconditions.checkArgument(capacity >= 0);
+        return new Builder(capacity);
+    }
+
+    /**
+     * A builder for immutable lists. Building hands the builder's array
+     * over to the new list without copying it; the builder starts a
+     * fresh array if it is used again.
+     */
+    public static final class Builder {
+        private Expression[] items;
+        private int size = 0;
+
+        private Builder(int capacity) {
+            items = new Expression[capacity];
+        }
+
+        /**
+         * Add an expression.
+         *
+         * @param expression The expression.
+         * @return This instance.
+         * @throws java.lang.NullPointerException If the argument is null.
+         */
+        public Builder add(Expression expression) {
+            Preconditions.checkNotNull(expression);
+            if (size == items.length)
+                items = Arrays.copyOf(items, Math.max(CHUNK, size * 2));
+            items[size++] = expression;
+            return this;
+        }
+
+        /**
+         * Add a number of expressions.
+         *
+         * @param expressions The expressions.
+         * @return This instance.
+         * @throws java.lang.NullPointerException If any expression is null.
+         */
+        public Builder addAll(Collection<? extends Expression> expressions) {
+            for (Expression e : expressions)
+                add(e);
+            return this;
+        }
+
+        /**
+         * Build the list, and reset this builder to empty.
+         *
+         * @return The new list.
+         */
+        public ImmutableExpressionList build() {
+            Node root = chunk(items, 0, size);
+            items = NO_EXPRESSIONS;
+            size = 0;
+            return create(root);
+        }
+    }
+
+    // Build a balanced tree of leaves over a range of an array, sharing the array.
+    private static Node chunk(Expression[] items, int from, int to) {
+        if (to - from <= CHUNK)
+            return new Leaf(items, from, to - from);
+        int chunks = (to - from + CHUNK - 1) / CHUNK;
+        int mid = from + (chunks / 2) * CHUNK;
+        return new Branch(chunk(items, from, mid), chunk(items, mid, to));
+    }
+
+    @Override
+    public Expression get(int index) {
+        Preconditions.checkElementIndex(index, root.size);
+        return root.get(index);
+    }
+
+    @Override
+    public int size() {
+        return root.size;
+    }
+
+    @Override
+    public Iterator<Expression> iterator() {
+        return new LeafIterator(root);
+    }
+
+    /**
+     * Return a list with an expression added to the end.
+     *
+     * @param expression The expression.
+     * @return The new list.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public ImmutableExpressionList append(Expression expression) {
+        return insert(root.size, expression);
+    }
+
+    /**
+     * Return a list with the expression at an index replaced.
+     *
+     * @param index The index.
+     * @param expression The new expression.
+     * @return The new list.
+     * @throws java.lang.NullPointerException If the expression is null.
+     * @throws java.lang.IndexOutOfBoundsException If the index is out of range.
+     */
+    public ImmutableExpressionList with(int index, Expression expression) {
+        Preconditions.checkNotNull(expression);
+        Preconditions.checkElementIndex(index, root.size);
+        return create(set(root, index, expression));
+    }
+
+    /**
+     * Return a list with an expression inserted at an index.
+     *
+     * @param index The index; elements at and after it are shifted up by one.
+     * @param expression The expression.
+     * @return The new list.
+     * @throws java.lang.NullPointerException If the expression is null.
+     * @throws java.lang.IndexOutOfBoundsException If the index is out of range.
+     */
+    public ImmutableExpressionList insert(int index, Expression expression) {
+        Preconditions.checkNotNull(expression);
+        Preconditions.checkPositionIndex(index, root.size);
+        return create(insert(root, index, expression));
+    }
+
+    /**
+     * Return a list with the expression at an index removed.
+     *
+     * @param index The index.
+     * @return The new list.
+     * @throws java.lang.IndexOutOfBoundsException If the index is out of range.
+     */
+    public ImmutableExpressionList without(int index) {
+        Preconditions.checkElementIndex(index, root.size);
+        return create(delete(root, index));
+    }
+
+    /**
+     * Return this list followed by another list.
+     *
+     * @param other The other list.
+     * @return The new list.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public ImmutableExpressionList concat(ImmutableExpressionList other) {
+        return create(join(root, other.root));
+    }
+
+    /**
+     * Return a range of this list. The result shares this list's structure.
+     *
+     * @param fromIndex The start of the range, inclusive.
+     * @param toIndex The end of the range, exclusive.
+     * @return The sub list.
+     * @throws java.lang.IndexOutOfBoundsException If the range is out of bounds.
+     */
+    @Override
+    public ImmutableExpressionList subList(int fromIndex, int toIndex) {
+        Preconditions.checkPositionIndexes(fromIndex, toIndex, root.size);
+        if (fromIndex == 0 && toIndex == root.size)
+            return this;
+        return create(slice(root, fromIndex, toIndex));
+    }
+
+    private static Node set(Node node, int index, Expression e) {
+        if (node instanceof Branch) {
+            Branch b = (Branch) node;
+            if (index < b.left.size)
+                return new Branch(set(b.left, index, e), b.right);
+            return new Branch(b.left, set(b.right, index - b.left.size, e));
+        }
+        Leaf leaf = (Leaf) node;
+        Expression[] items = Arrays.copyOfRange(leaf.items, leaf.offset, leaf.offset + leaf.size);
+        items[index] = e;
+        return new Leaf(items, 0, items.length);
+    }
+
+    private static Node insert(Node node, int index, Expression e) {
+        if (node instanceof Branch) {
+            Branch b = (Branch) node;
+            if (index < b.left.size)
+                return balance(insert(b.left, index, e), b.right);
+            return balance(b.left, insert(b.right, index - b.left.size, e));
+        }
+        Leaf leaf = (Leaf) node;
+        Expression[] items = new Expression[leaf.size + 1];
+        System.arraycopy(leaf.items, leaf.offset, items, 0, index);
+        items[index] = e;
+        System.arraycopy(leaf.items, leaf.offset + index, items, index + 1, leaf.size - index);
+        if (items.length <= CHUNK)
+            return new Leaf(items, 0, items.length);
+        int half = items.length / 2;
+        return new Branch(new Leaf(items, 0, half), new Leaf(items, half, items.length - half));
+    }
+
+    private static Node delete(Node node, int index) {
+        if (node instanceof Branch) {
+            Branch b = (Branch) node;
+            if (index < b.left.size) {
+                Node left = delete(b.left, index);
+                return left.size == 0 ? b.right : balance(left, b.right);
+            }
+            Node right = delete(b.right, index - b.left.size);
+            return right.size == 0 ? b.left : balance(b.left, right);
+        }
+        Leaf leaf = (Leaf) node;
+        if (index == 0)
+            return new Leaf(leaf.items, leaf.offset + 1, leaf.size - 1);
+        if (index == leaf.size - 1)
+            return new Leaf(leaf.items, leaf.offset, leaf.size - 1);
+        Expression[] items = new Expression[leaf.size - 1];
+        System.arraycopy(leaf.items, leaf.offset, items, 0, index);
+        System.arraycopy(leaf.items, leaf.offset + index + 1, items, index, leaf.size - index - 1);
+        return new Leaf(items, 0, items.length);
+    }
+
+    private static Node slice(Node node, int from, int to) {
+        if (from == 0 && to == node.size)
+            return node;
+        if (node instanceof Branch) {
+            Branch b = (Branch) node;
+            int split = b.left.size;
+            if (to <= split)
+                return slice(b.left, from, to);
+            if (from >= split)
+                return slice(b.right, from - split, to - split);
+            return join(slice(b.left, from, split), slice(b.right, 0, to - split));
+        }
+        Leaf leaf = (Leaf) node;
+        return new Leaf(leaf.items, leaf.offset + from, to - from);
+    }
+
+    // Concatenate two balanced trees into one balanced tree.
+    private static Node join(Node a, Node b) {
+        if (a.size == 0)
+            return b;
+        if (b.size == 0)
+            return a;
+        if (a.height > b.height + 1) {
+            Branch ab = (Branch) a;
+            return balance(ab.left, join(ab.right, b));
+        }
+        if (b.height > a.height + 1) {
+            Branch bb = (Branch) b;
+            return balance(join(a, bb.left), bb.right);
+        }
+        return new Branch(a, b);
+    }
+
+    // Join two trees whose heights differ by at most two, rotating as AVL trees do.
+    private static Node balance(Node left, Node right) {
+        if (left.height > right.height + 1) {
+            Branch l = (Branch) left;
+            if (l.left.height >= l.right.height)
+                return new Branch(l.left, new Branch(l.right, right));
+            Branch lr = (Branch) l.right;
+            return new Branch(new Branch(l.left, lr.left), new Branch(lr.right, right));
+        }
+        if (right.height > left.height + 1) {
+            Branch r = (Branch) right;
+            if (r.right.height >= r.left.height)
+                return new Branch(new Branch(left, r.left), r.right);
+            Branch rl = (Branch) r.left;
+            return new Branch(new Branch(left, rl.left), new Branch(rl.right, r.right));
+        }
+        return new Branch(left, right);
+    }
+}
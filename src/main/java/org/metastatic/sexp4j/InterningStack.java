@@ -0,0 +1,55 @@
+package org.metastatic.sexp4j;
+
+import java.util.Arrays;
+
+/**
+ * The stack of open lists for a parser or builder that interns what it
+ * builds. Elements are collected in scratch lists, one per depth, which are
+ * kept for reuse; a list is interned when it ends, so that its elements
+ * are already shared instances.
+ */
+class InterningStack {
+    private final ExpressionInterner interner;
+    private ExpressionList[] lists = new ExpressionList[16];
+    private int size = 0;
+
+    InterningStack(ExpressionInterner interner) {
+        this.interner = interner;
+    }
+
+    ExpressionInterner interner() {
+        return interner;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void push() {
+        if (size == lists.length)
+            lists = Arrays.copyOf(lists, size * 2);
+        if (lists[size] == null)
+            lists[size] = new ExpressionList();
+        size++;
+    }
+
+    void add(Expression e) {
+        lists[size - 1].add(e);
+    }
+
+    ImmutableExpressionList pop() {
+        ExpressionList list = lists[--size];
+        ImmutableExpressionList result = interner.internList(list);
+        list.clear();
+        return result;
+    }
+
+    void clear() {
+        while (size > 0)
+            lists[--size].clear();
+    }
+}
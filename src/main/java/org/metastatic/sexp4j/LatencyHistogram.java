@@ -0,0 +1,92 @@
+package org.metastatic.sexp4j;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with power-of-two buckets: bucket
+ * <i>i</i> counts durations of at least 2<sup><i>i</i>-1</sup> and less
+ * than 2<sup><i>i</i></sup> nanoseconds, and bucket 0 counts zero
+ * durations. Recording is one atomic increment, and safe from several
+ * threads; percentiles are accurate to a factor of two.
+ */
+public final class LatencyHistogram {
+    /**
+     * The number of buckets.
+     */
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos The duration, in nanoseconds; negative values count as zero.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    static int bucket(long nanos) {
+        if (nanos <= 0)
+            return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /**
+     * Return the number of durations in a bucket.
+     *
+     * @param bucket The bucket index.
+     * @return The count.
+     * @throws java.lang.IndexOutOfBoundsException If the index is not less than {@link #BUCKETS}.
+     */
+    public long count(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Return the number of recorded durations.
+     *
+     * @return The count.
+     */
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        return n;
+    }
+
+    /**
+     * Return an upper bound of a percentile of the recorded durations:
+     * the upper end of the bucket holding it.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The bound in nanoseconds, or 0 if nothing was recorded.
+     * @throws java.lang.IllegalArgumentException If the percentile is out of range.
+     */
+    public long percentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100))
+            throw new IllegalArgumentException("percentile out of range: " + percentile);
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += snapshot[i] = counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Clear all buckets.
+     */
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+    }
+}
@@ -0,0 +1,26 @@
+package org.metastatic.sexp4j;
+
+/**
+ * Receives the measurements of parse and write operations, and of mapper
+ * encodes and decodes.
+ *
+ * <p>Metrics are off by default. A recorder is installed with
+ * {@link StreamingParser#setMetrics(MetricsRecorder)},
+ * {@link CanonicalWriter#setMetrics(MetricsRecorder)},
+ * {@link AdvancedWriter#setMetrics(MetricsRecorder)}, or the mappers'
+ * <code>setMetrics</code> methods; until then, the only cost is a null
+ * check per event. {@link SexpMetrics} is an implementation that
+ * aggregates counters and latency histograms.</p>
+ *
+ * <p>Recorders are called on the thread doing the operation, once it
+ * completes or fails, so they should be quick, and must be safe to call
+ * from several threads if they are shared.</p>
+ */
+public interface MetricsRecorder {
+    /**
+     * Record one operation.
+     *
+     * @param metrics The measurements.
+     */
+    void record(OperationMetrics metrics);
+}
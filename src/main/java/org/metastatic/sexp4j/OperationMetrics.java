@@ -0,0 +1,97 @@
+package org.metastatic.sexp4j;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * The measurements of one operation: parsing or writing one top-level
+ * expression, or one mapper encode or decode.
+ *
+ * <p>Mapper operations are only timed; their byte, atom and list counts
+ * are zero.</p>
+ */
+public final class OperationMetrics {
+    /**
+     * The kinds of operation.
+     */
+    public static enum Operation {
+        Parse, Write, Encode, Decode
+    }
+
+    private final Operation operation;
+    private final long bytes;
+    private final int atoms;
+    private final int lists;
+    private final int maxDepth;
+    private final int largestAtom;
+    private final long nanos;
+    private final Throwable error;
+
+    /**
+     * Create a new measurement.
+     *
+     * @param operation The kind of operation.
+     * @param bytes The number of bytes read or written.
+     * @param atoms The number of atoms.
+     * @param lists The number of lists.
+     * @param maxDepth The deepest list nesting.
+     * @param largestAtom The length of the longest atom, in bytes.
+     * @param nanos The elapsed time, in nanoseconds.
+     * @param error The exception that ended the operation, or null if it completed.
+     * @throws java.lang.NullPointerException If the operation is null.
+     */
+    public OperationMetrics(Operation operation, long bytes, int atoms, int lists, int maxDepth,
+                            int largestAtom, long nanos, Throwable error) {
+        this.operation = Preconditions.checkNotNull(operation);
+        this.bytes = bytes;
+        this.atoms = atoms;
+        this.lists = lists;
+        this.maxDepth = maxDepth;
+        this.largestAtom = largestAtom;
+        this.nanos = nanos;
+        this.error = error;
+    }
+
+    public Operation operation() {
+        return operation;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public int atoms() {
+        return atoms;
+    }
+
+    public int lists() {
+        return lists;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public int largestAtom() {
+        return largestAtom;
+    }
+
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Return the exception that ended this operation, if it failed.
+     *
+     * @return The error.
+     */
+    public Optional<Throwable> error() {
+        return Optional.fromNullable(error);
+    }
+
+    @Override
+    public String toString() {
+        return operation + "{bytes=" + bytes + ", atoms=" + atoms + ", lists=" + lists + ", maxDepth=" + maxDepth
+            + ", largestAtom=" + largestAtom + ", nanos=" + nanos + (error != null ? ", error=" + error : "") + "}";
+    }
+}
@@ -1,51 +1,95 @@
 package org.metastatic.sexp4j;
 
-import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.InputStream;
 
 /**
  * Base adapter class for turning a {@link org.metastatic.sexp4j.StreamingParser}
  * into a {@link org.metastatic.sexp4j.Parser}.
+ *
+ * <p>Lists may be nested at most {@link #getMaxDepth()} deep; deeper input
+ * fails with a {@link org.metastatic.sexp4j.ParseException} as soon as the
+ * limit is crossed. Parsers may be reused for another input with
+ * {@link #reset(java.io.InputStream)}.</p>
+ *
+ * <p>Parsers given an {@link org.metastatic.sexp4j.ExpressionInterner}
+ * return shared, immutable expressions, built bottom-up.</p>
  */
 public abstract class ParserBase implements Parser {
-    private Optional<Expression> root = Optional.absent();
-    private final LinkedList<ExpressionList> stack = new LinkedList<>();
+    /**
+     * The default maximum list depth.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 1024;
+
+    private Expression root = null;
+    private final ExpressionStack stack = new ExpressionStack();
+    // Non-null if this parser interns what it builds.
+    private final InterningStack interning;
     private final StreamingParser stream;
+    private final int maxDepth;
 
-    private class Callback implements StreamingParserCallback {
+    private class Callback implements RawStreamingParserCallback {
         @Override
         public void beginList() throws ParseException {
+            if (interning != null) {
+                if (interning.size() >= maxDepth)
+                    throw new ParseException("lists nested more than %d deep", maxDepth);
+                if (interning.isEmpty() && root != null)
+                    throw new ParseException("found multiple root values");
+                interning.push();
+                return;
+            }
+            if (stack.size() >= maxDepth)
+                throw new ParseException("lists nested more than %d deep", maxDepth);
             ExpressionList newList = new ExpressionList();
             if (!stack.isEmpty())
                 stack.peek().add(newList);
             else
             {
-                if (root.isPresent())
+                if (root != null)
                     throw new ParseException("found multiple root values");
-                root = Optional.<Expression> of(newList);
+                root = newList;
             }
             stack.push(newList);
         }
 
         @Override
         public void endList() throws ParseException {
+            if (interning != null) {
+                if (interning.isEmpty())
+                    throw new ParseException("extraneous end list");
+                ImmutableExpressionList list = interning.pop();
+                if (interning.isEmpty())
+                    root = list;
+                else
+                    interning.add(list);
+                return;
+            }
             if (stack.isEmpty())
                 throw new ParseException("extraneous end list");
             stack.pop();
         }
 
         @Override
-        public void onAtom(byte[] atom, Optional<byte[]> displayHint) throws ParseException {
-            Atom a = new Atom(atom);
-            if (displayHint.isPresent())
-                a = a.withHint(new Atom(displayHint.get()));
+        public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) throws ParseException {
+            DisplayHint hint = hintBuf != null ? DisplayHint.of(hintBuf, hintOff, hintLen) : null;
+            if (interning != null) {
+                Atom a = interning.interner().intern(buf, off, len, hint);
+                if (!interning.isEmpty())
+                    interning.add(a);
+                else if (root != null)
+                    throw new ParseException("found multiple root values");
+                else
+                    root = a;
+                return;
+            }
+            Atom a = Atom.atom(buf, off, len, hint);
             if (stack.isEmpty()) {
-                if (root.isPresent())
+                if (root != null)
                     throw new ParseException("found multiple root values");
-                root = Optional.<Expression> of(a);
+                root = a;
             }
             else
                 stack.peek().add(a);
@@ -53,20 +97,89 @@ public abstract class ParserBase implements Parser {
     }
 
     /**
-     * Create a new parser adapter.
+     * Create a new parser adapter, with the default maximum depth.
      *
      * @param parser The streaming parser.
      * @throws java.lang.NullPointerException If the argument is null.
      */
     protected ParserBase(StreamingParser parser) {
+        this(parser, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Create a new parser adapter.
+     *
+     * @param parser The streaming parser.
+     * @param maxDepth The maximum list depth.
+     * @throws java.lang.NullPointerException If the parser is null.
+     * @throws java.lang.IllegalArgumentException If the maximum depth is not positive.
+     */
+    protected ParserBase(StreamingParser parser, int maxDepth) {
+        this(parser, maxDepth, (InterningStack) null);
+    }
+
+    /**
+     * Create a new parser adapter that builds shared expressions with the
+     * given interner: atoms are interned, and lists are built as interned
+     * {@link org.metastatic.sexp4j.ImmutableExpressionList}s.
+     *
+     * @param parser The streaming parser.
+     * @param maxDepth The maximum list depth.
+     * @param interner The interner.
+     * @throws java.lang.NullPointerException If the parser or the interner is null.
+     * @throws java.lang.IllegalArgumentException If the maximum depth is not positive.
+     */
+    protected ParserBase(StreamingParser parser, int maxDepth, ExpressionInterner interner) {
+        this(parser, maxDepth, new InterningStack(Preconditions.checkNotNull(interner)));
+    }
+
+    private ParserBase(StreamingParser parser, int maxDepth, InterningStack interning) {
         Preconditions.checkNotNull(parser);
+        Preconditions.checkArgument(maxDepth > 0);
         stream = parser;
+        this.maxDepth = maxDepth;
+        this.interning = interning;
         stream.addCallback(new Callback());
     }
 
+    /**
+     * Return the maximum list depth this parser accepts.
+     *
+     * @return The maximum depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Reset this parser to parse a new input stream, discarding any
+     * partially parsed expression.
+     *
+     * @param in The new input stream.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public void reset(InputStream in) {
+        stream.reset(in);
+        root = null;
+        stack.clear();
+        if (interning != null)
+            interning.clear();
+    }
+
+    /**
+     * Measure the underlying streaming parser with the given recorder,
+     * or stop measuring it.
+     *
+     * @param recorder The recorder, or null to turn metrics off.
+     * @see StreamingParser#setMetrics(MetricsRecorder)
+     */
+    public void setMetrics(MetricsRecorder recorder) {
+        stream.setMetrics(recorder);
+    }
+
     @Override
     public Expression parse() throws IOException {
         stream.parse();
-        return root.orNull();
+        return root;
     }
 }
@@ -0,0 +1,123 @@
+package org.metastatic.sexp4j;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures a streaming parser: it is both the parser's input stream,
+ * counting the bytes read through it, and one of its callbacks. An
+ * operation is one top-level expression, timed from the first byte read
+ * after the previous one ended. Bytes the parser has read ahead are
+ * counted with the next operation.
+ */
+final class ParserMeter extends FilterInputStream implements RawStreamingParserCallback {
+    private final MetricsRecorder recorder;
+    private final StreamingParser parser;
+    private long start = -1;
+    private long bytes;
+    // Bytes read ahead when the last operation ended.
+    private long carried;
+    private int atoms;
+    private int lists;
+    private int depth;
+    private int maxDepth;
+    private int largestAtom;
+
+    ParserMeter(MetricsRecorder recorder, InputStream in, StreamingParser parser) {
+        super(in);
+        this.recorder = recorder;
+        this.parser = parser;
+        carried = parser.readAhead();
+    }
+
+    InputStream source() {
+        return in;
+    }
+
+    void reset(InputStream in) {
+        this.in = in;
+        carried = 0;
+        clear();
+    }
+
+    private void clear() {
+        start = -1;
+        bytes = 0;
+        atoms = lists = depth = maxDepth = largestAtom = 0;
+    }
+
+    private void count(long n) {
+        if (start < 0)
+            start = System.nanoTime();
+        bytes += n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0)
+            count(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0)
+            count(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        if (skipped > 0)
+            count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void beginList() {
+        lists++;
+        if (++depth > maxDepth)
+            maxDepth = depth;
+    }
+
+    @Override
+    public void endList() {
+        if (depth > 0 && --depth == 0)
+            finish(null);
+    }
+
+    @Override
+    public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) {
+        atoms++;
+        if (len > largestAtom)
+            largestAtom = len;
+        if (depth == 0)
+            finish(null);
+    }
+
+    void failed(Throwable error) {
+        finish(error);
+    }
+
+    private void finish(Throwable error) {
+        long now = System.nanoTime();
+        long nanos = start < 0 ? 0 : now - start;
+        long readAhead = parser.readAhead();
+        OperationMetrics metrics = new OperationMetrics(OperationMetrics.Operation.Parse,
+            bytes + carried - readAhead, atoms, lists, maxDepth, largestAtom, nanos, error);
+        clear();
+        carried = readAhead;
+        if (readAhead > 0)
+            start = now;
+        recorder.record(metrics);
+    }
+}
@@ -8,6 +8,10 @@ import java.nio.charset.Charset;
 
 /**
  * Utility methods for transforming primitives to and from byte array representations.
+ *
+ * <p>The methods that take a destination array or buffer write into it
+ * directly, and the readers read straight out of the given array, so
+ * none of them allocate.</p>
  */
 public class Primitives {
     public static byte[] bytes(String string, Charset charset) {
@@ -15,7 +19,7 @@ public class Primitives {
     }
 
     public static byte[] bytes(String string) {
-        return bytes(string, Charset.forName("UTF-8"));
+        return Utf8.encode(string);
     }
 
     public static byte[] bytes(short value) {
@@ -24,13 +28,13 @@ public class Primitives {
 
     public static byte[] bytes(short value, ByteOrder order) {
         byte[] result = new byte[2];
-        ByteBuffer.wrap(result).order(order).putShort(value);
+        bytes(value, result, 0, order);
         return result;
     }
 
     public static byte[] bytes(int value, ByteOrder order) {
         byte[] result = new byte[4];
-        ByteBuffer.wrap(result).order(order).putInt(value);
+        bytes(value, result, 0, order);
         return result;
     }
 
@@ -40,7 +44,7 @@ public class Primitives {
 
     public static byte[] bytes(long value, ByteOrder order) {
         byte[] result = new byte[8];
-        ByteBuffer.wrap(result).order(order).putLong(value);
+        bytes(value, result, 0, order);
         return result;
     }
 
@@ -49,9 +53,7 @@ public class Primitives {
     }
 
     public static byte[] bytes(float value, ByteOrder order) {
-        byte[] result = new byte[4];
-        ByteBuffer.wrap(result).order(order).putFloat(value);
-        return result;
+        return bytes(Float.floatToRawIntBits(value), order);
     }
 
     public static byte[] bytes(double value) {
@@ -59,9 +61,7 @@ public class Primitives {
     }
 
     public static byte[] bytes(double value, ByteOrder order) {
-        byte[] result = new byte[8];
-        ByteBuffer.wrap(result).order(order).putDouble(value);
-        return result;
+        return bytes(Double.doubleToRawLongBits(value), order);
     }
 
     public static byte[] bytes(long value) {
@@ -76,6 +76,151 @@ public class Primitives {
         return bytes((short) value, order);
     }
 
+    // writing into arrays
+
+    /**
+     * Write a short into an array.
+     *
+     * @param value The value.
+     * @param dest The destination array.
+     * @param offset The offset to write to.
+     * @param order The byte order.
+     * @return The number of bytes written, two.
+     * @throws java.lang.IndexOutOfBoundsException If the array does not have room.
+     */
+    public static int bytes(short value, byte[] dest, int offset, ByteOrder order) {
+        Preconditions.checkPositionIndexes(offset, offset + 2, dest.length);
+        if (order == ByteOrder.BIG_ENDIAN) {
+            dest[offset] = (byte) (value >> 8);
+            dest[offset + 1] = (byte) value;
+        } else {
+            dest[offset] = (byte) value;
+            dest[offset + 1] = (byte) (value >> 8);
+        }
+        return 2;
+    }
+
+    public static int bytes(short value, byte[] dest, int offset) {
+        return bytes(value, dest, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    public static int bytes(char value, byte[] dest, int offset, ByteOrder order) {
+        return bytes((short) value, dest, offset, order);
+    }
+
+    public static int bytes(char value, byte[] dest, int offset) {
+        return bytes((short) value, dest, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Write an int into an array.
+     *
+     * @param value The value.
+     * @param dest The destination array.
+     * @param offset The offset to write to.
+     * @param order The byte order.
+     * @return The number of bytes written, four.
+     * @throws java.lang.IndexOutOfBoundsException If the array does not have room.
+     */
+    public static int bytes(int value, byte[] dest, int offset, ByteOrder order) {
+        Preconditions.checkPositionIndexes(offset, offset + 4, dest.length);
+        if (order != ByteOrder.BIG_ENDIAN)
+            value = Integer.reverseBytes(value);
+        dest[offset] = (byte) (value >> 24);
+        dest[offset + 1] = (byte) (value >> 16);
+        dest[offset + 2] = (byte) (value >> 8);
+        dest[offset + 3] = (byte) value;
+        return 4;
+    }
+
+    public static int bytes(int value, byte[] dest, int offset) {
+        return bytes(value, dest, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Write a long into an array.
+     *
+     * @param value The value.
+     * @param dest The destination array.
+     * @param offset The offset to write to.
+     * @param order The byte order.
+     * @return The number of bytes written, eight.
+     * @throws java.lang.IndexOutOfBoundsException If the array does not have room.
+     */
+    public static int bytes(long value, byte[] dest, int offset, ByteOrder order) {
+        Preconditions.checkPositionIndexes(offset, offset + 8, dest.length);
+        if (order != ByteOrder.BIG_ENDIAN)
+            value = Long.reverseBytes(value);
+        dest[offset] = (byte) (value >> 56);
+        dest[offset + 1] = (byte) (value >> 48);
+        dest[offset + 2] = (byte) (value >> 40);
+        dest[offset + 3] = (byte) (value >> 32);
+        dest[offset + 4] = (byte) (value >> 24);
+        dest[offset + 5] = (byte) (value >> 16);
+        dest[offset + 6] = (byte) (value >> 8);
+        dest[offset + 7] = (byte) value;
+        return 8;
+    }
+
+    public static int bytes(long value, byte[] dest, int offset) {
+        return bytes(value, dest, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    public static int bytes(float value, byte[] dest, int offset, ByteOrder order) {
+        return bytes(Float.floatToRawIntBits(value), dest, offset, order);
+    }
+
+    public static int bytes(float value, byte[] dest, int offset) {
+        return bytes(Float.floatToRawIntBits(value), dest, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    public static int bytes(double value, byte[] dest, int offset, ByteOrder order) {
+        return bytes(Double.doubleToRawLongBits(value), dest, offset, order);
+    }
+
+    public static int bytes(double value, byte[] dest, int offset) {
+        return bytes(Double.doubleToRawLongBits(value), dest, offset, ByteOrder.BIG_ENDIAN);
+    }
+
+    // writing into buffers
+
+    /**
+     * Write a short at a buffer's position, in the given byte order,
+     * regardless of the buffer's own byte order.
+     *
+     * @param value The value.
+     * @param dest The destination buffer.
+     * @param order The byte order.
+     * @return The number of bytes written, two.
+     * @throws java.nio.BufferOverflowException If the buffer does not have room.
+     */
+    public static int bytes(short value, ByteBuffer dest, ByteOrder order) {
+        dest.putShort(dest.order() == order ? value : Short.reverseBytes(value));
+        return 2;
+    }
+
+    public static int bytes(char value, ByteBuffer dest, ByteOrder order) {
+        return bytes((short) value, dest, order);
+    }
+
+    public static int bytes(int value, ByteBuffer dest, ByteOrder order) {
+        dest.putInt(dest.order() == order ? value : Integer.reverseBytes(value));
+        return 4;
+    }
+
+    public static int bytes(long value, ByteBuffer dest, ByteOrder order) {
+        dest.putLong(dest.order() == order ? value : Long.reverseBytes(value));
+        return 8;
+    }
+
+    public static int bytes(float value, ByteBuffer dest, ByteOrder order) {
+        return bytes(Float.floatToRawIntBits(value), dest, order);
+    }
+
+    public static int bytes(double value, ByteBuffer dest, ByteOrder order) {
+        return bytes(Double.doubleToRawLongBits(value), dest, order);
+    }
+
     // short
 
     public static short toShort(byte[] bytes) {
@@ -91,7 +236,15 @@ public class Primitives {
     }
 
     public static short toShort(byte[] bytes, int offset, ByteOrder order) {
-        return ByteBuffer.wrap(bytes).order(order).getShort(offset);
+        Preconditions.checkPositionIndexes(offset, offset + 2, bytes.length);
+        if (order == ByteOrder.BIG_ENDIAN)
+            return (short) ((bytes[offset] << 8) | (bytes[offset + 1] & 0xff));
+        return (short) ((bytes[offset + 1] << 8) | (bytes[offset] & 0xff));
+    }
+
+    public static short toShort(ByteBuffer bytes, ByteOrder order) {
+        short value = bytes.getShort();
+        return bytes.order() == order ? value : Short.reverseBytes(value);
     }
 
     // int
@@ -101,7 +254,12 @@ public class Primitives {
     }
 
     public static int toInt(byte[] bytes, int offset, ByteOrder order) {
-        return ByteBuffer.wrap(bytes).order(order).getInt(offset);
+        Preconditions.checkPositionIndexes(offset, offset + 4, bytes.length);
+        int value = (bytes[offset] << 24)
+                | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+        return order == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
     }
 
     public static int toInt(byte[] bytes, int offset) {
@@ -112,10 +270,24 @@ public class Primitives {
         return toInt(bytes, 0);
     }
 
+    public static int toInt(ByteBuffer bytes, ByteOrder order) {
+        int value = bytes.getInt();
+        return bytes.order() == order ? value : Integer.reverseBytes(value);
+    }
+
     // long
 
     public static long toLong(byte[] bytes, int offset, ByteOrder order) {
-        return ByteBuffer.wrap(bytes).order(order).getLong(offset);
+        Preconditions.checkPositionIndexes(offset, offset + 8, bytes.length);
+        long value = ((long) bytes[offset] << 56)
+                | ((bytes[offset + 1] & 0xffL) << 48)
+                | ((bytes[offset + 2] & 0xffL) << 40)
+                | ((bytes[offset + 3] & 0xffL) << 32)
+                | ((bytes[offset + 4] & 0xffL) << 24)
+                | ((bytes[offset + 5] & 0xffL) << 16)
+                | ((bytes[offset + 6] & 0xffL) << 8)
+                | (bytes[offset + 7] & 0xffL);
+        return order == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
     }
 
     public static long toLong(byte[] bytes, ByteOrder order) {
@@ -130,6 +302,11 @@ public class Primitives {
         return toLong(bytes, 0);
     }
 
+    public static long toLong(ByteBuffer bytes, ByteOrder order) {
+        long value = bytes.getLong();
+        return bytes.order() == order ? value : Long.reverseBytes(value);
+    }
+
     // float
 
     public static float toFloat(byte[] bytes) {
@@ -145,7 +322,11 @@ public class Primitives {
     }
 
     public static float toFloat(byte[] bytes, int offset, ByteOrder order) {
-        return ByteBuffer.wrap(bytes).order(order).getFloat(offset);
+        return Float.intBitsToFloat(toInt(bytes, offset, order));
+    }
+
+    public static float toFloat(ByteBuffer bytes, ByteOrder order) {
+        return Float.intBitsToFloat(toInt(bytes, order));
     }
 
     // double
@@ -163,7 +344,11 @@ public class Primitives {
     }
 
     public static double toDouble(byte[] bytes, int offset, ByteOrder order) {
-        return ByteBuffer.wrap(bytes).order(order).getDouble(offset);
+        return Double.longBitsToDouble(toLong(bytes, offset, order));
+    }
+
+    public static double toDouble(ByteBuffer bytes, ByteOrder order) {
+        return Double.longBitsToDouble(toLong(bytes, order));
     }
 
     // char
@@ -183,4 +368,8 @@ public class Primitives {
     public static char toChar(byte[] bytes, int offset, ByteOrder order) {
         return (char) toShort(bytes, offset, order);
     }
+
+    public static char toChar(ByteBuffer bytes, ByteOrder order) {
+        return (char) toShort(bytes, order);
+    }
 }
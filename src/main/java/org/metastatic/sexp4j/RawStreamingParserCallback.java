@@ -0,0 +1,41 @@
+package org.metastatic.sexp4j;
+
+/**
+ * A callback for parsing s-expressions, which receives atoms as ranges
+ * of the parser's own buffers.
+ *
+ * <p>The buffers passed to {@link #onAtom(byte[], int, int, byte[], int, int)}
+ * are only borrowed: the parser may overwrite them as soon as the call
+ * returns, so implementations must copy any bytes they want to keep.</p>
+ *
+ * @see org.metastatic.sexp4j.StreamingParserCallback
+ */
+public interface RawStreamingParserCallback
+{
+    /**
+     * Called on the beginning of a list.
+     *
+     * @throws org.metastatic.sexp4j.ParseException If a list is not appropriate given the parser's current state.
+     */
+    void beginList() throws ParseException;
+
+    /**
+     * Called on the end of a list.
+     *
+     * @throws org.metastatic.sexp4j.ParseException If ending a list is not appropriate given the current state.
+     */
+    void endList() throws ParseException;
+
+    /**
+     * Called when parsing an atom.
+     *
+     * @param buf The buffer holding the atom bytes.
+     * @param off The offset of the atom bytes.
+     * @param len The number of atom bytes.
+     * @param hintBuf The buffer holding the display hint bytes, or null if there is no display hint.
+     * @param hintOff The offset of the display hint bytes.
+     * @param hintLen The number of display hint bytes.
+     * @throws org.metastatic.sexp4j.ParseException If an atom is not appropriate given the current parser state.
+     */
+    void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) throws ParseException;
+}
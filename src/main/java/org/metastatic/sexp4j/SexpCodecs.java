@@ -0,0 +1,179 @@
+package org.metastatic.sexp4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Per-thread, reusable parsers and writers.
+ *
+ * <p>Each thread gets one instance of each parser and writer, which is
+ * reset and handed out again on every call, keeping its scratch buffers
+ * warm. This avoids the setup cost of a new parser or writer for every
+ * small message.</p>
+ *
+ * <p>The instances returned by the {@code canonicalParser},
+ * {@code advancedParser} and {@code canonicalWriter} methods are only
+ * valid until the next call to the same method on the same thread, and
+ * must not be passed to other threads. The {@code parse} and
+ * {@code write} methods do a complete operation and have no such
+ * restriction.</p>
+ */
+public final class SexpCodecs {
+    private static final InputStream EMPTY_INPUT = new ByteArrayInputStream(new byte[0]);
+
+    private static final ThreadLocal<CanonicalParser> CANONICAL_PARSER = new ThreadLocal<CanonicalParser>() {
+        @Override
+        protected CanonicalParser initialValue() {
+            return new CanonicalParser(EMPTY_INPUT);
+        }
+    };
+
+    private static final ThreadLocal<AdvancedParser> ADVANCED_PARSER = new ThreadLocal<AdvancedParser>() {
+        @Override
+        protected AdvancedParser initialValue() {
+            return new AdvancedParser(EMPTY_INPUT);
+        }
+    };
+
+    private static final ThreadLocal<CanonicalWriter> CANONICAL_WRITER = new ThreadLocal<CanonicalWriter>() {
+        @Override
+        protected CanonicalWriter initialValue() {
+            return new CanonicalWriter(ByteStreams.nullOutputStream());
+        }
+    };
+
+    private SexpCodecs() {
+    }
+
+    /**
+     * Return this thread's canonical parser, reset to read the given stream.
+     *
+     * @param in The input stream.
+     * @return The parser.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static CanonicalParser canonicalParser(InputStream in) {
+        CanonicalParser parser = CANONICAL_PARSER.get();
+        parser.reset(in);
+        return parser;
+    }
+
+    /**
+     * Return this thread's advanced parser, reset to read the given stream.
+     *
+     * @param in The input stream.
+     * @return The parser.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static AdvancedParser advancedParser(InputStream in) {
+        AdvancedParser parser = ADVANCED_PARSER.get();
+        parser.reset(in);
+        return parser;
+    }
+
+    /**
+     * Return this thread's canonical writer, reset to write to the given stream.
+     *
+     * @param out The output stream.
+     * @return The writer.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static CanonicalWriter canonicalWriter(OutputStream out) {
+        CanonicalWriter writer = CANONICAL_WRITER.get();
+        writer.reset(out);
+        return writer;
+    }
+
+    /**
+     * Parse one canonical expression from a stream.
+     *
+     * @param in The input stream.
+     * @return The expression, or null if the input was empty.
+     * @throws org.metastatic.sexp4j.ParseException If the input is invalid.
+     * @throws IOException If an IO exception occurs.
+     */
+    public static Expression parseCanonical(InputStream in) throws IOException {
+        CanonicalParser parser = canonicalParser(in);
+        try {
+            return parser.parse();
+        } finally {
+            parser.reset(EMPTY_INPUT);
+        }
+    }
+
+    /**
+     * Parse one canonical expression from a byte array.
+     *
+     * @param bytes The encoded expression.
+     * @return The expression, or null if the input was empty.
+     * @throws org.metastatic.sexp4j.ParseException If the input is invalid.
+     */
+    public static Expression parseCanonical(byte[] bytes) throws ParseException {
+        Preconditions.checkNotNull(bytes);
+        try {
+            return parseCanonical(new ByteArrayInputStream(bytes));
+        } catch (ParseException pe) {
+            throw pe;
+        } catch (IOException ioe) {
+            // A truncated atom surfaces as an EOFException.
+            throw new ParseException(ioe);
+        }
+    }
+
+    /**
+     * Parse one advanced-format expression from a stream.
+     *
+     * @param in The input stream.
+     * @return The expression, or null if the input was empty.
+     * @throws org.metastatic.sexp4j.ParseException If the input is invalid.
+     * @throws IOException If an IO exception occurs.
+     */
+    public static Expression parseAdvanced(InputStream in) throws IOException {
+        AdvancedParser parser = advancedParser(in);
+        try {
+            return parser.parse();
+        } finally {
+            parser.reset(EMPTY_INPUT);
+        }
+    }
+
+    /**
+     * Write an expression, in canonical form, to a stream.
+     *
+     * @param expression The expression.
+     * @param out The output stream.
+     * @return The number of bytes written.
+     * @throws IOException If an IO exception occurs.
+     */
+    public static int writeCanonical(Expression expression, OutputStream out) throws IOException {
+        CanonicalWriter writer = canonicalWriter(out);
+        try {
+            return writer.writeExpression(expression);
+        } finally {
+            writer.reset(ByteStreams.nullOutputStream());
+        }
+    }
+
+    /**
+     * Encode an expression in canonical form.
+     *
+     * @param expression The expression.
+     * @return The encoded bytes.
+     */
+    public static byte[] toCanonicalBytes(Expression expression) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeCanonical(expression, out);
+        } catch (IOException ioe) {
+            // ByteArrayOutputStream doesn't throw, and a single expression is always a valid write.
+            throw new IllegalStateException(ioe);
+        }
+        return out.toByteArray();
+    }
+}
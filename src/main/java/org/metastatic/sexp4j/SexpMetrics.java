@@ -0,0 +1,200 @@
+package org.metastatic.sexp4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MetricsRecorder} that keeps running totals, maxima and a
+ * {@link LatencyHistogram} for each kind of operation. Recording costs a
+ * few atomic updates, and one instance may be shared by every parser,
+ * writer and mapper in a process.
+ *
+ * <p>Operations of at least a configurable number of bytes are also
+ * passed on to another recorder, to trace the few large operations that
+ * dominate the cost without tracing every small one. On Java 11 and later
+ * that recorder can commit a JDK Flight Recorder event; this library
+ * targets Java 7, and does not depend on <code>jdk.jfr</code> itself.</p>
+ *
+ * <pre>
+ * SexpMetrics metrics = new SexpMetrics();
+ * parser.setMetrics(metrics);
+ * writer.setMetrics(metrics);
+ * ...
+ * long p99 = metrics.latency(OperationMetrics.Operation.Parse).percentile(99);
+ * </pre>
+ */
+public class SexpMetrics implements MetricsRecorder {
+    private static final class Totals {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong atoms = new AtomicLong();
+        final AtomicLong lists = new AtomicLong();
+        final AtomicLong maxDepth = new AtomicLong();
+        final AtomicLong largestAtom = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        void clear() {
+            count.set(0);
+            errors.set(0);
+            bytes.set(0);
+            atoms.set(0);
+            lists.set(0);
+            maxDepth.set(0);
+            largestAtom.set(0);
+            latency.clear();
+        }
+    }
+
+    private final Totals[] totals;
+    private final long largeOperationBytes;
+    private final MetricsRecorder largeOperations;
+
+    /**
+     * Create an aggregate that does not pass on large operations.
+     */
+    public SexpMetrics() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Create an aggregate that passes operations of at least the given
+     * number of bytes on to another recorder.
+     *
+     * @param largeOperationBytes The size threshold, in bytes.
+     * @param largeOperations The recorder of large operations.
+     * @throws java.lang.IllegalArgumentException If the threshold is negative.
+     * @throws java.lang.NullPointerException If the recorder is null.
+     */
+    public SexpMetrics(long largeOperationBytes, MetricsRecorder largeOperations) {
+        Preconditions.checkArgument(largeOperationBytes >= 0);
+        if (largeOperationBytes < Long.MAX_VALUE)
+            Preconditions.checkNotNull(largeOperations);
+        this.largeOperationBytes = largeOperationBytes;
+        this.largeOperations = largeOperations;
+        OperationMetrics.Operation[] operations = OperationMetrics.Operation.values();
+        totals = new Totals[operations.length];
+        for (int i = 0; i < totals.length; i++)
+            totals[i] = new Totals();
+    }
+
+    @Override
+    public void record(OperationMetrics metrics) {
+        Totals t = totals[metrics.operation().ordinal()];
+        t.count.incrementAndGet();
+        if (metrics.error().isPresent())
+            t.errors.incrementAndGet();
+        if (metrics.bytes() > 0)
+            t.bytes.addAndGet(metrics.bytes());
+        if (metrics.atoms() > 0)
+            t.atoms.addAndGet(metrics.atoms());
+        if (metrics.lists() > 0)
+            t.lists.addAndGet(metrics.lists());
+        max(t.maxDepth, metrics.maxDepth());
+        max(t.largestAtom, metrics.largestAtom());
+        t.latency.record(metrics.nanos());
+        if (metrics.bytes() >= largeOperationBytes)
+            largeOperations.record(metrics);
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value))
+                return;
+        }
+    }
+
+    private Totals totals(OperationMetrics.Operation operation) {
+        return totals[operation.ordinal()];
+    }
+
+    /**
+     * Return the number of operations recorded, including failed ones.
+     *
+     * @param operation The kind of operation.
+     * @return The count.
+     */
+    public long count(OperationMetrics.Operation operation) {
+        return totals(operation).count.get();
+    }
+
+    /**
+     * Return the number of failed operations.
+     *
+     * @param operation The kind of operation.
+     * @return The count.
+     */
+    public long errors(OperationMetrics.Operation operation) {
+        return totals(operation).errors.get();
+    }
+
+    /**
+     * Return the total number of bytes read or written.
+     *
+     * @param operation The kind of operation.
+     * @return The byte count.
+     */
+    public long bytes(OperationMetrics.Operation operation) {
+        return totals(operation).bytes.get();
+    }
+
+    /**
+     * Return the total number of atoms.
+     *
+     * @param operation The kind of operation.
+     * @return The atom count.
+     */
+    public long atoms(OperationMetrics.Operation operation) {
+        return totals(operation).atoms.get();
+    }
+
+    /**
+     * Return the total number of lists.
+     *
+     * @param operation The kind of operation.
+     * @return The list count.
+     */
+    public long lists(OperationMetrics.Operation operation) {
+        return totals(operation).lists.get();
+    }
+
+    /**
+     * Return the deepest list nesting seen.
+     *
+     * @param operation The kind of operation.
+     * @return The depth.
+     */
+    public long maxDepth(OperationMetrics.Operation operation) {
+        return totals(operation).maxDepth.get();
+    }
+
+    /**
+     * Return the length of the longest atom seen, in bytes.
+     *
+     * @param operation The kind of operation.
+     * @return The length.
+     */
+    public long largestAtom(OperationMetrics.Operation operation) {
+        return totals(operation).largestAtom.get();
+    }
+
+    /**
+     * Return the latency histogram.
+     *
+     * @param operation The kind of operation.
+     * @return The live histogram.
+     */
+    public LatencyHistogram latency(OperationMetrics.Operation operation) {
+        return totals(operation).latency;
+    }
+
+    /**
+     * Reset all counters and histograms.
+     */
+    public void clear() {
+        for (Totals t : totals)
+            t.clear();
+    }
+}
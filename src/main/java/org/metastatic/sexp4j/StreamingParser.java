@@ -6,20 +6,74 @@ import com.google.common.base.Preconditions;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Base class for a streaming parser.
  *
  * <p>To use a streaming parser, you register one or more
+ * {@link org.metastatic.sexp4j.RawStreamingParserCallback} or
  * {@link org.metastatic.sexp4j.StreamingParserCallback} instances
  * with this object, which will be called as expressions are read
  * from the underlying input stream.</p>
+ *
+ * <p>When exactly one callback is registered, events are passed to it
+ * directly, without going through the callback list.</p>
+ *
+ * <p>Metrics are off unless a recorder is installed with
+ * {@link #setMetrics(MetricsRecorder)}.</p>
  */
 public abstract class StreamingParser
 {
-    private final List<StreamingParserCallback> callbacks;
-    protected final InputStream input;
+    private static final RawStreamingParserCallback[] NO_CALLBACKS = new RawStreamingParserCallback[0];
+
+    private final List<RawStreamingParserCallback> callbacks;
+    private RawStreamingParserCallback[] callbackArray = NO_CALLBACKS;
+    private RawStreamingParserCallback single;
+    private boolean stopRequested = false;
+    private ParserMeter meter;
+    protected InputStream input;
+
+    /**
+     * Adapts a {@link StreamingParserCallback} to the raw interface,
+     * copying each atom and display hint into new arrays.
+     */
+    private static class OptionalCallbackAdapter implements RawStreamingParserCallback {
+        private final StreamingParserCallback callback;
+
+        private OptionalCallbackAdapter(StreamingParserCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void beginList() throws ParseException {
+            callback.beginList();
+        }
+
+        @Override
+        public void endList() throws ParseException {
+            callback.endList();
+        }
+
+        @Override
+        public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) throws ParseException {
+            Optional<byte[]> hint = Optional.absent();
+            if (hintBuf != null)
+                hint = Optional.of(Arrays.copyOfRange(hintBuf, hintOff, hintOff + hintLen));
+            callback.onAtom(Arrays.copyOfRange(buf, off, off + len), hint);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof OptionalCallbackAdapter) && callback.equals(((OptionalCallbackAdapter) obj).callback);
+        }
+
+        @Override
+        public int hashCode() {
+            return callback.hashCode();
+        }
+    }
 
     /**
      * Construct a new parser.
@@ -42,6 +96,100 @@ public abstract class StreamingParser
      */
     public abstract void parse() throws IOException;
 
+    /**
+     * Reset this parser to read a new input stream, keeping its callbacks.
+     * Subclasses that keep parse state must override this to clear it,
+     * and call this implementation.
+     *
+     * @param input The new input stream.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public void reset(InputStream input)
+    {
+        Preconditions.checkNotNull(input);
+        this.input = input;
+        stopRequested = false;
+        if (meter != null) {
+            meter.reset(input);
+            this.input = meter;
+        }
+    }
+
+    /**
+     * Measure this parser with the given recorder, or stop measuring it.
+     * Each top-level expression is recorded as one
+     * {@link OperationMetrics.Operation#Parse} operation, as is each
+     * exception thrown from {@link #parse()}. Byte counts are of the
+     * input each expression was parsed from, including whitespace before
+     * it; bytes a parser has read ahead are counted with the expression
+     * they belong to.
+     *
+     * @param recorder The recorder, or null to turn metrics off.
+     */
+    public final void setMetrics(MetricsRecorder recorder)
+    {
+        if (meter != null) {
+            removeCallback(meter);
+            input = meter.source();
+            meter = null;
+        }
+        if (recorder != null) {
+            meter = new ParserMeter(recorder, input, this);
+            input = meter;
+            addCallback(meter);
+        }
+    }
+
+    /**
+     * Return the number of bytes this parser has read from its input,
+     * and not parsed yet.
+     *
+     * @return The number of bytes read ahead.
+     */
+    int readAhead()
+    {
+        return 0;
+    }
+
+    /**
+     * Report an exception that is about to be thrown from
+     * {@link #parse()}. Parsers should call this for every exception
+     * they throw, or let through.
+     *
+     * @param error The exception.
+     */
+    protected final void parseFailed(Throwable error)
+    {
+        if (meter != null)
+            meter.failed(error);
+    }
+
+    /**
+     * Ask this parser to return from {@link #parse()} as soon as it has
+     * delivered the current event, without reading further input. This
+     * is meant to be called from a callback. Calling {@link #parse()}
+     * again continues from where parsing stopped.
+     */
+    public final void stop()
+    {
+        stopRequested = true;
+    }
+
+    /**
+     * Tell if {@link #stop()} was called, clearing the request. Parsers
+     * should check this between events, and return if it is true.
+     *
+     * @return True if the parser should stop.
+     */
+    protected final boolean stopRequested()
+    {
+        if (stopRequested) {
+            stopRequested = false;
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Add a callback to this parser.
      *
@@ -51,8 +199,22 @@ public abstract class StreamingParser
     public final void addCallback(StreamingParserCallback callback)
     {
         Preconditions.checkNotNull(callback);
-        if (!callbacks.contains(callback))
+        addCallback(new OptionalCallbackAdapter(callback));
+    }
+
+    /**
+     * Add a raw callback to this parser.
+     *
+     * @param callback The callback to add.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public final void addCallback(RawStreamingParserCallback callback)
+    {
+        Preconditions.checkNotNull(callback);
+        if (!callbacks.contains(callback)) {
             callbacks.add(callback);
+            callbacksChanged();
+        }
     }
 
     /**
@@ -61,7 +223,23 @@ public abstract class StreamingParser
      * @param callback The callback to remove.
      */
     public final void removeCallback(StreamingParserCallback callback) {
-        callbacks.remove(callback);
+        if (callback != null)
+            removeCallback(new OptionalCallbackAdapter(callback));
+    }
+
+    /**
+     * Remove a raw callback from this parser.
+     *
+     * @param callback The callback to remove.
+     */
+    public final void removeCallback(RawStreamingParserCallback callback) {
+        if (callbacks.remove(callback))
+            callbacksChanged();
+    }
+
+    private void callbacksChanged() {
+        callbackArray = callbacks.toArray(new RawStreamingParserCallback[callbacks.size()]);
+        single = callbackArray.length == 1 ? callbackArray[0] : null;
     }
 
     /**
@@ -71,8 +249,13 @@ public abstract class StreamingParser
      */
     protected final void onListBegin() throws ParseException
     {
-        for (StreamingParserCallback callback : callbacks)
+        RawStreamingParserCallback callback = single;
+        if (callback != null) {
             callback.beginList();
+            return;
+        }
+        for (RawStreamingParserCallback c : callbackArray)
+            c.beginList();
     }
 
     /**
@@ -82,8 +265,13 @@ public abstract class StreamingParser
      */
     protected final void onListEnd() throws ParseException
     {
-        for (StreamingParserCallback callback : callbacks)
+        RawStreamingParserCallback callback = single;
+        if (callback != null) {
             callback.endList();
+            return;
+        }
+        for (RawStreamingParserCallback c : callbackArray)
+            c.endList();
     }
 
     /**
@@ -95,7 +283,30 @@ public abstract class StreamingParser
      */
     protected final void onAtom(byte[] atom, Optional<byte[]> displayHint) throws ParseException
     {
-        for (StreamingParserCallback callback : callbacks)
-            callback.onAtom(atom, displayHint);
+        byte[] hint = displayHint.orNull();
+        onAtom(atom, 0, atom.length, hint, 0, hint == null ? 0 : hint.length);
+    }
+
+    /**
+     * Called when an atom is read. The buffers are only lent to the
+     * callbacks, so the parser may reuse them once this returns.
+     *
+     * @param buf The buffer holding the atom bytes.
+     * @param off The offset of the atom bytes.
+     * @param len The number of atom bytes.
+     * @param hintBuf The buffer holding the display hint bytes, or null if there is no display hint.
+     * @param hintOff The offset of the display hint bytes.
+     * @param hintLen The number of display hint bytes.
+     * @throws ParseException If an atom is not appropriate given the current parser state.
+     */
+    protected final void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) throws ParseException
+    {
+        RawStreamingParserCallback callback = single;
+        if (callback != null) {
+            callback.onAtom(buf, off, len, hintBuf, hintOff, hintLen);
+            return;
+        }
+        for (RawStreamingParserCallback c : callbackArray)
+            c.onAtom(buf, off, len, hintBuf, hintOff, hintLen);
     }
 }
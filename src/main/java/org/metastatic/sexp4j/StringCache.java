@@ -0,0 +1,23 @@
+package org.metastatic.sexp4j;
+
+/**
+ * A cache of strings decoded from UTF-8 bytes, used to share one
+ * instance among the many equal strings (such as map keys) that come
+ * out of decoding a large number of similar expressions.
+ *
+ * @see org.metastatic.sexp4j.BoundedStringCache
+ * @see org.metastatic.sexp4j.Atom#stringValue(StringCache)
+ */
+public interface StringCache {
+    /**
+     * Return the string for the given UTF-8 bytes. Implementations
+     * should look the bytes up without first decoding them, and return
+     * a previously decoded instance if there is one.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the string bytes.
+     * @param length The number of string bytes.
+     * @return The decoded string.
+     */
+    String get(byte[] bytes, int offset, int length);
+}
@@ -0,0 +1,132 @@
+package org.metastatic.sexp4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The first stage of {@link AdvancedStreamingParser}: a bitmap of the
+ * structural bytes in a block of advanced-format input, one bit per byte
+ * and one long per 64 bytes.
+ *
+ * <p>A byte is structural if it cannot be part of a token; that is,
+ * everything but letters, digits and <code>-./_:*+=</code>. Whitespace,
+ * parentheses, brackets, braces, quotes, escapes and the hex and base-64
+ * delimiters are all structural, so the parser can find the end of a
+ * token, or of a run of plain characters in a quoted string, by looking
+ * for the next set bit instead of testing each byte.</p>
+ *
+ * <p>Bytes are classified eight at a time, with SWAR arithmetic on longs
+ * read from the block; a per-byte table handles the tail of a block. Bits
+ * past the end of the indexed bytes are set, so that a scan always stops
+ * at the end of the input.</p>
+ */
+final class StructuralIndex {
+    private static final long HIGH = 0x8080808080808080L;
+    private static final long LOW = 0x0101010101010101L;
+    private static final long FOLD = 0x2020202020202020L;
+    // Gathers the low bit of each byte into the top byte, byte 0 lowest.
+    private static final long GATHER = 0x0102040810204080L;
+
+    private static final boolean[] TOKEN = new boolean[256];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++)
+            TOKEN[c] = true;
+        for (int c = 'A'; c <= 'Z'; c++)
+            TOKEN[c] = true;
+        for (int c = '0'; c <= '9'; c++)
+            TOKEN[c] = true;
+        for (char c : "-./_:*+=".toCharArray())
+            TOKEN[c] = true;
+    }
+
+    private StructuralIndex() {
+    }
+
+    /**
+     * Tell if a byte may appear in a token.
+     *
+     * @param b The byte, as an unsigned value.
+     * @return True if the byte is a token character.
+     */
+    static boolean isToken(int b) {
+        return TOKEN[b & 0xFF];
+    }
+
+    /**
+     * Return a little-endian view of a block, for {@link #index}.
+     *
+     * @param block The block.
+     * @return The view.
+     */
+    static ByteBuffer view(byte[] block) {
+        return ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Index the bytes of a block from a 64-byte boundary up to a limit.
+     * Words before the first are kept; the word holding the limit has all
+     * bits from the limit up set, as does the next word if the limit is on
+     * a boundary.
+     *
+     * @param view The little-endian view of the block.
+     * @param from The first byte to index; a multiple of 64.
+     * @param to The limit.
+     * @param bits The bitmap, of at least <code>to / 64 + 1</code> words.
+     */
+    static void index(ByteBuffer view, int from, int to, long[] bits) {
+        int i = from;
+        int w = from >>> 6;
+        for (; i + 64 <= to; i += 64)
+            bits[w++] = word(view, i);
+        if (i < to) {
+            long word = -1L << (to - i);
+            int k = i;
+            for (; k + 8 <= to; k += 8)
+                word |= structural(view.getLong(k)) << (k - i);
+            for (; k < to; k++) {
+                if (!TOKEN[view.get(k) & 0xFF])
+                    word |= 1L << (k - i);
+            }
+            bits[w] = word;
+        } else {
+            bits[w] = -1L;
+        }
+    }
+
+    private static long word(ByteBuffer view, int i) {
+        return structural(view.getLong(i))
+            | structural(view.getLong(i + 8)) << 8
+            | structural(view.getLong(i + 16)) << 16
+            | structural(view.getLong(i + 24)) << 24
+            | structural(view.getLong(i + 32)) << 32
+            | structural(view.getLong(i + 40)) << 40
+            | structural(view.getLong(i + 48)) << 48
+            | structural(view.getLong(i + 56)) << 56;
+    }
+
+    /**
+     * Classify eight bytes at once.
+     *
+     * @param x Eight bytes, the first in the low byte.
+     * @return Eight bits, set for the structural bytes, the first lowest.
+     */
+    static long structural(long x) {
+        // For a byte b below 0x80, the high bit of ((b | 0x80) - c) is set
+        // exactly when b >= c, and the subtraction never borrows from the
+        // next byte.
+        long h = x | HIGH;
+        long f = h | FOLD;
+        long token = (ge(h, 0x2A) & ~ge(h, 0x2C))    // * +
+            | (ge(h, 0x2D) & ~ge(h, 0x3B))           // - . / 0-9 :
+            | (ge(h, 0x3D) & ~ge(h, 0x3E))           // =
+            | (ge(h, 0x5F) & ~ge(h, 0x60))           // _
+            | (ge(f, 0x61) & ~ge(f, 0x7B));          // A-Z a-z
+        token &= ~x & HIGH;
+        return (((~token & HIGH) >>> 7) * GATHER) >>> 56;
+    }
+
+    private static long ge(long h, int c) {
+        return (h - c * LOW) & HIGH;
+    }
+}
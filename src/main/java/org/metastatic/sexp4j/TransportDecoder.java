@@ -0,0 +1,116 @@
+package org.metastatic.sexp4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes the body of a transport block, <code>{...}</code>, from another
+ * stream as it is read: base-64 up to the closing brace, with whitespace
+ * ignored. The stream ends at the brace, which is consumed.
+ */
+final class TransportDecoder extends InputStream {
+    private static final byte[] VALUES = new byte[256];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < TransportEncoder.DIGITS.length; i++)
+            VALUES[TransportEncoder.DIGITS[i]] = (byte) i;
+    }
+
+    private InputStream in;
+    private final byte[] decoded = new byte[3];
+    private int position = 0;
+    private int limit = 0;
+    private boolean ended = false;
+
+    void reset(InputStream in) {
+        this.in = in;
+        position = limit = 0;
+        ended = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !decodeGroup())
+            return -1;
+        return decoded[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int n = 0;
+        while (n < len) {
+            if (position == limit && !decodeGroup())
+                break;
+            int k = Math.min(len - n, limit - position);
+            System.arraycopy(decoded, position, b, off + n, k);
+            position += k;
+            n += k;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /**
+     * Decode the next group of four characters.
+     *
+     * @return False at the closing brace.
+     */
+    private boolean decodeGroup() throws IOException {
+        if (ended)
+            return false;
+        int n = 0;
+        int count = 0;
+        int padding = 0;
+        while (count < 4) {
+            int c = in.read();
+            if (c < 0)
+                throw new EOFException("unterminated transport block");
+            if (c == '}' && count == 0) {
+                ended = true;
+                return false;
+            }
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n')
+                continue;
+            int v;
+            if (c == '=' && count >= 2) {
+                padding++;
+                v = 0;
+            } else {
+                v = VALUES[c & 0xFF];
+                if (v < 0 || c > 0x7F || padding > 0)
+                    throw new ParseException("invalid character in transport block: 0x%x", c);
+            }
+            n = (n << 6) | v;
+            count++;
+        }
+        if (padding > 0)
+            endAfterPadding();
+        decoded[0] = (byte) (n >>> 16);
+        decoded[1] = (byte) (n >>> 8);
+        decoded[2] = (byte) n;
+        position = 0;
+        limit = 3 - padding;
+        return true;
+    }
+
+    /**
+     * Consume the closing brace, which must follow a padded group.
+     */
+    private void endAfterPadding() throws IOException {
+        while (true) {
+            int c = in.read();
+            if (c < 0)
+                throw new EOFException("unterminated transport block");
+            if (c == '}') {
+                ended = true;
+                return;
+            }
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+                throw new ParseException("data after padding in transport block: 0x%x", c);
+        }
+    }
+}
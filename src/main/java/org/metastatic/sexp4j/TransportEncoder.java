@@ -0,0 +1,116 @@
+package org.metastatic.sexp4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base-64 encodes the bytes written to it onto another stream, three
+ * bytes at a time, keeping at most two bytes and a small output buffer
+ * pending. {@link #finish()} writes the last, padded group.
+ */
+final class TransportEncoder extends OutputStream {
+    static final byte[] DIGITS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private OutputStream out;
+    private final byte[] buffer = new byte[4096];
+    private int position = 0;
+    private int pending = 0;
+    private int pendingCount = 0;
+    private long written = 0;
+
+    TransportEncoder(OutputStream out) {
+        this.out = out;
+    }
+
+    void reset(OutputStream out) {
+        this.out = out;
+        position = 0;
+        pending = 0;
+        pendingCount = 0;
+    }
+
+    /**
+     * The number of characters encoded so far, including those not yet
+     * flushed.
+     */
+    long written() {
+        return written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        pending = (pending << 8) | (b & 0xFF);
+        if (++pendingCount == 3) {
+            putGroup(pending);
+            pending = 0;
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (pendingCount != 0 && off < end)
+            write(b[off++]);
+        while (end - off >= 3) {
+            putGroup(((b[off] & 0xFF) << 16) | ((b[off + 1] & 0xFF) << 8) | (b[off + 2] & 0xFF));
+            off += 3;
+        }
+        while (off < end)
+            write(b[off++]);
+    }
+
+    private void putGroup(int n) throws IOException {
+        if (buffer.length - position < 4)
+            flushBuffer();
+        buffer[position++] = DIGITS[n >>> 18];
+        buffer[position++] = DIGITS[(n >>> 12) & 0x3F];
+        buffer[position++] = DIGITS[(n >>> 6) & 0x3F];
+        buffer[position++] = DIGITS[n & 0x3F];
+        written += 4;
+    }
+
+    /**
+     * Write a byte that is not encoded, after the bytes before it.
+     */
+    void writeRaw(int b) throws IOException {
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = (byte) b;
+        written++;
+    }
+
+    /**
+     * Encode the remaining bytes, with padding.
+     */
+    void finish() throws IOException {
+        if (pendingCount == 0)
+            return;
+        int n = pending << (pendingCount == 1 ? 16 : 8);
+        if (buffer.length - position < 4)
+            flushBuffer();
+        buffer[position++] = DIGITS[n >>> 18];
+        buffer[position++] = DIGITS[(n >>> 12) & 0x3F];
+        buffer[position++] = pendingCount == 2 ? DIGITS[(n >>> 6) & 0x3F] : (byte) '=';
+        buffer[position++] = '=';
+        written += 4;
+        pending = 0;
+        pendingCount = 0;
+    }
+
+    void flushBuffer() throws IOException {
+        if (position > 0) {
+            int n = position;
+            position = 0;
+            out.write(buffer, 0, n);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
@@ -0,0 +1,113 @@
+package org.metastatic.sexp4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes expressions in the transport format: the canonical form,
+ * base-64 encoded and enclosed in braces, as in
+ * <code>{KDM6Zm9vKQ==}</code>, for channels that only carry text.
+ *
+ * <p>The canonical bytes are encoded as they are produced, so nothing
+ * is buffered beyond a few bytes. Each top-level expression is one
+ * transport block; {@link AdvancedStreamingParser} reads them back.</p>
+ *
+ * <p>The counts returned by the write methods are of encoded characters
+ * emitted by the call, which, while a block is open, may lag the input
+ * by one partial group.</p>
+ */
+public class TransportWriter implements Writer {
+    private final TransportEncoder encoder;
+    private final CanonicalWriter writer;
+    private int depth = 0;
+    private boolean open = false;
+
+    /**
+     * Create a new transport writer.
+     *
+     * @param out The output stream.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public TransportWriter(OutputStream out) {
+        this.encoder = new TransportEncoder(Preconditions.checkNotNull(out));
+        this.writer = new CanonicalWriter(encoder);
+    }
+
+    /**
+     * Reset this writer to write to the given stream, discarding any
+     * partially written block.
+     *
+     * @param out The new output stream.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public void reset(OutputStream out) {
+        encoder.reset(Preconditions.checkNotNull(out));
+        writer.reset(encoder);
+        depth = 0;
+        open = false;
+    }
+
+    private void openBlock() throws IOException {
+        if (!open) {
+            encoder.writeRaw('{');
+            open = true;
+        }
+    }
+
+    private void closeBlock() throws IOException {
+        encoder.finish();
+        encoder.writeRaw('}');
+        encoder.flushBuffer();
+        writer.reset(encoder);
+        open = false;
+    }
+
+    @Override
+    public int writeAtom(Atom atom) throws IOException {
+        long start = encoder.written();
+        openBlock();
+        writer.writeAtom(atom);
+        if (depth == 0)
+            closeBlock();
+        return (int) (encoder.written() - start);
+    }
+
+    @Override
+    public int writeList(ExpressionList list) throws IOException {
+        long start = encoder.written();
+        openBlock();
+        writer.writeList(list);
+        if (depth == 0)
+            closeBlock();
+        return (int) (encoder.written() - start);
+    }
+
+    @Override
+    public void beginList() throws IOException {
+        openBlock();
+        writer.beginList();
+        depth++;
+    }
+
+    @Override
+    public void endList() throws IOException {
+        if (depth == 0)
+            throw new WriteException("can't end list, list not started");
+        writer.endList();
+        if (--depth == 0)
+            closeBlock();
+    }
+
+    @Override
+    public int writeExpression(Expression expression) throws IOException {
+        Preconditions.checkNotNull(expression);
+        if (expression instanceof Atom)
+            return writeAtom((Atom) expression);
+        else if (expression instanceof ExpressionList)
+            return writeList((ExpressionList) expression);
+        else
+            throw new IllegalArgumentException("unknown expression of type " + expression.getClass().getName());
+    }
+}
@@ -0,0 +1,230 @@
+package org.metastatic.sexp4j;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Utility methods for converting between strings and UTF-8 bytes.
+ *
+ * <p>Most atoms that hold text hold plain ASCII, so each method first
+ * checks for ASCII, which it can convert with a simple copy, and only
+ * goes through the general UTF-8 charset for other text. Malformed
+ * input and unpaired surrogates are replaced the same way
+ * {@link String#String(byte[], java.nio.charset.Charset)} and
+ * {@link String#getBytes(java.nio.charset.Charset)} replace them.</p>
+ */
+public final class Utf8 {
+    private Utf8() {
+    }
+
+    /**
+     * Tell if a range of bytes is all ASCII.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the range.
+     * @param length The length of the range.
+     * @return True if no byte in the range has its high bit set.
+     */
+    public static boolean isAscii(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        // Check eight bytes per step while we can, then the remainder.
+        for (; i + 8 <= end; i += 8) {
+            if (((bytes[i] | bytes[i + 1] | bytes[i + 2] | bytes[i + 3]
+                    | bytes[i + 4] | bytes[i + 5] | bytes[i + 6] | bytes[i + 7]) & 0x80) != 0)
+                return false;
+        }
+        for (; i < end; i++) {
+            if (bytes[i] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tell if a string is all ASCII.
+     *
+     * @param string The string.
+     * @return True if every character in the string is below 0x80.
+     */
+    public static boolean isAscii(CharSequence string) {
+        for (int i = 0, n = string.length(); i < n; i++) {
+            if (string.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decode a string from UTF-8 bytes.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the string bytes.
+     * @param length The number of string bytes.
+     * @return The string.
+     * @throws java.lang.IndexOutOfBoundsException If the range is outside the array.
+     */
+    public static String decode(byte[] bytes, int offset, int length) {
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+        if (isAscii(bytes, offset, length))
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode a string from UTF-8 bytes.
+     *
+     * @param bytes The bytes.
+     * @return The string.
+     */
+    public static String decode(byte[] bytes) {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode UTF-8 bytes into a caller-supplied character array.
+     *
+     * @param bytes The byte array.
+     * @param offset The offset of the string bytes.
+     * @param length The number of string bytes.
+     * @param dest The destination array; this needs room for at most {@code length} characters.
+     * @param destOffset The offset in the destination to start writing to.
+     * @return The number of characters written.
+     * @throws java.lang.IndexOutOfBoundsException If either range is outside its array,
+     *         or if the destination array is too small.
+     */
+    public static int decode(byte[] bytes, int offset, int length, char[] dest, int destOffset) {
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+        Preconditions.checkPositionIndex(destOffset, dest.length);
+        int i = 0;
+        for (; i < length; i++) {
+            byte b = bytes[offset + i];
+            if (b < 0)
+                break;
+            dest[destOffset + i] = (char) b;
+        }
+        if (i == length)
+            return length;
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset + i, length - i);
+        CharBuffer out = CharBuffer.wrap(dest, destOffset + i, dest.length - destOffset - i);
+        CoderResult result = decoder.decode(in, out, true);
+        if (result.isUnderflow())
+            result = decoder.flush(out);
+        if (result.isOverflow())
+            throw new IndexOutOfBoundsException("destination array too small");
+        return out.position() - destOffset;
+    }
+
+    /**
+     * Return the number of bytes the UTF-8 encoding of a string takes.
+     *
+     * @param string The string.
+     * @return The encoded length.
+     */
+    public static int encodedLength(CharSequence string) {
+        int n = string.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800)
+                length += 1;
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 2;
+                i++;
+            }
+            else if (!Character.isSurrogate(c))
+                length += 2;
+            // an unpaired surrogate is replaced with a single '?'.
+        }
+        return length;
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param string The string.
+     * @return The encoded bytes.
+     */
+    public static byte[] encode(String string) {
+        if (isAscii(string))
+            return string.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] result = new byte[encodedLength(string)];
+        encode(string, result, 0);
+        return result;
+    }
+
+    /**
+     * Encode a string as UTF-8 into a caller-supplied byte array.
+     *
+     * @param string The string.
+     * @param dest The destination array; this needs {@link #encodedLength(CharSequence)} bytes of room.
+     * @param destOffset The offset to start writing to.
+     * @return The number of bytes written.
+     * @throws java.lang.IndexOutOfBoundsException If the destination array is too small.
+     */
+    public static int encode(CharSequence string, byte[] dest, int destOffset) {
+        int n = string.length();
+        int j = destOffset;
+        for (int i = 0; i < n; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                dest[j++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                dest[j++] = (byte) (0xc0 | (c >> 6));
+                dest[j++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, string.charAt(++i));
+                dest[j++] = (byte) (0xf0 | (cp >> 18));
+                dest[j++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dest[j++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dest[j++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                dest[j++] = '?';
+            }
+            else {
+                dest[j++] = (byte) (0xe0 | (c >> 12));
+                dest[j++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dest[j++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return j - destOffset;
+    }
+
+    /**
+     * Encode a string as UTF-8 into a caller-supplied buffer.
+     *
+     * @param string The string.
+     * @param dest The destination buffer.
+     * @return The number of bytes written.
+     * @throws java.nio.BufferOverflowException If the buffer does not have enough room.
+     */
+    public static int encode(CharSequence string, ByteBuffer dest) {
+        int length = encodedLength(string);
+        if (dest.remaining() < length)
+            throw new BufferOverflowException();
+        if (dest.hasArray()) {
+            int wrote = encode(string, dest.array(), dest.arrayOffset() + dest.position());
+            dest.position(dest.position() + wrote);
+            return wrote;
+        }
+        byte[] bytes = new byte[length];
+        encode(string, bytes, 0);
+        dest.put(bytes);
+        return length;
+    }
+}
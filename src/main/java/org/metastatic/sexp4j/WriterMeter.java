@@ -0,0 +1,71 @@
+package org.metastatic.sexp4j;
+
+/**
+ * Measures a writer. Writers report each atom and list as they write it,
+ * and call {@link #completed()} at the end of each public write call; an
+ * operation is one top-level expression.
+ */
+final class WriterMeter {
+    private final MetricsRecorder recorder;
+    private long start = -1;
+    private long bytes;
+    private int atoms;
+    private int lists;
+    private int depth;
+    private int maxDepth;
+    private int largestAtom;
+
+    WriterMeter(MetricsRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    private void begin() {
+        if (start < 0)
+            start = System.nanoTime();
+    }
+
+    void atom(int length, int wrote) {
+        begin();
+        atoms++;
+        if (length > largestAtom)
+            largestAtom = length;
+        bytes += wrote;
+    }
+
+    void beginList(int wrote) {
+        begin();
+        lists++;
+        if (++depth > maxDepth)
+            maxDepth = depth;
+        bytes += wrote;
+    }
+
+    void endList(int wrote) {
+        bytes += wrote;
+        if (depth > 0)
+            depth--;
+    }
+
+    void completed() {
+        if (depth == 0 && start >= 0)
+            finish(null);
+    }
+
+    void failed(Throwable error) {
+        begin();
+        finish(error);
+    }
+
+    void clear() {
+        start = -1;
+        bytes = 0;
+        atoms = lists = depth = maxDepth = largestAtom = 0;
+    }
+
+    private void finish(Throwable error) {
+        OperationMetrics metrics = new OperationMetrics(OperationMetrics.Operation.Write, bytes, atoms, lists,
+            maxDepth, largestAtom, System.nanoTime() - start, error);
+        clear();
+        recorder.record(metrics);
+    }
+}
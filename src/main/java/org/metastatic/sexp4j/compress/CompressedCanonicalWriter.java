@@ -0,0 +1,143 @@
+package org.metastatic.sexp4j.compress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.WriteException;
+import org.metastatic.sexp4j.Writer;
+
+/**
+ * Writes a sequence of canonical expressions to a
+ * {@link DeflateBlockOutputStream}. Blocks only end between top-level
+ * expressions, so a reader that starts at any block sees whole
+ * expressions; the one exception is an expression longer than
+ * {@link DeflateBlockOutputStream#MAX_BLOCK_SIZE}, which is split over
+ * as many blocks as it needs, so that no block is too long to read.
+ * Read the output with a
+ * {@link org.metastatic.sexp4j.CanonicalStreamingParser} over a
+ * {@link DeflateBlockInputStream}.
+ *
+ * <p>Unlike {@link CanonicalWriter}, this writer accepts any number of
+ * top-level expressions.</p>
+ */
+public class CompressedCanonicalWriter implements Writer, Closeable {
+    private final DeflateBlockOutputStream out;
+    private final CanonicalWriter writer;
+    private final int blockSize;
+    private int depth = 0;
+
+    /**
+     * Create a writer with the default block size and no dictionary.
+     *
+     * @param out The output stream.
+     */
+    public CompressedCanonicalWriter(OutputStream out) {
+        this(out, DeflateBlockOutputStream.DEFAULT_BLOCK_SIZE, null);
+    }
+
+    /**
+     * Create a new writer.
+     *
+     * @param out The output stream.
+     * @param blockSize The number of uncompressed bytes after which a block ends,
+     *                  at the end of the current top-level expression.
+     * @param dictionary The preset dictionary, or null.
+     * @throws java.lang.NullPointerException If the output stream is null.
+     * @throws java.lang.IllegalArgumentException If the block size is not
+     *         positive, or is larger than {@link DeflateBlockOutputStream#MAX_BLOCK_SIZE}.
+     */
+    public CompressedCanonicalWriter(OutputStream out, int blockSize, DeflateDictionary dictionary) {
+        this.out = new DeflateBlockOutputStream(out, blockSize, dictionary, Deflater.DEFAULT_COMPRESSION, false);
+        this.writer = new CanonicalWriter(this.out);
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int writeAtom(Atom atom) throws IOException {
+        int length = writer.writeAtom(atom);
+        if (depth == 0)
+            expressionEnded();
+        return length;
+    }
+
+    @Override
+    public int writeList(ExpressionList list) throws IOException {
+        int length = writer.writeList(list);
+        if (depth == 0)
+            expressionEnded();
+        return length;
+    }
+
+    @Override
+    public void beginList() throws IOException {
+        writer.beginList();
+        depth++;
+    }
+
+    @Override
+    public void endList() throws IOException {
+        if (depth == 0)
+            throw new WriteException("can't end list, list not started");
+        writer.endList();
+        if (--depth == 0)
+            expressionEnded();
+    }
+
+    @Override
+    public int writeExpression(Expression expression) throws IOException {
+        int length = writer.writeExpression(expression);
+        if (depth == 0)
+            expressionEnded();
+        return length;
+    }
+
+    private void expressionEnded() throws IOException {
+        writer.reset(out);
+        if (out.pending() >= blockSize)
+            out.endBlock();
+    }
+
+    /**
+     * End the current block, even if it is not full.
+     *
+     * @return The offset of the next block.
+     * @throws WriteException If a list is open.
+     * @throws IOException If an IO exception occurs.
+     */
+    public long endBlock() throws IOException {
+        if (depth != 0)
+            throw new WriteException("can't end a block inside a list");
+        return out.endBlock();
+    }
+
+    /**
+     * Return the offset of the next block to be written.
+     *
+     * @return The offset.
+     */
+    public long position() {
+        return out.position();
+    }
+
+    /**
+     * End the last block, and flush the underlying stream.
+     *
+     * @throws IOException If an IO exception occurs.
+     */
+    public void flush() throws IOException {
+        if (depth != 0)
+            throw new WriteException("can't end a block inside a list");
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,206 @@
+package org.metastatic.sexp4j.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads the blocks written by a {@link DeflateBlockOutputStream}, from the
+ * start of a stream or from the offset of any block.
+ *
+ * <p>Large reads are inflated straight into the caller's array, so a
+ * {@link org.metastatic.sexp4j.CanonicalStreamingParser} reading from
+ * this stream decompresses atoms directly into its own buffer; small
+ * reads are served from an internal window.</p>
+ *
+ * <pre>
+ * CanonicalStreamingParser parser = new CanonicalStreamingParser(
+ *     new DeflateBlockInputStream(in, dictionary));
+ * </pre>
+ */
+public class DeflateBlockInputStream extends InputStream {
+    // Reads at least this large bypass the window.
+    private static final int DIRECT_READ = 512;
+
+    private final InputStream in;
+    private final DeflateDictionary dictionary;
+    private final int maxBlockSize;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] header = new byte[DeflateBlocks.HEADER];
+    private byte[] compressed = new byte[4096];
+    private final byte[] window = new byte[4096];
+    private int windowPosition = 0;
+    private int windowLimit = 0;
+    private int blockRemaining = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * Read blocks compressed without a dictionary.
+     *
+     * @param in The input stream.
+     */
+    public DeflateBlockInputStream(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * Read blocks compressed with the given dictionary, or without one.
+     *
+     * @param in The input stream.
+     * @param dictionary The dictionary, or null.
+     * @throws java.lang.NullPointerException If the input stream is null.
+     */
+    public DeflateBlockInputStream(InputStream in, DeflateDictionary dictionary) {
+        this(in, dictionary, DeflateBlocks.DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Read blocks compressed with the given dictionary, or without one,
+     * rejecting blocks longer than a limit. A block's header is checked
+     * against the limit before any memory is allocated for the block, so
+     * a corrupt or hostile header can't force a large allocation.
+     *
+     * @param in The input stream.
+     * @param dictionary The dictionary, or null.
+     * @param maxBlockSize The longest uncompressed block to accept; the
+     *        default is 64 MiB.
+     * @throws java.lang.NullPointerException If the input stream is null.
+     * @throws java.lang.IllegalArgumentException If the limit is not positive.
+     */
+    public DeflateBlockInputStream(InputStream in, DeflateDictionary dictionary, int maxBlockSize) {
+        Preconditions.checkArgument(maxBlockSize > 0);
+        this.in = Preconditions.checkNotNull(in);
+        this.dictionary = dictionary;
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (windowPosition == windowLimit && fill() < 0)
+            return -1;
+        return window[windowPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Preconditions.checkPositionIndexes(off, off + len, b.length);
+        if (len == 0)
+            return 0;
+        if (windowPosition < windowLimit) {
+            int n = Math.min(len, windowLimit - windowPosition);
+            System.arraycopy(window, windowPosition, b, off, n);
+            windowPosition += n;
+            return n;
+        }
+        if (len < DIRECT_READ) {
+            if (fill() < 0)
+                return -1;
+            return read(b, off, len);
+        }
+        if (!nextBytes())
+            return -1;
+        return inflate(b, off, len);
+    }
+
+    private int fill() throws IOException {
+        if (!nextBytes())
+            return -1;
+        windowPosition = 0;
+        windowLimit = inflate(window, 0, window.length);
+        return windowLimit;
+    }
+
+    /**
+     * Make sure the current block has bytes left, reading the next block
+     * if needed.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean nextBytes() throws IOException {
+        ensureOpen();
+        while (blockRemaining == 0) {
+            if (eof || !readBlock())
+                return false;
+        }
+        return true;
+    }
+
+    private int inflate(byte[] b, int off, int len) throws IOException {
+        try {
+            int n = inflater.inflate(b, off, Math.min(len, blockRemaining));
+            if (n == 0)
+                throw new ZipException("truncated deflate block");
+            blockRemaining -= n;
+            if (blockRemaining == 0 && !inflater.finished()) {
+                // The block should end exactly here.
+                if (inflater.inflate(new byte[1]) != 0 || !inflater.finished())
+                    throw new ZipException("deflate block is longer than its header says");
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+    }
+
+    private boolean readBlock() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            eof = true;
+            return false;
+        }
+        header[0] = (byte) first;
+        ByteStreams.readFully(in, header, 1, header.length - 1);
+        if (getInt(0) != DeflateBlocks.MAGIC)
+            throw new ZipException("not a deflate block");
+        boolean hasDictionary = (header[4] & DeflateBlocks.FLAG_DICTIONARY) != 0;
+        if (hasDictionary && (dictionary == null || dictionary.id() != getInt(5)))
+            throw new ZipException(String.format("block needs dictionary %08x", getInt(5)));
+        int rawLength = getInt(9);
+        int length = getInt(13);
+        if (rawLength < 0 || length < 0 || length > DeflateBlocks.maxCompressedLength(rawLength))
+            throw new ZipException("invalid block lengths");
+        if (rawLength > maxBlockSize)
+            throw new ZipException(String.format("block of %d bytes is longer than the limit of %d",
+                rawLength, maxBlockSize));
+        if (length > compressed.length)
+            compressed = new byte[Math.max(length, compressed.length * 2)];
+        ByteStreams.readFully(in, compressed, 0, length);
+        inflater.reset();
+        if (hasDictionary)
+            inflater.setDictionary(dictionary.rawBytes());
+        inflater.setInput(compressed, 0, length);
+        blockRemaining = rawLength;
+        return true;
+    }
+
+    private int getInt(int offset) {
+        return ((header[offset] & 0xFF) << 24) | ((header[offset + 1] & 0xFF) << 16)
+            | ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("stream closed");
+    }
+
+    @Override
+    public int available() {
+        return windowLimit - windowPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,213 @@
+package org.metastatic.sexp4j.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An output stream that compresses its data in independent deflate
+ * blocks, optionally with a preset {@link DeflateDictionary}.
+ *
+ * <p>Data is collected until a block is full, and then compressed and
+ * written with a small header; {@link #flush()} and {@link #endBlock()}
+ * end the current block early. Since every block starts with a fresh
+ * compressor, a {@link DeflateBlockInputStream} can start reading at any
+ * block, given its offset from {@link #position()}.</p>
+ */
+public class DeflateBlockOutputStream extends OutputStream {
+    /**
+     * The default block size, 64 KiB.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The largest block size, 64 MiB, which is the largest block a
+     * {@link DeflateBlockInputStream} accepts by default.
+     */
+    public static final int MAX_BLOCK_SIZE = DeflateBlocks.DEFAULT_MAX_BLOCK_SIZE;
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final DeflateDictionary dictionary;
+    // The length at which a block ends: the block size, or if blocks are
+    // ended by the caller, the largest block size.
+    private final int limit;
+    private byte[] block;
+    private int count = 0;
+    private byte[] compressed = new byte[4096];
+    private final byte[] header = new byte[DeflateBlocks.HEADER];
+    private long position = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a stream with the default block size and no dictionary.
+     *
+     * @param out The output stream.
+     */
+    public DeflateBlockOutputStream(OutputStream out) {
+        this(out, DEFAULT_BLOCK_SIZE, null, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Create a new stream.
+     *
+     * @param out The output stream.
+     * @param blockSize The number of uncompressed bytes per block.
+     * @param dictionary The preset dictionary, or null.
+     * @param level The compression level, as for {@link Deflater}.
+     * @throws java.lang.NullPointerException If the output stream is null.
+     * @throws java.lang.IllegalArgumentException If the block size is not
+     *         positive, or is larger than {@link #MAX_BLOCK_SIZE}.
+     */
+    public DeflateBlockOutputStream(OutputStream out, int blockSize, DeflateDictionary dictionary, int level) {
+        this(out, blockSize, dictionary, level, true);
+    }
+
+    DeflateBlockOutputStream(OutputStream out, int blockSize, DeflateDictionary dictionary, int level,
+                             boolean autoBlocks) {
+        Preconditions.checkNotNull(out);
+        Preconditions.checkArgument(blockSize > 0 && blockSize <= MAX_BLOCK_SIZE);
+        this.out = out;
+        this.dictionary = dictionary;
+        this.limit = autoBlocks ? blockSize : MAX_BLOCK_SIZE;
+        this.deflater = new Deflater(level, true);
+        this.block = new byte[Math.min(blockSize, 8192)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == block.length)
+            grow(1);
+        block[count++] = (byte) b;
+        if (count >= limit)
+            endBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        Preconditions.checkPositionIndexes(off, off + len, b.length);
+        while (len > 0) {
+            int n = Math.min(len, limit - count);
+            if (count + n > block.length)
+                grow(n);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count >= limit)
+                endBlock();
+        }
+    }
+
+    private void grow(int n) {
+        int size = (int) Math.min(Math.max((long) count + n, block.length * 2L), limit);
+        block = Arrays.copyOf(block, size);
+    }
+
+    /**
+     * Return the number of bytes written to the current block.
+     *
+     * @return The pending byte count.
+     */
+    public int pending() {
+        return count;
+    }
+
+    /**
+     * Return the number of compressed bytes written so far, which is the
+     * offset of the next block.
+     *
+     * @return The position.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Compress and write the current block, if it is not empty.
+     *
+     * @return The offset of the next block.
+     * @throws IOException If an IO exception occurs.
+     */
+    public long endBlock() throws IOException {
+        ensureOpen();
+        if (count == 0)
+            return position;
+        deflater.reset();
+        if (dictionary != null)
+            deflater.setDictionary(dictionary.rawBytes());
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length)
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        putInt(0, DeflateBlocks.MAGIC);
+        header[4] = (byte) (dictionary != null ? DeflateBlocks.FLAG_DICTIONARY : 0);
+        putInt(5, dictionary != null ? dictionary.id() : 0);
+        putInt(9, count);
+        putInt(13, length);
+        out.write(header);
+        out.write(compressed, 0, length);
+        position += header.length + length;
+        count = 0;
+        return position;
+    }
+
+    private void putInt(int offset, int value) {
+        header[offset] = (byte) (value >>> 24);
+        header[offset + 1] = (byte) (value >>> 16);
+        header[offset + 2] = (byte) (value >>> 8);
+        header[offset + 3] = (byte) value;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("stream closed");
+    }
+
+    /**
+     * End the current block, so everything written so far can be read,
+     * and flush the underlying stream.
+     *
+     * @throws IOException If an IO exception occurs.
+     */
+    @Override
+    public void flush() throws IOException {
+        endBlock();
+        out.flush();
+    }
+
+    /**
+     * End the current block, without closing the underlying stream, and
+     * release the compressor.
+     *
+     * @throws IOException If an IO exception occurs.
+     */
+    public void finish() throws IOException {
+        if (closed)
+            return;
+        try {
+            endBlock();
+        } finally {
+            closed = true;
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
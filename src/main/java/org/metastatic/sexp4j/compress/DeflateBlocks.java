@@ -0,0 +1,36 @@
+package org.metastatic.sexp4j.compress;
+
+/**
+ * The block format shared by {@link DeflateBlockOutputStream} and
+ * {@link DeflateBlockInputStream}. Each block is a header &mdash; a four
+ * byte magic number, a flags byte, the dictionary identifier, the
+ * uncompressed length and the compressed length &mdash; followed by raw
+ * deflate data. Numbers are big-endian. Every block is compressed on its
+ * own, so reading can start at any block.
+ */
+final class DeflateBlocks {
+    static final int MAGIC = 0x53585a01; // "SXZ", version 1
+    static final int FLAG_DICTIONARY = 1;
+    static final int HEADER = 17;
+
+    /**
+     * The default limit on the uncompressed length of a block a reader
+     * accepts, 64 MiB.
+     */
+    static final int DEFAULT_MAX_BLOCK_SIZE = 64 << 20;
+
+    /**
+     * Return the most bytes deflate can compress a block of the given
+     * length to: stored blocks add five bytes per 16 KiB, and the bound
+     * is rounded up generously from that.
+     *
+     * @param rawLength The uncompressed length.
+     * @return The bound.
+     */
+    static long maxCompressedLength(int rawLength) {
+        return (long) rawLength + (rawLength >>> 12) + (rawLength >>> 14) + 64;
+    }
+
+    private DeflateBlocks() {
+    }
+}
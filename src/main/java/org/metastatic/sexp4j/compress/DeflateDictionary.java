@@ -0,0 +1,199 @@
+package org.metastatic.sexp4j.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * A preset dictionary for deflate: bytes that compressed blocks may refer
+ * back to as if they had just been written. A dictionary made of what
+ * typical messages have in common lets even a single small message be
+ * compressed well, which plain gzip can't do.
+ *
+ * <p>{@link #train(Iterable, int)} builds a dictionary from sample
+ * messages: it keeps the byte strings that recur across the most samples,
+ * and puts the most common last, where references to them are
+ * shortest. A dictionary is identified by its Adler-32, which compressed
+ * blocks record, so a reader can't use the wrong one.</p>
+ */
+public final class DeflateDictionary {
+    /**
+     * The largest useful dictionary: deflate only refers back 32 KiB.
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final int SHINGLE = 8;
+
+    private final byte[] bytes;
+    private final int id;
+
+    private DeflateDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, bytes.length);
+        this.id = (int) adler.getValue();
+    }
+
+    /**
+     * Use the given bytes as a dictionary. Only the last {@link #MAX_SIZE}
+     * bytes are kept.
+     *
+     * @param bytes The dictionary bytes.
+     * @return The dictionary.
+     * @throws java.lang.IllegalArgumentException If the argument is empty.
+     */
+    public static DeflateDictionary of(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length > 0, "empty dictionary");
+        return new DeflateDictionary(Arrays.copyOfRange(bytes, Math.max(0, bytes.length - MAX_SIZE), bytes.length));
+    }
+
+    /**
+     * Train a dictionary from the canonical encodings of sample messages.
+     *
+     * @param samples The samples; a few hundred typical messages are usually enough.
+     * @param maxSize The largest dictionary to build, at most {@link #MAX_SIZE}.
+     * @return The dictionary.
+     * @throws java.lang.IllegalArgumentException If there are no samples, or the size is out of range.
+     */
+    public static DeflateDictionary train(Iterable<? extends Expression> samples, int maxSize) {
+        Preconditions.checkArgument(maxSize > 0 && maxSize <= MAX_SIZE);
+        List<byte[]> encoded = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        try {
+            for (Expression e : samples) {
+                out.reset();
+                writer.reset(out);
+                writer.writeExpression(e);
+                encoded.add(out.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        Preconditions.checkArgument(!encoded.isEmpty(), "no samples");
+
+        // How many samples contain each eight byte string.
+        Map<Long, Integer> frequency = new HashMap<>();
+        for (byte[] sample : encoded) {
+            Map<Long, Boolean> seen = new HashMap<>();
+            for (int i = 0; i + SHINGLE <= sample.length; i++) {
+                Long shingle = shingle(sample, i);
+                if (seen.put(shingle, Boolean.TRUE) == null) {
+                    Integer n = frequency.get(shingle);
+                    frequency.put(shingle, n == null ? 1 : n + 1);
+                }
+            }
+        }
+        int threshold = encoded.size() > 1 ? 2 : 1;
+
+        // Segments are maximal runs of recurring strings; a segment's
+        // score is the total frequency of the strings it covers, summed
+        // over every sample it appears in.
+        final Map<String, Long> scores = new HashMap<>();
+        for (byte[] sample : encoded) {
+            int i = 0;
+            while (i + SHINGLE <= sample.length) {
+                if (frequency.get(shingle(sample, i)) < threshold) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                long score = 0;
+                while (i + SHINGLE <= sample.length) {
+                    int f = frequency.get(shingle(sample, i));
+                    if (f < threshold)
+                        break;
+                    score += f;
+                    i++;
+                }
+                String segment = new String(sample, start, i - start + SHINGLE - 1, StandardCharsets.ISO_8859_1);
+                Long total = scores.get(segment);
+                scores.put(segment, total == null ? score : total + score);
+            }
+        }
+        List<String> segments = new ArrayList<>(scores.keySet());
+        Collections.sort(segments, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int c = Long.compare(scores.get(b), scores.get(a));
+                return c != 0 ? c : a.compareTo(b);
+            }
+        });
+        List<String> chosen = new ArrayList<>();
+        StringBuilder all = new StringBuilder();
+        int size = 0;
+        for (String segment : segments) {
+            if (size + segment.length() > maxSize)
+                continue;
+            if (all.indexOf(segment) >= 0)
+                continue;
+            chosen.add(segment);
+            all.append(segment);
+            size += segment.length();
+        }
+        if (chosen.isEmpty()) {
+            byte[] last = encoded.get(encoded.size() - 1);
+            return of(Arrays.copyOfRange(last, Math.max(0, last.length - maxSize), last.length));
+        }
+        // Most valuable last.
+        Collections.reverse(chosen);
+        byte[] dictionary = new byte[size];
+        int off = 0;
+        for (String segment : chosen) {
+            for (int i = 0; i < segment.length(); i++)
+                dictionary[off++] = (byte) segment.charAt(i);
+        }
+        return new DeflateDictionary(dictionary);
+    }
+
+    private static Long shingle(byte[] b, int i) {
+        long v = 0;
+        for (int k = 0; k < SHINGLE; k++)
+            v = (v << 8) | (b[i + k] & 0xFF);
+        return v;
+    }
+
+    /**
+     * Return a copy of the dictionary bytes.
+     *
+     * @return The bytes.
+     */
+    public byte[] bytes() {
+        return bytes.clone();
+    }
+
+    byte[] rawBytes() {
+        return bytes;
+    }
+
+    /**
+     * Return the Adler-32 of the dictionary, which identifies it.
+     *
+     * @return The identifier.
+     */
+    public int id() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DeflateDictionary && Arrays.equals(bytes, ((DeflateDictionary) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+}
@@ -0,0 +1,180 @@
+package org.metastatic.sexp4j.diff;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * One step of a {@link Patch}.
+ *
+ * <p>An edit is addressed by a path: the indexes to follow from the root
+ * through nested lists, so the empty path is the root itself. Indexes
+ * count from zero, and always refer to the expression the patch was made
+ * from, before any edit is applied.</p>
+ *
+ * <ul>
+ *     <li>{@link #insert(int[], int, Expression...)} inserts expressions
+ *     into the list at a path, before the element at an index, or at its
+ *     end if the index is the list's size.</li>
+ *     <li>{@link #delete(int[], int, int)} deletes a range of the elements
+ *     of the list at a path.</li>
+ *     <li>{@link #replace(int[], Expression)} replaces the expression at a
+ *     path.</li>
+ * </ul>
+ *
+ * <p>Edits are immutable.</p>
+ */
+public final class Edit {
+    /**
+     * The kinds of edit.
+     */
+    public static enum Type {
+        Insert,
+        Delete,
+        Replace
+    }
+
+    private final Type type;
+    private final int[] path;
+    private final int index;
+    private final int count;
+    private final List<Expression> expressions;
+
+    private Edit(Type type, int[] path, int index, int count, List<Expression> expressions) {
+        this.type = type;
+        this.path = path;
+        this.index = index;
+        this.count = count;
+        this.expressions = expressions;
+    }
+
+    private static int[] checkPath(int[] path) {
+        int[] p = Preconditions.checkNotNull(path).clone();
+        for (int i : p)
+            Preconditions.checkArgument(i >= 0, "negative index in path");
+        return p;
+    }
+
+    /**
+     * Create an edit that inserts expressions into a list.
+     *
+     * @param path The path to the list.
+     * @param index The index to insert at.
+     * @param expressions The expressions to insert, at least one.
+     * @return The edit.
+     * @throws java.lang.IllegalArgumentException If an index is negative, or there are no expressions.
+     * @throws java.lang.NullPointerException If any argument, or expression, is null.
+     */
+    public static Edit insert(int[] path, int index, Expression... expressions) {
+        Preconditions.checkArgument(index >= 0);
+        Preconditions.checkArgument(expressions.length > 0, "nothing to insert");
+        for (Expression e : expressions)
+            Preconditions.checkNotNull(e);
+        return new Edit(Type.Insert, checkPath(path), index, expressions.length,
+            Collections.unmodifiableList(Arrays.asList(expressions.clone())));
+    }
+
+    /**
+     * Create an edit that deletes elements from a list.
+     *
+     * @param path The path to the list.
+     * @param index The index of the first element to delete.
+     * @param count The number of elements to delete, at least one.
+     * @return The edit.
+     * @throws java.lang.IllegalArgumentException If an index is negative, or the count is not positive.
+     * @throws java.lang.NullPointerException If the path is null.
+     */
+    public static Edit delete(int[] path, int index, int count) {
+        Preconditions.checkArgument(index >= 0);
+        Preconditions.checkArgument(count > 0, "nothing to delete");
+        return new Edit(Type.Delete, checkPath(path), index, count, Collections.<Expression>emptyList());
+    }
+
+    /**
+     * Create an edit that replaces an expression.
+     *
+     * @param path The path to the expression.
+     * @param expression The new expression.
+     * @return The edit.
+     * @throws java.lang.IllegalArgumentException If an index is negative.
+     * @throws java.lang.NullPointerException If any argument is null.
+     */
+    public static Edit replace(int[] path, Expression expression) {
+        return new Edit(Type.Replace, checkPath(path), -1, 1,
+            Collections.singletonList(Preconditions.checkNotNull(expression)));
+    }
+
+    /**
+     * Return the kind of edit.
+     *
+     * @return The type.
+     */
+    public Type type() {
+        return type;
+    }
+
+    /**
+     * Return the path this edit applies to: the list, for inserts and
+     * deletes, or the replaced expression.
+     *
+     * @return A copy of the path.
+     */
+    public int[] path() {
+        return path.clone();
+    }
+
+    int[] rawPath() {
+        return path;
+    }
+
+    /**
+     * Return the index of an insert or delete, or -1 for a replace.
+     *
+     * @return The index.
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * Return the number of elements inserted or deleted, or one for a
+     * replace.
+     *
+     * @return The count.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Return the inserted expressions, or the replacement; empty for a
+     * delete.
+     *
+     * @return The expressions.
+     */
+    public List<Expression> expressions() {
+        return expressions;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Edit))
+            return false;
+        Edit e = (Edit) o;
+        return type == e.type && index == e.index && count == e.count && Arrays.equals(path, e.path)
+            && expressions.equals(e.expressions);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((type.hashCode() * 31 + Arrays.hashCode(path)) * 31 + index) * 31 + expressions.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s at %d (%d)", type, Arrays.toString(path), index, count);
+    }
+}
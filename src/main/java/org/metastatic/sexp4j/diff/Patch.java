@@ -0,0 +1,701 @@
+package org.metastatic.sexp4j.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalStreamingParser;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ImmutableExpressionList;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.RawStreamingParserCallback;
+
+/**
+ * A structural difference between two expressions: a list of {@link
+ * Edit}s that turns one into the other.
+ *
+ * <p>{@link #diff(Expression, Expression)} compares the two trees top
+ * down, and skips any pair of subtrees whose {@link SubtreeHashes hashes}
+ * are equal. Where lists differ, their elements are aligned by hash
+ * (Myers' algorithm, after trimming the common prefix and suffix), and
+ * unaligned elements become inserts and deletes, or, where old and new
+ * elements pair up, replaces and edits inside them. The work is in
+ * proportion to the changed subtrees and the lengths of the lists that
+ * contain them; when the new version shares its unchanged subtrees with
+ * the old one, as {@link ImmutableExpressionList}s do, their hashes are
+ * not even recomputed.</p>
+ *
+ * <p>A patch is written as an expression, and read back with {@link
+ * #fromExpression(Expression)}:</p>
+ *
+ * <pre>
+ * (patch (replace (path 1 0) new)
+ *        (insert (path 2) 3 a b)
+ *        (delete (path) 0 1))
+ * </pre>
+ *
+ * <p>where indexes are four-byte, big-endian atoms. A patch applies to a
+ * tree, with {@link #apply(Expression)}, or to the canonical encoding of
+ * one, with {@link #apply(InputStream, OutputStream)}, which streams the
+ * input through and never builds it.</p>
+ *
+ * <p>Patches are immutable, and safe to share between threads.</p>
+ */
+public final class Patch {
+    private static final Atom PATCH = Atom.atom("patch");
+    private static final Atom PATH = Atom.atom("path");
+    private static final Atom INSERT = Atom.atom("insert");
+    private static final Atom DELETE = Atom.atom("delete");
+    private static final Atom REPLACE = Atom.atom("replace");
+
+    // Past this many differences between two lists, give up aligning them.
+    private static final int MAX_ALIGNED_EDITS = 1024;
+
+    private final List<Edit> edits;
+    private final Target root;
+
+    private Patch(List<Edit> edits) {
+        this.edits = Collections.unmodifiableList(edits);
+        this.root = new Target();
+        for (Edit e : edits)
+            root.add(e);
+        root.validate();
+    }
+
+    /**
+     * Create a patch from a list of edits.
+     *
+     * @param edits The edits.
+     * @return The patch.
+     * @throws java.lang.IllegalArgumentException If two edits conflict: if
+     *         they insert at, or delete or replace, the same position, or
+     *         one changes what another deletes or replaces.
+     * @throws java.lang.NullPointerException If any edit is null.
+     */
+    public static Patch of(List<Edit> edits) {
+        List<Edit> copy = new ArrayList<>(edits.size());
+        for (Edit e : edits)
+            copy.add(Preconditions.checkNotNull(e));
+        return new Patch(copy);
+    }
+
+    /**
+     * Create a patch from edits.
+     *
+     * @param edits The edits.
+     * @return The patch.
+     * @throws java.lang.IllegalArgumentException If two edits conflict.
+     */
+    public static Patch of(Edit... edits) {
+        return of(Arrays.asList(edits));
+    }
+
+    /**
+     * Compute the patch that turns one expression into another.
+     *
+     * @param from The original expression.
+     * @param to The new expression.
+     * @return The patch.
+     */
+    public static Patch diff(Expression from, Expression to) {
+        return diff(from, to, new SubtreeHashes());
+    }
+
+    /**
+     * Compute the patch that turns one expression into another, with
+     * hashes that may be remembered from earlier diffs.
+     *
+     * @param from The original expression.
+     * @param to The new expression.
+     * @param hashes The hashes.
+     * @return The patch.
+     */
+    public static Patch diff(Expression from, Expression to, SubtreeHashes hashes) {
+        Preconditions.checkNotNull(from);
+        Preconditions.checkNotNull(to);
+        Differ differ = new Differ(Preconditions.checkNotNull(hashes));
+        differ.diff(from, to);
+        return new Patch(differ.edits);
+    }
+
+    /**
+     * Return the edits.
+     *
+     * @return The edits.
+     */
+    public List<Edit> edits() {
+        return edits;
+    }
+
+    /**
+     * Tell if this patch changes nothing.
+     *
+     * @return True if there are no edits.
+     */
+    public boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    /**
+     * Return this patch as an expression.
+     *
+     * @return The expression.
+     */
+    public ExpressionList toExpression() {
+        ExpressionList patch = ExpressionList.list(PATCH);
+        for (Edit e : edits) {
+            ExpressionList path = ExpressionList.list(PATH);
+            for (int i : e.rawPath())
+                path.add(Atom.atom(i));
+            switch (e.type()) {
+                case Insert: {
+                    ExpressionList insert = ExpressionList.list(INSERT, path, Atom.atom(e.index()));
+                    insert.addAll(e.expressions());
+                    patch.add(insert);
+                    break;
+                }
+                case Delete:
+                    patch.add(ExpressionList.list(DELETE, path, Atom.atom(e.index()), Atom.atom(e.count())));
+                    break;
+                case Replace:
+                    patch.add(ExpressionList.list(REPLACE, path, e.expressions().get(0)));
+                    break;
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * Read a patch written by {@link #toExpression()}.
+     *
+     * @param expression The expression.
+     * @return The patch.
+     * @throws ParseException If the expression is not a valid patch.
+     */
+    public static Patch fromExpression(Expression expression) throws ParseException {
+        ExpressionList patch = list(expression, "patch");
+        if (patch.isEmpty() || !PATCH.equals(patch.get(0)))
+            throw new ParseException("not a patch");
+        List<Edit> edits = new ArrayList<>(patch.size() - 1);
+        for (int i = 1; i < patch.size(); i++) {
+            ExpressionList edit = list(patch.get(i), "edit");
+            if (edit.size() < 2)
+                throw new ParseException("edit %d is too short", i - 1);
+            ExpressionList p = list(edit.get(1), "path");
+            if (p.isEmpty() || !PATH.equals(p.get(0)))
+                throw new ParseException("edit %d has no path", i - 1);
+            int[] path = new int[p.size() - 1];
+            for (int j = 0; j < path.length; j++)
+                path[j] = index(p.get(j + 1));
+            Expression type = edit.get(0);
+            try {
+                if (INSERT.equals(type) && edit.size() >= 4) {
+                    edits.add(Edit.insert(path, index(edit.get(2)),
+                        edit.subList(3, edit.size()).toArray(new Expression[edit.size() - 3])));
+                } else if (DELETE.equals(type) && edit.size() == 4) {
+                    edits.add(Edit.delete(path, index(edit.get(2)), index(edit.get(3))));
+                } else if (REPLACE.equals(type) && edit.size() == 3) {
+                    edits.add(Edit.replace(path, edit.get(2)));
+                } else {
+                    throw new ParseException("edit %d is not a valid insert, delete or replace", i - 1);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("invalid edit " + (i - 1), e);
+            }
+        }
+        try {
+            return new Patch(edits);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("conflicting edits", e);
+        }
+    }
+
+    private static ExpressionList list(Expression e, String what) throws ParseException {
+        if (!(e instanceof ExpressionList))
+            throw new ParseException("expected a list for %s", what);
+        return (ExpressionList) e;
+    }
+
+    private static int index(Expression e) throws ParseException {
+        if (!(e instanceof Atom) || ((Atom) e).length() != 4)
+            throw new ParseException("expected a four-byte index");
+        int i = ((Atom) e).intValue();
+        if (i < 0)
+            throw new ParseException("negative index: %d", i);
+        return i;
+    }
+
+    /**
+     * Apply this patch to an expression. The expression is not changed:
+     * the lists on the paths to edits are copied, and everything else is
+     * shared with the result. Immutable lists stay immutable, and are
+     * updated in time logarithmic in their size.
+     *
+     * @param expression The expression.
+     * @return The patched expression.
+     * @throws java.lang.IllegalArgumentException If the edits don't fit
+     *         the expression.
+     */
+    public Expression apply(Expression expression) {
+        return root.apply(Preconditions.checkNotNull(expression));
+    }
+
+    /**
+     * The edits at one path, with the edits below it by child index.
+     * Positions are always those of the original list.
+     */
+    private static final class Target {
+        Expression replacement;
+        final TreeMap<Integer, List<Expression>> inserts = new TreeMap<>();
+        final TreeMap<Integer, Integer> deletes = new TreeMap<>();
+        final TreeMap<Integer, Target> children = new TreeMap<>();
+
+        void add(Edit e) {
+            Target t = this;
+            for (int i : e.rawPath()) {
+                Preconditions.checkArgument(t.replacement == null, "edit inside a replaced expression");
+                Target child = t.children.get(i);
+                if (child == null)
+                    t.children.put(i, child = new Target());
+                t = child;
+            }
+            switch (e.type()) {
+                case Insert:
+                    Preconditions.checkArgument(t.inserts.put(e.index(), e.expressions()) == null,
+                        "two inserts at the same position");
+                    break;
+                case Delete:
+                    Preconditions.checkArgument(t.deletes.put(e.index(), e.count()) == null,
+                        "two deletes at the same position");
+                    break;
+                case Replace:
+                    Preconditions.checkArgument(t.replacement == null, "two replaces of the same expression");
+                    t.replacement = e.expressions().get(0);
+                    break;
+            }
+        }
+
+        void validate() {
+            Preconditions.checkArgument(replacement == null
+                || (inserts.isEmpty() && deletes.isEmpty() && children.isEmpty()), "edit inside a replaced expression");
+            long end = -1;
+            for (Map.Entry<Integer, Integer> d : deletes.entrySet()) {
+                int from = d.getKey();
+                long to = (long) from + d.getValue();
+                Preconditions.checkArgument(from >= end, "overlapping deletes");
+                Integer k = children.ceilingKey(from);
+                Preconditions.checkArgument(k == null || k >= to, "edit inside a deleted expression");
+                k = inserts.higherKey(from);
+                Preconditions.checkArgument(k == null || k >= to, "insert inside a deleted range");
+                end = to;
+            }
+            for (Target t : children.values())
+                t.validate();
+        }
+
+        boolean isEmpty() {
+            return replacement == null && inserts.isEmpty() && deletes.isEmpty() && children.isEmpty();
+        }
+
+        void checkFits(int size) {
+            boolean fits = (inserts.isEmpty() || inserts.lastKey() <= size)
+                && (children.isEmpty() || children.lastKey() < size)
+                && (deletes.isEmpty() || (long) deletes.lastKey() + deletes.lastEntry().getValue() <= size);
+            Preconditions.checkArgument(fits, "edit outside a list of %s elements", size);
+        }
+
+        Expression apply(Expression e) {
+            if (replacement != null)
+                return replacement;
+            if (isEmpty())
+                return e;
+            Preconditions.checkArgument(e instanceof ExpressionList, "edit inside an atom");
+            ExpressionList list = (ExpressionList) e;
+            checkFits(list.size());
+            if (list instanceof ImmutableExpressionList)
+                return applyImmutable((ImmutableExpressionList) list);
+            ExpressionList result = new ExpressionList(list.size());
+            Iterator<Expression> it = list.iterator();
+            int skip = 0;
+            for (int i = 0; i <= list.size(); i++) {
+                List<Expression> inserted = inserts.get(i);
+                if (inserted != null)
+                    result.addAll(inserted);
+                if (i == list.size())
+                    break;
+                Expression child = it.next();
+                Integer deleted = deletes.get(i);
+                if (deleted != null)
+                    skip = deleted;
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                Target t = children.get(i);
+                result.add(t != null ? t.apply(child) : child);
+            }
+            return result;
+        }
+
+        // Apply from the highest position down, so that lower positions
+        // still refer to the original list.
+        private ImmutableExpressionList applyImmutable(ImmutableExpressionList list) {
+            NavigableSet<Integer> positions = new TreeSet<>(children.keySet());
+            positions.addAll(deletes.keySet());
+            positions.addAll(inserts.keySet());
+            ImmutableExpressionList result = list;
+            for (int p : positions.descendingSet()) {
+                Target t = children.get(p);
+                if (t != null)
+                    result = result.with(p, t.apply(result.get(p)));
+                Integer deleted = deletes.get(p);
+                if (deleted != null)
+                    result = result.subList(0, p).concat(result.subList(p + deleted, result.size()));
+                List<Expression> inserted = inserts.get(p);
+                if (inserted != null) {
+                    ImmutableExpressionList middle = ImmutableExpressionList.builder(inserted.size())
+                        .addAll(inserted).build();
+                    result = result.subList(0, p).concat(middle).concat(result.subList(p, result.size()));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Apply this patch to the canonical encoding of an expression, writing
+     * the canonical encoding of the patched expression. The input is
+     * copied through as it is parsed, so memory use depends on the depth
+     * of the expression and the size of the edits, not on its size. The
+     * streams are not closed.
+     *
+     * @param in The input, which must hold one expression.
+     * @param out The output.
+     * @throws ParseException If the input is not a single canonical expression.
+     * @throws IOException If reading or writing fails.
+     * @throws java.lang.IllegalArgumentException If the edits don't fit
+     *         the expression; some output may have been written.
+     */
+    public void apply(InputStream in, OutputStream out) throws IOException {
+        Preconditions.checkNotNull(in);
+        Preconditions.checkNotNull(out);
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        StreamPatcher patcher = new StreamPatcher(buffered);
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(in);
+        parser.addCallback(patcher);
+        try {
+            parser.parse();
+        } catch (ParseException e) {
+            if (patcher.writeError != null)
+                throw patcher.writeError;
+            throw e;
+        }
+        if (!patcher.done)
+            throw new EOFException("no complete expression in the input");
+        buffered.flush();
+    }
+
+    private final class StreamPatcher implements RawStreamingParserCallback {
+        private final OutputStream out;
+        private final List<Target> targets = new ArrayList<>();
+        private final List<int[]> positions = new ArrayList<>();
+        private final byte[] digits = new byte[10];
+        private int skipping = 0;
+        boolean done = false;
+        IOException writeError;
+
+        StreamPatcher(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void beginList() throws ParseException {
+            if (skipping > 0) {
+                skipping++;
+                return;
+            }
+            Target t = child();
+            if (t == SKIP) {
+                skipping = 1;
+                return;
+            }
+            targets.add(t);
+            positions.add(new int[1]);
+            write('(');
+        }
+
+        @Override
+        public void endList() throws ParseException {
+            if (skipping > 0) {
+                skipping--;
+                return;
+            }
+            if (targets.isEmpty())
+                throw new ParseException("extraneous end list");
+            Target t = targets.remove(targets.size() - 1);
+            int size = positions.remove(positions.size() - 1)[0];
+            if (t != null) {
+                t.checkFits(size);
+                writeAll(t.inserts.get(size));
+            }
+            write(')');
+            if (targets.isEmpty())
+                done = true;
+        }
+
+        @Override
+        public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen)
+                throws ParseException {
+            if (skipping > 0)
+                return;
+            Target t = child();
+            if (t == SKIP)
+                return;
+            Preconditions.checkArgument(t == null, "edit inside an atom");
+            try {
+                if (hintBuf != null) {
+                    out.write('[');
+                    writeLength(hintLen);
+                    out.write(hintBuf, hintOff, hintLen);
+                    out.write(']');
+                }
+                writeLength(len);
+                out.write(buf, off, len);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+            if (targets.isEmpty())
+                done = true;
+        }
+
+        /**
+         * Start the next child of the current list, or the top-level
+         * expression, writing anything inserted before it.
+         *
+         * @return The target for the child, null if nothing changes it, or
+         *         SKIP if it is deleted or replaced.
+         */
+        private Target child() throws ParseException {
+            Target t;
+            if (targets.isEmpty()) {
+                if (done)
+                    throw new ParseException("more than one expression in the input");
+                t = root;
+            } else {
+                Target parent = targets.get(targets.size() - 1);
+                int i = positions.get(positions.size() - 1)[0]++;
+                if (parent == null)
+                    return null;
+                writeAll(parent.inserts.get(i));
+                Map.Entry<Integer, Integer> d = parent.deletes.floorEntry(i);
+                if (d != null && i < (long) d.getKey() + d.getValue())
+                    return SKIP;
+                t = parent.children.get(i);
+            }
+            if (t != null && t.isEmpty())
+                return null;
+            if (t != null && t.replacement != null) {
+                writeAll(Collections.singletonList(t.replacement));
+                if (targets.isEmpty())
+                    done = true;
+                return SKIP;
+            }
+            return t;
+        }
+
+        private void writeAll(List<Expression> expressions) throws ParseException {
+            if (expressions == null)
+                return;
+            try {
+                for (Expression e : expressions)
+                    new CanonicalWriter(out).writeExpression(e);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        private void write(int b) throws ParseException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        private void writeLength(int len) throws IOException {
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + len % 10);
+                len /= 10;
+            } while (len > 0);
+            out.write(digits, i, digits.length - i);
+            out.write(':');
+        }
+
+        // Callbacks can only throw parse errors; remember the real one.
+        private ParseException failed(IOException e) {
+            writeError = e;
+            return new ParseException("can't write patched output", e);
+        }
+    }
+
+    private static final Target SKIP = new Target();
+
+    private static final class Differ {
+        final SubtreeHashes hashes;
+        final Map<ExpressionList, Long> mutable = new IdentityHashMap<>();
+        final List<Edit> edits = new ArrayList<>();
+        int[] path = new int[16];
+        int depth = 0;
+
+        Differ(SubtreeHashes hashes) {
+            this.hashes = hashes;
+        }
+
+        int[] path() {
+            return Arrays.copyOf(path, depth);
+        }
+
+        void diff(Expression a, Expression b) {
+            if (a == b || hashes.hash(a, mutable) == hashes.hash(b, mutable))
+                return;
+            if (a instanceof ExpressionList && b instanceof ExpressionList)
+                diffLists((ExpressionList) a, (ExpressionList) b);
+            else
+                edits.add(Edit.replace(path(), b));
+        }
+
+        private long[] childHashes(ExpressionList list) {
+            long[] h = new long[list.size()];
+            int i = 0;
+            for (Expression e : list)
+                h[i++] = hashes.hash(e, mutable);
+            return h;
+        }
+
+        private void diffLists(ExpressionList a, ExpressionList b) {
+            long[] ha = childHashes(a);
+            long[] hb = childHashes(b);
+            int n = ha.length, m = hb.length;
+            int prefix = 0;
+            while (prefix < n && prefix < m && ha[prefix] == hb[prefix])
+                prefix++;
+            int suffix = 0;
+            while (suffix < n - prefix && suffix < m - prefix && ha[n - 1 - suffix] == hb[m - 1 - suffix])
+                suffix++;
+            for (int[] hunk : align(ha, prefix, n - suffix, hb, prefix, m - suffix)) {
+                int from = hunk[0], removed = hunk[1], to = hunk[2], added = hunk[3];
+                int paired = Math.min(removed, added);
+                for (int t = 0; t < paired; t++) {
+                    if (depth == path.length)
+                        path = Arrays.copyOf(path, depth * 2);
+                    path[depth++] = from + t;
+                    diff(a.get(from + t), b.get(to + t));
+                    depth--;
+                }
+                if (removed > paired)
+                    edits.add(Edit.delete(path(), from + paired, removed - paired));
+                if (added > paired) {
+                    List<Expression> inserted = b.subList(to + paired, to + added);
+                    edits.add(Edit.insert(path(), from + paired, inserted.toArray(new Expression[inserted.size()])));
+                }
+            }
+        }
+    }
+
+    /**
+     * Align two ranges of hashes with Myers' algorithm.
+     *
+     * @return The unaligned runs, in order, as {start in a, length in a,
+     *         start in b, length in b}.
+     */
+    static List<int[]> align(long[] a, int aFrom, int aTo, long[] b, int bFrom, int bTo) {
+        int n = aTo - aFrom, m = bTo - bFrom;
+        List<int[]> hunks = new ArrayList<>();
+        if (n == 0 && m == 0)
+            return hunks;
+        int max = Math.min(n + m, MAX_ALIGNED_EDITS);
+        if (n == 0 || m == 0 || max < n + m && Math.abs(n - m) > max) {
+            hunks.add(new int[] { aFrom, n, bFrom, m });
+            return hunks;
+        }
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]))
+                    x = v[offset + k + 1];
+                else
+                    x = v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aFrom + x] == b[bFrom + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+                    return hunks(trace, d, k, aFrom, n, bFrom, m);
+                }
+            }
+            trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+        }
+        hunks.add(new int[] { aFrom, n, bFrom, m });
+        return hunks;
+    }
+
+    // Walk back through the trace, collecting the snakes' matches, and
+    // return the gaps between them.
+    private static List<int[]> hunks(List<int[]> trace, int d, int k, int aFrom, int n, int bFrom, int m) {
+        int[] matchX = new int[Math.min(n, m)];
+        int[] matchY = new int[matchX.length];
+        int count = 0;
+        int x = trace.get(d)[k + d];
+        for (; d > 0; d--) {
+            int[] prev = trace.get(d - 1);
+            boolean down = k == -d || (k != d && prev[k - 1 + d - 1] < prev[k + 1 + d - 1]);
+            int prevK = down ? k + 1 : k - 1;
+            int prevX = prev[prevK + d - 1];
+            int midX = down ? prevX : prevX + 1;
+            for (int i = x - 1; i >= midX; i--) {
+                matchX[count] = i;
+                matchY[count++] = i - k;
+            }
+            k = prevK;
+            x = prevX;
+        }
+        for (int i = x - 1; i >= 0; i--) {
+            matchX[count] = i;
+            matchY[count++] = i;
+        }
+        List<int[]> hunks = new ArrayList<>();
+        int i = 0, j = 0;
+        for (int c = count - 1; c >= -1; c--) {
+            int mx = c >= 0 ? matchX[c] : n;
+            int my = c >= 0 ? matchY[c] : m;
+            if (mx > i || my > j)
+                hunks.add(new int[] { aFrom + i, mx - i, bFrom + j, my - j });
+            i = mx + 1;
+            j = my + 1;
+        }
+        return hunks;
+    }
+}
@@ -0,0 +1,104 @@
+package org.metastatic.sexp4j.diff;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.DisplayHint;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ImmutableExpressionList;
+
+/**
+ * Computes 64-bit hashes of expressions, so that a {@link Patch diff}
+ * can tell that two subtrees are equal without walking them.
+ *
+ * <p>Equal expressions, including their display hints, have equal
+ * hashes, whether their lists are mutable or not. Hashes of {@link
+ * ImmutableExpressionList}s are remembered, for as long as the lists are
+ * reachable, so diffing a new version of a document against an old one
+ * it shares unchanged subtrees with only hashes what is new. Hashes of
+ * mutable lists are not remembered between calls, since the lists may
+ * change.</p>
+ *
+ * <p>The hash is not cryptographic: two different expressions have the
+ * same hash with a probability of about 2<sup>-64</sup>, but someone
+ * who controls both documents can make them collide, and the diff then
+ * takes them as equal. Instances are safe to share between threads.</p>
+ */
+public final class SubtreeHashes {
+    private static final long ATOM_SEED = 0x9E3779B97F4A7C15L;
+    private static final long HINT_SEED = 0xC2B2AE3D27D4EB4FL;
+    private static final long LIST_SEED = 0x165667B19E3779F9L;
+    private static final long M = 0xFF51AFD7ED558CCDL;
+
+    private final Map<ImmutableExpressionList, Long> immutable =
+        new MapMaker().weakKeys().concurrencyLevel(1).makeMap();
+
+    /**
+     * Return the hash of an expression.
+     *
+     * @param expression The expression.
+     * @return The hash.
+     */
+    public long hash(Expression expression) {
+        return hash(Preconditions.checkNotNull(expression), new IdentityHashMap<ExpressionList, Long>());
+    }
+
+    /**
+     * Return the hash of an expression, remembering the hashes of mutable
+     * lists in a map that the caller keeps while the lists don't change.
+     */
+    long hash(Expression expression, Map<ExpressionList, Long> mutable) {
+        if (expression instanceof Atom)
+            return hash((Atom) expression);
+        ExpressionList list = (ExpressionList) expression;
+        boolean remember = list instanceof ImmutableExpressionList;
+        Long h = remember ? immutable.get(list) : mutable.get(list);
+        if (h == null) {
+            long x = LIST_SEED;
+            for (Expression e : list)
+                x = Long.rotateLeft((x ^ hash(e, mutable)) * M, 29);
+            h = mix(x ^ list.size());
+            if (remember)
+                immutable.put((ImmutableExpressionList) list, h);
+            else
+                mutable.put(list, h);
+        }
+        return h;
+    }
+
+    private static long hash(Atom atom) {
+        long h = hashBytes(ATOM_SEED, atom.asByteBuffer());
+        Optional<DisplayHint> hint = atom.displayHint();
+        if (hint.isPresent())
+            h ^= hashBytes(HINT_SEED, hint.get().atom().asByteBuffer());
+        return h;
+    }
+
+    private static long hashBytes(long seed, ByteBuffer b) {
+        int len = b.remaining();
+        long h = seed ^ (len * M);
+        int i = 0;
+        for (; i + 8 <= len; i += 8)
+            h = Long.rotateLeft(h ^ mix(b.getLong(i)), 27) * M;
+        long w = 0;
+        for (; i < len; i++)
+            w = w << 8 | (b.get(i) & 0xFF);
+        return mix(h ^ mix(w ^ len));
+    }
+
+    // The MurmurHash3 finalizer.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= M;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
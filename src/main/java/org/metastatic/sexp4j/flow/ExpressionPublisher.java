@@ -0,0 +1,282 @@
+package org.metastatic.sexp4j.flow;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.metastatic.sexp4j.AdvancedStreamingParser;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalStreamingParser;
+import org.metastatic.sexp4j.DisplayHint;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionBuilder;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.RawStreamingParserCallback;
+import org.metastatic.sexp4j.StreamingParser;
+
+/**
+ * Publishes the top-level expressions of an input, parsing each one only
+ * when a subscriber has asked for it.
+ *
+ * <p>Parsing is pulled by demand: the parser is {@link
+ * StreamingParser#stop() stopped} after every top-level expression, and
+ * run again only while the subscriber has outstanding requests. At most
+ * one expression, and whatever the parser reads ahead, is held in memory,
+ * however slow the subscriber is. Parsing runs on the given executor; the
+ * default runs it on the thread that calls
+ * {@link Subscription#request(long)}.</p>
+ *
+ * <p>An input can be read once, so a publisher accepts a single
+ * subscriber. The input is closed when the subscription completes, fails
+ * or is cancelled.</p>
+ *
+ * <pre>
+ * ExpressionPublisher.canonical(channel, executor).subscribe(subscriber);
+ * </pre>
+ */
+public final class ExpressionPublisher implements Publisher<Expression> {
+    private static final Subscription REFUSED = new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final StreamingParser parser;
+    private final Closeable source;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Create a publisher for the expressions a streaming parser reads.
+     *
+     * @param parser The parser, which must have no other callbacks.
+     * @param source The parser's input, which is closed when publishing ends.
+     * @param executor The executor on which parsing and delivery run.
+     * @throws java.lang.NullPointerException If any argument is null.
+     */
+    public ExpressionPublisher(StreamingParser parser, Closeable source, Executor executor) {
+        this.parser = Preconditions.checkNotNull(parser);
+        this.source = Preconditions.checkNotNull(source);
+        this.executor = Preconditions.checkNotNull(executor);
+    }
+
+    /**
+     * Create a publisher for canonical expressions read from a stream,
+     * which parses on the requesting thread.
+     *
+     * @param in The input stream.
+     * @return The publisher.
+     */
+    public static ExpressionPublisher canonical(InputStream in) {
+        return canonical(in, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Create a publisher for canonical expressions read from a stream.
+     *
+     * @param in The input stream.
+     * @param executor The executor on which parsing and delivery run.
+     * @return The publisher.
+     */
+    public static ExpressionPublisher canonical(InputStream in, Executor executor) {
+        return new ExpressionPublisher(new CanonicalStreamingParser(in), in, executor);
+    }
+
+    /**
+     * Create a publisher for canonical expressions read from a channel.
+     *
+     * @param channel The channel.
+     * @param executor The executor on which parsing and delivery run.
+     * @return The publisher.
+     */
+    public static ExpressionPublisher canonical(ReadableByteChannel channel, Executor executor) {
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+        return new ExpressionPublisher(new CanonicalStreamingParser(in), in, executor);
+    }
+
+    /**
+     * Create a publisher for advanced-format expressions read from a
+     * stream.
+     *
+     * @param in The input stream.
+     * @param executor The executor on which parsing and delivery run.
+     * @return The publisher.
+     */
+    public static ExpressionPublisher advanced(InputStream in, Executor executor) {
+        return new ExpressionPublisher(new AdvancedStreamingParser(in), in, executor);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Expression> subscriber) {
+        Preconditions.checkNotNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(REFUSED);
+            subscriber.onError(new IllegalStateException("publisher already has a subscriber"));
+            return;
+        }
+        RecordSubscription subscription = new RecordSubscription(subscriber);
+        parser.addCallback(subscription.records);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Builds each top-level expression, and stops the parser when one is
+     * complete.
+     */
+    private final class RecordBuilder implements RawStreamingParserCallback {
+        private ExpressionBuilder builder;
+        private int depth = 0;
+        private Expression record;
+
+        @Override
+        public void beginList() throws ParseException {
+            if (depth++ == 0)
+                builder = ExpressionBuilder.create();
+            builder.beginList();
+        }
+
+        @Override
+        public void endList() throws ParseException {
+            if (depth == 0)
+                throw new ParseException("extraneous end list");
+            builder.endList();
+            if (--depth == 0)
+                complete(builder.build());
+        }
+
+        @Override
+        public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen)
+                throws ParseException {
+            DisplayHint hint = hintBuf != null ? DisplayHint.of(hintBuf, hintOff, hintLen) : null;
+            Atom atom = Atom.atom(buf, off, len, hint);
+            if (depth == 0)
+                complete(atom);
+            else
+                builder.atom(atom);
+        }
+
+        private void complete(Expression e) {
+            record = e;
+            builder = null;
+            parser.stop();
+        }
+
+        /**
+         * Parse the next top-level expression.
+         *
+         * @return The expression, or null at the end of the input.
+         */
+        Expression next() throws IOException {
+            parser.parse();
+            Expression e = record;
+            record = null;
+            if (e == null && depth > 0)
+                throw new EOFException("end of input inside a list");
+            return e;
+        }
+    }
+
+    private final class RecordSubscription implements Subscription, Runnable {
+        private final Subscriber<? super Expression> subscriber;
+        private final RecordBuilder records = new RecordBuilder();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest;
+        // Only touched by the drain loop.
+        private boolean terminated = false;
+
+        RecordSubscription(Subscriber<? super Expression> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                long r;
+                do {
+                    r = requested.get();
+                } while (r != Long.MAX_VALUE && !requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /**
+         * Run the drain loop, unless it is running already; in that case it
+         * will go round once more.
+         */
+        private void drain() {
+            if (pending.getAndIncrement() == 0)
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (!terminated)
+                    deliver();
+                missed = pending.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void deliver() {
+            try {
+                while (!cancelled && badRequest == null && requested.get() > 0) {
+                    Expression e = records.next();
+                    if (e == null) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (requested.get() != Long.MAX_VALUE)
+                        requested.decrementAndGet();
+                    subscriber.onNext(e);
+                }
+            } catch (IOException | RuntimeException e) {
+                terminate();
+                subscriber.onError(e);
+                return;
+            }
+            if (badRequest != null && !cancelled) {
+                terminate();
+                subscriber.onError(badRequest);
+            } else if (cancelled) {
+                terminate();
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            try {
+                source.close();
+            } catch (IOException ignored) {
+                // Nothing more will be read.
+            }
+        }
+    }
+}
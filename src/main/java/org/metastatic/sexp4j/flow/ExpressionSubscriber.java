@@ -0,0 +1,130 @@
+package org.metastatic.sexp4j.flow;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * Writes the expressions it receives to a stream, in canonical form.
+ *
+ * <p>Expressions are requested a batch at a time: the next batch is
+ * requested once the previous one has been written and flushed, so at
+ * most one batch is ever in flight, and a slow output slows the publisher
+ * down rather than filling memory. The output is buffered, and flushed
+ * once per batch and at the end.</p>
+ *
+ * <p>{@link #completion()} completes with the number of expressions
+ * written when the publisher completes, or fails with the publisher's
+ * error or the first write error; a write error also cancels the
+ * subscription. The output stream is not closed.</p>
+ */
+public final class ExpressionSubscriber implements Subscriber<Expression> {
+    private final OutputStream out;
+    private final CanonicalWriter writer;
+    private final int batchSize;
+    private final SettableFuture<Long> completion = SettableFuture.create();
+    private volatile Subscription subscription;
+    private int received = 0;
+    private long written = 0;
+
+    /**
+     * Create a subscriber that requests 64 expressions at a time.
+     *
+     * @param out The output stream.
+     */
+    public ExpressionSubscriber(OutputStream out) {
+        this(out, 64);
+    }
+
+    /**
+     * Create a subscriber.
+     *
+     * @param out The output stream.
+     * @param batchSize The number of expressions to request at a time.
+     * @throws java.lang.NullPointerException If the stream is null.
+     * @throws java.lang.IllegalArgumentException If the batch size is not positive.
+     */
+    public ExpressionSubscriber(OutputStream out, int batchSize) {
+        Preconditions.checkNotNull(out);
+        Preconditions.checkArgument(batchSize > 0);
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.writer = new CanonicalWriter(this.out);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Return a future for the number of expressions written.
+     *
+     * @return The future.
+     */
+    public ListenableFuture<Long> completion() {
+        return completion;
+    }
+
+    /**
+     * Cancel the subscription. The completion future is cancelled too.
+     */
+    public void cancel() {
+        Subscription s = subscription;
+        if (s != null)
+            s.cancel();
+        completion.cancel(false);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        Preconditions.checkNotNull(subscription);
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(Expression item) {
+        Preconditions.checkNotNull(item);
+        if (completion.isDone())
+            return;
+        try {
+            writer.reset(out);
+            writer.writeExpression(item);
+            written++;
+            if (++received == batchSize) {
+                received = 0;
+                out.flush();
+                subscription.request(batchSize);
+            }
+        } catch (IOException e) {
+            subscription.cancel();
+            completion.setException(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+            // The publisher's error is the one to report.
+        }
+        completion.setException(error);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            out.flush();
+            completion.set(written);
+        } catch (IOException e) {
+            completion.setException(e);
+        }
+    }
+}
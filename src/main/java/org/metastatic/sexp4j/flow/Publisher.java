@@ -0,0 +1,23 @@
+package org.metastatic.sexp4j.flow;
+
+/**
+ * A source of items, delivered to subscribers on demand.
+ *
+ * <p>This package's three interfaces have the shape, and the rules, of
+ * <code>java.util.concurrent.Flow</code> and of Reactive Streams, so that
+ * adapting them to either takes a one-line wrapper per method.</p>
+ *
+ * @param <T> The type of the items.
+ */
+public interface Publisher<T> {
+    /**
+     * Add a subscriber. The subscriber's
+     * {@link Subscriber#onSubscribe(Subscription)} is called first; if the
+     * subscription is refused, {@link Subscriber#onError(Throwable)}
+     * follows.
+     *
+     * @param subscriber The subscriber.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,37 @@
+package org.metastatic.sexp4j.flow;
+
+/**
+ * A receiver of items from a {@link Publisher}. Its methods are called
+ * one at a time, never concurrently, and no more items arrive than it has
+ * requested from its {@link Subscription}.
+ *
+ * @param <T> The type of the items.
+ */
+public interface Subscriber<T> {
+    /**
+     * Called once, before any other method.
+     *
+     * @param subscription The subscription, through which items are requested.
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Called for each item.
+     *
+     * @param item The item.
+     */
+    void onNext(T item);
+
+    /**
+     * Called when the publisher fails; no more methods are called.
+     *
+     * @param error The error.
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called when the publisher has no more items; no more methods are
+     * called.
+     */
+    void onComplete();
+}
@@ -0,0 +1,22 @@
+package org.metastatic.sexp4j.flow;
+
+/**
+ * The link between a {@link Publisher} and one of its {@link Subscriber}s.
+ */
+public interface Subscription {
+    /**
+     * Ask for up to <code>n</code> more items. Requests add up; a total of
+     * <code>Long.MAX_VALUE</code> or more means no limit. A request of
+     * zero or less fails the subscription with an
+     * {@link IllegalArgumentException}.
+     *
+     * @param n The number of items.
+     */
+    void request(long n);
+
+    /**
+     * Ask the publisher to stop sending items, and release its resources.
+     * Items already on their way may still arrive.
+     */
+    void cancel();
+}
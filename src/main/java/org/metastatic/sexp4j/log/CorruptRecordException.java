@@ -0,0 +1,17 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a record log holds a frame that fails its checks, outside
+ * of the recoverable tail.
+ */
+public class CorruptRecordException extends IOException {
+    public CorruptRecordException(String message) {
+        super(message);
+    }
+
+    public CorruptRecordException(String format, Object... args) {
+        super(String.format(format, args));
+    }
+}
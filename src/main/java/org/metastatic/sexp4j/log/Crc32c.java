@@ -0,0 +1,37 @@
+package org.metastatic.sexp4j.log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli), computed a byte at a time from a table. This is
+ * the checksum of record frames.
+ */
+final class Crc32c {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++)
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+            TABLE[i] = c;
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    static int checksum(byte[] bytes, int offset, int length) {
+        int c = ~0;
+        for (int i = offset, end = offset + length; i < end; i++)
+            c = TABLE[(c ^ bytes[i]) & 0xFF] ^ (c >>> 8);
+        return ~c;
+    }
+
+    static int checksum(ByteBuffer buffer, int offset, int length) {
+        int c = ~0;
+        for (int i = offset, end = offset + length; i < end; i++)
+            c = TABLE[(c ^ buffer.get(i)) & 0xFF] ^ (c >>> 8);
+        return ~c;
+    }
+}
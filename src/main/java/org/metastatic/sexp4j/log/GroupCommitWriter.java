@@ -0,0 +1,389 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * Appends canonical expressions to a file from any number of threads,
+ * committing them in groups.
+ *
+ * <p>Each {@link #write(Expression)} serializes its record on the calling
+ * thread, into a buffer kept per thread, and enqueues a copy on a
+ * lock-free queue. A single flusher thread takes records off the queue in
+ * batches, writes each batch with one gathering write, syncs the file
+ * once for the whole batch, and then completes the future of every
+ * record in it with the record's byte offset in the file. A record whose
+ * future has completed is durable.</p>
+ *
+ * <p>A batch starts with the oldest queued record, and takes the records
+ * behind it until it reaches {@link Builder#maxBatchBytes(int)}, or until
+ * {@link Builder#maxLatency(long, TimeUnit)} has passed since the flusher
+ * took its first record; with the default latency of zero, a batch is
+ * whatever is queued when the flusher gets to it, which under load is
+ * already many records. If a write or sync fails, the futures of that
+ * batch, and of every later record, fail with the exception.</p>
+ *
+ * <pre>
+ * GroupCommitWriter writer = GroupCommitWriter.builder(file).maxLatency(2, TimeUnit.MILLISECONDS).open();
+ * writer.write(event).get();
+ * </pre>
+ *
+ * <p>Unlike {@link RecordLog}, records are not framed: the file is a plain
+ * sequence of canonical expressions, which a
+ * {@link org.metastatic.sexp4j.CanonicalStreamingParser} reads back.</p>
+ */
+public final class GroupCommitWriter implements AutoCloseable {
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    private static final class Pending {
+        final byte[] record;
+        final SettableFuture<Long> future = SettableFuture.create();
+
+        Pending(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * A thread's serialization buffer, and the writer into it.
+     */
+    private static final class Serializer extends ByteArrayOutputStream {
+        final CanonicalWriter writer = new CanonicalWriter(this);
+
+        Serializer() {
+            super(256);
+        }
+
+        byte[] serialize(Expression expression) throws IOException {
+            if (buf.length > MAX_RETAINED_BUFFER)
+                buf = new byte[256];
+            reset();
+            writer.reset(this);
+            writer.writeExpression(expression);
+            return toByteArray();
+        }
+    }
+
+    // Shared by all writers, so a thread keeps at most one buffer however
+    // many writers it uses.
+    private static final ThreadLocal<Serializer> SERIALIZER = new ThreadLocal<Serializer>() {
+        @Override
+        protected Serializer initialValue() {
+            return new Serializer();
+        }
+    };
+
+    private final FileChannel channel;
+    private final boolean sync;
+    private final int maxBatchBytes;
+    private final long maxLatencyNanos;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+    private volatile long committed;
+    private long position;
+
+    private GroupCommitWriter(FileChannel channel, boolean sync, int maxBatchBytes, long maxLatencyNanos,
+                              String name) throws IOException {
+        this.channel = channel;
+        this.sync = sync;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.position = channel.size();
+        this.committed = position;
+        channel.position(position);
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Create a builder for a writer that appends to the given file.
+     *
+     * @param file The file.
+     * @return The builder.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static Builder builder(Path file) {
+        return new Builder(Preconditions.checkNotNull(file));
+    }
+
+    /**
+     * Open a writer with the default settings.
+     *
+     * @param file The file, which is created if it does not exist.
+     * @return The writer.
+     * @throws IOException If the file can't be opened.
+     */
+    public static GroupCommitWriter open(Path file) throws IOException {
+        return builder(file).open();
+    }
+
+    /**
+     * Builder for group-commit writers.
+     */
+    public static final class Builder {
+        private final Path file;
+        private boolean sync = true;
+        private int maxBatchBytes = 1 << 20;
+        private long maxLatencyNanos = 0;
+
+        private Builder(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Set the most bytes to write in one batch. A single record larger
+         * than this is written in a batch of its own. The default is 1 MiB.
+         *
+         * @param bytes The batch size.
+         * @return This builder.
+         * @throws java.lang.IllegalArgumentException If the argument is not positive.
+         */
+        public Builder maxBatchBytes(int bytes) {
+            Preconditions.checkArgument(bytes > 0);
+            this.maxBatchBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Set how long the flusher may wait for more records to fill a
+         * batch, which trades the latency of each record for fewer syncs
+         * under light load. The default is zero.
+         *
+         * @param time The time.
+         * @param unit The unit of the time.
+         * @return This builder.
+         * @throws java.lang.IllegalArgumentException If the time is negative.
+         */
+        public Builder maxLatency(long time, TimeUnit unit) {
+            Preconditions.checkArgument(time >= 0);
+            this.maxLatencyNanos = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Set whether each batch is synced to the disk before its futures
+         * complete. The default is true; without syncing, a completed
+         * record has only reached the operating system.
+         *
+         * @param sync Whether to sync.
+         * @return This builder.
+         */
+        public Builder sync(boolean sync) {
+            this.sync = sync;
+            return this;
+        }
+
+        /**
+         * Open the file, creating it if needed, and start the flusher.
+         *
+         * @return The writer.
+         * @throws IOException If the file can't be opened.
+         */
+        public GroupCommitWriter open() throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                return new GroupCommitWriter(channel, sync, maxBatchBytes, maxLatencyNanos,
+                    "GroupCommitWriter " + file.getFileName());
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Serialize an expression and queue it to be written. This may be
+     * called from any thread.
+     *
+     * @param expression The expression.
+     * @return A future for the offset of the record in the file, which
+     *         completes once the record is committed.
+     * @throws IOException If the expression can't be serialized.
+     * @throws java.lang.IllegalStateException If this writer is closed.
+     */
+    public ListenableFuture<Long> write(Expression expression) throws IOException {
+        Preconditions.checkNotNull(expression);
+        Preconditions.checkState(!closed, "writer is closed");
+        Pending pending = new Pending(SERIALIZER.get().serialize(expression));
+        IOException failed = failure;
+        if (failed != null) {
+            pending.future.setException(failed);
+            return pending.future;
+        }
+        queue.offer(pending);
+        if (closed) {
+            // close() may have drained the queue before this record got
+            // on it; whoever removes it settles it.
+            if (queue.remove(pending))
+                pending.future.setException(new ClosedChannelException());
+        } else if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(flusher);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Return the end of the committed records: the file offset up to
+     * which every record has been written, and synced if syncing is on.
+     *
+     * @return The committed offset.
+     */
+    public long committed() {
+        return committed;
+    }
+
+    /**
+     * Commit the queued records, stop the flusher, and close the file.
+     * Records written concurrently with closing may fail with a
+     * {@link ClosedChannelException}.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        LockSupport.unpark(flusher);
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        failAll(new ClosedChannelException());
+        channel.close();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        while (true) {
+            Pending first = queue.poll();
+            if (first == null) {
+                if (closed && queue.isEmpty())
+                    return;
+                park(0);
+                continue;
+            }
+            batch.add(first);
+            long bytes = first.record.length;
+            long deadline = System.nanoTime() + maxLatencyNanos;
+            while (bytes < maxBatchBytes) {
+                Pending next = queue.peek();
+                if (next == null) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || closed)
+                        break;
+                    park(wait);
+                    continue;
+                }
+                if (bytes + next.record.length > maxBatchBytes)
+                    break;
+                queue.poll();
+                batch.add(next);
+                bytes += next.record.length;
+            }
+            try {
+                commit(batch, buffers);
+            } catch (Throwable t) {
+                // Nothing else would ever complete these futures; fail them,
+                // and every later record, rather than let the thread die.
+                IOException failed = failure;
+                if (failed == null)
+                    failure = failed = new IOException("group commit failed", t);
+                for (Pending p : batch)
+                    p.future.setException(failed);
+            }
+            batch.clear();
+            buffers.clear();
+        }
+    }
+
+    /**
+     * Park the flusher until a record is queued, or the timeout passes.
+     *
+     * @param nanos The timeout, or zero to wait for a record.
+     */
+    private void park(long nanos) {
+        sleeping.set(true);
+        if (queue.isEmpty() && !closed) {
+            if (nanos > 0)
+                LockSupport.parkNanos(this, nanos);
+            else
+                LockSupport.park(this);
+        }
+        sleeping.set(false);
+    }
+
+    private void commit(List<Pending> batch, List<ByteBuffer> buffers) {
+        IOException failed = failure;
+        if (failed == null) {
+            long start = position;
+            try {
+                for (Pending p : batch)
+                    buffers.add(ByteBuffer.wrap(p.record));
+                ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+                int first = 0;
+                while (first < array.length) {
+                    channel.write(array, first, array.length - first);
+                    while (first < array.length && !array[first].hasRemaining())
+                        first++;
+                }
+                if (sync)
+                    channel.force(false);
+            } catch (IOException e) {
+                failure = failed = e;
+            }
+            if (failed == null) {
+                for (Pending p : batch) {
+                    long offset = position;
+                    position += p.record.length;
+                    committed = position;
+                    p.future.set(offset);
+                }
+                return;
+            }
+            position = start;
+        }
+        for (Pending p : batch)
+            p.future.setException(failed);
+    }
+
+    private void failAll(IOException e) {
+        Pending p;
+        while ((p = queue.poll()) != null)
+            p.future.setException(e);
+    }
+}
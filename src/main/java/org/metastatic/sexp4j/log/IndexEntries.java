@@ -0,0 +1,124 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The entries of a {@link RecordIndex} being built: key bytes and record
+ * offsets, kept in primitive arrays and sorted when written.
+ *
+ * <p>An index file is a header &mdash; an eight byte magic number and
+ * version, the entry count and the size of the key area &mdash; followed
+ * by the sorted entries, sixteen bytes each (the record offset, and the
+ * offset and length of the key in the key area), and then the key area.
+ * Runs of equal keys share their bytes. All numbers are big-endian.</p>
+ */
+final class IndexEntries {
+    static final long MAGIC = 0x5358495800000001L; // "SXIX", version 1
+    static final int HEADER = 16;
+    static final int ENTRY = 16;
+
+    private byte[] keys = new byte[4096];
+    private int keysSize = 0;
+    private int[] keyOffsets = new int[256];
+    private int[] keyLengths = new int[256];
+    private long[] offsets = new long[256];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    void add(ByteBuffer key, long offset) throws IOException {
+        int length = key.remaining();
+        if ((long) keysSize + length > Integer.MAX_VALUE - HEADER)
+            throw new IOException("index keys exceed 2 GiB");
+        if (keysSize + length > keys.length)
+            keys = Arrays.copyOf(keys, Math.max(keysSize + length, (int) Math.min(Integer.MAX_VALUE - 8, keys.length * 2L)));
+        if (size == offsets.length) {
+            keyOffsets = Arrays.copyOf(keyOffsets, size * 2);
+            keyLengths = Arrays.copyOf(keyLengths, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        key.duplicate().get(keys, keysSize, length);
+        keyOffsets[size] = keysSize;
+        keyLengths[size] = length;
+        offsets[size] = offset;
+        keysSize += length;
+        size++;
+    }
+
+    private int compare(int a, int b) {
+        int c = compareKeys(keys, keyOffsets[a], keyLengths[a], keys, keyOffsets[b], keyLengths[b]);
+        return c != 0 ? c : Long.compare(offsets[a], offsets[b]);
+    }
+
+    static int compareKeys(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; i++) {
+            int c = (a[aOff + i] & 0xFF) - (b[bOff + i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return aLen - bLen;
+    }
+
+    /**
+     * Sort the entries and write them to a file, replacing it atomically.
+     */
+    void write(Path file) throws IOException {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return IndexEntries.this.compare(a, b);
+            }
+        });
+        // Keys are written in sorted order, once per run of equal keys.
+        int[] written = new int[size];
+        boolean[] shared = new boolean[size];
+        int area = 0;
+        for (int i = 0; i < size; i++) {
+            int e = order[i];
+            if (i > 0 && compareKeys(keys, keyOffsets[e], keyLengths[e],
+                    keys, keyOffsets[order[i - 1]], keyLengths[order[i - 1]]) == 0) {
+                written[i] = written[i - 1];
+                shared[i] = true;
+            } else {
+                written[i] = area;
+                area += keyLengths[e];
+            }
+        }
+        if (HEADER + (long) ENTRY * size + area > Integer.MAX_VALUE)
+            throw new IOException("index exceeds 2 GiB");
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 65536))) {
+            out.writeLong(MAGIC);
+            out.writeInt(size);
+            out.writeInt(area);
+            for (int i = 0; i < size; i++) {
+                int e = order[i];
+                out.writeLong(offsets[e]);
+                out.writeInt(written[i]);
+                out.writeInt(keyLengths[e]);
+            }
+            for (int i = 0; i < size; i++) {
+                int e = order[i];
+                if (!shared[i])
+                    out.write(keys, keyOffsets[e], keyLengths[e]);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,375 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingInputStream;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalStreamingParser;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.RawStreamingParserCallback;
+import org.metastatic.sexp4j.query.PathMatcher;
+import org.metastatic.sexp4j.query.PathQuery;
+
+/**
+ * A sorted index from key atoms to the records that contain them, for a
+ * file of concatenated canonical expressions or for a {@link RecordLog}.
+ *
+ * <p>An index is built in one streaming pass: a {@link PathMatcher}
+ * evaluates the key path on each top-level record, and each atom it
+ * selects becomes an entry mapping the atom's bytes to the record's
+ * offset (for a file) or position (for a log). Selected lists are
+ * ignored, and display hints are not part of keys. The entries are sorted
+ * by key, comparing bytes as unsigned, and then by offset.</p>
+ *
+ * <p>An opened index is memory-mapped, and looked up by binary search;
+ * only the matching records are read and parsed. Lookups are safe from
+ * several threads. Index files are limited to 2 GiB.</p>
+ *
+ * <pre>
+ * RecordIndex.build(PathQuery.compile("event/user/[1]"), in, indexFile);
+ * try (RecordIndex index = RecordIndex.open(indexFile, dataFile)) {
+ *     List&lt;Expression&gt; events = index.get(Atom.atom("alice"));
+ * }
+ * </pre>
+ */
+public final class RecordIndex implements AutoCloseable {
+    private static final PathQuery ANY = PathQuery.compile("*");
+
+    /**
+     * Where the indexed records are read from.
+     */
+    private interface Source {
+        Expression read(long offset) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private final ByteBuffer map;
+    private final int size;
+    private final int keys;
+    private final Source source;
+
+    private RecordIndex(ByteBuffer map, Source source) throws IOException {
+        if (map.limit() < IndexEntries.HEADER || map.getLong(0) != IndexEntries.MAGIC)
+            throw new CorruptRecordException("not a record index");
+        this.map = map;
+        this.size = map.getInt(8);
+        this.keys = IndexEntries.HEADER + IndexEntries.ENTRY * size;
+        if (size < 0 || (long) keys + map.getInt(12) != map.limit())
+            throw new CorruptRecordException("record index has the wrong size");
+        this.source = source;
+    }
+
+    /**
+     * Index a stream of concatenated canonical expressions; offsets are
+     * counted from the start of the stream.
+     *
+     * @param key The key path.
+     * @param canonical The canonical input.
+     * @param indexFile The index file to write, or replace.
+     * @return The number of entries.
+     * @throws org.metastatic.sexp4j.ParseException If the input is invalid.
+     * @throws IOException If an IO exception occurs.
+     */
+    public static int build(PathQuery key, InputStream canonical, Path indexFile) throws IOException {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(indexFile);
+        final CountingInputStream in = new CountingInputStream(new BufferedInputStream(canonical, 65536));
+        final IndexEntries entries = new IndexEntries();
+        final PathMatcher matcher = new PathMatcher(key);
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(in);
+        parser.addCallback(matcher);
+        // Called after the matcher, so the record's matches are complete.
+        parser.addCallback(new RawStreamingParserCallback() {
+            private int depth = 0;
+            private long start = 0;
+
+            @Override
+            public void beginList() {
+                depth++;
+            }
+
+            @Override
+            public void endList() throws ParseException {
+                if (--depth == 0)
+                    recordEnded();
+            }
+
+            @Override
+            public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen)
+                    throws ParseException {
+                if (depth == 0)
+                    recordEnded();
+            }
+
+            private void recordEnded() throws ParseException {
+                try {
+                    addMatches(matcher, entries, start);
+                } catch (IOException e) {
+                    throw new ParseException(e);
+                }
+                matcher.reset();
+                start = in.getCount();
+            }
+        });
+        parser.parse();
+        entries.write(indexFile);
+        return entries.size();
+    }
+
+    /**
+     * Index the committed records of a log; offsets are record positions.
+     *
+     * @param key The key path.
+     * @param log The log.
+     * @param indexFile The index file to write, or replace.
+     * @return The number of entries.
+     * @throws IOException If a record is corrupt, or an IO exception occurs.
+     */
+    public static int build(PathQuery key, RecordLog log, Path indexFile) throws IOException {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(indexFile);
+        IndexEntries entries = new IndexEntries();
+        PathMatcher matcher = new PathMatcher(key);
+        RecordReader reader = log.reader();
+        ByteBufferInputStream in = new ByteBufferInputStream(ByteBuffer.allocate(0));
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(in);
+        parser.addCallback(matcher);
+        while (reader.next()) {
+            in.reset(reader.payload());
+            parser.reset(in);
+            matcher.reset();
+            parser.parse();
+            addMatches(matcher, entries, reader.position());
+        }
+        entries.write(indexFile);
+        return entries.size();
+    }
+
+    private static void addMatches(PathMatcher matcher, IndexEntries entries, long offset) throws IOException {
+        for (Expression e : matcher.matches(0)) {
+            if (e instanceof Atom)
+                entries.add(((Atom) e).asByteBuffer(), offset);
+        }
+    }
+
+    /**
+     * Open an index of a canonical file.
+     *
+     * @param indexFile The index file.
+     * @param dataFile The indexed file.
+     * @return The index.
+     * @throws IOException If the index is invalid, or an IO exception occurs.
+     */
+    public static RecordIndex open(Path indexFile, Path dataFile) throws IOException {
+        final FileChannel data = FileChannel.open(dataFile, StandardOpenOption.READ);
+        try {
+            return new RecordIndex(map(indexFile), new Source() {
+                @Override
+                public Expression read(long offset) throws IOException {
+                    return parseOne(new BufferedInputStream(new ChannelInputStream(data, offset), 8192));
+                }
+
+                @Override
+                public void close() throws IOException {
+                    data.close();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an index of a record log.
+     *
+     * @param indexFile The index file.
+     * @param log The indexed log.
+     * @return The index.
+     * @throws IOException If the index is invalid, or an IO exception occurs.
+     */
+    public static RecordIndex open(Path indexFile, final RecordLog log) throws IOException {
+        Preconditions.checkNotNull(log);
+        return new RecordIndex(map(indexFile), new Source() {
+            @Override
+            public Expression read(long offset) throws IOException {
+                return log.reader().read(offset);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    private static MappedByteBuffer map(Path indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new CorruptRecordException("record index is larger than 2 GiB");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static Expression parseOne(InputStream in) throws IOException {
+        PathMatcher matcher = new PathMatcher(1, ANY);
+        matcher.match(new CanonicalStreamingParser(in));
+        if (!matcher.isSatisfied())
+            throw new ParseException("no record at offset");
+        return matcher.matches(0).get(0);
+    }
+
+    /**
+     * Return the number of entries.
+     *
+     * @return The size.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the offsets of the records with the given key, in order.
+     *
+     * @param key The key; its display hint is ignored.
+     * @return The offsets.
+     */
+    public long[] offsets(Atom key) {
+        byte[] k = key.bytes();
+        return offsets(lowerBound(k, false), lowerBound(k, true));
+    }
+
+    /**
+     * Return the offsets of the records with keys in a range, ordered by
+     * key and then by offset.
+     *
+     * @param from The lowest key, inclusive.
+     * @param to The highest key, exclusive.
+     * @return The offsets.
+     */
+    public long[] offsets(Atom from, Atom to) {
+        int lo = lowerBound(from.bytes(), false);
+        return offsets(lo, Math.max(lo, lowerBound(to.bytes(), false)));
+    }
+
+    private long[] offsets(int lo, int hi) {
+        long[] result = new long[hi - lo];
+        for (int i = lo; i < hi; i++)
+            result[i - lo] = map.getLong(IndexEntries.HEADER + IndexEntries.ENTRY * i);
+        return result;
+    }
+
+    /**
+     * Read and parse the records with the given key.
+     *
+     * @param key The key.
+     * @return The records, in order.
+     * @throws IOException If a record can't be read.
+     */
+    public List<Expression> get(Atom key) throws IOException {
+        return read(offsets(key));
+    }
+
+    /**
+     * Read and parse the records with keys in a range.
+     *
+     * @param from The lowest key, inclusive.
+     * @param to The highest key, exclusive.
+     * @return The records, ordered by key.
+     * @throws IOException If a record can't be read.
+     */
+    public List<Expression> range(Atom from, Atom to) throws IOException {
+        return read(offsets(from, to));
+    }
+
+    private List<Expression> read(long[] offsets) throws IOException {
+        List<Expression> records = new ArrayList<>(offsets.length);
+        for (long offset : offsets)
+            records.add(read(offset));
+        return records;
+    }
+
+    /**
+     * Read and parse the record at an offset.
+     *
+     * @param offset The offset.
+     * @return The record.
+     * @throws IOException If the record can't be read.
+     */
+    public Expression read(long offset) throws IOException {
+        return source.read(offset);
+    }
+
+    /**
+     * Return the index of the first entry whose key is not less than
+     * (or, if strict, greater than) the given key.
+     */
+    private int lowerBound(byte[] key, boolean strict) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, key);
+            if (c < 0 || (strict && c == 0))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int compare(int entry, byte[] key) {
+        int base = IndexEntries.HEADER + IndexEntries.ENTRY * entry;
+        int offset = keys + map.getInt(base + 8);
+        int length = map.getInt(base + 12);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (map.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return length - key.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Reads a file channel from a position, without moving the channel.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+    }
+}
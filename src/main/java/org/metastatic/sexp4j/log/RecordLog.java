@@ -0,0 +1,391 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.WriteException;
+
+/**
+ * An append-only log of canonical expressions, stored in a directory of
+ * segment files.
+ *
+ * <p>Each record is framed with its length and its CRC-32C, and is
+ * identified by its position: a byte offset that increases across
+ * segments. When a record does not fit in the active segment, that
+ * segment is synced and sealed, and a new one is started. Opening a log
+ * scans only its last segment, and discards a torn frame at its end; a
+ * damaged frame followed by intact ones is corruption, and is not
+ * discarded.</p>
+ *
+ * <p>Appends are serialized. A record is committed once it is completely
+ * written; any number of {@link RecordReader}s, on any threads, read
+ * committed records from memory-mapped segments, concurrently with
+ * appends. Committed records are in the operating system's cache, and
+ * reach the disk when the log is synced: explicitly with {@link #sync()},
+ * every so many records with {@link Builder#syncInterval(int)}, and
+ * whenever a segment is sealed or the log is closed.</p>
+ *
+ * <pre>
+ * RecordLog log = RecordLog.builder(directory).segmentSize(1 &lt;&lt; 26).open();
+ * long position = log.append(event);
+ * RecordReader reader = log.reader();
+ * while (reader.next())
+ *     process(reader.expression());
+ * </pre>
+ */
+public final class RecordLog implements AutoCloseable {
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    /**
+     * A frame: room for the frame header, followed by the canonical
+     * encoding of the record.
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int syncInterval;
+    private volatile Segment[] segments;
+    private volatile long committed;
+    private Segment active;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long capacity;
+    private int unsynced = 0;
+    private boolean closed = false;
+    private FrameBuffer frame = new FrameBuffer();
+    private final CanonicalWriter writer = new CanonicalWriter(frame);
+
+    private RecordLog(Path directory, int segmentSize, int syncInterval) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Create a builder for a log in the given directory.
+     *
+     * @param directory The directory.
+     * @return The builder.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public static Builder builder(Path directory) {
+        return new Builder(Preconditions.checkNotNull(directory));
+    }
+
+    /**
+     * Open a log with the default settings.
+     *
+     * @param directory The directory.
+     * @return The log.
+     * @throws IOException If the log can't be opened.
+     * @throws CorruptRecordException If the log is corrupt anywhere but a
+     *         torn frame at its end.
+     */
+    public static RecordLog open(Path directory) throws IOException {
+        return builder(directory).open();
+    }
+
+    /**
+     * Builder for record logs.
+     */
+    public static final class Builder {
+        private final Path directory;
+        private int segmentSize = 64 << 20;
+        private int syncInterval = 0;
+
+        private Builder(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Set the size of segment files. The default is 64 MiB.
+         *
+         * @param segmentSize The segment size, in bytes.
+         * @return This builder.
+         * @throws java.lang.IllegalArgumentException If the size is less than 64 bytes, or more than 2^30.
+         */
+        public Builder segmentSize(int segmentSize) {
+            Preconditions.checkArgument(segmentSize >= 64 && segmentSize <= (1 << 30));
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Sync the log after every so many appended records. The default,
+         * zero, leaves syncing to {@link RecordLog#sync()}, sealing and
+         * closing.
+         *
+         * @param records The number of records between syncs; 1 syncs every append.
+         * @return This builder.
+         * @throws java.lang.IllegalArgumentException If the argument is negative.
+         */
+        public Builder syncInterval(int records) {
+            Preconditions.checkArgument(records >= 0);
+            this.syncInterval = records;
+            return this;
+        }
+
+        /**
+         * Open the log, creating the directory and the first segment if
+         * needed, and recovering the end of the last segment.
+         *
+         * @return The log.
+         * @throws IOException If the log can't be opened.
+         * @throws CorruptRecordException If the log is corrupt anywhere
+         *         but a torn frame at its end.
+         */
+        public RecordLog open() throws IOException {
+            RecordLog log = new RecordLog(directory, segmentSize, syncInterval);
+            log.recover();
+            return log;
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path p : stream) {
+                long base = Segment.parseBase(p.getFileName().toString());
+                if (base >= 0)
+                    bases.add(base);
+            }
+        }
+        Collections.sort(bases);
+        if (bases.isEmpty()) {
+            segments = new Segment[0];
+            startSegment(0);
+            return;
+        }
+        Segment[] found = new Segment[bases.size()];
+        for (int i = 0; i < found.length; i++) {
+            Path path = directory.resolve(Segment.fileName(bases.get(i)));
+            found[i] = new Segment(bases.get(i), path, Files.size(path));
+            if (i > 0 && found[i - 1].end() != found[i].base)
+                throw new CorruptRecordException("segment %s does not follow the previous segment", path);
+        }
+        Segment last = found[found.length - 1];
+        file = new RandomAccessFile(last.path.toFile(), "rw");
+        channel = file.getChannel();
+        long end;
+        try {
+            long size = channel.size();
+            if (size < Segment.HEADER) {
+                writeFully(Segment.header(), 0);
+                end = Segment.HEADER;
+            } else {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (!Segment.validHeader(map))
+                    throw new CorruptRecordException("segment %s has an invalid header", last.path);
+                end = Segment.validEnd(map);
+                if (Segment.hasFrameAfter(map, (int) end))
+                    throw new CorruptRecordException("segment %s has a corrupt record at %d", last.path,
+                        last.base + end);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        // Cut off whatever follows the last intact frame, so it can't be
+        // mistaken for records later, and preallocate again.
+        file.setLength(end);
+        capacity = Math.max(segmentSize, end);
+        file.setLength(capacity);
+        last.setLength(end);
+        active = last;
+        segments = found;
+        committed = last.end();
+    }
+
+    private void startSegment(long base) throws IOException {
+        Path path = directory.resolve(Segment.fileName(base));
+        file = new RandomAccessFile(path.toFile(), "rw");
+        channel = file.getChannel();
+        file.setLength(0);
+        writeFully(Segment.header(), 0);
+        capacity = segmentSize;
+        file.setLength(capacity);
+        Segment segment = new Segment(base, path, Segment.HEADER);
+        Segment[] s = Arrays.copyOf(segments, segments.length + 1);
+        s[s.length - 1] = segment;
+        active = segment;
+        segments = s;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param expression The record.
+     * @return The position of the record.
+     * @throws java.lang.NullPointerException If the argument is null.
+     * @throws java.lang.IllegalStateException If the log is closed.
+     * @throws org.metastatic.sexp4j.WriteException If the record is too large for a segment.
+     * @throws IOException If an IO exception occurs.
+     */
+    public synchronized long append(Expression expression) throws IOException {
+        Preconditions.checkNotNull(expression);
+        Preconditions.checkState(!closed, "log is closed");
+        frame.reset();
+        frame.write(new byte[Segment.FRAME_HEADER], 0, Segment.FRAME_HEADER);
+        writer.reset(frame);
+        writer.writeExpression(expression);
+        int frameLength = frame.size();
+        if (frameLength > segmentSize - Segment.HEADER) {
+            discardLargeFrame();
+            throw new WriteException("record of " + (frameLength - Segment.FRAME_HEADER)
+                + " bytes does not fit in a segment");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame.array(), 0, frameLength);
+        int length = frameLength - Segment.FRAME_HEADER;
+        buffer.putInt(0, length);
+        buffer.putInt(4, Crc32c.checksum(frame.array(), Segment.FRAME_HEADER, length));
+        if (active.length() + frameLength > capacity)
+            seal();
+        long offset = active.length();
+        writeFully(buffer, offset);
+        active.setLength(offset + frameLength);
+        committed = active.end();
+        discardLargeFrame();
+        if (syncInterval > 0 && ++unsynced >= syncInterval)
+            sync0();
+        return active.base + offset;
+    }
+
+    private void discardLargeFrame() {
+        if (frame.array().length > MAX_RETAINED_BUFFER) {
+            frame = new FrameBuffer();
+            writer.reset(frame);
+        }
+    }
+
+    /**
+     * Sync the active segment and truncate it to its last record, and
+     * start a new segment.
+     */
+    private void seal() throws IOException {
+        channel.force(false);
+        file.setLength(active.length());
+        file.close();
+        unsynced = 0;
+        startSegment(active.end());
+    }
+
+    /**
+     * Write all committed records to the disk.
+     *
+     * @throws IOException If an IO exception occurs.
+     */
+    public synchronized void sync() throws IOException {
+        if (!closed)
+            sync0();
+    }
+
+    private void sync0() throws IOException {
+        channel.force(false);
+        unsynced = 0;
+    }
+
+    /**
+     * Return the position just past the last committed record. Readers
+     * stop there.
+     *
+     * @return The committed position.
+     */
+    public long committed() {
+        return committed;
+    }
+
+    /**
+     * Return the position of the first record, if there is one.
+     *
+     * @return The first position.
+     */
+    public long firstPosition() {
+        return segments[0].base + Segment.HEADER;
+    }
+
+    Segment[] segments() {
+        return segments;
+    }
+
+    /**
+     * Return the segment holding a position.
+     */
+    Segment segmentFor(long position) {
+        Segment[] s = segments;
+        int lo = 0, hi = s.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (s[mid].base <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return s[lo];
+    }
+
+    /**
+     * Return a new reader, positioned before the first record.
+     *
+     * @return The reader.
+     */
+    public RecordReader reader() {
+        return new RecordReader(this);
+    }
+
+    /**
+     * Return the directory of this log.
+     *
+     * @return The directory.
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Sync and close this log, truncating the active segment to its last
+     * record. Readers can still read the records committed so far.
+     *
+     * @throws IOException If an IO exception occurs.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            channel.force(false);
+            file.setLength(active.length());
+        } finally {
+            file.close();
+        }
+    }
+}
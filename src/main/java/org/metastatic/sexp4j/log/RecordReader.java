@@ -0,0 +1,162 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.CanonicalParser;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * Reads the committed records of a {@link RecordLog}, in order, from
+ * memory-mapped segments. Each record's checksum is verified as it is
+ * read; its payload is a view of the mapping, and is only parsed on
+ * request.
+ *
+ * <p>A reader that reaches the end of the log can be advanced again
+ * after more records are appended. Readers are not safe to share between
+ * threads, but any number of them may read the same log.</p>
+ */
+public final class RecordReader {
+    private final RecordLog log;
+    private Segment segment;
+    private ByteBuffer map;
+    private long next;
+    private long position = -1;
+    private ByteBuffer payload;
+    private final ByteBufferInputStream input = new ByteBufferInputStream(ByteBuffer.allocate(0));
+    private CanonicalParser parser;
+
+    RecordReader(RecordLog log) {
+        this.log = log;
+        this.next = log.firstPosition();
+    }
+
+    /**
+     * Advance to the next committed record.
+     *
+     * @return True if there is a record, false at the end of the log.
+     * @throws org.metastatic.sexp4j.log.CorruptRecordException If the record is corrupt.
+     * @throws IOException If a segment can't be mapped.
+     */
+    public boolean next() throws IOException {
+        if (next >= log.committed())
+            return false;
+        if (segment == null || next >= segment.end()) {
+            Segment s = log.segmentFor(next);
+            if (s != segment) {
+                segment = s;
+                map = s.buffer();
+            }
+            // A position at the end of a sealed segment continues with
+            // the first record of the following one.
+            if (next == segment.base)
+                next += Segment.HEADER;
+            if (next >= log.committed())
+                return false;
+        }
+        int offset = (int) (next - segment.base);
+        int length = map.getInt(offset);
+        if (length <= 0 || offset + Segment.FRAME_HEADER + length > segment.length())
+            throw new CorruptRecordException("invalid record length %d at position %d", length, next);
+        int start = offset + Segment.FRAME_HEADER;
+        if (Crc32c.checksum(map, start, length) != map.getInt(offset + 4))
+            throw new CorruptRecordException("checksum mismatch at position %d", next);
+        ByteBuffer view = map.duplicate();
+        view.limit(start + length).position(start);
+        payload = view.slice().asReadOnlyBuffer();
+        position = next;
+        next += Segment.FRAME_HEADER + length;
+        return true;
+    }
+
+    /**
+     * Move this reader so that the next call to {@link #next()} reads
+     * the record at the given position.
+     *
+     * @param position A position returned by {@link RecordLog#append(Expression)} or {@link #position()}.
+     * @throws java.lang.IllegalArgumentException If the position is before the first record or after
+     *         the last committed one.
+     */
+    public void seek(long position) {
+        Preconditions.checkArgument(position >= log.firstPosition() && position <= log.committed(),
+            "position out of range: %s", position);
+        next = position;
+        if (segment != null && (position < segment.base || position >= segment.end()))
+            segment = null;
+        this.position = -1;
+        payload = null;
+    }
+
+    /**
+     * Read the record at the given position.
+     *
+     * @param position The position.
+     * @return The record.
+     * @throws java.lang.IllegalArgumentException If there is no record at the position.
+     * @throws org.metastatic.sexp4j.log.CorruptRecordException If the record is corrupt.
+     * @throws IOException If an IO exception occurs.
+     */
+    public Expression read(long position) throws IOException {
+        seek(position);
+        if (!next())
+            throw new IllegalArgumentException("no record at position " + position);
+        return expression();
+    }
+
+    private void checkRecord() {
+        Preconditions.checkState(payload != null, "no current record");
+    }
+
+    /**
+     * Return the position of the current record.
+     *
+     * @return The position.
+     * @throws java.lang.IllegalStateException If there is no current record.
+     */
+    public long position() {
+        checkRecord();
+        return position;
+    }
+
+    /**
+     * Return the canonical encoding of the current record, as a
+     * read-only view of the segment.
+     *
+     * @return The payload.
+     * @throws java.lang.IllegalStateException If there is no current record.
+     */
+    public ByteBuffer payload() {
+        checkRecord();
+        return payload.duplicate();
+    }
+
+    /**
+     * Return a stream over the canonical encoding of the current record,
+     * to parse it with a streaming parser.
+     *
+     * @return The stream.
+     * @throws java.lang.IllegalStateException If there is no current record.
+     */
+    public InputStream payloadStream() {
+        return new ByteBufferInputStream(payload());
+    }
+
+    /**
+     * Parse the current record.
+     *
+     * @return The record.
+     * @throws java.lang.IllegalStateException If there is no current record.
+     * @throws org.metastatic.sexp4j.ParseException If the record is not a canonical expression.
+     * @throws IOException If an IO exception occurs.
+     */
+    public Expression expression() throws IOException {
+        input.reset(payload());
+        if (parser == null)
+            parser = new CanonicalParser(input);
+        else
+            parser.reset(input);
+        return parser.parse();
+    }
+}
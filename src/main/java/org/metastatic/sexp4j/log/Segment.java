@@ -0,0 +1,137 @@
+package org.metastatic.sexp4j.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One file of a record log. A segment file starts with an eight byte
+ * header, followed by frames: a four byte payload length, the four byte
+ * CRC-32C of the payload, and the payload, all big-endian. The active
+ * segment is preallocated, and the end of its frames is marked by a zero
+ * length; a sealed segment is truncated to its last frame.
+ *
+ * <p>Each segment is mapped once, on first read, and the mapping is
+ * shared by all readers.</p>
+ */
+final class Segment {
+    static final int HEADER = 8;
+    static final int FRAME_HEADER = 8;
+    private static final long MAGIC = 0x53584c4700000001L; // "SXLG", version 1
+    private static final String SUFFIX = ".sxlog";
+
+    final long base;
+    final Path path;
+    private volatile long length;
+    private volatile MappedByteBuffer map;
+
+    Segment(long base, Path path, long length) {
+        this.base = base;
+        this.path = path;
+        this.length = length;
+    }
+
+    static String fileName(long base) {
+        return String.format("%020d%s", base, SUFFIX);
+    }
+
+    /**
+     * Return the base position encoded in a segment file name, or -1 if
+     * it is not the name of a segment.
+     */
+    static long parseBase(String fileName) {
+        if (fileName.length() != 20 + SUFFIX.length() || !fileName.endsWith(SUFFIX))
+            return -1;
+        long base = 0;
+        for (int i = 0; i < 20; i++) {
+            char c = fileName.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            base = base * 10 + (c - '0');
+        }
+        return base;
+    }
+
+    static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(0, MAGIC);
+        return header;
+    }
+
+    static boolean validHeader(ByteBuffer segment) {
+        return segment.limit() >= HEADER && segment.getLong(0) == MAGIC;
+    }
+
+    /**
+     * Return the offset just past the last intact frame of a segment,
+     * scanning from its first frame.
+     */
+    static int validEnd(ByteBuffer segment) {
+        int offset = HEADER;
+        int limit = segment.limit();
+        while (limit - offset >= FRAME_HEADER) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || length > limit - offset - FRAME_HEADER)
+                break;
+            if (Crc32c.checksum(segment, offset + FRAME_HEADER, length) != segment.getInt(offset + 4))
+                break;
+            offset += FRAME_HEADER + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Tell if an intact frame starts anywhere after the given offset.
+     * Nothing is ever written past the end of a segment's frames, so if
+     * one does, the frame at the offset was damaged in place, rather
+     * than torn by a crash.
+     */
+    static boolean hasFrameAfter(ByteBuffer segment, int offset) {
+        int limit = segment.limit();
+        for (int i = offset + 1; limit - i >= FRAME_HEADER; i++) {
+            int length = segment.getInt(i);
+            if (length > 0 && length <= limit - i - FRAME_HEADER
+                    && Crc32c.checksum(segment, i + FRAME_HEADER, length) == segment.getInt(i + 4))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The number of bytes of this segment holding complete frames,
+     * including the header.
+     */
+    long length() {
+        return length;
+    }
+
+    long end() {
+        return base + length;
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    /**
+     * Return a view of this segment's mapping.
+     */
+    ByteBuffer buffer() throws IOException {
+        MappedByteBuffer m = map;
+        if (m == null) {
+            synchronized (this) {
+                m = map;
+                if (m == null) {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        m = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    }
+                    map = m;
+                }
+            }
+        }
+        return m.duplicate();
+    }
+}
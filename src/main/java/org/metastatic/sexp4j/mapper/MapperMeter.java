@@ -0,0 +1,39 @@
+package org.metastatic.sexp4j.mapper;
+
+import org.metastatic.sexp4j.MetricsRecorder;
+import org.metastatic.sexp4j.OperationMetrics;
+
+/**
+ * Times mapper operations. Encoders and decoders call back into their
+ * mapper for nested values, so only the outermost call on each thread is
+ * recorded.
+ */
+final class MapperMeter {
+    private final MetricsRecorder recorder;
+    private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    MapperMeter(MetricsRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Enter an operation.
+     *
+     * @return The start time, or zero if this call is nested in another.
+     */
+    long enter() {
+        return depth.get()[0]++ == 0 ? System.nanoTime() : 0;
+    }
+
+    void exit(OperationMetrics.Operation operation, long start, Throwable error) {
+        // The time is only read by the outermost call; nanoTime may be
+        // negative, so it can't mark nested calls.
+        if (--depth.get()[0] == 0)
+            recorder.record(new OperationMetrics(operation, 0, 0, 0, 0, 0, System.nanoTime() - start, error));
+    }
+}
@@ -1,6 +1,7 @@
 package org.metastatic.sexp4j.mapper;
 
 import com.google.common.annotations.Beta;
+import com.google.common.base.Optional;
 import org.metastatic.sexp4j.*;
 
 import java.lang.reflect.*;
@@ -13,6 +14,32 @@ import java.util.*;
  */
 @Beta
 public class ObjectMapper {
+    private final Optional<StringCache> stringCache;
+    private volatile MapperMeter meter;
+
+    /**
+     * Create a new mapper, which decodes a new instance for every string.
+     */
+    public ObjectMapper() {
+        this.stringCache = Optional.absent();
+    }
+
+    /**
+     * Create a new mapper, which decodes field names and strings through
+     * the given cache.
+     *
+     * @param stringCache The string cache.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public ObjectMapper(StringCache stringCache) {
+        this.stringCache = Optional.of(stringCache);
+    }
+
+    private String stringValue(Atom atom) {
+        if (stringCache.isPresent())
+            return atom.stringValue(stringCache.get());
+        return atom.stringValue();
+    }
 
     private interface ValueSetter {
         void setValue(Object o, String fieldName, Object value) throws IllegalAccessException, InvocationTargetException;
@@ -139,7 +166,34 @@ public class ObjectMapper {
         return fieldIndex;
     }
 
+    /**
+     * Time this mapper's reads and writes with the given recorder, or stop
+     * timing them. Each top-level call to {@link #writeObject(Object)} or
+     * {@link #readObject(Expression, Class)} is one operation.
+     *
+     * @param recorder The recorder, or null to turn metrics off.
+     */
+    public void setMetrics(MetricsRecorder recorder) {
+        meter = recorder != null ? new MapperMeter(recorder) : null;
+    }
+
     public Expression writeObject(Object o) throws InvocationTargetException, IllegalAccessException {
+        MapperMeter meter = this.meter;
+        if (meter == null)
+            return writeValue(o);
+        long start = meter.enter();
+        Throwable error = null;
+        try {
+            return writeValue(o);
+        } catch (Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            meter.exit(OperationMetrics.Operation.Encode, start, error);
+        }
+    }
+
+    private Expression writeValue(Object o) throws InvocationTargetException, IllegalAccessException {
         if (o == null)
             return new Atom(new byte[0]);
         Class clazz = o.getClass();
@@ -168,19 +222,35 @@ public class ObjectMapper {
                 return new Atom((byte[]) o);
             ExpressionList list = new ExpressionList(Array.getLength(o));
             for (int i = 0; i < Array.getLength(o); i++) {
-                list.add(writeObject(Array.get(o, i)));
+                list.add(writeValue(Array.get(o, i)));
             }
             return list;
         }
         Map<String, ClassFieldIndex> index = index(clazz);
         ExpressionList list = new ExpressionList(index.size());
         for (Map.Entry<String, ClassFieldIndex> e : index.entrySet()) {
-            list.add(ExpressionList.list(writeObject(e.getKey()), writeObject(e.getValue().getter.getValue(o, e.getKey()))));
+            list.add(ExpressionList.list(writeValue(e.getKey()), writeValue(e.getValue().getter.getValue(o, e.getKey()))));
         }
         return list;
     }
 
     public <T> T readObject(Expression expr, Class<T> clazz) throws InstantiationException, IllegalAccessException, MapperException, InvocationTargetException {
+        MapperMeter meter = this.meter;
+        if (meter == null)
+            return readValue(expr, clazz);
+        long start = meter.enter();
+        Throwable error = null;
+        try {
+            return readValue(expr, clazz);
+        } catch (Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            meter.exit(OperationMetrics.Operation.Decode, start, error);
+        }
+    }
+
+    private <T> T readValue(Expression expr, Class<T> clazz) throws InstantiationException, IllegalAccessException, MapperException, InvocationTargetException {
         if (expr instanceof ExpressionList)
             return readObject((ExpressionList) expr, clazz);
         return readObject((Atom) expr, clazz);
@@ -192,7 +262,7 @@ public class ObjectMapper {
             T result = (T) Array.newInstance(elemClass, list.size());
             int i = 0;
             for (Expression e : list) {
-                Array.set(result, i++, readObject(e, elemClass));
+                Array.set(result, i++, readValue(e, elemClass));
             }
             return result;
         }
@@ -201,10 +271,10 @@ public class ObjectMapper {
         for (Expression e : list) {
             if (!(e instanceof ExpressionList) || ((ExpressionList) e).size() != 2 || !(((ExpressionList) e).get(0) instanceof Atom))
                 throw new IllegalArgumentException("expected a list of two elements, with an atom for the first");
-            String key = ((Atom) ((ExpressionList) e).get(0)).stringValue();
+            String key = stringValue((Atom) ((ExpressionList) e).get(0));
             if (!index.containsKey(key))
                 throw new MapperException("could not find field to set for key: " + key);
-            index.get(key).setter.setValue(result, key, readObject(((ExpressionList) e).get(1), index.get(key).type));
+            index.get(key).setter.setValue(result, key, readValue(((ExpressionList) e).get(1), index.get(key).type));
         }
         return result;
     }
@@ -233,7 +303,7 @@ public class ObjectMapper {
             return (T) Double.valueOf(atom.doubleValue());
         }
         if (clazz.equals(String.class)) {
-            return (T) atom.stringValue();
+            return (T) stringValue(atom);
         }
         if (clazz.equals(BigInteger.class)) {
             return (T) atom.bigIntegerValue();
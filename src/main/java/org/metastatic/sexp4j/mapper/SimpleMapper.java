@@ -2,12 +2,18 @@ package org.metastatic.sexp4j.mapper;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import com.google.common.annotations.Beta;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import org.metastatic.sexp4j.Atom;
 import org.metastatic.sexp4j.Expression;
 import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.MetricsRecorder;
+import org.metastatic.sexp4j.OperationMetrics;
+import org.metastatic.sexp4j.StringCache;
 
 /**
  * A "simple" mapper between Java objects and expressions.
@@ -31,6 +37,17 @@ import org.metastatic.sexp4j.ExpressionList;
  *         <li>BigInteger, result of toByteArray, display hint "I".</li>
  *         <li>BigDecimal, result of toString then encoded as UTF-8, display hint "D".</li>
  *     </ul></li>
+ *     <li>Arrays of primitives other than bytes. These are packed into a single atom, containing each
+ *     element in turn, in the same big-endian encoding as the single values above:
+ *     <ul>
+ *         <li>boolean[], display hint "Z".</li>
+ *         <li>short[], display hint "H".</li>
+ *         <li>char[], display hint "C".</li>
+ *         <li>int[], display hint "N".</li>
+ *         <li>long[], display hint "J".</li>
+ *         <li>float[], display hint "F".</li>
+ *         <li>double[], display hint "G".</li>
+ *     </ul></li>
  *     <li>A list of simpler objects. This is encoded as a list: a type code atom "l", then the sequence of simpler expressions.</li>
  *     <li>A set of simpler objects. This is encoded as a list: a type code atom "s", then the sequence of simpler expressions.</li>
  *     <li>A map of strings to any simpler type. This is encoded as a list: a type code atom "m", then a sequence of key/value expressions.
@@ -73,6 +90,13 @@ public class SimpleMapper {
         BigInt((byte) 'I'),
         BigDecimal((byte) 'D'),
         Bytes((byte) 'B'),
+        BoolArray((byte) 'Z'),
+        ShortArray((byte) 'H'),
+        CharArray((byte) 'C'),
+        IntArray((byte) 'N'),
+        LongArray((byte) 'J'),
+        FloatArray((byte) 'F'),
+        DoubleArray((byte) 'G'),
         List((byte) 'l'),
         Set((byte) 's'),
         Map((byte) 'm');
@@ -88,64 +112,421 @@ public class SimpleMapper {
         return new Atom(code, bytes);
     }
 
-    public Expression encode(Object o) throws MapperException {
-        if (o == null)
-            return new Atom(new byte[0]).withHint(Type.Null.code);
-        Class clazz = o.getClass();
-        if (clazz.equals(Boolean.class))
-            return new Atom(new byte[] { (boolean) o ? (byte) 1 : (byte) 0 }).withHint(Type.Bool.code);
-        if (clazz.equals(Byte.class))
-            return new Atom(new byte[] { (byte) o }).withHint(Type.Byte.code);
-        if (clazz.equals(Short.class))
-            return Atom.atom((short) o).withHint(Type.Short.code);
-        if (clazz.equals(Character.class))
-            return Atom.atom((char) o).withHint(Type.Char.code);
-        if (clazz.equals(Integer.class))
-            return Atom.atom((int) o).withHint(Type.Int.code);
-        if (clazz.equals(Long.class))
-            return Atom.atom((long) o).withHint(Type.Long.code);
-        if (clazz.equals(Float.class))
-            return Atom.atom((float) o).withHint(Type.Float.code);
-        if (clazz.equals(Double.class))
-            return Atom.atom((double) o).withHint(Type.Double.code);
-        if (clazz.equals(String.class))
-            return Atom.atom((String) o).withHint(Type.String.code);
-        if (clazz.equals(BigInteger.class))
-            return new Atom(((BigInteger) o).toByteArray()).withHint(Type.BigInt.code);
-        if (clazz.equals(BigDecimal.class))
-            return Atom.atom(o.toString()).withHint(Type.BigDecimal.code);
-        if (clazz.isArray() && clazz.getComponentType().equals(Byte.TYPE))
-            return new Atom((byte[]) o).withHint(Type.Bytes.code);
-        if (List.class.isAssignableFrom(clazz)) {
-            ExpressionList list = new ExpressionList(((List) o).size() + 1);
+    /**
+     * Encodes values of one class into expressions. Register instances
+     * with {@link #register(Class, Encoder)} to encode custom types.
+     */
+    public interface Encoder {
+        /**
+         * Encode a value.
+         *
+         * @param mapper The mapper, for encoding nested values.
+         * @param value The value to encode; never null.
+         * @return The encoded expression.
+         * @throws MapperException If the value can't be encoded.
+         */
+        Expression encode(SimpleMapper mapper, Object value) throws MapperException;
+    }
+
+    private static final Encoder BOOL_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((boolean) value ? (byte) 1 : (byte) 0).withHint(Type.Bool.code);
+        }
+    };
+
+    private static final Encoder BYTE_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((byte) value).withHint(Type.Byte.code);
+        }
+    };
+
+    private static final Encoder SHORT_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((short) value).withHint(Type.Short.code);
+        }
+    };
+
+    private static final Encoder CHAR_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((char) value).withHint(Type.Char.code);
+        }
+    };
+
+    private static final Encoder INT_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((int) value).withHint(Type.Int.code);
+        }
+    };
+
+    private static final Encoder LONG_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((long) value).withHint(Type.Long.code);
+        }
+    };
+
+    private static final Encoder FLOAT_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((float) value).withHint(Type.Float.code);
+        }
+    };
+
+    private static final Encoder DOUBLE_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((double) value).withHint(Type.Double.code);
+        }
+    };
+
+    private static final Encoder STRING_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((String) value).withHint(Type.String.code);
+        }
+    };
+
+    private static final Encoder BIGINT_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((BigInteger) value).withHint(Type.BigInt.code);
+        }
+    };
+
+    private static final Encoder BIGDECIMAL_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom(value.toString()).withHint(Type.BigDecimal.code);
+        }
+    };
+
+    private static final Encoder BYTES_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return new Atom((byte[]) value).withHint(Type.Bytes.code);
+        }
+    };
+
+    private static final Encoder BOOL_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((boolean[]) value).withHint(Type.BoolArray.code);
+        }
+    };
+
+    private static final Encoder SHORT_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((short[]) value).withHint(Type.ShortArray.code);
+        }
+    };
+
+    private static final Encoder CHAR_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((char[]) value).withHint(Type.CharArray.code);
+        }
+    };
+
+    private static final Encoder INT_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((int[]) value).withHint(Type.IntArray.code);
+        }
+    };
+
+    private static final Encoder LONG_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((long[]) value).withHint(Type.LongArray.code);
+        }
+    };
+
+    private static final Encoder FLOAT_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((float[]) value).withHint(Type.FloatArray.code);
+        }
+    };
+
+    private static final Encoder DOUBLE_ARRAY_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) {
+            return Atom.atom((double[]) value).withHint(Type.DoubleArray.code);
+        }
+    };
+
+    private static final Encoder LIST_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) throws MapperException {
+            List<?> l = (List<?>) value;
+            ExpressionList list = new ExpressionList(l.size() + 1);
             list.add(Atom.atom(Type.List.code));
-            for (Object e : ((List) o))
-                list.add(encode(e));
+            if (l instanceof RandomAccess) {
+                for (int i = 0, n = l.size(); i < n; i++)
+                    list.add(mapper.encode(l.get(i)));
+            }
+            else {
+                for (Object e : l)
+                    list.add(mapper.encode(e));
+            }
             return list;
         }
-        if (Set.class.isAssignableFrom(clazz)) {
-            ExpressionList list = new ExpressionList(((Set) o).size() + 1);
+    };
+
+    private static final Encoder SET_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) throws MapperException {
+            Set<?> set = (Set<?>) value;
+            ExpressionList list = new ExpressionList(set.size() + 1);
             list.add(Atom.atom(Type.Set.code));
-            for (Object e : (Set) o)
-                list.add(encode(e));
+            for (Object e : set)
+                list.add(mapper.encode(e));
             return list;
         }
-        if (Map.class.isAssignableFrom(clazz)) {
-            ExpressionList list = new ExpressionList(((Map) o).size() * 2 + 1);
+    };
+
+    private static final Encoder MAP_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) throws MapperException {
+            Map<?, ?> map = (Map<?, ?>) value;
+            ExpressionList list = new ExpressionList(map.size() * 2 + 1);
             list.add(Atom.atom(Type.Map.code));
-            for (Object e : ((Map) o).entrySet()) {
-                Map.Entry entry = (Map.Entry) e;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
                 if (!(entry.getKey() instanceof String) || ((String) entry.getKey()).isEmpty())
                     throw new MapperException("map keys must be nonempty strings");
                 list.add(Atom.atom((String) entry.getKey()));
-                list.add(encode(((Map.Entry) e).getValue()));
+                list.add(mapper.encode(entry.getValue()));
             }
             return list;
         }
-        throw new MapperException("don't know how to encode a " + clazz);
+    };
+
+    private static final Encoder UNKNOWN_ENCODER = new Encoder() {
+        @Override
+        public Expression encode(SimpleMapper mapper, Object value) throws MapperException {
+            throw new MapperException("don't know how to encode a " + value.getClass());
+        }
+    };
+
+    private static final Map<Class<?>, Encoder> BUILTIN_ENCODERS = new HashMap<>();
+
+    static {
+        BUILTIN_ENCODERS.put(Boolean.class, BOOL_ENCODER);
+        BUILTIN_ENCODERS.put(Byte.class, BYTE_ENCODER);
+        BUILTIN_ENCODERS.put(Short.class, SHORT_ENCODER);
+        BUILTIN_ENCODERS.put(Character.class, CHAR_ENCODER);
+        BUILTIN_ENCODERS.put(Integer.class, INT_ENCODER);
+        BUILTIN_ENCODERS.put(Long.class, LONG_ENCODER);
+        BUILTIN_ENCODERS.put(Float.class, FLOAT_ENCODER);
+        BUILTIN_ENCODERS.put(Double.class, DOUBLE_ENCODER);
+        BUILTIN_ENCODERS.put(String.class, STRING_ENCODER);
+        BUILTIN_ENCODERS.put(BigInteger.class, BIGINT_ENCODER);
+        BUILTIN_ENCODERS.put(BigDecimal.class, BIGDECIMAL_ENCODER);
+        BUILTIN_ENCODERS.put(byte[].class, BYTES_ENCODER);
+        BUILTIN_ENCODERS.put(boolean[].class, BOOL_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(short[].class, SHORT_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(char[].class, CHAR_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(int[].class, INT_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(long[].class, LONG_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(float[].class, FLOAT_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(double[].class, DOUBLE_ARRAY_ENCODER);
+        BUILTIN_ENCODERS.put(ArrayList.class, LIST_ENCODER);
+        BUILTIN_ENCODERS.put(LinkedList.class, LIST_ENCODER);
+        BUILTIN_ENCODERS.put(HashSet.class, SET_ENCODER);
+        BUILTIN_ENCODERS.put(LinkedHashSet.class, SET_ENCODER);
+        BUILTIN_ENCODERS.put(TreeSet.class, SET_ENCODER);
+        BUILTIN_ENCODERS.put(HashMap.class, MAP_ENCODER);
+        BUILTIN_ENCODERS.put(LinkedHashMap.class, MAP_ENCODER);
+        BUILTIN_ENCODERS.put(TreeMap.class, MAP_ENCODER);
+    }
+
+    private final Map<Class<?>, Encoder> customEncoders = new LinkedHashMap<>();
+    private volatile ClassValue<Encoder> encoders = newEncoderTable();
+
+    private ClassValue<Encoder> newEncoderTable() {
+        return new ClassValue<Encoder>() {
+            @Override
+            protected Encoder computeValue(Class<?> type) {
+                return resolveEncoder(type);
+            }
+        };
+    }
+
+    private Encoder resolveEncoder(Class<?> clazz) {
+        synchronized (customEncoders) {
+            Encoder encoder = customEncoders.get(clazz);
+            if (encoder != null)
+                return encoder;
+            for (Map.Entry<Class<?>, Encoder> e : customEncoders.entrySet()) {
+                if (e.getKey().isAssignableFrom(clazz))
+                    return e.getValue();
+            }
+        }
+        Encoder encoder = BUILTIN_ENCODERS.get(clazz);
+        if (encoder != null)
+            return encoder;
+        if (List.class.isAssignableFrom(clazz))
+            return LIST_ENCODER;
+        if (Set.class.isAssignableFrom(clazz))
+            return SET_ENCODER;
+        if (Map.class.isAssignableFrom(clazz))
+            return MAP_ENCODER;
+        return UNKNOWN_ENCODER;
+    }
+
+    /**
+     * Register an encoder for a custom type. The encoder is used for
+     * the given class and for its subclasses (or implementations),
+     * and takes precedence over the built-in encodings. If more than
+     * one registered type matches a class, the first registered wins.
+     *
+     * @param clazz The class to encode.
+     * @param encoder The encoder.
+     * @throws java.lang.NullPointerException If either argument is null.
+     */
+    public void register(Class<?> clazz, Encoder encoder) {
+        Preconditions.checkNotNull(clazz);
+        Preconditions.checkNotNull(encoder);
+        synchronized (customEncoders) {
+            customEncoders.put(clazz, encoder);
+            // Classes may already have been resolved against the old registrations.
+            encoders = newEncoderTable();
+        }
+    }
+
+    private final Optional<StringCache> stringCache;
+    private volatile MapperMeter meter;
+
+    /**
+     * Create a new mapper, which decodes a new instance for every string.
+     */
+    public SimpleMapper() {
+        this.stringCache = Optional.absent();
+    }
+
+    /**
+     * Create a new mapper, which decodes map keys and strings through
+     * the given cache.
+     *
+     * @param stringCache The string cache.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public SimpleMapper(StringCache stringCache) {
+        this.stringCache = Optional.of(stringCache);
+    }
+
+    private String stringValue(Atom atom) {
+        if (stringCache.isPresent())
+            return atom.stringValue(stringCache.get());
+        return atom.stringValue();
+    }
+
+    /**
+     * Time this mapper's encodes and decodes with the given recorder, or
+     * stop timing them. Each top-level call to {@link #encode(Object)} or
+     * {@link #decode(Expression)} is one operation; calls made by encoders
+     * for nested values are part of it.
+     *
+     * @param recorder The recorder, or null to turn metrics off.
+     */
+    public void setMetrics(MetricsRecorder recorder) {
+        meter = recorder != null ? new MapperMeter(recorder) : null;
+    }
+
+    public Expression encode(Object o) throws MapperException {
+        MapperMeter meter = this.meter;
+        if (meter == null)
+            return encodeValue(o);
+        long start = meter.enter();
+        Throwable error = null;
+        try {
+            return encodeValue(o);
+        } catch (MapperException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            meter.exit(OperationMetrics.Operation.Encode, start, error);
+        }
+    }
+
+    private Expression encodeValue(Object o) throws MapperException {
+        if (o == null)
+            return new Atom(new byte[0]).withHint(Type.Null.code);
+        return encoders.get(o.getClass()).encode(this, o);
+    }
+
+    private ByteBuffer arrayBuffer(Atom atom, int elementSize) throws MapperException {
+        if (atom.length() % elementSize != 0)
+            throw new MapperException("packed array length %d is not a multiple of %d", atom.length(), elementSize);
+        return atom.asByteBuffer();
+    }
+
+    private Object decodeArray(Atom atom, byte code) throws MapperException {
+        switch (code) {
+            case 'Z': {
+                boolean[] array = new boolean[atom.length()];
+                ByteBuffer buffer = atom.asByteBuffer();
+                for (int i = 0; i < array.length; i++)
+                    array[i] = buffer.get(i) != 0;
+                return array;
+            }
+            case 'H': {
+                short[] array = new short[atom.length() / 2];
+                arrayBuffer(atom, 2).asShortBuffer().get(array);
+                return array;
+            }
+            case 'C': {
+                char[] array = new char[atom.length() / 2];
+                arrayBuffer(atom, 2).asCharBuffer().get(array);
+                return array;
+            }
+            case 'N': {
+                int[] array = new int[atom.length() / 4];
+                arrayBuffer(atom, 4).asIntBuffer().get(array);
+                return array;
+            }
+            case 'J': {
+                long[] array = new long[atom.length() / 8];
+                arrayBuffer(atom, 8).asLongBuffer().get(array);
+                return array;
+            }
+            case 'F': {
+                float[] array = new float[atom.length() / 4];
+                arrayBuffer(atom, 4).asFloatBuffer().get(array);
+                return array;
+            }
+            case 'G': {
+                double[] array = new double[atom.length() / 8];
+                arrayBuffer(atom, 8).asDoubleBuffer().get(array);
+                return array;
+            }
+            default: throw new MapperException("invalid packed array type code: %02x", code);
+        }
     }
 
     public Object decode(Expression e) throws MapperException {
+        MapperMeter meter = this.meter;
+        if (meter == null)
+            return decodeValue(e);
+        long start = meter.enter();
+        Throwable error = null;
+        try {
+            return decodeValue(e);
+        } catch (MapperException | RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            meter.exit(OperationMetrics.Operation.Decode, start, error);
+        }
+    }
+
+    private Object decodeValue(Expression e) throws MapperException {
         if (e instanceof Atom) {
             byte code = '['; // if no explicit display hint, default to plain byte arrays.
             if (((Atom) e).displayHint().isPresent()) {
@@ -161,10 +542,17 @@ public class SimpleMapper {
                 case 'l': return ((Atom) e).longValue();
                 case 'f': return ((Atom) e).floatValue();
                 case 'd': return ((Atom) e).doubleValue();
-                case 'S': return ((Atom) e).stringValue();
+                case 'S': return stringValue((Atom) e);
                 case 'B': return ((Atom) e).bytes();
                 case 'I': return ((Atom) e).bigIntegerValue();
                 case 'D': return ((Atom) e).bigDecimalValue();
+                case 'Z':
+                case 'H':
+                case 'C':
+                case 'N':
+                case 'J':
+                case 'F':
+                case 'G': return decodeArray((Atom) e, code);
                 default: throw new MapperException("invalid atom type code: %02x", ((Atom) e).typeCode());
             }
         }
@@ -177,13 +565,13 @@ public class SimpleMapper {
                 case 'l': {
                     List l = new ArrayList<>(list.size() - 1);
                     for (Expression ex : list.subList(1, list.size()))
-                        l.add(decode(ex));
+                        l.add(decodeValue(ex));
                     return l;
                 }
                 case 's': {
                     LinkedHashMap m = new LinkedHashMap(list.size() - 1);
                     for (Expression ex : list.subList(1, list.size())) {
-                        Object v = decode(ex);
+                        Object v = decodeValue(ex);
                         m.put(v, v);
                     }
                     return m.keySet();
@@ -197,8 +585,8 @@ public class SimpleMapper {
                         Object key = list.get(i);
                         if (!(key instanceof Atom) || ((Atom) key).length() == 0)
                             throw new MapperException("map keys must be nonempty atoms");
-                        Object value = decode(list.get(i + 1));
-                        m.put(((Atom) key).stringValue(), value);
+                        Object value = decodeValue(list.get(i + 1));
+                        m.put(stringValue((Atom) key), value);
                     }
                     return m;
                 }
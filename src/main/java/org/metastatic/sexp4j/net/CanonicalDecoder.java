@@ -0,0 +1,281 @@
+package org.metastatic.sexp4j.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.DisplayHint;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ParseException;
+
+/**
+ * An incremental decoder for canonical expressions, fed from buffers as
+ * bytes arrive.
+ *
+ * <p>Unlike {@link org.metastatic.sexp4j.CanonicalStreamingParser}, which
+ * pulls from a stream and blocks, the decoder is pushed whatever bytes
+ * are available, keeps its state between calls, and returns each
+ * top-level expression once its last byte has been seen. Canonical
+ * expressions delimit themselves, so each one is a frame, with no other
+ * framing needed.</p>
+ *
+ * <pre>
+ * buffer.flip();
+ * Expression e;
+ * while ((e = decoder.decode(buffer)) != null)
+ *     handle(e);
+ * buffer.compact();
+ * </pre>
+ *
+ * <p>Atom lengths, list depth, and the encoded length of each expression
+ * are limited, so that a peer cannot make the decoder allocate without
+ * bound: what is allocated for one expression grows in proportion to its
+ * encoded length, which stops at the limit. Whitespace between top-level
+ * expressions doesn't count. Instances are not thread-safe.</p>
+ */
+public final class CanonicalDecoder {
+    /**
+     * The default maximum atom length, 16 MiB.
+     */
+    public static final int DEFAULT_MAX_ATOM_LENGTH = 16 << 20;
+
+    /**
+     * The default maximum list depth.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 1024;
+
+    /**
+     * The default maximum encoded length of one top-level expression,
+     * 32 MiB.
+     */
+    public static final int DEFAULT_MAX_EXPRESSION_LENGTH = 32 << 20;
+
+    private static enum State {
+        Start,
+        Length,
+        Atom,
+        HintLength,
+        Hint,
+        HintEnd
+    }
+
+    private final int maxAtomLength;
+    private final int maxDepth;
+    private final int maxExpressionLength;
+    private final List<ExpressionList> stack = new ArrayList<>();
+    private State state = State.Start;
+    private long length;
+    private byte[] atom = new byte[64];
+    private int atomFilled;
+    private byte[] hint = new byte[16];
+    private int hintLength = -1;
+    // Bytes of the current top-level expression decoded so far.
+    private long expressionLength;
+
+    /**
+     * Create a decoder with the default limits.
+     */
+    public CanonicalDecoder() {
+        this(DEFAULT_MAX_ATOM_LENGTH, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Create a decoder, with the default limit on the length of an
+     * expression.
+     *
+     * @param maxAtomLength The longest atom, or display hint, to accept.
+     * @param maxDepth The deepest list nesting to accept.
+     * @throws java.lang.IllegalArgumentException If either limit is not positive.
+     */
+    public CanonicalDecoder(int maxAtomLength, int maxDepth) {
+        this(maxAtomLength, maxDepth, DEFAULT_MAX_EXPRESSION_LENGTH);
+    }
+
+    /**
+     * Create a decoder.
+     *
+     * @param maxAtomLength The longest atom, or display hint, to accept.
+     * @param maxDepth The deepest list nesting to accept.
+     * @param maxExpressionLength The longest encoded top-level expression
+     *        to accept.
+     * @throws java.lang.IllegalArgumentException If any limit is not positive.
+     */
+    public CanonicalDecoder(int maxAtomLength, int maxDepth, int maxExpressionLength) {
+        Preconditions.checkArgument(maxAtomLength > 0);
+        Preconditions.checkArgument(maxDepth > 0);
+        Preconditions.checkArgument(maxExpressionLength > 0);
+        this.maxAtomLength = maxAtomLength;
+        this.maxDepth = maxDepth;
+        this.maxExpressionLength = maxExpressionLength;
+    }
+
+    /**
+     * Tell if the decoder is between expressions, so that the end of the
+     * input here is a clean end.
+     *
+     * @return True if no expression is partly decoded.
+     */
+    public boolean isIdle() {
+        return state == State.Start && stack.isEmpty() && hintLength < 0;
+    }
+
+    /**
+     * Discard any partly decoded expression.
+     */
+    public void reset() {
+        stack.clear();
+        state = State.Start;
+        hintLength = -1;
+        expressionLength = 0;
+        if (atom.length > 64 * 1024)
+            atom = new byte[64];
+    }
+
+    /**
+     * Decode bytes from a buffer, up to the end of the next complete
+     * top-level expression or the end of the buffer.
+     *
+     * @param in The buffer, which is advanced past the bytes decoded.
+     * @return The next expression, or null if the buffer ended first.
+     * @throws ParseException If the input is invalid, or exceeds the
+     *         limits. The decoder must be reset to be used again.
+     */
+    public Expression decode(ByteBuffer in) throws ParseException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case Start: {
+                    int c = in.get() & 0xFF;
+                    if (!isWhitespace(c) || !isIdle())
+                        count(1);
+                    if (c == '(') {
+                        if (hintLength >= 0)
+                            throw new ParseException("display hint before list");
+                        if (stack.size() >= maxDepth)
+                            throw new ParseException("lists nested more than %d deep", maxDepth);
+                        stack.add(new ExpressionList());
+                    } else if (c == ')') {
+                        if (stack.isEmpty())
+                            throw new ParseException("extraneous end list");
+                        if (hintLength >= 0)
+                            throw new ParseException("display hint without an atom");
+                        ExpressionList list = stack.remove(stack.size() - 1);
+                        if (stack.isEmpty()) {
+                            expressionLength = 0;
+                            return list;
+                        }
+                        stack.get(stack.size() - 1).add(list);
+                    } else if (c == '[') {
+                        if (hintLength >= 0)
+                            throw new ParseException("nested display hints");
+                        length = 0;
+                        state = State.HintLength;
+                    } else if (c >= '0' && c <= '9') {
+                        length = c - '0';
+                        if (length > maxAtomLength)
+                            throw new ParseException("atom longer than %d bytes", maxAtomLength);
+                        state = State.Length;
+                    } else if (!isWhitespace(c)) {
+                        throw new ParseException("invalid character in stream: %c", (char) c);
+                    }
+                    break;
+                }
+
+                case Length:
+                case HintLength: {
+                    int c = in.get() & 0xFF;
+                    count(1);
+                    if (c >= '0' && c <= '9') {
+                        length = length * 10 + (c - '0');
+                        if (length > maxAtomLength)
+                            throw new ParseException("atom longer than %d bytes", maxAtomLength);
+                    } else if (c == ':') {
+                        if (expressionLength + length > maxExpressionLength)
+                            throw new ParseException("expression longer than %d bytes", maxExpressionLength);
+                        atomFilled = 0;
+                        if (state == State.Length) {
+                            if (atom.length < length)
+                                atom = new byte[(int) Math.max(length, Math.min(atom.length * 2L, maxAtomLength))];
+                            state = State.Atom;
+                            if (length == 0) {
+                                Expression a = completeAtom();
+                                if (a != null)
+                                    return a;
+                            }
+                        } else {
+                            if (hint.length < length)
+                                hint = new byte[(int) length];
+                            state = State.Hint;
+                        }
+                    } else {
+                        throw new ParseException("invalid character in length: %c", (char) c);
+                    }
+                    break;
+                }
+
+                case Atom: {
+                    int n = (int) Math.min(in.remaining(), length - atomFilled);
+                    in.get(atom, atomFilled, n);
+                    atomFilled += n;
+                    count(n);
+                    if (atomFilled == length) {
+                        Expression a = completeAtom();
+                        if (a != null)
+                            return a;
+                    }
+                    break;
+                }
+
+                case Hint: {
+                    int n = (int) Math.min(in.remaining(), length - atomFilled);
+                    in.get(hint, atomFilled, n);
+                    atomFilled += n;
+                    count(n);
+                    if (atomFilled == length)
+                        state = State.HintEnd;
+                    break;
+                }
+
+                case HintEnd: {
+                    count(1);
+                    if (in.get() != ']')
+                        throw new ParseException("missing display hint terminator");
+                    hintLength = atomFilled;
+                    state = State.Start;
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finish the atom just read.
+     *
+     * @return The atom, if it is a top-level expression; otherwise null.
+     */
+    private Expression completeAtom() {
+        state = State.Start;
+        DisplayHint h = hintLength >= 0 ? DisplayHint.of(hint, 0, hintLength) : null;
+        hintLength = -1;
+        Atom a = Atom.atom(atom, 0, atomFilled, h);
+        if (stack.isEmpty()) {
+            expressionLength = 0;
+            return a;
+        }
+        stack.get(stack.size() - 1).add(a);
+        return null;
+    }
+
+    private void count(int n) throws ParseException {
+        expressionLength += n;
+        if (expressionLength > maxExpressionLength)
+            throw new ParseException("expression longer than %d bytes", maxExpressionLength);
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
@@ -0,0 +1,283 @@
+package org.metastatic.sexp4j.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * A connection that exchanges canonical expressions over a non-blocking
+ * socket channel, driven by a {@link SelectorLoop}.
+ *
+ * <p>Incoming bytes go through a {@link CanonicalDecoder}, and every
+ * complete expression is passed to the listener, in order, on the loop
+ * thread; several pipelined expressions that arrive in one read are
+ * delivered one after the other, and whatever the listener sends in reply
+ * is written together once they have all been delivered. Outgoing
+ * expressions are serialized by the sending thread and queued; the loop
+ * writes as much as the socket takes, and resumes where it stopped when
+ * the socket is writable again, so a slow peer never blocks the loop.</p>
+ *
+ * <p>{@link #send(Expression)} and {@link #close()} may be called from any
+ * thread.</p>
+ */
+public final class ExpressionChannel {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * Receives a connection's expressions, on its loop thread.
+     */
+    public interface Listener {
+        /**
+         * Called for each expression received.
+         *
+         * @param channel The connection.
+         * @param expression The expression.
+         * @throws IOException To close the connection.
+         */
+        void received(ExpressionChannel channel, Expression expression) throws IOException;
+
+        /**
+         * Called once, when the connection is closed.
+         *
+         * @param channel The connection.
+         * @param cause The error that closed it, or null if it was closed
+         *        cleanly by either side.
+         */
+        void closed(ExpressionChannel channel, IOException cause);
+    }
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final Listener listener;
+    private final CanonicalDecoder decoder;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<ByteBuffer> queued = new ConcurrentLinkedQueue<>();
+    // Buffers taken off the queue and not yet completely written; only
+    // touched on the loop thread.
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    // True while the loop delivers received expressions; anything sent
+    // meanwhile is queued, and written together once the read finishes.
+    private boolean reading;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SelectionKey key;
+
+    private final SelectorLoop.Handler handler = new SelectorLoop.Handler() {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                flush();
+        }
+
+        @Override
+        public void closed(IOException cause) {
+            finish(cause);
+        }
+    };
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            if (key == null || !key.isValid())
+                return;
+            try {
+                flush();
+            } catch (IOException e) {
+                shutdown(e);
+            }
+        }
+    };
+
+    private ExpressionChannel(SocketChannel channel, SelectorLoop loop, Listener listener, CanonicalDecoder decoder) {
+        this.channel = channel;
+        this.loop = loop;
+        this.listener = listener;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Start exchanging expressions over a connected socket channel. The
+     * channel is made non-blocking, and registered with the loop.
+     *
+     * @param channel The connected channel.
+     * @param loop The loop.
+     * @param listener The listener for received expressions.
+     * @param decoder The decoder, whose limits apply to received expressions.
+     * @return The connection.
+     * @throws java.lang.NullPointerException If any argument is null.
+     */
+    public static ExpressionChannel open(SocketChannel channel, SelectorLoop loop, Listener listener,
+                                         CanonicalDecoder decoder) {
+        final ExpressionChannel c = new ExpressionChannel(Preconditions.checkNotNull(channel),
+            Preconditions.checkNotNull(loop), Preconditions.checkNotNull(listener), Preconditions.checkNotNull(decoder));
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                c.register();
+            }
+        });
+        return c;
+    }
+
+    private void register() {
+        if (closed.get()) {
+            finish(null);
+            return;
+        }
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, handler);
+            flush();
+        } catch (IOException e) {
+            shutdown(e);
+        }
+    }
+
+    /**
+     * Queue an expression to be sent. Expressions are sent in the order
+     * they are queued, from whichever threads.
+     *
+     * @param expression The expression.
+     * @throws IOException If the expression can't be serialized.
+     * @throws ClosedChannelException If the connection is closed.
+     */
+    public void send(Expression expression) throws IOException {
+        send(encode(expression));
+    }
+
+    /**
+     * Serialize an expression, ready to be queued.
+     */
+    static ByteBuffer encode(Expression expression) throws IOException {
+        Preconditions.checkNotNull(expression);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        new CanonicalWriter(out).writeExpression(expression);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Queue encoded bytes to be sent.
+     */
+    void send(ByteBuffer encoded) throws IOException {
+        if (closed.get())
+            throw new ClosedChannelException();
+        queued.offer(encoded);
+        if (loop.inLoop()) {
+            if (!reading && key != null && key.isValid())
+                flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Tell if this connection is open.
+     *
+     * @return True until the connection is closed.
+     */
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * Close the connection. Expressions queued and not yet written are
+     * dropped.
+     */
+    public void close() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                shutdown(null);
+            }
+        });
+    }
+
+    private void read() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            if (!decoder.isIdle())
+                throw new EOFException("connection closed inside an expression");
+            shutdown(null);
+            return;
+        }
+        readBuffer.flip();
+        reading = true;
+        try {
+            Expression e;
+            while (!closed.get() && (e = decoder.decode(readBuffer)) != null)
+                listener.received(this, e);
+        } catch (RuntimeException e) {
+            throw new IOException("listener failed", e);
+        } finally {
+            reading = false;
+            readBuffer.compact();
+        }
+        if (!closed.get() && key.isValid())
+            flush();
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer b;
+        while ((b = queued.poll()) != null)
+            writing.add(b);
+        while (!writing.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer w : writing) {
+                gather[n++] = w;
+                if (n == MAX_GATHER)
+                    break;
+            }
+            int size = writing.size();
+            try {
+                channel.write(gather, 0, n);
+            } finally {
+                Arrays.fill(gather, 0, n, null);
+            }
+            while (!writing.isEmpty() && !writing.peek().hasRemaining())
+                writing.poll();
+            // A partly written buffer means the socket is full; wait until
+            // it is writable again.
+            if (!writing.isEmpty() && writing.peek().position() > 0 || writing.size() == size)
+                break;
+        }
+        int ops = writing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    private void shutdown(IOException cause) {
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The connection is gone either way.
+        }
+        finish(cause);
+    }
+
+    private void finish(IOException cause) {
+        if (closed.compareAndSet(false, true)) {
+            queued.clear();
+            writing.clear();
+            listener.closed(this, cause);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.metastatic.sexp4j.net;
+
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * Answers the requests an {@link RpcServer} receives.
+ */
+public interface RequestHandler {
+    /**
+     * Answer a request. This runs on the server's loop thread, so it must
+     * not block.
+     *
+     * @param request The request.
+     * @return The response.
+     * @throws Exception If the request can't be answered; the connection
+     *         it came from is then closed.
+     */
+    Expression handle(Expression request) throws Exception;
+}
@@ -0,0 +1,139 @@
+package org.metastatic.sexp4j.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * A client connection to an {@link RpcServer}.
+ *
+ * <p>Calls are pipelined: {@link #call(Expression)} sends the request at
+ * once and returns a future, without waiting for earlier calls to be
+ * answered. Responses arrive in request order, and complete the futures
+ * in that order, on the loop thread. Many clients can share one loop.</p>
+ *
+ * <pre>
+ * RpcClient client = RpcClient.connect(address, loop);
+ * ListenableFuture&lt;Expression&gt; response = client.call(request);
+ * </pre>
+ */
+public final class RpcClient implements Closeable {
+    private final Queue<SettableFuture<Expression>> pending = new ConcurrentLinkedQueue<>();
+    private final ExpressionChannel channel;
+
+    private final ExpressionChannel.Listener listener = new ExpressionChannel.Listener() {
+        @Override
+        public void received(ExpressionChannel channel, Expression response) throws IOException {
+            SettableFuture<Expression> f = pending.poll();
+            if (f == null)
+                throw new IOException("response without a request");
+            f.set(response);
+        }
+
+        @Override
+        public void closed(ExpressionChannel channel, IOException cause) {
+            IOException error = cause != null ? cause : new ClosedChannelException();
+            SettableFuture<Expression> f;
+            while ((f = pending.poll()) != null)
+                f.setException(error);
+        }
+    };
+
+    private RpcClient(SocketChannel channel, SelectorLoop loop) {
+        this.channel = ExpressionChannel.open(channel, loop, listener, new CanonicalDecoder());
+    }
+
+    /**
+     * Connect to a server. The connection is made on the calling thread,
+     * and then handed to the loop.
+     *
+     * @param address The server's address.
+     * @param loop The loop that will run the connection.
+     * @return The client.
+     * @throws IOException If the connection fails.
+     */
+    public static RpcClient connect(InetSocketAddress address, SelectorLoop loop) throws IOException {
+        return connect(address, null, loop);
+    }
+
+    /**
+     * Connect to a server from a given local address, with any free
+     * port. The connection is made on the calling thread, and then
+     * handed to the loop.
+     *
+     * @param address The server's address.
+     * @param localAddress The local address, or null for any.
+     * @param loop The loop that will run the connection.
+     * @return The client.
+     * @throws IOException If the connection fails.
+     */
+    public static RpcClient connect(InetSocketAddress address, InetAddress localAddress, SelectorLoop loop)
+            throws IOException {
+        Preconditions.checkNotNull(address);
+        Preconditions.checkNotNull(loop);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (localAddress != null)
+                channel.bind(new InetSocketAddress(localAddress, 0));
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new RpcClient(channel, loop);
+    }
+
+    /**
+     * Send a request.
+     *
+     * @param request The request.
+     * @return A future for the response. It fails if the connection
+     *         closes before the response arrives.
+     * @throws IOException If the request can't be serialized.
+     */
+    public ListenableFuture<Expression> call(Expression request) throws IOException {
+        ByteBuffer encoded = ExpressionChannel.encode(request);
+        SettableFuture<Expression> f = SettableFuture.create();
+        // The future must be queued in the same order as its request.
+        synchronized (this) {
+            pending.offer(f);
+            try {
+                channel.send(encoded);
+            } catch (IOException e) {
+                pending.remove(f);
+                f.setException(e);
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Return the number of calls that have not been answered yet.
+     *
+     * @return The number of outstanding calls.
+     */
+    public int outstanding() {
+        return pending.size();
+    }
+
+    /**
+     * Close the connection. Calls not yet answered fail.
+     */
+    @Override
+    public void close() {
+        channel.close();
+    }
+}
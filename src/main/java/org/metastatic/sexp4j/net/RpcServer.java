@@ -0,0 +1,165 @@
+package org.metastatic.sexp4j.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Expression;
+
+/**
+ * A server that answers canonical expression requests.
+ *
+ * <p>Each request is one canonical expression, and so is each response.
+ * A client may pipeline requests, sending several without waiting; they
+ * are answered one at a time, in order, so the n-th response on a
+ * connection answers the n-th request.</p>
+ *
+ * <pre>
+ * RpcServer server = RpcServer.bind(new InetSocketAddress(0), handler);
+ * </pre>
+ */
+public final class RpcServer implements Closeable {
+    private final ServerSocketChannel server;
+    private final SelectorLoop loop;
+    private final boolean ownsLoop;
+    private final RequestHandler handler;
+    private final Set<ExpressionChannel> connections =
+        Collections.newSetFromMap(new ConcurrentHashMap<ExpressionChannel, Boolean>());
+    private volatile boolean closed = false;
+
+    private final SelectorLoop.Handler acceptor = new SelectorLoop.Handler() {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while (!closed && (channel = server.accept()) != null) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(ExpressionChannel.open(channel, loop, responder, new CanonicalDecoder()));
+            }
+        }
+
+        @Override
+        public void closed(IOException cause) {
+            closed = true;
+        }
+    };
+
+    private final ExpressionChannel.Listener responder = new ExpressionChannel.Listener() {
+        @Override
+        public void received(ExpressionChannel channel, Expression request) throws IOException {
+            Expression response;
+            try {
+                response = handler.handle(request);
+            } catch (Exception e) {
+                throw new IOException("request failed", e);
+            }
+            if (response == null)
+                throw new IOException("request handler returned null");
+            channel.send(response);
+        }
+
+        @Override
+        public void closed(ExpressionChannel channel, IOException cause) {
+            connections.remove(channel);
+        }
+    };
+
+    private RpcServer(ServerSocketChannel server, SelectorLoop loop, boolean ownsLoop, RequestHandler handler) {
+        this.server = server;
+        this.loop = loop;
+        this.ownsLoop = ownsLoop;
+        this.handler = handler;
+    }
+
+    /**
+     * Bind a server on its own loop.
+     *
+     * @param address The address to listen on.
+     * @param handler The request handler.
+     * @return The server.
+     * @throws IOException If the server can't be bound.
+     */
+    public static RpcServer bind(InetSocketAddress address, RequestHandler handler) throws IOException {
+        SelectorLoop loop = new SelectorLoop("sexp4j-rpc-server");
+        try {
+            return bind(address, handler, loop, true);
+        } catch (IOException | RuntimeException e) {
+            loop.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Bind a server on a shared loop. Closing the server leaves the loop
+     * running.
+     *
+     * @param address The address to listen on.
+     * @param handler The request handler.
+     * @param loop The loop.
+     * @return The server.
+     * @throws IOException If the server can't be bound.
+     */
+    public static RpcServer bind(InetSocketAddress address, RequestHandler handler, SelectorLoop loop)
+            throws IOException {
+        return bind(address, handler, loop, false);
+    }
+
+    private static RpcServer bind(InetSocketAddress address, RequestHandler handler, SelectorLoop loop,
+                                  boolean ownsLoop) throws IOException {
+        Preconditions.checkNotNull(address);
+        Preconditions.checkNotNull(handler);
+        Preconditions.checkNotNull(loop);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(address, 1024);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        final RpcServer s = new RpcServer(server, loop, ownsLoop, handler);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    s.loop.register(s.server, SelectionKey.OP_ACCEPT, s.acceptor);
+                } catch (IOException e) {
+                    s.closed = true;
+                }
+            }
+        });
+        return s;
+    }
+
+    /**
+     * Return the address the server listens on.
+     *
+     * @return The address.
+     * @throws IOException If the address can't be found.
+     */
+    public InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Stop accepting connections, and close every open one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed && !server.isOpen())
+            return;
+        closed = true;
+        server.close();
+        for (ExpressionChannel c : connections)
+            c.close();
+        if (ownsLoop)
+            loop.close();
+    }
+}
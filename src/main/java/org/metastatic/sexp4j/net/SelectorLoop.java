@@ -0,0 +1,203 @@
+package org.metastatic.sexp4j.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread that runs a selector, and the I/O of every channel registered
+ * with it.
+ *
+ * <p>One loop can serve thousands of connections: each channel is
+ * non-blocking, and is only touched when the selector says it is ready,
+ * or from a task run with {@link #execute(Runnable)}. Servers and clients
+ * may share a loop. Everything registered with the loop, and every task,
+ * runs on its thread, so none of it needs locking; it must not block.</p>
+ */
+public final class SelectorLoop implements Closeable, Executor {
+    /**
+     * Something registered with the loop, called when its channel is
+     * ready.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the channel is ready for some of
+         * the operations it registered for.
+         *
+         * @param key The channel's key.
+         * @throws IOException If the channel fails; it is then closed.
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when the channel is closed because of
+         * an error, or because the loop is closing.
+         *
+         * @param cause The error, or null.
+         */
+        void closed(IOException cause);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean closed = false;
+
+    /**
+     * Open a selector, and start its thread.
+     *
+     * @param name The name of the thread.
+     * @throws IOException If the selector can't be opened.
+     */
+    public SelectorLoop(String name) throws IOException {
+        Preconditions.checkNotNull(name);
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Tell if the caller is running on this loop's thread.
+     *
+     * @return True on the loop thread.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread. Tasks run in the order they are
+     * given, and a runtime exception thrown from a task is dropped. Tasks
+     * still queued when the loop closes are run after its channels are
+     * closed, so that they can close what they hold; a task given after
+     * that never runs.
+     *
+     * @param task The task.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(Preconditions.checkNotNull(task));
+        if (!inLoop() && wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * Register a channel with this loop. Must be called on the loop
+     * thread.
+     *
+     * @throws IOException If the loop is closing, or the channel can't
+     *         be registered.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        Preconditions.checkState(inLoop());
+        if (closed)
+            throw new IOException("selector loop is closed");
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Close every registered channel, and stop the loop thread.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        selector.wakeup();
+        if (!inLoop()) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                // Tasks queued from the loop thread itself don't wake the
+                // selector, so don't wait while any are queued.
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+                wakeupPending.set(false);
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid())
+                            handler.ready(key);
+                    } catch (IOException e) {
+                        closeKey(key, e);
+                    } catch (CancelledKeyException e) {
+                        // Closed by the handler while it ran.
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Fall through and close everything.
+        } finally {
+            closed = true;
+            for (SelectionKey key : selector.keys())
+                closeKey(key, null);
+            // Registering fails from here on, so pending registrations
+            // close their channels instead of leaving them unanswered.
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Nothing is left to use it.
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing task must not stop the other channels.
+            }
+        }
+    }
+
+    private static void closeKey(SelectionKey key, IOException cause) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // The channel is being abandoned anyway.
+        }
+        ((Handler) key.attachment()).closed(cause);
+    }
+}
@@ -0,0 +1,84 @@
+package org.metastatic.sexp4j.pattern;
+
+import com.google.common.base.Optional;
+import org.metastatic.sexp4j.Expression;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The result of matching an expression against a {@link Pattern}.
+ */
+public final class Match
+{
+    private final Pattern pattern;
+    private final int index;
+    private final Expression expression;
+    private final Map<String, Expression> bindings;
+
+    Match(Pattern pattern, int index, Expression expression, Map<String, Expression> bindings)
+    {
+        this.pattern = pattern;
+        this.index = index;
+        this.expression = expression;
+        this.bindings = Collections.unmodifiableMap(bindings);
+    }
+
+    /**
+     * Return the pattern that matched.
+     *
+     * @return The pattern.
+     */
+    public Pattern pattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * Return the index of the pattern in the {@link PatternSet} that
+     * matched, or -1 if the pattern was matched on its own.
+     *
+     * @return The pattern index.
+     */
+    public int index()
+    {
+        return index;
+    }
+
+    /**
+     * Return the expression that matched.
+     *
+     * @return The matched expression.
+     */
+    public Expression expression()
+    {
+        return expression;
+    }
+
+    /**
+     * Return the expression captured by a variable.
+     *
+     * @param name The variable name, without the <code>?</code> prefix.
+     * @return The captured expression, if the pattern has that variable.
+     */
+    public Optional<Expression> get(String name)
+    {
+        return Optional.fromNullable(bindings.get(name));
+    }
+
+    /**
+     * Return all captured expressions, keyed by variable name.
+     *
+     * @return The bindings.
+     */
+    public Map<String, Expression> bindings()
+    {
+        return bindings;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Match{pattern=" + pattern + ", bindings=" + bindings + "}";
+    }
+}
@@ -0,0 +1,15 @@
+package org.metastatic.sexp4j.pattern;
+
+/**
+ * A listener for matches found by a {@link PatternSet.StreamMatcher}.
+ */
+public interface MatchListener
+{
+    /**
+     * Called for each pattern that matches a top-level expression, in the
+     * order of the patterns in the set.
+     *
+     * @param match The match.
+     */
+    void matched(Match match);
+}
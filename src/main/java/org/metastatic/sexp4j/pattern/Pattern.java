@@ -0,0 +1,284 @@
+package org.metastatic.sexp4j.pattern;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A structural pattern over expressions.
+ *
+ * <p>A pattern is itself an expression. Atoms and lists match themselves,
+ * except for these atoms, when they have no display hint:</p>
+ *
+ * <ul>
+ *     <li><code>?</code> matches any one expression.</li>
+ *     <li><code>?name</code> matches any one expression, and captures it
+ *     as <code>name</code>. If the same name appears more than once, every
+ *     occurrence must match equal expressions.</li>
+ *     <li><code>??</code>, as the last element of a list, matches the rest
+ *     of the list, which may be empty.</li>
+ *     <li><code>??name</code>, as the last element of a list, matches the
+ *     rest of the list, and captures it as a new list named
+ *     <code>name</code>.</li>
+ * </ul>
+ *
+ * <p>Atoms are compared by their bytes, as in {@link Atom#equals(Object)},
+ * so a pattern atom with a display hint is always matched literally; this
+ * is how to match an atom that begins with <code>?</code>. For example,
+ * the pattern <code>(* set ??elements)</code> matches
+ * <code>(* set read write)</code>, capturing <code>(read write)</code> as
+ * <code>elements</code>.</p>
+ *
+ * <p>To match many patterns against the same input, compile them together
+ * in a {@link PatternSet}.</p>
+ */
+public final class Pattern
+{
+    static final int LITERAL = 0;
+    static final int ANY = 1;
+    static final int REST = 2;
+    static final int LIST = 3;
+    static final int END = 4;
+
+    private final Expression expression;
+    private final Node root;
+    private final Set<String> variables;
+
+    private Pattern(Expression expression, Node root, Set<String> variables)
+    {
+        this.expression = expression;
+        this.root = root;
+        this.variables = variables;
+    }
+
+    /**
+     * Compile a pattern.
+     *
+     * @param pattern The pattern expression.
+     * @return The compiled pattern.
+     * @throws java.lang.NullPointerException If the argument is null.
+     * @throws java.lang.IllegalArgumentException If a <code>??</code> variable is not the last element of a list.
+     */
+    public static Pattern compile(Expression pattern)
+    {
+        Preconditions.checkNotNull(pattern);
+        Set<String> variables = new LinkedHashSet<>();
+        Node root = compile(pattern, variables);
+        if (root.kind == REST)
+            throw new IllegalArgumentException("?? outside of a list");
+        return new Pattern(pattern, root, Collections.unmodifiableSet(variables));
+    }
+
+    private static Node compile(Expression e, Set<String> variables)
+    {
+        if (e instanceof Atom)
+        {
+            Atom atom = (Atom) e;
+            int kind = variableKind(atom);
+            if (kind == LITERAL)
+                return new Node(LITERAL, atom, null, null);
+            String name = variableName(atom, kind);
+            if (name != null)
+                variables.add(name);
+            return new Node(kind, atom, name, null);
+        }
+        ExpressionList list = (ExpressionList) e;
+        Node[] elements = new Node[list.size()];
+        for (int i = 0; i < elements.length; i++)
+        {
+            elements[i] = compile(list.get(i), variables);
+            if (elements[i].kind == REST && i != elements.length - 1)
+                throw new IllegalArgumentException("?? must be the last element of a list");
+        }
+        return new Node(LIST, null, null, elements);
+    }
+
+    /**
+     * Return the kind of a pattern atom.
+     */
+    static int variableKind(Atom atom)
+    {
+        if (atom.displayHint().isPresent() || atom.length() == 0)
+            return LITERAL;
+        ByteBuffer bytes = atom.asByteBuffer();
+        if (bytes.get(0) != '?')
+            return LITERAL;
+        if (bytes.remaining() > 1 && bytes.get(1) == '?')
+            return REST;
+        return ANY;
+    }
+
+    private static String variableName(Atom atom, int kind)
+    {
+        int prefix = kind == REST ? 2 : 1;
+        if (atom.length() == prefix)
+            return null;
+        return atom.stringValue(prefix);
+    }
+
+    /**
+     * Return the expression this pattern was compiled from.
+     *
+     * @return The pattern expression.
+     */
+    public Expression expression()
+    {
+        return expression;
+    }
+
+    /**
+     * Return the names this pattern captures, in the order they first
+     * appear.
+     *
+     * @return The variable names.
+     */
+    public Set<String> variables()
+    {
+        return variables;
+    }
+
+    /**
+     * Match an expression against this pattern.
+     *
+     * @param expression The expression to match.
+     * @return The match, if the expression matches.
+     * @throws java.lang.NullPointerException If the argument is null.
+     */
+    public Optional<Match> match(Expression expression)
+    {
+        return match(expression, -1);
+    }
+
+    Optional<Match> match(Expression expression, int index)
+    {
+        Preconditions.checkNotNull(expression);
+        Map<String, Expression> bindings = variables.isEmpty()
+            ? Collections.<String, Expression>emptyMap()
+            : new HashMap<String, Expression>();
+        if (!match(root, expression, bindings))
+            return Optional.absent();
+        return Optional.of(new Match(this, index, expression, bindings));
+    }
+
+    private static boolean match(Node node, Expression e, Map<String, Expression> bindings)
+    {
+        switch (node.kind)
+        {
+            case LITERAL:
+                return node.atom.equals(e);
+
+            case ANY:
+                return bind(node.name, e, bindings);
+
+            case LIST:
+                if (!(e instanceof ExpressionList))
+                    return false;
+                ExpressionList list = (ExpressionList) e;
+                Node[] elements = node.elements;
+                int n = elements.length;
+                boolean rest = n > 0 && elements[n - 1].kind == REST;
+                if (rest ? list.size() < n - 1 : list.size() != n)
+                    return false;
+                int fixed = rest ? n - 1 : n;
+                for (int i = 0; i < fixed; i++)
+                    if (!match(elements[i], list.get(i), bindings))
+                        return false;
+                if (rest && elements[n - 1].name != null)
+                {
+                    ExpressionList tail = new ExpressionList(list.size() - fixed);
+                    tail.addAll(list.subList(fixed, list.size()));
+                    return bind(elements[n - 1].name, tail, bindings);
+                }
+                return true;
+
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static boolean bind(String name, Expression e, Map<String, Expression> bindings)
+    {
+        if (name == null)
+            return true;
+        Expression bound = bindings.get(name);
+        if (bound == null)
+        {
+            bindings.put(name, e);
+            return true;
+        }
+        return bound.equals(e);
+    }
+
+    /**
+     * Append this pattern's discrimination tree keys to the given lists, as
+     * pairs of a kind and an atom (for literals). A list is LIST, then its
+     * elements, then END unless the last element was REST.
+     */
+    void keys(List<Integer> kinds, List<Atom> atoms)
+    {
+        keys(root, kinds, atoms);
+    }
+
+    private static void keys(Node node, List<Integer> kinds, List<Atom> atoms)
+    {
+        if (node.kind != LIST)
+        {
+            kinds.add(node.kind);
+            atoms.add(node.kind == LITERAL ? node.atom : null);
+            return;
+        }
+        kinds.add(LIST);
+        atoms.add(null);
+        for (Node element : node.elements)
+            keys(element, kinds, atoms);
+        if (node.elements.length == 0 || node.elements[node.elements.length - 1].kind != REST)
+        {
+            kinds.add(END);
+            atoms.add(null);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof Pattern && expression.equals(((Pattern) o).expression);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return expression.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Pattern{" + expression + "}";
+    }
+
+    private static final class Node
+    {
+        final int kind;
+        final Atom atom;
+        final String name;
+        final Node[] elements;
+
+        Node(int kind, Atom atom, String name, Node[] elements)
+        {
+            this.kind = kind;
+            this.atom = atom;
+            this.name = name;
+            this.elements = elements;
+        }
+    }
+}
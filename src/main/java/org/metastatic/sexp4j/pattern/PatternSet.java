@@ -0,0 +1,624 @@
+package org.metastatic.sexp4j.pattern;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.DisplayHint;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionBuilder;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.RawStreamingParserCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of {@link Pattern patterns} compiled together, so that one pass
+ * over an expression finds every pattern it matches.
+ *
+ * <p>The patterns are merged into a discrimination tree: each pattern is
+ * flattened into the sequence of list starts, atoms, wildcards and list
+ * ends it expects, and patterns share the prefix they have in common. A
+ * list's head atom is looked up in a hash table at each branch, so the cost
+ * of matching depends on the input and on how many patterns share its
+ * shape, not on the total number of patterns. Inputs are walked once,
+ * stopping as soon as no pattern can match; only the patterns that reach
+ * the end are then checked for repeated variables and their captures
+ * bound.</p>
+ *
+ * <p>The same tree can be driven by a parser, through a
+ * {@link StreamMatcher}, which builds each top-level expression only for
+ * as long as some pattern can still match it.</p>
+ *
+ * <p>Pattern sets are immutable, and safe to share between threads.</p>
+ */
+public final class PatternSet
+{
+    private final Pattern[] patterns;
+    private final Node root;
+
+    private PatternSet(Pattern[] patterns)
+    {
+        this.patterns = patterns;
+        this.root = new Node();
+        List<Integer> kinds = new ArrayList<>();
+        List<Atom> atoms = new ArrayList<>();
+        for (int i = 0; i < patterns.length; i++)
+        {
+            kinds.clear();
+            atoms.clear();
+            patterns[i].keys(kinds, atoms);
+            Node node = root;
+            for (int k = 0; k < kinds.size(); k++)
+                node = node.child(kinds.get(k), atoms.get(k));
+            node.accept(i);
+        }
+    }
+
+    /**
+     * Create a pattern set.
+     *
+     * @param patterns The patterns.
+     * @return The pattern set.
+     * @throws java.lang.NullPointerException If any pattern is null.
+     */
+    public static PatternSet of(Pattern... patterns)
+    {
+        return of(Arrays.asList(patterns));
+    }
+
+    /**
+     * Create a pattern set.
+     *
+     * @param patterns The patterns.
+     * @return The pattern set.
+     * @throws java.lang.NullPointerException If any pattern is null.
+     */
+    public static PatternSet of(List<Pattern> patterns)
+    {
+        Pattern[] array = patterns.toArray(new Pattern[patterns.size()]);
+        for (Pattern p : array)
+            Preconditions.checkNotNull(p);
+        return new PatternSet(array);
+    }
+
+    /**
+     * Compile pattern expressions into a pattern set.
+     *
+     * @param patterns The pattern expressions.
+     * @return The pattern set.
+     * @throws java.lang.NullPointerException If any pattern is null.
+     * @throws java.lang.IllegalArgumentException If any pattern is malformed.
+     * @see Pattern#compile(org.metastatic.sexp4j.Expression)
+     */
+    public static PatternSet compile(Expression... patterns)
+    {
+        Pattern[] array = new Pattern[patterns.length];
+        for (int i = 0; i < array.length; i++)
+            array[i] = Pattern.compile(patterns[i]);
+        return new PatternSet(array);
+    }
+
+    /**
+     * Return the number of patterns in this set.
+     *
+     * @return The number of patterns.
+     */
+    public int size()
+    {
+        return patterns.length;
+    }
+
+    /**
+     * Return a pattern in this set.
+     *
+     * @param index The pattern index.
+     * @return The pattern.
+     */
+    public Pattern get(int index)
+    {
+        return patterns[index];
+    }
+
+    /**
+     * Match an expression against all patterns.
+     *
+     * @param expression The expression.
+     * @return The matches, in the order of the patterns in this set.
+     */
+    public List<Match> matchAll(Expression expression)
+    {
+        Preconditions.checkNotNull(expression);
+        int[] candidates = candidates(expression);
+        if (candidates.length == 0)
+            return Collections.emptyList();
+        List<Match> matches = new ArrayList<>(candidates.length);
+        for (int i : candidates)
+        {
+            Optional<Match> match = patterns[i].match(expression, i);
+            if (match.isPresent())
+                matches.add(match.get());
+        }
+        return matches;
+    }
+
+    /**
+     * Match an expression against the patterns, returning the match of
+     * the first pattern in this set that matches.
+     *
+     * @param expression The expression.
+     * @return The first match, if any pattern matches.
+     */
+    public Optional<Match> matchFirst(Expression expression)
+    {
+        Preconditions.checkNotNull(expression);
+        for (int i : candidates(expression))
+        {
+            Optional<Match> match = patterns[i].match(expression, i);
+            if (match.isPresent())
+                return match;
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Create a parser callback that matches each top-level expression
+     * against all patterns.
+     *
+     * @param listener The listener to notify of matches.
+     * @return The stream matcher.
+     */
+    public StreamMatcher streamMatcher(MatchListener listener)
+    {
+        return new StreamMatcher(this, Preconditions.checkNotNull(listener));
+    }
+
+    private int[] candidates(Expression expression)
+    {
+        Run run = new Run(root);
+        if (!walk(run, expression))
+            return Run.NONE;
+        return run.accepted();
+    }
+
+    private static boolean walk(Run run, Expression e)
+    {
+        if (e instanceof Atom)
+        {
+            run.atom((Atom) e, null, 0, 0);
+            return run.alive();
+        }
+        run.beginList();
+        if (!run.alive())
+            return false;
+        for (Expression child : (ExpressionList) e)
+            if (!walk(run, child))
+                return false;
+        run.endList();
+        return run.alive();
+    }
+
+    /**
+     * A parser callback that matches each top-level expression against the
+     * patterns of a {@link PatternSet}. Each expression is built only while
+     * some pattern can still match it; the rest of it is skipped.
+     *
+     * <p>Instances are not thread-safe.</p>
+     */
+    public static final class StreamMatcher implements RawStreamingParserCallback
+    {
+        private final PatternSet patterns;
+        private final MatchListener listener;
+        private final Run run;
+        private ExpressionBuilder builder;
+        private int depth = 0;
+
+        StreamMatcher(PatternSet patterns, MatchListener listener)
+        {
+            this.patterns = patterns;
+            this.listener = listener;
+            this.run = new Run(patterns.root);
+        }
+
+        /**
+         * Discard any partially read expression, so this matcher may be used
+         * on another input.
+         */
+        public void reset()
+        {
+            builder = null;
+            depth = 0;
+        }
+
+        @Override
+        public void beginList() throws ParseException
+        {
+            if (depth++ == 0)
+                start();
+            if (builder != null)
+            {
+                run.beginList();
+                if (run.alive())
+                    builder.beginList();
+                else
+                    builder = null;
+            }
+        }
+
+        @Override
+        public void endList() throws ParseException
+        {
+            if (depth == 0)
+                throw new ParseException("unbalanced list end");
+            depth--;
+            if (builder != null)
+            {
+                run.endList();
+                if (run.alive())
+                {
+                    builder.endList();
+                    if (depth == 0)
+                        finish();
+                }
+                else
+                    builder = null;
+            }
+        }
+
+        @Override
+        public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen)
+            throws ParseException
+        {
+            if (depth == 0)
+                start();
+            if (builder != null)
+            {
+                run.atom(null, buf, off, len);
+                if (run.alive())
+                {
+                    builder.atom(Atom.atom(buf, off, len,
+                        hintBuf == null ? null : DisplayHint.of(hintBuf, hintOff, hintLen)));
+                    if (depth == 0)
+                        finish();
+                }
+                else
+                    builder = null;
+            }
+        }
+
+        private void start()
+        {
+            run.start();
+            builder = new ExpressionBuilder(Integer.MAX_VALUE);
+        }
+
+        private void finish()
+        {
+            Expression expression = builder.build();
+            builder = null;
+            for (int i : run.accepted())
+            {
+                Optional<Match> match = patterns.patterns[i].match(expression, i);
+                if (match.isPresent())
+                    listener.matched(match.get());
+            }
+        }
+    }
+
+    /**
+     * A node of the discrimination tree.
+     */
+    private static final class Node
+    {
+        AtomTable atoms;
+        Node list;
+        Node end;
+        Node any;
+        Node rest;
+        int[] accepts = Run.NONE;
+
+        Node child(int kind, Atom atom)
+        {
+            switch (kind)
+            {
+                case Pattern.LITERAL:
+                    if (atoms == null)
+                        atoms = new AtomTable();
+                    return atoms.getOrCreate(atom);
+
+                case Pattern.ANY:
+                    return any == null ? any = new Node() : any;
+
+                case Pattern.REST:
+                    return rest == null ? rest = new Node() : rest;
+
+                case Pattern.LIST:
+                    return list == null ? list = new Node() : list;
+
+                case Pattern.END:
+                    return end == null ? end = new Node() : end;
+
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        void accept(int index)
+        {
+            accepts = Arrays.copyOf(accepts, accepts.length + 1);
+            accepts[accepts.length - 1] = index;
+        }
+    }
+
+    /**
+     * An open-addressed map from literal atoms to tree nodes, which can be
+     * probed with an atom or with a range of a parser's buffer.
+     */
+    private static final class AtomTable
+    {
+        private Atom[] keys = new Atom[8];
+        private Node[] values = new Node[8];
+        private int size = 0;
+
+        private static int spread(int h)
+        {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        Node get(Atom atom)
+        {
+            int mask = keys.length - 1;
+            for (int i = spread(atom.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask)
+                if (keys[i].equals(atom))
+                    return values[i];
+            return null;
+        }
+
+        Node get(byte[] buf, int off, int len)
+        {
+            // Same as Atom.hashCode().
+            int h = 1;
+            for (int i = 0; i < len; i++)
+                h = 31 * h + buf[off + i];
+            int mask = keys.length - 1;
+            for (int i = spread(h) & mask; keys[i] != null; i = (i + 1) & mask)
+                if (keys[i].contentEquals(buf, off, len))
+                    return values[i];
+            return null;
+        }
+
+        Node getOrCreate(Atom atom)
+        {
+            Node node = get(atom);
+            if (node != null)
+                return node;
+            if ((size + 1) * 2 > keys.length)
+                grow();
+            node = new Node();
+            put(atom, node);
+            size++;
+            return node;
+        }
+
+        private void put(Atom atom, Node node)
+        {
+            int mask = keys.length - 1;
+            int i = spread(atom.hashCode()) & mask;
+            while (keys[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = atom;
+            values[i] = node;
+        }
+
+        private void grow()
+        {
+            Atom[] oldKeys = keys;
+            Node[] oldValues = values;
+            keys = new Atom[oldKeys.length * 2];
+            values = new Node[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldKeys[i] != null)
+                    put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    /**
+     * The set of positions in the tree reached by the input so far. A
+     * position either waits on a node for the next event, skips the rest of
+     * a subtree matched by <code>?</code>, or skips the rest of a list
+     * matched by <code>??</code>.
+     */
+    private static final class Run
+    {
+        static final int[] NONE = new int[0];
+
+        private static final int AT = 0;
+        private static final int SKIP = 1;
+        private static final int REST = 2;
+
+        private final Node root;
+        private Node[] nodes = new Node[16];
+        private int[] modes = new int[16];
+        private int[] depths = new int[16];
+        private int count = 0;
+        private Node[] nextNodes = new Node[16];
+        private int[] nextModes = new int[16];
+        private int[] nextDepths = new int[16];
+        private int nextCount = 0;
+
+        Run(Node root)
+        {
+            this.root = root;
+            start();
+        }
+
+        void start()
+        {
+            count = 0;
+            nextCount = 0;
+            at(root);
+            swap();
+        }
+
+        boolean alive()
+        {
+            return count > 0;
+        }
+
+        void beginList()
+        {
+            for (int i = 0; i < count; i++)
+            {
+                Node n = nodes[i];
+                switch (modes[i])
+                {
+                    case AT:
+                        if (n.list != null)
+                            at(n.list);
+                        if (n.any != null)
+                            add(n.any, SKIP, 1);
+                        break;
+
+                    case SKIP:
+                    case REST:
+                        add(n, modes[i], depths[i] + 1);
+                        break;
+                }
+            }
+            swap();
+        }
+
+        void endList()
+        {
+            for (int i = 0; i < count; i++)
+            {
+                Node n = nodes[i];
+                switch (modes[i])
+                {
+                    case AT:
+                        if (n.end != null)
+                            at(n.end);
+                        break;
+
+                    case SKIP:
+                        if (depths[i] == 1)
+                            at(n);
+                        else
+                            add(n, SKIP, depths[i] - 1);
+                        break;
+
+                    case REST:
+                        if (depths[i] == 0)
+                            at(n);
+                        else
+                            add(n, REST, depths[i] - 1);
+                        break;
+                }
+            }
+            swap();
+        }
+
+        /**
+         * Advance over an atom, given either as an atom or as a range of a
+         * buffer.
+         */
+        void atom(Atom atom, byte[] buf, int off, int len)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                Node n = nodes[i];
+                switch (modes[i])
+                {
+                    case AT:
+                        if (n.atoms != null)
+                        {
+                            Node next = atom != null ? n.atoms.get(atom) : n.atoms.get(buf, off, len);
+                            if (next != null)
+                                at(next);
+                        }
+                        if (n.any != null)
+                            at(n.any);
+                        break;
+
+                    case SKIP:
+                    case REST:
+                        add(n, modes[i], depths[i]);
+                        break;
+                }
+            }
+            swap();
+        }
+
+        /**
+         * Return the patterns accepted at the current positions, sorted.
+         */
+        int[] accepted()
+        {
+            int[] result = NONE;
+            int n = 0;
+            for (int i = 0; i < count; i++)
+            {
+                if (modes[i] != AT || nodes[i].accepts.length == 0)
+                    continue;
+                int[] accepts = nodes[i].accepts;
+                if (n + accepts.length > result.length)
+                    result = Arrays.copyOf(result, Math.max(n + accepts.length, result.length * 2));
+                System.arraycopy(accepts, 0, result, n, accepts.length);
+                n += accepts.length;
+            }
+            if (n == 0)
+                return NONE;
+            Arrays.sort(result, 0, n);
+            int unique = 1;
+            for (int i = 1; i < n; i++)
+                if (result[i] != result[unique - 1])
+                    result[unique++] = result[i];
+            return Arrays.copyOf(result, unique);
+        }
+
+        /**
+         * Add a position waiting on a node, and on the <code>??</code> that
+         * may follow it, which matches zero or more elements.
+         */
+        private void at(Node n)
+        {
+            add(n, AT, 0);
+            if (n.rest != null)
+                add(n.rest, REST, 0);
+        }
+
+        private void add(Node n, int mode, int depth)
+        {
+            if (nextCount == nextNodes.length)
+            {
+                nextNodes = Arrays.copyOf(nextNodes, nextCount * 2);
+                nextModes = Arrays.copyOf(nextModes, nextCount * 2);
+                nextDepths = Arrays.copyOf(nextDepths, nextCount * 2);
+            }
+            nextNodes[nextCount] = n;
+            nextModes[nextCount] = mode;
+            nextDepths[nextCount] = depth;
+            nextCount++;
+        }
+
+        private void swap()
+        {
+            Arrays.fill(nodes, 0, count, null);
+            Node[] n = nodes;
+            nodes = nextNodes;
+            nextNodes = n;
+            int[] m = modes;
+            modes = nextModes;
+            nextModes = m;
+            int[] d = depths;
+            depths = nextDepths;
+            nextDepths = d;
+            count = nextCount;
+            nextCount = 0;
+        }
+    }
+}
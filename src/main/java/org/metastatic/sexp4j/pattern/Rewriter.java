@@ -0,0 +1,199 @@
+package org.metastatic.sexp4j.pattern;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites expressions with a list of rules, each a {@link Pattern} and a
+ * template.
+ *
+ * <p>A template is an expression in which the variables of the rule's
+ * pattern are replaced by what they captured: <code>?name</code> by the
+ * captured expression, and <code>??name</code>, as a list element, by the
+ * elements of the captured list (or by the captured expression itself,
+ * if it is an atom).</p>
+ *
+ * <p>{@link #rewrite(Expression)} works bottom-up: the elements of a list
+ * are rewritten first, and then the first rule whose pattern matches the
+ * resulting list replaces it. The result of a rule is not rewritten
+ * again. All rules' patterns are compiled into one {@link PatternSet}, so
+ * finding the rule for a node costs one walk whatever the number of
+ * rules.</p>
+ *
+ * <pre>
+ * Rewriter rewriter = Rewriter.builder()
+ *     .rule(list(atom("not"), list(atom("not"), atom("?x"))), atom("?x"))
+ *     .build();
+ * </pre>
+ *
+ * <p>Rewriters are immutable, and safe to share between threads.</p>
+ */
+public final class Rewriter
+{
+    private final PatternSet patterns;
+    private final Expression[] templates;
+
+    private Rewriter(PatternSet patterns, Expression[] templates)
+    {
+        this.patterns = patterns;
+        this.templates = templates;
+    }
+
+    /**
+     * Create a new builder.
+     *
+     * @return The builder.
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Rewrite an expression. Subtrees that no rule changes are shared with
+     * the input.
+     *
+     * @param expression The expression.
+     * @return The rewritten expression.
+     */
+    public Expression rewrite(Expression expression)
+    {
+        Preconditions.checkNotNull(expression);
+        Expression e = expression;
+        if (e instanceof ExpressionList)
+        {
+            ExpressionList list = (ExpressionList) e;
+            ExpressionList rewritten = null;
+            for (int i = 0; i < list.size(); i++)
+            {
+                Expression child = list.get(i);
+                Expression result = rewrite(child);
+                if (rewritten == null && result != child)
+                {
+                    rewritten = new ExpressionList(list.size());
+                    rewritten.addAll(list.subList(0, i));
+                }
+                if (rewritten != null)
+                    rewritten.add(result);
+            }
+            if (rewritten != null)
+                e = rewritten;
+        }
+        Optional<Match> match = patterns.matchFirst(e);
+        if (!match.isPresent())
+            return e;
+        return instantiate(templates[match.get().index()], match.get().bindings());
+    }
+
+    private static Expression instantiate(Expression template, Map<String, Expression> bindings)
+    {
+        if (template instanceof Atom)
+        {
+            Atom atom = (Atom) template;
+            if (Pattern.variableKind(atom) == Pattern.LITERAL)
+                return atom;
+            return bindings.get(variableName(atom));
+        }
+        ExpressionList list = (ExpressionList) template;
+        ExpressionList result = new ExpressionList(list.size());
+        for (Expression element : list)
+        {
+            if (element instanceof Atom && Pattern.variableKind((Atom) element) == Pattern.REST)
+            {
+                Expression bound = bindings.get(variableName((Atom) element));
+                if (bound instanceof ExpressionList)
+                    result.addAll((ExpressionList) bound);
+                else
+                    result.add(bound);
+            }
+            else
+                result.add(instantiate(element, bindings));
+        }
+        return result;
+    }
+
+    private static String variableName(Atom atom)
+    {
+        return atom.stringValue(Pattern.variableKind(atom) == Pattern.REST ? 2 : 1);
+    }
+
+    /**
+     * A builder for rewriters.
+     */
+    public static final class Builder
+    {
+        private final List<Pattern> patterns = new ArrayList<>();
+        private final List<Expression> templates = new ArrayList<>();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Add a rule. Rules added first take precedence.
+         *
+         * @param pattern The pattern.
+         * @param template The template.
+         * @return This builder.
+         * @throws java.lang.IllegalArgumentException If the pattern is malformed,
+         *         or the template uses a variable the pattern does not capture.
+         */
+        public Builder rule(Expression pattern, Expression template)
+        {
+            return rule(Pattern.compile(pattern), template);
+        }
+
+        /**
+         * Add a rule. Rules added first take precedence.
+         *
+         * @param pattern The pattern.
+         * @param template The template.
+         * @return This builder.
+         * @throws java.lang.IllegalArgumentException If the template uses a
+         *         variable the pattern does not capture.
+         */
+        public Builder rule(Pattern pattern, Expression template)
+        {
+            Preconditions.checkNotNull(pattern);
+            Preconditions.checkNotNull(template);
+            if (template instanceof Atom && Pattern.variableKind((Atom) template) == Pattern.REST)
+                throw new IllegalArgumentException("?? outside of a list in template");
+            check(template, pattern.variables());
+            patterns.add(pattern);
+            templates.add(template);
+            return this;
+        }
+
+        private static void check(Expression template, Set<String> variables)
+        {
+            if (template instanceof Atom)
+            {
+                Atom atom = (Atom) template;
+                if (Pattern.variableKind(atom) != Pattern.LITERAL && !variables.contains(variableName(atom)))
+                    throw new IllegalArgumentException("template variable " + atom.stringValue()
+                        + " is not captured by the pattern");
+                return;
+            }
+            for (Expression element : (ExpressionList) template)
+                check(element, variables);
+        }
+
+        /**
+         * Build the rewriter.
+         *
+         * @return The rewriter.
+         */
+        public Rewriter build()
+        {
+            return new Rewriter(PatternSet.of(patterns), templates.toArray(new Expression[templates.size()]));
+        }
+    }
+}
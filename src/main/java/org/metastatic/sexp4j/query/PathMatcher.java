@@ -0,0 +1,423 @@
+package org.metastatic.sexp4j.query;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.DisplayHint;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionBuilder;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.RawStreamingParserCallback;
+import org.metastatic.sexp4j.StreamingParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluates a set of {@link PathQuery path queries} in one pass over a
+ * parser's events, building only the subtrees the queries select.
+ *
+ * <p>The matcher keeps, for each open list, the query steps that may
+ * still match its children. Steps on a list's head atom are settled when
+ * the head arrives, and a subtree is built only once its list or atom is
+ * reached by the last step of some query; everything else is skipped
+ * without allocating. With a match limit, the matcher stops the parser as
+ * soon as every query has that many matches.</p>
+ *
+ * <pre>
+ * PathQuery issuer = PathQuery.compile("cert/issuer/name/[1]");
+ * PathMatcher matcher = new PathMatcher(1, issuer);
+ * matcher.match(new CanonicalStreamingParser(input));
+ * List&lt;Expression&gt; names = matcher.matches(issuer);
+ * </pre>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+public class PathMatcher implements RawStreamingParserCallback
+{
+    private final PathQuery[] queries;
+    private final int limit;
+    private final List<Expression>[] results;
+    private final boolean[] satisfied;
+    private int unsatisfied;
+    private Frame[] frames = new Frame[16];
+    private int depth = 0;
+    private final List<Capture> captures = new ArrayList<>();
+    private final List<Capture> completed = new ArrayList<>();
+    private StreamingParser parser;
+
+    /**
+     * Create a matcher that collects every match of the given queries.
+     *
+     * @param queries The queries.
+     * @throws java.lang.NullPointerException If any query is null.
+     * @throws java.lang.IllegalArgumentException If no queries are given.
+     */
+    public PathMatcher(PathQuery... queries)
+    {
+        this(0, queries);
+    }
+
+    /**
+     * Create a matcher that collects at most <code>limit</code> matches of
+     * each query, and stops the parser once all queries have that many.
+     *
+     * @param limit The maximum number of matches per query, or 0 for no limit.
+     * @param queries The queries.
+     * @throws java.lang.NullPointerException If any query is null.
+     * @throws java.lang.IllegalArgumentException If no queries are given, or the limit is negative.
+     */
+    public PathMatcher(int limit, PathQuery... queries)
+    {
+        Preconditions.checkArgument(limit >= 0, "negative limit");
+        Preconditions.checkArgument(queries.length > 0, "no queries");
+        Preconditions.checkArgument(queries.length <= 0xFFFF, "too many queries");
+        for (PathQuery query : queries)
+            Preconditions.checkNotNull(query);
+        this.queries = queries.clone();
+        this.limit = limit;
+        @SuppressWarnings("unchecked")
+        List<Expression>[] results = new List[queries.length];
+        this.results = results;
+        this.satisfied = new boolean[queries.length];
+        reset();
+    }
+
+    /**
+     * Clear all matches and matching state, so this matcher may be used
+     * on another input.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < results.length; i++)
+            results[i] = new ArrayList<>();
+        Arrays.fill(satisfied, false);
+        unsatisfied = queries.length;
+        captures.clear();
+        for (int i = 0; i <= depth; i++)
+            if (frames[i] != null)
+                frames[i].clear();
+        depth = 0;
+        Frame root = frame(0);
+        for (int q = 0; q < queries.length; q++)
+            root.states.add(state(q, 0));
+    }
+
+    /**
+     * Run a parser with this matcher as one of its callbacks, until the
+     * input ends or all queries are satisfied.
+     *
+     * @param parser The parser.
+     * @throws java.io.IOException If parsing fails.
+     */
+    public void match(StreamingParser parser) throws IOException
+    {
+        Preconditions.checkNotNull(parser);
+        this.parser = parser;
+        parser.addCallback(this);
+        try
+        {
+            parser.parse();
+        }
+        finally
+        {
+            parser.removeCallback(this);
+            this.parser = null;
+        }
+    }
+
+    /**
+     * Tell if every query has reached the match limit. This is always
+     * false if there is no limit.
+     *
+     * @return True if all queries are satisfied.
+     */
+    public boolean isSatisfied()
+    {
+        return unsatisfied == 0;
+    }
+
+    /**
+     * Return the matches of the query at the given index, in document order
+     * of where each match ends.
+     *
+     * @param index The index of the query, as passed to the constructor.
+     * @return The matches.
+     */
+    public List<Expression> matches(int index)
+    {
+        return Collections.unmodifiableList(results[index]);
+    }
+
+    /**
+     * Return the matches of a query.
+     *
+     * @param query The query.
+     * @return The matches.
+     * @throws java.lang.IllegalArgumentException If the query was not given to this matcher.
+     */
+    public List<Expression> matches(PathQuery query)
+    {
+        for (int i = 0; i < queries.length; i++)
+            if (queries[i].equals(query))
+                return matches(i);
+        throw new IllegalArgumentException("unknown query " + query);
+    }
+
+    @Override
+    public void beginList() throws ParseException
+    {
+        if (unsatisfied == 0)
+            return;
+        Frame parent = frames[depth];
+        if (parent.pending.size > 0)
+            parent.failPending();
+        int index = parent.children++;
+        for (int i = 0; i < captures.size(); i++)
+            captures.get(i).beginList();
+        Frame frame = frame(++depth);
+        for (int i = 0; i < parent.states.size; i++)
+        {
+            int s = parent.states.values[i];
+            int q = s >>> 16;
+            int k = s & 0xFFFF;
+            if (satisfied[q])
+                continue;
+            PathQuery query = queries[q];
+            switch (query.kinds[k])
+            {
+                case PathQuery.NAME:
+                    frame.pending.add(s);
+                    if (k == query.length() - 1)
+                        frame.provisional.add(startCapture(q));
+                    break;
+
+                case PathQuery.INDEX:
+                    if (query.indexes[k] == index)
+                        enter(frame, q, k);
+                    break;
+
+                case PathQuery.ANY:
+                    enter(frame, q, k);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void endList() throws ParseException
+    {
+        if (unsatisfied == 0)
+            return;
+        if (depth == 0)
+            throw new ParseException("unbalanced list end");
+        Frame frame = frames[depth];
+        if (frame.pending.size > 0)
+            frame.failPending();
+        frame.clear();
+        depth--;
+        int done = 0;
+        for (int i = 0; i < captures.size(); i++)
+        {
+            Capture capture = captures.get(i);
+            if (capture.endList())
+                completed.add(capture);
+            else
+                captures.set(done++, capture);
+        }
+        captures.subList(done, captures.size()).clear();
+        for (int i = 0; i < completed.size(); i++)
+            record(completed.get(i).query, completed.get(i).builder.build());
+        completed.clear();
+    }
+
+    @Override
+    public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) throws ParseException
+    {
+        if (unsatisfied == 0)
+            return;
+        Frame parent = frames[depth];
+        if (parent.pending.size > 0)
+            resolvePending(parent, buf, off, len);
+        int index = parent.children++;
+        Atom atom = null;
+        if (!captures.isEmpty())
+        {
+            atom = atom(buf, off, len, hintBuf, hintOff, hintLen);
+            for (int i = 0; i < captures.size(); i++)
+                captures.get(i).builder.atom(atom);
+        }
+        for (int i = 0; i < parent.states.size && unsatisfied > 0; i++)
+        {
+            int s = parent.states.values[i];
+            int q = s >>> 16;
+            int k = s & 0xFFFF;
+            PathQuery query = queries[q];
+            if (satisfied[q] || k != query.length() - 1)
+                continue;
+            if (query.kinds[k] == PathQuery.ANY
+                || (query.kinds[k] == PathQuery.INDEX && query.indexes[k] == index))
+            {
+                if (atom == null)
+                    atom = atom(buf, off, len, hintBuf, hintOff, hintLen);
+                record(q, atom);
+            }
+        }
+    }
+
+    private static Atom atom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen)
+    {
+        return Atom.atom(buf, off, len, hintBuf == null ? null : DisplayHint.of(hintBuf, hintOff, hintLen));
+    }
+
+    private static int state(int query, int step)
+    {
+        return (query << 16) | step;
+    }
+
+    private Frame frame(int d)
+    {
+        if (d == frames.length)
+            frames = Arrays.copyOf(frames, d * 2);
+        if (frames[d] == null)
+            frames[d] = new Frame();
+        return frames[d];
+    }
+
+    /**
+     * The list just begun matched step k of query q.
+     */
+    private void enter(Frame frame, int q, int k)
+    {
+        if (k == queries[q].length() - 1)
+            startCapture(q);
+        else
+            frame.states.add(state(q, k + 1));
+    }
+
+    private Capture startCapture(int q)
+    {
+        Capture capture = new Capture(q);
+        capture.beginList();
+        captures.add(capture);
+        return capture;
+    }
+
+    private void resolvePending(Frame frame, byte[] buf, int off, int len)
+    {
+        for (int i = 0; i < frame.pending.size; i++)
+        {
+            int s = frame.pending.values[i];
+            int q = s >>> 16;
+            int k = s & 0xFFFF;
+            PathQuery query = queries[q];
+            boolean last = k == query.length() - 1;
+            if (query.nameEquals(k, buf, off, len))
+            {
+                if (!last)
+                    frame.states.add(state(q, k + 1));
+            }
+            else if (last)
+                cancel(frame, q);
+        }
+        frame.pending.size = 0;
+        frame.provisional.clear();
+    }
+
+    private void cancel(Frame frame, int q)
+    {
+        for (Capture capture : frame.provisional)
+        {
+            if (capture.query == q)
+            {
+                captures.remove(capture);
+                return;
+            }
+        }
+    }
+
+    private void record(int q, Expression match)
+    {
+        if (satisfied[q])
+            return;
+        results[q].add(match);
+        if (limit > 0 && results[q].size() >= limit)
+        {
+            satisfied[q] = true;
+            for (int i = captures.size() - 1; i >= 0; i--)
+                if (captures.get(i).query == q)
+                    captures.remove(i);
+            if (--unsatisfied == 0 && parser != null)
+                parser.stop();
+        }
+    }
+
+    /**
+     * The matching state of one open list.
+     */
+    private final class Frame
+    {
+        final IntList states = new IntList();
+        final IntList pending = new IntList();
+        final List<Capture> provisional = new ArrayList<>();
+        int children;
+
+        void failPending()
+        {
+            for (Capture capture : provisional)
+                captures.remove(capture);
+            provisional.clear();
+            pending.size = 0;
+        }
+
+        void clear()
+        {
+            states.size = 0;
+            pending.size = 0;
+            provisional.clear();
+            children = 0;
+        }
+    }
+
+    /**
+     * A subtree being built for a query.
+     */
+    private static final class Capture
+    {
+        final int query;
+        final ExpressionBuilder builder = new ExpressionBuilder(Integer.MAX_VALUE);
+        int depth;
+
+        Capture(int query)
+        {
+            this.query = query;
+        }
+
+        void beginList()
+        {
+            builder.beginList();
+            depth++;
+        }
+
+        boolean endList()
+        {
+            builder.endList();
+            return --depth == 0;
+        }
+    }
+
+    private static final class IntList
+    {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
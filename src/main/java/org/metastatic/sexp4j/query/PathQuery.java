@@ -0,0 +1,210 @@
+package org.metastatic.sexp4j.query;
+
+import com.google.common.base.Preconditions;
+import org.metastatic.sexp4j.Utf8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled path through nested lists, selecting the subtrees a
+ * {@link PathMatcher} materializes while parsing.
+ *
+ * <p>A path is a sequence of steps separated by <code>/</code>. The first
+ * step is matched against each top-level expression, and every following
+ * step against the children of the list matched by the step before it.
+ * A step is one of:</p>
+ *
+ * <ul>
+ *     <li><code>name</code> &mdash; a list whose first element is the atom
+ *     <code>name</code> (in UTF-8). Display hints are ignored.</li>
+ *     <li><code>"name"</code> &mdash; the same, but <code>name</code> may
+ *     contain <code>/</code>, <code>*</code> or <code>[</code>; a backslash
+ *     escapes <code>"</code> or itself.</li>
+ *     <li><code>[n]</code> &mdash; the element at index <code>n</code> of
+ *     the list, counting the head as index 0. It may be an atom or a list.</li>
+ *     <li><code>*</code> &mdash; any element.</li>
+ * </ul>
+ *
+ * <p>For example, given
+ * <code>(cert (issuer (name alice)) (validity (not-after "2015-01-01")))</code>,
+ * the path <code>cert/validity/not-after/[1]</code> selects the atom
+ * <code>2015-01-01</code>, and <code>cert/issuer</code> selects the list
+ * <code>(issuer (name alice))</code>.</p>
+ */
+public final class PathQuery
+{
+    /**
+     * The maximum number of steps in a path.
+     */
+    public static final int MAX_STEPS = 0xFFFF;
+
+    static final int NAME = 0;
+    static final int INDEX = 1;
+    static final int ANY = 2;
+
+    private final String source;
+    final int[] kinds;
+    final int[] indexes;
+    final byte[][] names;
+
+    private PathQuery(String source, int[] kinds, int[] indexes, byte[][] names)
+    {
+        this.source = source;
+        this.kinds = kinds;
+        this.indexes = indexes;
+        this.names = names;
+    }
+
+    /**
+     * Compile a path query.
+     *
+     * @param path The path.
+     * @return The compiled query.
+     * @throws java.lang.NullPointerException If the argument is null.
+     * @throws java.lang.IllegalArgumentException If the path is malformed.
+     */
+    public static PathQuery compile(String path)
+    {
+        Preconditions.checkNotNull(path);
+        List<Integer> kinds = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        List<byte[]> names = new ArrayList<>();
+        int i = 0;
+        final int n = path.length();
+        while (true)
+        {
+            if (i == n || path.charAt(i) == '/')
+                throw new IllegalArgumentException(String.format("empty step at %d in %s", i, path));
+            char c = path.charAt(i);
+            if (c == '"')
+            {
+                StringBuilder name = new StringBuilder();
+                i++;
+                while (true)
+                {
+                    if (i == n)
+                        throw new IllegalArgumentException("unterminated quoted step in " + path);
+                    c = path.charAt(i++);
+                    if (c == '"')
+                        break;
+                    if (c == '\\')
+                    {
+                        if (i == n)
+                            throw new IllegalArgumentException("unterminated quoted step in " + path);
+                        c = path.charAt(i++);
+                    }
+                    name.append(c);
+                }
+                kinds.add(NAME);
+                indexes.add(-1);
+                names.add(Utf8.encode(name.toString()));
+            }
+            else
+            {
+                int end = path.indexOf('/', i);
+                if (end < 0)
+                    end = n;
+                String step = path.substring(i, end);
+                i = end;
+                if (step.equals("*"))
+                {
+                    kinds.add(ANY);
+                    indexes.add(-1);
+                    names.add(null);
+                }
+                else if (step.charAt(0) == '[')
+                {
+                    kinds.add(INDEX);
+                    indexes.add(parseIndex(step, path));
+                    names.add(null);
+                }
+                else
+                {
+                    if (step.indexOf('*') >= 0 || step.indexOf('[') >= 0 || step.indexOf('"') >= 0)
+                        throw new IllegalArgumentException(String.format("step %s must be quoted in %s", step, path));
+                    kinds.add(NAME);
+                    indexes.add(-1);
+                    names.add(Utf8.encode(step));
+                }
+            }
+            if (kinds.size() > MAX_STEPS)
+                throw new IllegalArgumentException("too many steps in " + path);
+            if (i == n)
+                break;
+            if (path.charAt(i) != '/')
+                throw new IllegalArgumentException(String.format("expected / at %d in %s", i, path));
+            i++;
+        }
+        int[] k = new int[kinds.size()];
+        int[] x = new int[kinds.size()];
+        for (int j = 0; j < k.length; j++)
+        {
+            k[j] = kinds.get(j);
+            x[j] = indexes.get(j);
+        }
+        return new PathQuery(path, k, x, names.toArray(new byte[names.size()][]));
+    }
+
+    private static int parseIndex(String step, String path)
+    {
+        if (step.length() < 3 || step.charAt(step.length() - 1) != ']')
+            throw new IllegalArgumentException(String.format("malformed index step %s in %s", step, path));
+        int index = 0;
+        for (int i = 1; i < step.length() - 1; i++)
+        {
+            char c = step.charAt(i);
+            if (c < '0' || c > '9')
+                throw new IllegalArgumentException(String.format("malformed index step %s in %s", step, path));
+            int digit = c - '0';
+            if (index > (Integer.MAX_VALUE - digit) / 10)
+                throw new IllegalArgumentException(String.format("index step %s too large in %s", step, path));
+            index = index * 10 + digit;
+        }
+        return index;
+    }
+
+    /**
+     * Return the number of steps in this path.
+     *
+     * @return The number of steps.
+     */
+    public int length()
+    {
+        return kinds.length;
+    }
+
+    boolean nameEquals(int step, byte[] buf, int off, int len)
+    {
+        byte[] name = names[step];
+        if (name.length != len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (name[i] != buf[off + i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof PathQuery)) return false;
+        PathQuery that = (PathQuery) o;
+        return Arrays.equals(kinds, that.kinds) && Arrays.equals(indexes, that.indexes)
+            && Arrays.deepEquals(names, that.names);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * (31 * Arrays.hashCode(kinds) + Arrays.hashCode(indexes)) + Arrays.deepHashCode(names);
+    }
+
+    @Override
+    public String toString()
+    {
+        return source;
+    }
+}
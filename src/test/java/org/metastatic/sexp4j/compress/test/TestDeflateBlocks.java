@@ -0,0 +1,187 @@
+package org.metastatic.sexp4j.compress.test;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+import org.metastatic.sexp4j.compress.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.*;
+
+public class TestDeflateBlocks {
+    private static Expression message(int i) {
+        return ExpressionList.list(Atom.atom("event"),
+            ExpressionList.list(Atom.atom("timestamp"), Atom.atom(1418000000000L + i)),
+            ExpressionList.list(Atom.atom("user"), Atom.atom("user-" + (i % 17))),
+            ExpressionList.list(Atom.atom("action"), Atom.atom(i % 3 == 0 ? "login" : "view-page")),
+            ExpressionList.list(Atom.atom("client"), Atom.atom("Mozilla/5.0 (X11; Linux x86_64)")));
+    }
+
+    private static List<Expression> parseAll(DeflateBlockInputStream in) throws IOException {
+        final List<Expression> result = new ArrayList<>();
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(in);
+        final ExpressionBuilder[] builder = { ExpressionBuilder.create() };
+        parser.addCallback(new StreamingParserCallback() {
+            int depth = 0;
+
+            @Override
+            public void beginList() {
+                builder[0].beginList();
+                depth++;
+            }
+
+            @Override
+            public void endList() {
+                builder[0].endList();
+                if (--depth == 0) {
+                    result.add(builder[0].build());
+                    builder[0] = ExpressionBuilder.create();
+                }
+            }
+
+            @Override
+            public void onAtom(byte[] atom, Optional<byte[]> hint) {
+                builder[0].atom(hint.isPresent() ? Atom.atom(atom).withHint(new String(hint.get())) : Atom.atom(atom));
+            }
+        });
+        parser.parse();
+        return result;
+    }
+
+    @Test
+    public void testRoundTripAndSeek() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedCanonicalWriter writer = new CompressedCanonicalWriter(out, 1024, null);
+        List<Long> blocks = new ArrayList<>();
+        List<Integer> firstMessage = new ArrayList<>();
+        long position = -1;
+        for (int i = 0; i < 200; i++) {
+            if (writer.position() != position) {
+                position = writer.position();
+                blocks.add(position);
+                firstMessage.add(i);
+            }
+            writer.writeExpression(message(i));
+        }
+        // A large atom crosses the direct read threshold.
+        byte[] large = new byte[100000];
+        new Random(1).nextBytes(large);
+        writer.writeExpression(ExpressionList.list(Atom.atom("blob"), Atom.atom(large)));
+        writer.close();
+        assertTrue(blocks.size() > 5);
+
+        List<Expression> all = parseAll(new DeflateBlockInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(201, all.size());
+        for (int i = 0; i < 200; i++)
+            assertEquals(message(i), all.get(i));
+        assertEquals(ExpressionList.list(Atom.atom("blob"), Atom.atom(large)), all.get(200));
+
+        int b = blocks.size() / 2;
+        byte[] bytes = out.toByteArray();
+        ByteArrayInputStream tail = new ByteArrayInputStream(bytes, (int) (long) blocks.get(b), bytes.length);
+        List<Expression> rest = parseAll(new DeflateBlockInputStream(tail));
+        assertEquals(message(firstMessage.get(b)), rest.get(0));
+        assertEquals(201 - firstMessage.get(b), rest.size());
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        List<Expression> samples = new ArrayList<>();
+        for (int i = 0; i < 300; i++)
+            samples.add(message(i));
+        DeflateDictionary dictionary = DeflateDictionary.train(samples, 4096);
+        assertTrue(dictionary.bytes().length <= 4096);
+
+        Expression small = message(1000);
+        ByteArrayOutputStream withDictionary = new ByteArrayOutputStream();
+        CompressedCanonicalWriter writer = new CompressedCanonicalWriter(withDictionary, 1024, dictionary);
+        writer.writeExpression(small);
+        writer.close();
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(gzip)) {
+            new CanonicalWriter(gz).writeExpression(small);
+        }
+        assertTrue(withDictionary.size() + " vs " + gzip.size(), withDictionary.size() * 2 < gzip.size());
+
+        assertEquals(small, parseAll(new DeflateBlockInputStream(
+            new ByteArrayInputStream(withDictionary.toByteArray()), dictionary)).get(0));
+        try {
+            parseAll(new DeflateBlockInputStream(new ByteArrayInputStream(withDictionary.toByteArray())));
+            fail("expected ZipException");
+        } catch (ZipException expected) {
+        }
+    }
+
+    @Test
+    public void testOutputStreamBlocks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflateBlockOutputStream deflate = new DeflateBlockOutputStream(out, 100, null, 9);
+        byte[] data = new byte[1050];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i % 7);
+        deflate.write(data);
+        assertEquals(50, deflate.pending());
+        deflate.close();
+        DeflateBlockInputStream in = new DeflateBlockInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] read = new byte[data.length];
+        ByteStreams.readFully(in, read);
+        assertArrayEquals(data, read);
+        assertEquals(-1, in.read());
+    }
+
+    private static byte[] header(int rawLength, int length) {
+        return new byte[] { 0x53, 0x58, 0x5a, 0x01, 0, 0, 0, 0, 0,
+            (byte) (rawLength >>> 24), (byte) (rawLength >>> 16), (byte) (rawLength >>> 8), (byte) rawLength,
+            (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+    }
+
+    @Test
+    public void testHostileBlockLengths() throws IOException {
+        byte[][] bad = {
+            header(10, Integer.MAX_VALUE),
+            header(Integer.MAX_VALUE, Integer.MAX_VALUE),
+            header(2000, 100)
+        };
+        for (byte[] b : bad) {
+            DeflateBlockInputStream in = new DeflateBlockInputStream(new ByteArrayInputStream(b), null, 1000);
+            try {
+                in.read();
+                fail("expected a ZipException");
+            } catch (ZipException expected) {
+                // Rejected before allocating.
+            }
+        }
+    }
+
+    @Test
+    public void testExpressionLongerThanBlockLimit() throws IOException {
+        byte[] big = new byte[DeflateBlockOutputStream.MAX_BLOCK_SIZE + 1000];
+        for (int i = 0; i < big.length; i += 4096)
+            big[i] = (byte) i;
+        Expression e = ExpressionList.list(Atom.atom("big"), Atom.atom(big));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedCanonicalWriter writer = new CompressedCanonicalWriter(out);
+        writer.writeExpression(e);
+        writer.writeExpression(message(1));
+        writer.close();
+        List<Expression> read = parseAll(new DeflateBlockInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(2, read.size());
+        assertEquals(e, read.get(0));
+        assertEquals(message(1), read.get(1));
+
+        try {
+            new DeflateBlockOutputStream(out, DeflateBlockOutputStream.MAX_BLOCK_SIZE + 1, null, 9);
+            fail("block size larger than the limit");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.metastatic.sexp4j.diff.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ImmutableExpressionList;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.diff.Edit;
+import org.metastatic.sexp4j.diff.Patch;
+import org.metastatic.sexp4j.diff.SubtreeHashes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestPatch {
+    private static byte[] canonical(Expression e) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CanonicalWriter(out).writeExpression(e);
+        return out.toByteArray();
+    }
+
+    private static Expression randomTree(Random random, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            Atom a = Atom.atom("a" + random.nextInt(8));
+            return random.nextInt(10) == 0 ? a.withHint("h" + random.nextInt(2)) : a;
+        }
+        ExpressionList list = new ExpressionList();
+        int size = random.nextInt(8);
+        for (int i = 0; i < size; i++)
+            list.add(randomTree(random, depth - 1));
+        return list;
+    }
+
+    // Copy a tree, with a few random changes.
+    private static Expression mutate(Random random, Expression e) {
+        if (random.nextInt(12) == 0)
+            return randomTree(random, 2);
+        if (!(e instanceof ExpressionList))
+            return e;
+        ExpressionList copy = new ExpressionList();
+        for (Expression child : (ExpressionList) e) {
+            int r = random.nextInt(16);
+            if (r == 0)
+                continue;
+            if (r == 1)
+                copy.add(randomTree(random, 2));
+            copy.add(mutate(random, child));
+        }
+        if (random.nextInt(8) == 0)
+            copy.add(randomTree(random, 2));
+        return copy;
+    }
+
+    private static void check(Expression from, Expression to) throws IOException {
+        Patch patch = Patch.diff(from, to);
+        assertArrayEquals(canonical(to), canonical(patch.apply(from)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        patch.apply(new ByteArrayInputStream(canonical(from)), out);
+        assertArrayEquals(canonical(to), out.toByteArray());
+        Patch read = Patch.fromExpression(patch.toExpression());
+        assertEquals(patch.edits(), read.edits());
+        assertArrayEquals(canonical(to), canonical(read.apply(from)));
+    }
+
+    @Test
+    public void testRandomTrees() throws Exception {
+        Random random = new Random(0x5e4b);
+        for (int i = 0; i < 500; i++) {
+            Expression from = randomTree(random, 5);
+            check(from, mutate(random, from));
+        }
+        check(Atom.atom("x"), Atom.atom("x").withHint("h"));
+        check(Atom.atom("x"), ExpressionList.list());
+        check(ExpressionList.list(Atom.atom("x")), ExpressionList.list(Atom.atom("x")));
+        assertTrue(Patch.diff(ExpressionList.list(Atom.atom("x")), ExpressionList.list(Atom.atom("x"))).isEmpty());
+    }
+
+    @Test
+    public void testSmallEditsToLargeDocuments() throws Exception {
+        ExpressionList from = new ExpressionList();
+        for (int i = 0; i < 100000; i++)
+            from.add(ExpressionList.list(Atom.atom("rule"), Atom.atom(i), ExpressionList.list(Atom.atom("allow"))));
+        ExpressionList to = new ExpressionList(from.size());
+        to.addAll(from);
+        to.set(500, ExpressionList.list(Atom.atom("rule"), Atom.atom(500), ExpressionList.list(Atom.atom("deny"))));
+        to.remove(70000);
+        to.add(90000, Atom.atom("new"));
+
+        Patch patch = Patch.diff(from, to);
+        assertEquals(Arrays.asList(
+            Edit.replace(new int[] { 500, 2, 0 }, Atom.atom("deny")),
+            Edit.delete(new int[0], 70000, 1),
+            Edit.insert(new int[0], 90001, Atom.atom("new"))), patch.edits());
+        assertEquals(to, patch.apply(from));
+        check(from, to);
+    }
+
+    @Test
+    public void testImmutableSharing() throws Exception {
+        ImmutableExpressionList.Builder builder = ImmutableExpressionList.builder();
+        for (int i = 0; i < 10000; i++)
+            builder.add(ImmutableExpressionList.of(Atom.atom("entry"), Atom.atom(i)));
+        ImmutableExpressionList from = builder.build();
+        ImmutableExpressionList to = from.with(1234, ImmutableExpressionList.of(Atom.atom("entry"), Atom.atom(-1)))
+            .without(9000);
+
+        SubtreeHashes hashes = new SubtreeHashes();
+        assertEquals(hashes.hash(ExpressionList.list(Atom.atom("entry"), Atom.atom(7))), hashes.hash(from.get(7)));
+        Patch patch = Patch.diff(from, to, hashes);
+        assertEquals(2, patch.edits().size());
+        Expression patched = patch.apply(from);
+        assertTrue(patched instanceof ImmutableExpressionList);
+        assertEquals(to, patched);
+        assertSame(from.get(0), ((ExpressionList) patched).get(0));
+        assertSame(from.get(9999), ((ExpressionList) patched).get(9998));
+    }
+
+    @Test
+    public void testInvalidPatches() throws Exception {
+        int[] root = new int[0];
+        try {
+            Patch.of(Edit.replace(new int[] { 1 }, Atom.atom("x")), Edit.replace(new int[] { 1, 0 }, Atom.atom("y")));
+            fail("edit inside a replaced expression");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Patch.of(Edit.delete(root, 0, 3), Edit.replace(new int[] { 2 }, Atom.atom("y")));
+            fail("edit inside a deleted range");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Patch.of(Edit.delete(root, 4, 1)).apply(ExpressionList.list(Atom.atom("x")));
+            fail("edit outside the list");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Patch.fromExpression(ExpressionList.list(Atom.atom("patch"), ExpressionList.list(Atom.atom("move"))));
+            fail("unknown edit");
+        } catch (ParseException expected) {
+        }
+        try {
+            Patch.of(Edit.insert(root, 0, Atom.atom("x"))).apply(
+                new ByteArrayInputStream("1:a1:b".getBytes("US-ASCII")), new ByteArrayOutputStream());
+            fail("more than one expression");
+        } catch (ParseException | IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.metastatic.sexp4j.flow.test;
+
+import com.google.common.io.CountingInputStream;
+import org.junit.Test;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.flow.ExpressionPublisher;
+import org.metastatic.sexp4j.flow.ExpressionSubscriber;
+import org.metastatic.sexp4j.flow.Subscriber;
+import org.metastatic.sexp4j.flow.Subscription;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestFlow {
+    private static Expression record(int i) {
+        return ExpressionList.list(Atom.atom("event"), Atom.atom(i), ExpressionList.list(Atom.atom("payload-" + i)));
+    }
+
+    private static byte[] records(int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        for (int i = 0; i < count; i++)
+            writer.writeExpression(record(i));
+        writer.writeExpression(Atom.atom("last"));
+        return out.toByteArray();
+    }
+
+    private static class Recorder implements Subscriber<Expression> {
+        final List<Expression> items = new ArrayList<>();
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Expression item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    public void testDemand() throws IOException {
+        byte[] data = records(1000);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(data));
+        Recorder recorder = new Recorder();
+        ExpressionPublisher publisher = ExpressionPublisher.canonical(in);
+        publisher.subscribe(recorder);
+        assertEquals(0, in.getCount());
+
+        recorder.subscription.request(3);
+        assertEquals(3, recorder.items.size());
+        assertEquals(record(2), recorder.items.get(2));
+        assertTrue(in.getCount() < 100);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(1001, recorder.items.size());
+        assertEquals(Atom.atom("last"), recorder.items.get(1000));
+        assertTrue(recorder.completed);
+        assertNull(recorder.error);
+
+        Recorder second = new Recorder();
+        publisher.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        Recorder recorder = new Recorder();
+        ExpressionPublisher.canonical(new ByteArrayInputStream("(3:abc)(1:x".getBytes())).subscribe(recorder);
+        recorder.subscription.request(5);
+        assertEquals(1, recorder.items.size());
+        assertTrue(recorder.error instanceof IOException);
+
+        recorder = new Recorder();
+        ExpressionPublisher.canonical(new ByteArrayInputStream("(3:abc)!".getBytes())).subscribe(recorder);
+        recorder.subscription.request(5);
+        assertTrue(recorder.error instanceof ParseException);
+
+        recorder = new Recorder();
+        ExpressionPublisher.canonical(new ByteArrayInputStream(records(5))).subscribe(recorder);
+        recorder.subscription.request(0);
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        assertTrue(recorder.items.isEmpty());
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        byte[] data = records(5000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ExpressionSubscriber subscriber = new ExpressionSubscriber(out, 100);
+            ExpressionPublisher.canonical(new ByteArrayInputStream(data), executor).subscribe(subscriber);
+            assertEquals(5001, subscriber.completion().get(10, TimeUnit.SECONDS).longValue());
+            assertArrayEquals(data, out.toByteArray());
+
+            subscriber = new ExpressionSubscriber(new ByteArrayOutputStream());
+            ExpressionPublisher.advanced(new ByteArrayInputStream("(a b) (c".getBytes()), executor)
+                    .subscribe(subscriber);
+            try {
+                subscriber.completion().get(10, TimeUnit.SECONDS);
+                fail("expected ExecutionException");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof ParseException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTopLevelAtoms() throws Exception {
+        byte[] data = "3:abc3:def(1:x)".getBytes("US-ASCII");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExpressionSubscriber subscriber = new ExpressionSubscriber(out, 2);
+        ExpressionPublisher.canonical(new ByteArrayInputStream(data)).subscribe(subscriber);
+        assertEquals(3, subscriber.completion().get(10, TimeUnit.SECONDS).longValue());
+        assertArrayEquals(data, out.toByteArray());
+    }
+}
@@ -0,0 +1,110 @@
+package org.metastatic.sexp4j.log.test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalParser;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.log.GroupCommitWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestGroupCommitWriter {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Expression record(int thread, int i) {
+        return ExpressionList.list(Atom.atom("event"), Atom.atom(thread), Atom.atom(i), Atom.atom("payload-" + i));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        Path file = folder.newFile().toPath();
+        final int threads = 8;
+        final int records = 500;
+        final List<List<ListenableFuture<Long>>> futures = new ArrayList<>();
+        try (final GroupCommitWriter writer = GroupCommitWriter.builder(file)
+                .maxLatency(1, TimeUnit.MILLISECONDS).maxBatchBytes(4096).open()) {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final List<ListenableFuture<Long>> mine = new ArrayList<>();
+                futures.add(mine);
+                final int thread = t;
+                workers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < records; i++)
+                                mine.add(writer.write(record(thread, i)));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers)
+                worker.join();
+            for (List<ListenableFuture<Long>> mine : futures)
+                mine.get(records - 1).get(10, TimeUnit.SECONDS);
+            assertEquals(Files.size(file), writer.committed());
+        }
+
+        // Each record runs from its offset to the next one.
+        byte[] data = Files.readAllBytes(file);
+        TreeMap<Long, Expression> byOffset = new TreeMap<>();
+        for (int t = 0; t < threads; t++) {
+            long previous = -1;
+            for (int i = 0; i < records; i++) {
+                long offset = futures.get(t).get(i).get();
+                assertTrue(offset > previous);
+                previous = offset;
+                assertNull(byOffset.put(offset, record(t, i)));
+            }
+        }
+        assertEquals(0, byOffset.firstKey().longValue());
+        for (Map.Entry<Long, Expression> entry : byOffset.entrySet()) {
+            Long next = byOffset.higherKey(entry.getKey());
+            int start = entry.getKey().intValue();
+            int end = next != null ? next.intValue() : data.length;
+            assertEquals(entry.getValue(),
+                    new CanonicalParser(new ByteArrayInputStream(data, start, end - start)).parse());
+        }
+    }
+
+    @Test
+    public void testAppendsAndCloses() throws Exception {
+        Path file = folder.newFile().toPath();
+        long first;
+        try (GroupCommitWriter writer = GroupCommitWriter.builder(file).sync(false).open()) {
+            first = writer.write(record(0, 0)).get();
+        }
+        assertEquals(0, first);
+        GroupCommitWriter writer = GroupCommitWriter.open(file);
+        ListenableFuture<Long> second = writer.write(record(0, 1));
+        writer.close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CanonicalWriter(out).writeExpression(record(0, 0));
+        assertEquals(out.size(), second.get().longValue());
+        assertEquals(Files.size(file), writer.committed());
+        try {
+            writer.write(record(0, 2));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
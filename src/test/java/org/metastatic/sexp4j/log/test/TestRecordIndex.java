@@ -0,0 +1,82 @@
+package org.metastatic.sexp4j.log.test;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.log.RecordIndex;
+import org.metastatic.sexp4j.log.RecordLog;
+import org.metastatic.sexp4j.query.PathQuery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestRecordIndex {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String[] USERS = { "carol", "alice", "bob", "alice", "dave", "bob", "alice" };
+
+    private static Expression record(int i) {
+        return ExpressionList.list(Atom.atom("event"), Atom.atom(i),
+            ExpressionList.list(Atom.atom("user"), Atom.atom(USERS[i])));
+    }
+
+    @Test
+    public void testFileIndex() throws IOException {
+        Path data = folder.newFile("events").toPath();
+        Path indexFile = folder.newFile("events.idx").toPath();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        List<Long> offsets = new ArrayList<>();
+        for (int i = 0; i < USERS.length; i++) {
+            offsets.add((long) out.size());
+            writer.reset(out);
+            writer.writeExpression(record(i));
+        }
+        // Records without the key, and whitespace between records.
+        out.write('\n');
+        writer.reset(out);
+        writer.writeExpression(ExpressionList.list(Atom.atom("other")));
+        Files.write(data, out.toByteArray());
+
+        int entries = RecordIndex.build(PathQuery.compile("event/user/[1]"), Files.newInputStream(data), indexFile);
+        assertEquals(USERS.length, entries);
+        try (RecordIndex index = RecordIndex.open(indexFile, data)) {
+            assertEquals(USERS.length, index.size());
+            assertArrayEquals(new long[] { offsets.get(1), offsets.get(3), offsets.get(6) },
+                index.offsets(Atom.atom("alice")));
+            assertEquals(Arrays.asList(record(2), record(5)), index.get(Atom.atom("bob")));
+            assertEquals(0, index.offsets(Atom.atom("eve")).length);
+            assertEquals(0, index.offsets(Atom.atom("")).length);
+            assertEquals(Arrays.asList(record(2), record(5), record(0)),
+                index.range(Atom.atom("b"), Atom.atom("d")));
+            assertEquals(0, index.offsets(Atom.atom("d"), Atom.atom("b")).length);
+        }
+    }
+
+    @Test
+    public void testLogIndex() throws IOException {
+        Path indexFile = folder.newFile("log.idx").toPath();
+        try (RecordLog log = RecordLog.builder(folder.newFolder().toPath()).segmentSize(128).open()) {
+            List<Long> positions = new ArrayList<>();
+            for (int i = 0; i < USERS.length; i++)
+                positions.add(log.append(record(i)));
+            RecordIndex.build(PathQuery.compile("event/user/[1]"), log, indexFile);
+            try (RecordIndex index = RecordIndex.open(indexFile, log)) {
+                assertArrayEquals(new long[] { positions.get(4) }, index.offsets(Atom.atom("dave")));
+                assertEquals(Arrays.asList(record(1), record(3), record(6)), index.get(Atom.atom("alice")));
+            }
+        }
+    }
+}
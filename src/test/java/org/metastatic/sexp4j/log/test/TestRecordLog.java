@@ -0,0 +1,157 @@
+package org.metastatic.sexp4j.log.test;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.WriteException;
+import org.metastatic.sexp4j.log.CorruptRecordException;
+import org.metastatic.sexp4j.log.RecordLog;
+import org.metastatic.sexp4j.log.RecordReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestRecordLog {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Expression record(int i) {
+        return ExpressionList.list(Atom.atom("event"), Atom.atom(i), Atom.atom("payload-" + i));
+    }
+
+    private static File[] segmentFiles(Path dir) {
+        File[] files = dir.toFile().listFiles();
+        java.util.Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        List<Long> positions = new ArrayList<>();
+        try (RecordLog log = RecordLog.builder(dir).segmentSize(256).open()) {
+            RecordReader reader = log.reader();
+            assertFalse(reader.next());
+            for (int i = 0; i < 50; i++) {
+                positions.add(log.append(record(i)));
+                assertTrue(reader.next());
+                assertEquals(positions.get(i).longValue(), reader.position());
+                assertEquals(record(i), reader.expression());
+                assertFalse(reader.next());
+            }
+            assertTrue(segmentFiles(dir).length > 5);
+
+            reader = log.reader();
+            for (int i = 0; i < 50; i++) {
+                assertTrue(reader.next());
+                assertEquals(positions.get(i).longValue(), reader.position());
+            }
+            assertFalse(reader.next());
+            assertEquals(record(17), reader.read(positions.get(17)));
+            assertEquals(record(18), reader.next() ? reader.expression() : null);
+
+            try {
+                log.append(Atom.atom(new byte[300]));
+                fail("expected WriteException");
+            } catch (WriteException expected) {
+            }
+        }
+        try (RecordLog log = RecordLog.builder(dir).segmentSize(256).open()) {
+            assertEquals(record(49), log.reader().read(positions.get(49)));
+            long position = log.append(record(50));
+            RecordReader reader = log.reader();
+            reader.seek(positions.get(49));
+            assertTrue(reader.next());
+            assertTrue(reader.next());
+            assertEquals(position, reader.position());
+            assertEquals(record(50), reader.expression());
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (RecordLog log = RecordLog.open(dir)) {
+            for (int i = 0; i < 10; i++)
+                log.append(record(i));
+        }
+        File segment = segmentFiles(dir)[0];
+        long size = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // A frame header promising more bytes than follow it.
+            file.seek(size);
+            file.writeInt(40);
+            file.writeInt(0x12345678);
+            file.write("(5:event".getBytes());
+        }
+        try (RecordLog log = RecordLog.open(dir)) {
+            assertEquals(size, log.committed());
+            long position = log.append(record(10));
+            assertEquals(size, position);
+            RecordReader reader = log.reader();
+            int count = 0;
+            while (reader.next())
+                assertEquals(record(count++), reader.expression());
+            assertEquals(11, count);
+        }
+    }
+
+    @Test
+    public void testCorruptRecord() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        long second;
+        try (RecordLog log = RecordLog.open(dir)) {
+            log.append(record(0));
+            second = log.append(record(1));
+            log.append(record(2));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles(dir)[0], "rw")) {
+            file.seek(second + 12);
+            file.write('X');
+        }
+        // Intact records follow the damaged one, so it is not a torn
+        // tail, and is not cut off.
+        try {
+            RecordLog.open(dir).close();
+            fail("expected CorruptRecordException");
+        } catch (CorruptRecordException expected) {
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles(dir)[0], "rw")) {
+            file.seek(second + 12);
+            file.write('v');
+        }
+        try (RecordLog log = RecordLog.open(dir)) {
+            RecordReader reader = log.reader();
+            for (int i = 0; i < 3; i++) {
+                assertTrue(reader.next());
+                assertEquals(record(i), reader.expression());
+            }
+        }
+
+        Path dir2 = folder.newFolder().toPath();
+        try (RecordLog log = RecordLog.builder(dir2).segmentSize(128).open()) {
+            long first = log.append(record(0));
+            for (int i = 1; i < 10; i++)
+                log.append(record(i));
+            try (RandomAccessFile file = new RandomAccessFile(segmentFiles(dir2)[0], "rw")) {
+                file.seek(first + 12);
+                file.write('X');
+            }
+            RecordReader reader = log.reader();
+            try {
+                reader.next();
+                fail("expected CorruptRecordException");
+            } catch (CorruptRecordException expected) {
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.metastatic.sexp4j.mapper.test;
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.Test;
 import org.metastatic.sexp4j.AdvancedWriter;
+import org.metastatic.sexp4j.Atom;
 import org.metastatic.sexp4j.Expression;
 import org.metastatic.sexp4j.mapper.MapperException;
 import org.metastatic.sexp4j.mapper.SimpleMapper;
@@ -10,7 +11,7 @@ import org.metastatic.sexp4j.mapper.SimpleMapper;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.Map;
+import java.util.*;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsInstanceOf.instanceOf;
@@ -53,4 +54,81 @@ public class TestSimpleMapper {
         assertEquals(123456, m2.get("anInt"));
         assertEquals(12345678900L, m2.get("aLong"));
     }
+
+    @Test
+    public void testPackedArrays() throws IOException {
+        double[] doubles = new double[1000];
+        for (int i = 0; i < doubles.length; i++)
+            doubles[i] = Math.sqrt(i);
+        Expression e = mapper.encode(doubles);
+        assertThat(e, instanceOf(Atom.class));
+        assertEquals(8 * doubles.length, ((Atom) e).length());
+        assertArrayEquals(doubles, (double[]) mapper.decode(e), 0.0);
+
+        int[] ints = { 1, 2, 3 };
+        e = mapper.encode(ints);
+        assertArrayEquals(new byte[] { 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3 }, ((Atom) e).bytes());
+        assertArrayEquals(ints, (int[]) mapper.decode(e));
+
+        long[] longs = { Long.MIN_VALUE, -1L, 0L, Long.MAX_VALUE };
+        assertArrayEquals(longs, (long[]) mapper.decode(mapper.encode(longs)));
+        short[] shorts = { Short.MIN_VALUE, 0, Short.MAX_VALUE };
+        assertArrayEquals(shorts, (short[]) mapper.decode(mapper.encode(shorts)));
+        char[] chars = "packed".toCharArray();
+        assertArrayEquals(chars, (char[]) mapper.decode(mapper.encode(chars)));
+        float[] floats = { 3.14f, Float.NaN, -0.0f };
+        assertArrayEquals(floats, (float[]) mapper.decode(mapper.encode(floats)), 0.0f);
+        boolean[] bools = { true, false, true };
+        assertTrue(Arrays.equals(bools, (boolean[]) mapper.decode(mapper.encode(bools))));
+    }
+
+    @Test(expected = MapperException.class)
+    public void testPackedArrayBadLength() throws IOException {
+        mapper.decode(Atom.atom(new byte[] { 1, 2, 3 }).withHint((byte) 'N'));
+    }
+
+    static class Point {
+        final int x, y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    @Test
+    public void testCustomEncoder() throws IOException {
+        SimpleMapper m = new SimpleMapper();
+        try {
+            m.encode(new Point(1, 2));
+            fail("expected a MapperException");
+        } catch (MapperException expected) {
+        }
+        m.register(Point.class, new SimpleMapper.Encoder() {
+            @Override
+            public Expression encode(SimpleMapper mapper, Object value) throws MapperException {
+                Point p = (Point) value;
+                return mapper.encode(new int[] { p.x, p.y });
+            }
+        });
+        List points = new ArrayList();
+        points.add(new Point(1, 2));
+        points.add(new Point(3, 4));
+        List decoded = (List) m.decode(m.encode(points));
+        assertEquals(2, decoded.size());
+        assertArrayEquals(new int[] { 3, 4 }, (int[]) decoded.get(1));
+    }
+
+    @Test
+    public void testConcreteCollections() throws IOException {
+        Set s = new LinkedHashSet(list("a", "b"));
+        Map m = new HashMap();
+        m.put("key", new ArrayList(list(1, 2)));
+        m.put("set", s);
+        m.put("tree", new TreeMap(map("x", 1L)));
+        Map decoded = (Map) mapper.decode(mapper.encode(m));
+        assertEquals(list(1, 2), decoded.get("key"));
+        assertEquals(s, decoded.get("set"));
+        assertEquals(map("x", 1L), decoded.get("tree"));
+    }
 }
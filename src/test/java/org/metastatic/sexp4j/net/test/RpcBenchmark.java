@@ -0,0 +1,108 @@
+package org.metastatic.sexp4j.net.test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.net.RequestHandler;
+import org.metastatic.sexp4j.net.RpcClient;
+import org.metastatic.sexp4j.net.RpcServer;
+import org.metastatic.sexp4j.net.SelectorLoop;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A loopback benchmark for {@link RpcServer} and {@link RpcClient}, run
+ * by hand; it is not part of the test suite.
+ *
+ * <p>Every connection makes the same number of echo calls, pipelined,
+ * and the client reports the calls per second. Each connection takes a
+ * file descriptor on each side, so to go past the per-process limit run
+ * the server and the clients as separate processes, and add client
+ * processes as needed. Clients may connect from several loopback
+ * addresses, so that no one address runs out of ephemeral ports:</p>
+ *
+ * <pre>
+ * mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * CP=target/classes:target/test-classes:$(cat target/cp.txt)
+ * java -cp $CP org.metastatic.sexp4j.net.test.RpcBenchmark server 9999 &amp;
+ * java -cp $CP org.metastatic.sexp4j.net.test.RpcBenchmark client 127.0.0.1:9999 6000 20 127.0.0.2 &amp;
+ * java -cp $CP org.metastatic.sexp4j.net.test.RpcBenchmark client 127.0.0.1:9999 6000 20 127.0.0.3
+ * </pre>
+ *
+ * <p>{@code local <connections> <calls>} runs the server and the client
+ * in one process.</p>
+ */
+public class RpcBenchmark {
+    private static final Expression REQUEST = ExpressionList.list(Atom.atom("ping"), Atom.atom(42));
+
+    private static final RequestHandler ECHO = new RequestHandler() {
+        @Override
+        public Expression handle(Expression request) {
+            return request;
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("server")) {
+            serve(Integer.parseInt(args[1]));
+        } else if ((args.length == 4 || args.length == 5) && args[0].equals("client")) {
+            String[] hostPort = args[1].split(":");
+            InetSocketAddress server = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+            InetAddress local = args.length == 5 ? InetAddress.getByName(args[4]) : null;
+            try (SelectorLoop loop = new SelectorLoop("benchmark-client")) {
+                run(server, local, Integer.parseInt(args[2]), Integer.parseInt(args[3]), loop);
+            }
+        } else if (args.length == 3 && args[0].equals("local")) {
+            try (SelectorLoop serverLoop = new SelectorLoop("benchmark-server");
+                 SelectorLoop clientLoop = new SelectorLoop("benchmark-client");
+                 RpcServer server = RpcServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                     ECHO, serverLoop)) {
+                run(server.address(), null, Integer.parseInt(args[1]), Integer.parseInt(args[2]), clientLoop);
+            }
+        } else {
+            System.err.println("usage: RpcBenchmark server <port>");
+            System.err.println("       RpcBenchmark client <host:port> <connections> <calls> [<local address>]");
+            System.err.println("       RpcBenchmark local <connections> <calls>");
+            System.exit(2);
+        }
+    }
+
+    private static void serve(int port) throws IOException, InterruptedException {
+        try (SelectorLoop loop = new SelectorLoop("benchmark-server");
+             RpcServer server = RpcServer.bind(new InetSocketAddress(port), ECHO, loop)) {
+            System.out.printf("listening on %s%n", server.address());
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+
+    private static void run(InetSocketAddress server, InetAddress local, int connections, int calls,
+                            SelectorLoop loop) throws Exception {
+        long start = System.nanoTime();
+        List<RpcClient> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+            clients.add(local == null ? RpcClient.connect(server, loop) : RpcClient.connect(server, local, loop));
+        System.out.printf("%d connections open in %.2fs%n", connections, (System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        List<ListenableFuture<Expression>> responses = new ArrayList<>(connections * calls);
+        for (int i = 0; i < calls; i++) {
+            for (RpcClient client : clients)
+                responses.add(client.call(REQUEST));
+        }
+        for (ListenableFuture<Expression> response : responses) {
+            if (!REQUEST.equals(response.get(60, TimeUnit.SECONDS)))
+                throw new IllegalStateException("wrong response");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d connections, %d calls in %.2fs: %.0f calls/s%n", connections, responses.size(),
+            seconds, responses.size() / seconds);
+        for (RpcClient client : clients)
+            client.close();
+    }
+}
@@ -0,0 +1,208 @@
+package org.metastatic.sexp4j.net.test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.CanonicalWriter;
+import org.metastatic.sexp4j.Expression;
+import org.metastatic.sexp4j.ExpressionList;
+import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.net.CanonicalDecoder;
+import org.metastatic.sexp4j.net.RequestHandler;
+import org.metastatic.sexp4j.net.RpcClient;
+import org.metastatic.sexp4j.net.RpcServer;
+import org.metastatic.sexp4j.net.SelectorLoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestRpc {
+    private static Expression message(int i) {
+        return ExpressionList.list(Atom.atom("call").withHint("op"), Atom.atom(i), Atom.atom(new byte[0]),
+            ExpressionList.list(ExpressionList.list(), Atom.atom("payload-" + i)));
+    }
+
+    private static byte[] encode(List<Expression> expressions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        for (Expression e : expressions)
+            writer.writeExpression(e);
+        return out.toByteArray();
+    }
+
+    private static List<Expression> decodeInChunks(byte[] bytes, int chunk) throws ParseException {
+        CanonicalDecoder decoder = new CanonicalDecoder();
+        List<Expression> decoded = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(chunk + 64);
+        for (int i = 0; i < bytes.length; i += chunk) {
+            buffer.put(bytes, i, Math.min(chunk, bytes.length - i));
+            buffer.flip();
+            Expression e;
+            while ((e = decoder.decode(buffer)) != null)
+                decoded.add(e);
+            buffer.compact();
+        }
+        assertTrue(decoder.isIdle());
+        return decoded;
+    }
+
+    @Test
+    public void testDecodeInChunks() throws Exception {
+        List<Expression> expressions = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            expressions.add(message(i));
+        expressions.add(Atom.atom("top"));
+        expressions.add(Atom.atom(new byte[0]));
+        byte[] bytes = encode(expressions);
+        for (int chunk : new int[] { 1, 2, 3, 7, 64, 4096 })
+            assertEquals("chunk " + chunk, expressions, decodeInChunks(bytes, chunk));
+    }
+
+    @Test
+    public void testDecodeLimits() throws Exception {
+        try {
+            new CanonicalDecoder(8, 4).decode(ByteBuffer.wrap("9:too long!".getBytes("US-ASCII")));
+            fail("atom longer than the limit");
+        } catch (ParseException expected) {
+        }
+        try {
+            new CanonicalDecoder(8, 4).decode(ByteBuffer.wrap("(((((".getBytes("US-ASCII")));
+            fail("lists deeper than the limit");
+        } catch (ParseException expected) {
+        }
+        try {
+            new CanonicalDecoder().decode(ByteBuffer.wrap("3:abc)".getBytes("US-ASCII")));
+            new CanonicalDecoder().decode(ByteBuffer.wrap(")".getBytes("US-ASCII")));
+            fail("extraneous end list");
+        } catch (ParseException expected) {
+        }
+        try {
+            CanonicalDecoder decoder = new CanonicalDecoder(8, 4, 20);
+            for (int i = 0; i < 10; i++)
+                assertNull(decoder.decode(ByteBuffer.wrap("(1:a".getBytes("US-ASCII"))));
+            fail("expression longer than the limit");
+        } catch (ParseException expected) {
+        }
+        CanonicalDecoder limited = new CanonicalDecoder(8, 4, 20);
+        for (int i = 0; i < 10; i++)
+            assertEquals(ExpressionList.list(Atom.atom("abcdef")),
+                limited.decode(ByteBuffer.wrap("   (6:abcdef)\n".getBytes("US-ASCII"))));
+        CanonicalDecoder decoder = new CanonicalDecoder();
+        assertNull(decoder.decode(ByteBuffer.wrap("(3:abc".getBytes("US-ASCII"))));
+        assertFalse(decoder.isIdle());
+        decoder.reset();
+        assertTrue(decoder.isIdle());
+        assertEquals(Atom.atom("xy"), decoder.decode(ByteBuffer.wrap("2:xy".getBytes("US-ASCII"))));
+    }
+
+    @Test
+    public void testPipelinedCalls() throws Exception {
+        final int connections = 200;
+        final int calls = 50;
+        try (SelectorLoop loop = new SelectorLoop("test-rpc");
+             RpcServer server = RpcServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                 new RequestHandler() {
+                     @Override
+                     public Expression handle(Expression request) {
+                         return ExpressionList.list(Atom.atom("reply"), request);
+                     }
+                 }, loop)) {
+            List<RpcClient> clients = new ArrayList<>();
+            List<List<ListenableFuture<Expression>>> responses = new ArrayList<>();
+            for (int c = 0; c < connections; c++) {
+                RpcClient client = RpcClient.connect(server.address(), loop);
+                clients.add(client);
+                List<ListenableFuture<Expression>> futures = new ArrayList<>();
+                for (int i = 0; i < calls; i++)
+                    futures.add(client.call(message(c * calls + i)));
+                responses.add(futures);
+            }
+            for (int c = 0; c < connections; c++) {
+                for (int i = 0; i < calls; i++) {
+                    Expression response = responses.get(c).get(i).get(10, TimeUnit.SECONDS);
+                    assertEquals(ExpressionList.list(Atom.atom("reply"), message(c * calls + i)), response);
+                }
+                assertEquals(0, clients.get(c).outstanding());
+            }
+            for (RpcClient client : clients)
+                client.close();
+        }
+    }
+
+    @Test
+    public void testFailedRequestClosesConnection() throws Exception {
+        try (SelectorLoop loop = new SelectorLoop("test-rpc");
+             RpcServer server = RpcServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                 new RequestHandler() {
+                     @Override
+                     public Expression handle(Expression request) throws Exception {
+                         if (request.equals(Atom.atom("fail")))
+                             throw new IllegalArgumentException("bad request");
+                         return request;
+                     }
+                 }, loop)) {
+            RpcClient client = RpcClient.connect(server.address(), loop);
+            assertEquals(Atom.atom("ok"), client.call(Atom.atom("ok")).get(10, TimeUnit.SECONDS));
+            ListenableFuture<Expression> failed = client.call(Atom.atom("fail"));
+            ListenableFuture<Expression> after = client.call(Atom.atom("after"));
+            for (ListenableFuture<Expression> f : Arrays.asList(failed, after)) {
+                try {
+                    f.get(10, TimeUnit.SECONDS);
+                    fail("connection should have closed");
+                } catch (ExecutionException expected) {
+                    assertTrue(expected.getCause() instanceof IOException);
+                }
+            }
+            client.close();
+        }
+    }
+
+    @Test
+    public void testCloseLoopBeforeRegistering() throws Exception {
+        try (SelectorLoop serverLoop = new SelectorLoop("test-rpc-server");
+             RpcServer server = RpcServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                 new RequestHandler() {
+                     @Override
+                     public Expression handle(Expression request) {
+                         return request;
+                     }
+                 }, serverLoop)) {
+            final SelectorLoop loop = new SelectorLoop("test-rpc-client");
+            final CountDownLatch connected = new CountDownLatch(1);
+            // Hold the loop, so that the client's registration is still
+            // queued when the loop closes.
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connected.await();
+                        loop.close();
+                    } catch (InterruptedException | IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            RpcClient client = RpcClient.connect(server.address(), loop);
+            ListenableFuture<Expression> response = client.call(Atom.atom("never"));
+            connected.countDown();
+            loop.close();
+            try {
+                response.get(10, TimeUnit.SECONDS);
+                fail("the loop closed before the connection was registered");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.metastatic.sexp4j.pattern.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+import org.metastatic.sexp4j.pattern.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.metastatic.sexp4j.Atom.atom;
+import static org.metastatic.sexp4j.ExpressionList.list;
+
+public class TestPattern {
+    @Test
+    public void testCaptures() {
+        Pattern p = Pattern.compile(list(atom("*"), atom("set"), atom("?first"), atom("??rest")));
+        Match m = p.match(list(atom("*"), atom("set"), atom("read"), atom("write"), atom("delete"))).get();
+        assertEquals(atom("read"), m.get("first").get());
+        assertEquals(list(atom("write"), atom("delete")), m.get("rest").get());
+        assertEquals(list(), p.match(list(atom("*"), atom("set"), atom("read"))).get().get("rest").get());
+        assertFalse(p.match(list(atom("*"), atom("set"))).isPresent());
+        assertFalse(p.match(list(atom("*"), atom("prefix"), atom("a"))).isPresent());
+        assertFalse(p.match(atom("*")).isPresent());
+    }
+
+    @Test
+    public void testRepeatedVariable() {
+        Pattern p = Pattern.compile(list(atom("eq"), atom("?x"), atom("?x")));
+        assertTrue(p.match(list(atom("eq"), list(atom("a")), list(atom("a")))).isPresent());
+        assertFalse(p.match(list(atom("eq"), list(atom("a")), list(atom("b")))).isPresent());
+    }
+
+    @Test
+    public void testHintedAtomIsLiteral() {
+        Pattern p = Pattern.compile(list(atom("?x").withHint("lit"), atom("?")));
+        assertTrue(p.variables().isEmpty());
+        assertTrue(p.match(list(atom("?x"), atom("anything"))).isPresent());
+        assertFalse(p.match(list(atom("y"), atom("anything"))).isPresent());
+    }
+
+    @Test
+    public void testMalformed() {
+        try {
+            Pattern.compile(list(atom("??"), atom("a")));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Pattern.compile(atom("??x"));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testPatternSet() {
+        List<Pattern> patterns = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            patterns.add(Pattern.compile(list(atom("tag"), list(atom("op" + i), atom("?arg")))));
+        patterns.add(Pattern.compile(list(atom("tag"), atom("?"))));
+        patterns.add(Pattern.compile(list(atom("tag"), list(atom("??all")))));
+        patterns.add(Pattern.compile(atom("?anything")));
+        PatternSet set = PatternSet.of(patterns);
+
+        List<Match> matches = set.matchAll(list(atom("tag"), list(atom("op1234"), atom("x"))));
+        assertEquals(4, matches.size());
+        assertEquals(1234, matches.get(0).index());
+        assertEquals(atom("x"), matches.get(0).get("arg").get());
+        assertEquals(2000, matches.get(1).index());
+        assertEquals(list(atom("op1234"), atom("x")), matches.get(2).get("all").get());
+        assertEquals(2002, matches.get(3).index());
+
+        assertEquals(3, set.matchAll(list(atom("tag"), list(atom("op9999"), atom("x")))).size());
+        assertEquals(1, set.matchAll(list(atom("other"))).size());
+        assertEquals(1234, set.matchFirst(list(atom("tag"), list(atom("op1234"), atom("y")))).get().index());
+    }
+
+    @Test
+    public void testRestAndNesting() {
+        PatternSet set = PatternSet.compile(
+                list(atom("a"), atom("??")),
+                list(atom("a"), list(atom("b"), atom("??")), atom("c")),
+                list(atom("a"), atom("?"), atom("c")));
+        assertEquals(Arrays.asList(0, 1, 2),
+                indexes(set.matchAll(list(atom("a"), list(atom("b"), list(atom("x")), atom("y")), atom("c")))));
+        assertEquals(Arrays.asList(0),
+                indexes(set.matchAll(list(atom("a"), list(atom("b")), atom("c"), atom("d")))));
+        assertEquals(Arrays.asList(0), indexes(set.matchAll(list(atom("a")))));
+    }
+
+    private static List<Integer> indexes(List<Match> matches) {
+        List<Integer> result = new ArrayList<>();
+        for (Match m : matches)
+            result.add(m.index());
+        return result;
+    }
+
+    @Test
+    public void testStreamMatcher() throws IOException {
+        PatternSet set = PatternSet.compile(
+                list(atom("grant"), atom("?who"), list(atom("*"), atom("set"), atom("??perms"))),
+                list(atom("revoke"), atom("?who")));
+        Expression[] inputs = {
+                list(atom("grant"), atom("alice"), list(atom("*"), atom("set"), atom("read"))),
+                list(atom("deny"), list(atom("big"), list(atom("nested"), atom("thing")))),
+                atom("revoke"),
+                list(atom("revoke"), atom("bob")),
+                list(atom("grant"), atom("carol"), list(atom("*"), atom("prefix"), atom("/"))),
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        for (Expression e : inputs)
+            writer.writeExpression(e);
+        final List<Match> matches = new ArrayList<>();
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(new ByteArrayInputStream(out.toByteArray()));
+        parser.addCallback(set.streamMatcher(new MatchListener() {
+            @Override
+            public void matched(Match match) {
+                matches.add(match);
+            }
+        }));
+        parser.parse();
+        assertEquals(2, matches.size());
+        assertEquals(inputs[0], matches.get(0).expression());
+        assertEquals(list(atom("read")), matches.get(0).get("perms").get());
+        assertEquals(atom("bob"), matches.get(1).get("who").get());
+    }
+
+    @Test
+    public void testRewriter() {
+        Rewriter rewriter = Rewriter.builder()
+                .rule(list(atom("not"), list(atom("not"), atom("?x"))), atom("?x"))
+                .rule(list(atom("*"), atom("set"), atom("?only")), atom("?only"))
+                .rule(list(atom("and"), atom("??xs")), list(atom("all"), atom("??xs"), atom("end")))
+                .build();
+        Expression same = list(atom("keep"), atom("me"));
+        Expression input = list(atom("and"),
+                list(atom("not"), list(atom("not"), atom("p"))),
+                list(atom("*"), atom("set"), atom("q")),
+                same);
+        Expression output = rewriter.rewrite(input);
+        assertEquals(list(atom("all"), atom("p"), atom("q"), same, atom("end")), output);
+        assertSame(same, ((ExpressionList) output).get(3));
+        assertSame(same, rewriter.rewrite(same));
+
+        try {
+            Rewriter.builder().rule(list(atom("a"), atom("?x")), atom("?y"));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
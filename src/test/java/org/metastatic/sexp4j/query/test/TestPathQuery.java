@@ -0,0 +1,148 @@
+package org.metastatic.sexp4j.query.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+import org.metastatic.sexp4j.query.PathMatcher;
+import org.metastatic.sexp4j.query.PathQuery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.metastatic.sexp4j.Atom.atom;
+import static org.metastatic.sexp4j.ExpressionList.list;
+
+public class TestPathQuery {
+    private static final Expression CERT = list(atom("cert"),
+            list(atom("issuer"), list(atom("name"), atom("alice"))),
+            list(atom("subject"), list(atom("name"), atom("bob"))),
+            list(atom("validity"),
+                    list(atom("not-before"), atom("2014-01-01")),
+                    list(atom("not-after"), atom("2015-01-01"))));
+
+    private static CanonicalStreamingParser parser(Expression... expressions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        for (Expression e : expressions)
+            writer.writeExpression(e);
+        return new CanonicalStreamingParser(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void testSimplePaths() throws IOException {
+        PathQuery notAfter = PathQuery.compile("cert/validity/not-after/[1]");
+        PathQuery issuer = PathQuery.compile("cert/issuer");
+        PathQuery head = PathQuery.compile("cert/*/name/[0]");
+        PathQuery missing = PathQuery.compile("cert/extensions");
+        PathMatcher matcher = new PathMatcher(notAfter, issuer, head, missing);
+        matcher.match(parser(CERT));
+        assertEquals(Arrays.<Expression>asList(atom("2015-01-01")), matcher.matches(notAfter));
+        assertEquals(Arrays.<Expression>asList(list(atom("issuer"), list(atom("name"), atom("alice")))),
+                matcher.matches(issuer));
+        assertEquals(Arrays.<Expression>asList(atom("name"), atom("name")), matcher.matches(head));
+        assertTrue(matcher.matches(missing).isEmpty());
+        assertFalse(matcher.isSatisfied());
+    }
+
+    @Test
+    public void testIndexAndWildcard() throws IOException {
+        PathQuery second = PathQuery.compile("*/[2]");
+        PathQuery all = PathQuery.compile("*");
+        PathMatcher matcher = new PathMatcher(second, all);
+        matcher.match(parser(list(atom("a"), atom("b"), list(atom("c"))), atom("x"), list(atom("d"))));
+        assertEquals(Arrays.<Expression>asList(list(atom("c"))), matcher.matches(second));
+        assertEquals(3, matcher.matches(all).size());
+        assertEquals(atom("x"), matcher.matches(all).get(1));
+    }
+
+    @Test
+    public void testHeadMustBeAtom() throws IOException {
+        PathQuery q = PathQuery.compile("a/b");
+        PathMatcher matcher = new PathMatcher(q);
+        matcher.match(parser(list(atom("a"), list(list(atom("b")), atom("1")), list(atom("b"), atom("2")),
+                list(), list(atom("bb"), atom("3")), list(atom("b").withHint("h"), atom("4")))));
+        assertEquals(Arrays.<Expression>asList(list(atom("b"), atom("2")),
+                list(atom("b").withHint("h"), atom("4"))), matcher.matches(q));
+    }
+
+    @Test
+    public void testEarlyStop() throws IOException {
+        Expression record = list(atom("rec"), list(atom("id"), Atom.atom(1)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        for (int i = 0; i < 100; i++)
+            writer.writeExpression(record);
+        final int total = out.size();
+        final int[] read = new int[1];
+        InputStream in = new ByteArrayInputStream(out.toByteArray()) {
+            @Override
+            public synchronized int read() {
+                read[0]++;
+                return super.read();
+            }
+        };
+        PathQuery id = PathQuery.compile("rec/id/[1]");
+        PathMatcher matcher = new PathMatcher(2, id);
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(in);
+        matcher.match(parser);
+        assertTrue(matcher.isSatisfied());
+        assertEquals(Arrays.<Expression>asList(Atom.atom(1), Atom.atom(1)), matcher.matches(id));
+        assertTrue(read[0] < total / 10);
+
+        // Parsing again continues after the point where the matcher stopped.
+        final int[] lists = new int[1];
+        parser.addCallback(new RawStreamingParserCallback() {
+            @Override
+            public void beginList() {
+                lists[0]++;
+            }
+
+            @Override
+            public void endList() {
+            }
+
+            @Override
+            public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) {
+            }
+        });
+        parser.parse();
+        assertEquals(98 * 2, lists[0]);
+    }
+
+    @Test
+    public void testQuotedStep() throws IOException {
+        PathQuery q = PathQuery.compile("\"a/b\"/\"*\"/[1]");
+        assertEquals(3, q.length());
+        PathMatcher matcher = new PathMatcher(q);
+        matcher.match(parser(list(atom("a/b"), list(atom("*"), atom("found")), list(atom("x"), atom("lost")))));
+        assertEquals(Arrays.<Expression>asList(atom("found")), matcher.matches(q));
+    }
+
+    @Test
+    public void testHintsKept() throws IOException {
+        PathQuery q = PathQuery.compile("x/[1]");
+        PathMatcher matcher = new PathMatcher(q);
+        matcher.match(parser(list(atom("x"), atom("hello").withHint("text/plain"))));
+        assertEquals(atom("hello").withHint("text/plain"), matcher.matches(q).get(0));
+    }
+
+    @Test
+    public void testMalformed() {
+        for (String s : new String[] { "", "a//b", "a/", "[x]", "[]", "a*", "\"a", "\"a\"b", "[2147483648]" }) {
+            try {
+                PathQuery.compile(s);
+                fail("expected IllegalArgumentException for " + s);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testLargeIndex() {
+        PathQuery.compile("a/[134217728]");
+        PathQuery.compile("a/[2147483647]");
+    }
+}
@@ -1,8 +1,14 @@
 package org.metastatic.sexp4j.test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
 
+import com.google.common.base.Optional;
 import org.junit.Assert;
 import org.junit.Test;
 import org.metastatic.sexp4j.*;
@@ -71,4 +77,136 @@ public class TestAdvancedParser {
         assertFalse(((Atom) ((ExpressionList) expr).get(1)).displayHint().isPresent());
         assertThat(((Atom) ((ExpressionList) expr).get(1)).stringValue(), is("atom2"));
     }
+
+    @Test
+    public void testReset() throws IOException {
+        AdvancedParser parser = new AdvancedParser(new ByteArrayInputStream("(a [b".getBytes()));
+        try {
+            parser.parse();
+        } catch (IOException ignored) {
+        }
+        parser.reset(new ByteArrayInputStream("(c \"d\")".getBytes()));
+        Assert.assertEquals(ExpressionList.list(Atom.atom("c"), Atom.atom("d")), parser.parse());
+    }
+
+    @Test
+    public void testEveryByteAtEveryLane() throws IOException {
+        for (int pad = 0; pad < 16; pad++) {
+            for (int b = 0; b < 256; b++) {
+                if (b == '"' || b == '\\')
+                    continue;
+                byte[] input = new byte[pad + 3];
+                Arrays.fill(input, (byte) 'a');
+                input[0] = '"';
+                input[pad + 1] = (byte) b;
+                input[pad + 2] = '"';
+                Atom atom = (Atom) new AdvancedParser(new ByteArrayInputStream(input)).parse();
+                Assert.assertArrayEquals(Arrays.copyOfRange(input, 1, pad + 2), atom.bytes());
+            }
+        }
+    }
+
+    @Test
+    public void testTokens() throws IOException {
+        Expression e = new AdvancedParser(new ByteArrayInputStream(
+                "(text/plain a.b-c_d *+= 3abc 12:twelve bytes 5\"hello\" 2#6869# 3|YWJj|)".getBytes())).parse();
+        Assert.assertEquals(ExpressionList.list(Atom.atom("text/plain"), Atom.atom("a.b-c_d"), Atom.atom("*+="),
+                Atom.atom("3abc"), Atom.atom("twelve bytes"), Atom.atom("hello"), Atom.atom("hi"), Atom.atom("abc")), e);
+    }
+
+    @Test
+    public void testAcrossBlocks() throws IOException {
+        Random r = new Random(4242);
+        ExpressionBuilder builder = ExpressionBuilder.create();
+        builder.beginList();
+        for (int i = 0; i < 20000; i++) {
+            byte[] b = new byte[r.nextInt(40)];
+            r.nextBytes(b);
+            switch (r.nextInt(4)) {
+                case 0:
+                    builder.atom("token" + i);
+                    break;
+                case 1:
+                    builder.atom("a quoted string, number " + i);
+                    break;
+                case 2:
+                    builder.atom(b);
+                    break;
+                default:
+                    builder.beginList().atom(Atom.atom("hinted").withHint("text/plain")).atom(b).endList();
+                    break;
+            }
+        }
+        builder.atom(new byte[100000]);
+        builder.endList();
+        Expression expr = builder.build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AdvancedWriter.create().lineLength(72).indentAmount(2).outputStream(out).build().writeExpression(expr);
+        out.write("200000:".getBytes());
+        byte[] verbatim = new byte[200000];
+        r.nextBytes(verbatim);
+        out.write(verbatim);
+        byte[] input = out.toByteArray();
+        Assert.assertTrue(input.length > 256 * 1024);
+
+        final Expression[] parsed = new Expression[2];
+        AdvancedStreamingParser parser = new AdvancedStreamingParser(new Trickle(new ByteArrayInputStream(input)));
+        final ExpressionBuilder collector = ExpressionBuilder.create();
+        parser.addCallback(new StreamingParserCallback() {
+            int depth = 0;
+            int count = 0;
+
+            @Override
+            public void beginList() {
+                depth++;
+                collector.beginList();
+            }
+
+            @Override
+            public void endList() {
+                collector.endList();
+                if (--depth == 0)
+                    parsed[count++] = collector.build();
+            }
+
+            @Override
+            public void onAtom(byte[] atom, Optional<byte[]> displayHint) {
+                if (depth == 0)
+                    parsed[count++] = Atom.atom(atom);
+                else
+                    collector.atom(displayHint.isPresent() ? Atom.atom(atom).withHint(Atom.atom(displayHint.get())) : Atom.atom(atom));
+            }
+        });
+        parser.parse();
+        Assert.assertEquals(expr, parsed[0]);
+        Assert.assertEquals(Atom.atom(verbatim), parsed[1]);
+    }
+
+    @Test
+    public void testDanglingBase64Digit() throws IOException {
+        Assert.assertEquals(Atom.atom("sampl"),
+            new AdvancedParser(new ByteArrayInputStream("|c2FtcGw=|".getBytes())).parse());
+        for (String bad : new String[] { "|c2FtcGxlY|", "(5:|c2FtcGxlY|)" }) {
+            try {
+                new AdvancedParser(new ByteArrayInputStream(bad.getBytes())).parse();
+                Assert.fail("expected a ParseException for " + bad);
+            } catch (ParseException expected) {
+            }
+        }
+    }
+
+    /**
+     * Returns at most 1000 bytes per read, so that blocks are filled
+     * a piece at a time.
+     */
+    private static class Trickle extends FilterInputStream {
+        Trickle(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
 }
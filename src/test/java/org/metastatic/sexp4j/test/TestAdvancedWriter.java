@@ -2,14 +2,18 @@ package org.metastatic.sexp4j.test;
 
 import org.junit.Test;
 import org.metastatic.sexp4j.AdvancedWriter;
+import org.metastatic.sexp4j.Atom;
 import org.metastatic.sexp4j.Expression;
 import org.metastatic.sexp4j.ExpressionBuilder;
+import org.metastatic.sexp4j.ExpressionList;
 import org.metastatic.sexp4j.Primitives;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Random;
 
+import static org.junit.Assert.*;
+
 /**
  * Created by cmarshall on 12/4/14.
  */
@@ -48,4 +52,55 @@ public class TestAdvancedWriter {
         writer.writeExpression(expr);
         System.out.println(new String(out.toByteArray()));
     }
+
+    private static String write(int lineLength, int indent) throws IOException {
+        Random r = new Random(7);
+        byte[] b32 = new byte[32];
+        r.nextBytes(b32);
+        byte[] b5 = new byte[5];
+        r.nextBytes(b5);
+        byte[] b9 = new byte[9];
+        r.nextBytes(b9);
+        Expression e = ExpressionList.list(Atom.atom("items"),
+                ExpressionList.list(Atom.atom("foo"), new Atom(b32), Atom.atom(""), new Atom(b5)),
+                ExpressionList.list(Atom.atom("bar"), Atom.atom("a \"quoted\" sentence!"),
+                        Atom.atom("plain sentence here"), Atom.atom("hinted").withHint("text/plain"),
+                        Atom.atom("x").withHint("h")),
+                ExpressionList.list(ExpressionList.list(ExpressionList.list(Atom.atom("deep"), new Atom(b9),
+                        Atom.atom("tail1"), Atom.atom("tail2"), Atom.atom("tail3"), Atom.atom("tail4"),
+                        Atom.atom("tail5")))),
+                ExpressionList.list(), Atom.atom("end"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AdvancedWriter.Builder builder = AdvancedWriter.create().outputStream(out);
+        if (lineLength > 0)
+            builder.lineLength(lineLength).indentAmount(indent);
+        AdvancedWriter writer = builder.build();
+        int wrote = writer.writeExpression(e);
+        writer.reset(out);
+        writer.beginList();
+        wrote += writer.writeAtom(Atom.atom("s"));
+        writer.beginList();
+        wrote += writer.writeAtom(new Atom(b9));
+        writer.endList();
+        writer.endList();
+        return wrote + "|" + out.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void testEncodings() throws IOException {
+        assertEquals("239|(items (foo |mRcPuxg0d6NalMm/OQt3AgnTKlldSph9QfSz5ZJHGr4=| \"\" #05194bb55d#) (bar |YSAicXVvdGVkIiBzZW50ZW5jZSE=| \"plain sentence here\" [\"text/plain\"]hinted [h]x) (((deep |ABYXWqFH4fPp| tail1 tail2 tail3 tail4 tail5))) () end)(s (|ABYXWqFH4fPp|))", write(0, 0));
+        assertEquals("307|(items (foo |mRcPuxg0d6NalMm/OQt3AgnTKlldSph9QfSz5ZJHGr4=|\n    \"\" #05194bb55d#)\n  (bar |YSAicXVvdGVkIiBzZW50ZW5jZSE=|\n    \"plain sentence here\"\n    [\"text/plain\"]hinted\n    [h]x) (((deep\n        |ABYXWqFH4fPp|\n        tail1\n        tail2\n        tail3\n        tail4\n        tail5)))\n  () end)(s (|ABYXWqFH4fPp|))", write(10, 2));
+    }
+
+    @Test
+    public void testClassification() {
+        assertTrue(Atom.atom("abc123").canBeSymbol());
+        assertTrue(Atom.atom("abc123").canBeQuotedString());
+        assertFalse(Atom.atom("a b").canBeSymbol());
+        assertTrue(Atom.atom("a b").canBeQuotedString());
+        assertFalse(Atom.atom("").canBeSymbol());
+        assertTrue(Atom.atom("").canBeQuotedString());
+        assertFalse(Atom.atom("say \"hi\"").canBeQuotedString());
+        assertFalse(new Atom(new byte[] { 1, 2 }).canBeQuotedString());
+    }
 }
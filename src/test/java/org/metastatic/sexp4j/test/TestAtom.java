@@ -0,0 +1,31 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.Atom;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class TestAtom {
+    @Test
+    public void testPackedArrays() {
+        assertArrayEquals(new byte[] { 1, 0, 1 }, Atom.atom(new boolean[] { true, false, true }).bytes());
+        assertArrayEquals(new byte[] { 0x01, 0x02, (byte) 0xFF, (byte) 0xFE },
+            Atom.atom(new short[] { 0x0102, (short) 0xFFFE }).bytes());
+        assertArrayEquals(new byte[] { 0, 'a', (byte) 0xFF, (byte) 0xFF }, Atom.atom(new char[] { 'a', '\uFFFF' }).bytes());
+        assertArrayEquals(new byte[] { 0x01, 0x02, 0x03, 0x04 }, Atom.atom(new int[] { 0x01020304 }).bytes());
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 7 }, Atom.atom(new long[] { 7 }).bytes());
+        assertEquals(Atom.atom(1.5f), Atom.atom(new float[] { 1.5f }));
+        assertEquals(Atom.atom(-0.25), Atom.atom(new double[] { -0.25 }));
+        assertEquals(0, Atom.atom(new int[0]).bytes().length);
+    }
+
+    @Test
+    public void testBigInteger() {
+        assertArrayEquals(new byte[] { (byte) 0xFF, 0x00 }, Atom.atom(BigInteger.valueOf(-256)).bytes());
+        assertArrayEquals(new byte[] { 0 }, Atom.atom(BigInteger.ZERO).bytes());
+        BigInteger big = BigInteger.ONE.shiftLeft(100).negate();
+        assertEquals(big, Atom.atom(big).bigIntegerValue());
+    }
+}
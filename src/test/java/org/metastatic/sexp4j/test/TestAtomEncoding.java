@@ -0,0 +1,63 @@
+package org.metastatic.sexp4j.test;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+import org.metastatic.sexp4j.AdvancedParser;
+import org.metastatic.sexp4j.AdvancedWriter;
+import org.metastatic.sexp4j.Atom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestAtomEncoding {
+    @Test
+    public void testClassifyEveryByteAtEveryLane() {
+        for (int length = 1; length < 40; length += 3) {
+            for (int at = 0; at < length; at++) {
+                for (int b = 0; b < 256; b++) {
+                    byte[] bytes = new byte[length];
+                    Arrays.fill(bytes, (byte) 'x');
+                    bytes[at] = (byte) b;
+                    Atom atom = Atom.atom(bytes);
+                    boolean alnum = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+                    boolean quotable = b >= 0x20 && b <= 0x7E && b != '"' && b != '\\';
+                    assertEquals(alnum, atom.canBeSymbol());
+                    assertEquals(quotable, atom.canBeQuotedString());
+                }
+            }
+        }
+        assertFalse(Atom.atom(new byte[0]).canBeSymbol());
+        assertTrue(Atom.atom(new byte[0]).canBeQuotedString());
+    }
+
+    @Test
+    public void testEncodings() {
+        Random r = new Random(1234);
+        for (int length = 0; length < 100; length++) {
+            byte[] bytes = new byte[length];
+            r.nextBytes(bytes);
+            Atom atom = Atom.atom(bytes);
+            assertArrayEquals(Hex.encodeHex(bytes), new String(atom.asHexBytes(), StandardCharsets.US_ASCII).toCharArray());
+            assertArrayEquals(Base64.encodeBase64(bytes), atom.asBase64Bytes());
+        }
+    }
+
+    @Test
+    public void testLargeBinaryAtom() throws IOException {
+        byte[] bytes = new byte[3 * 1024 * 1024 + 1];
+        new Random(99).nextBytes(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AdvancedWriter.create().outputStream(out).build().writeExpression(Atom.atom(bytes));
+        byte[] written = out.toByteArray();
+        assertEquals('|', written[0]);
+        assertArrayEquals(Base64.encodeBase64(bytes), Arrays.copyOfRange(written, 1, written.length - 1));
+        assertEquals(Atom.atom(bytes), new AdvancedParser(new ByteArrayInputStream(written)).parse());
+    }
+}
@@ -2,11 +2,16 @@ package org.metastatic.sexp4j.test;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.google.common.base.Optional;
 import org.junit.Assert;
 import org.junit.Test;
 import org.metastatic.sexp4j.CanonicalStreamingParser;
 import org.metastatic.sexp4j.ParseException;
+import org.metastatic.sexp4j.RawStreamingParserCallback;
+import org.metastatic.sexp4j.StreamingParserCallback;
 
 public class TestBasicStreamingCanonicalParser
 {
@@ -29,4 +34,64 @@ public class TestBasicStreamingCanonicalParser
             Assert.fail("expected a ParseException");
         }
     }
+
+    private static class RecordingCallback implements RawStreamingParserCallback
+    {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void beginList() {
+            events.add("(");
+        }
+
+        @Override
+        public void endList() {
+            events.add(")");
+        }
+
+        @Override
+        public void onAtom(byte[] buf, int off, int len, byte[] hintBuf, int hintOff, int hintLen) {
+            String atom = new String(buf, off, len);
+            if (hintBuf != null)
+                atom = "[" + new String(hintBuf, hintOff, hintLen) + "]" + atom;
+            events.add(atom);
+        }
+    }
+
+    @Test
+    public void testRawCallback() throws IOException
+    {
+        String input = "(3:foo[4:hint]6:barbaz(1:x))";
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(new ByteArrayInputStream(input.getBytes()));
+        RecordingCallback raw = new RecordingCallback();
+        parser.addCallback(raw);
+        final List<String> old = new ArrayList<>();
+        StreamingParserCallback callback = new StreamingParserCallback() {
+            @Override
+            public void beginList() {
+            }
+
+            @Override
+            public void endList() {
+            }
+
+            @Override
+            public void onAtom(byte[] atom, Optional<byte[]> displayHint) {
+                old.add((displayHint.isPresent() ? new String(displayHint.get()) : "") + new String(atom));
+            }
+        };
+        parser.addCallback(callback);
+        parser.addCallback(callback);
+        parser.parse();
+        Assert.assertEquals("[(, foo, [hint]barbaz, (, x, ), )]", raw.events.toString());
+        Assert.assertEquals("[foo, hintbarbaz, x]", old.toString());
+
+        parser = new CanonicalStreamingParser(new ByteArrayInputStream(input.getBytes()));
+        parser.addCallback(callback);
+        parser.removeCallback(callback);
+        parser.addCallback(raw);
+        raw.events.clear();
+        parser.parse();
+        Assert.assertEquals(7, raw.events.size());
+    }
 }
@@ -88,4 +88,36 @@ public class TestCanonicalParser {
         assertFalse(((Atom) ((ExpressionList) expr).get(1)).displayHint().isPresent());
         assertThat(((Atom) ((ExpressionList) expr).get(1)).stringValue(), is("atom2"));
     }
+
+    @Test
+    public void testMaxDepth() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+            input.append('(');
+        try {
+            new CanonicalParser(new ByteArrayInputStream(input.toString().getBytes())).parse();
+            Assert.fail("expected a ParseException");
+        } catch (ParseException expected) {
+        }
+        Expression expr = new CanonicalParser(new ByteArrayInputStream("((()))".getBytes()), 3).parse();
+        assertThat(expr, instanceOf(ExpressionList.class));
+        try {
+            new CanonicalParser(new ByteArrayInputStream("(((())))".getBytes()), 3).parse();
+            Assert.fail("expected a ParseException");
+        } catch (ParseException expected) {
+        }
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        CanonicalParser parser = new CanonicalParser(new ByteArrayInputStream("([1:h]1:a".getBytes()));
+        try {
+            parser.parse();
+        } catch (IOException ignored) {
+        }
+        parser.reset(new ByteArrayInputStream("(1:b)".getBytes()));
+        Assert.assertEquals(ExpressionList.list(Atom.atom("b")), parser.parse());
+        parser.reset(new ByteArrayInputStream("5:hello".getBytes()));
+        Assert.assertEquals(Atom.atom("hello"), parser.parse());
+    }
 }
@@ -0,0 +1,49 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestDisplayHint {
+    @Test
+    public void testSingleByteShared() {
+        assertSame(DisplayHint.of((byte) 'i'), DisplayHint.of((byte) 'i'));
+        assertSame(DisplayHint.of((byte) 'i'), DisplayHint.of(new byte[] { 'i' }));
+        assertSame(DisplayHint.of((byte) 'i'), DisplayHint.of("i"));
+        Atom a = Atom.atom(1).withHint((byte) 'i');
+        Atom b = Atom.atom(2).withHint((byte) 'i');
+        assertSame(a.displayHint().get(), b.displayHint().get());
+        assertSame(a.displayHint(), b.displayHint());
+    }
+
+    @Test
+    public void testMultiByte() {
+        DisplayHint h1 = DisplayHint.of("text/plain");
+        DisplayHint h2 = DisplayHint.of("text/plain");
+        assertEquals(h1, h2);
+        assertEquals(h1.hashCode(), h2.hashCode());
+        assertEquals("text/plain", h2.atom().stringValue());
+        assertEquals(new DisplayHint("text/plain"), h1);
+    }
+
+    @Test
+    public void testUnhinted() {
+        assertFalse(Atom.atom("x").displayHint().isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecursive() {
+        Atom.atom("x").withHint(Atom.atom("y").withHint("z"));
+    }
+
+    @Test
+    public void testParsedHintsShared() throws IOException {
+        ExpressionList list = (ExpressionList) new CanonicalParser(
+                new ByteArrayInputStream("([1:S]1:a[1:S]1:b)".getBytes())).parse();
+        assertSame(((Atom) list.get(0)).displayHint().get(), ((Atom) list.get(1)).displayHint().get());
+    }
+}
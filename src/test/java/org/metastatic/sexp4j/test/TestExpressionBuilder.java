@@ -40,4 +40,10 @@ public class TestExpressionBuilder {
         Assert.assertTrue(expr2_2 instanceof Atom);
         Assert.assertArrayEquals("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33".getBytes(), ((Atom) expr2_2).bytes());
     }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMaxDepth() {
+        ExpressionBuilder builder = ExpressionBuilder.create(2);
+        builder.beginList().beginList().endList().beginList().beginList();
+    }
 }
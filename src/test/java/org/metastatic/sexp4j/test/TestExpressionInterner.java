@@ -0,0 +1,91 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestExpressionInterner {
+    @Test
+    public void testAtoms() {
+        ExpressionInterner interner = new ExpressionInterner();
+        byte[] buf = "xxhelloxx".getBytes();
+        Atom a = interner.intern(buf, 2, 5, null);
+        assertSame(a, interner.intern(Atom.atom("hello")));
+        assertSame(a, interner.intern(buf, 2, 5, null));
+        assertEquals(2, interner.hits());
+
+        Atom hinted = interner.intern(buf, 2, 5, DisplayHint.of("text/plain"));
+        assertNotSame(a, hinted);
+        assertEquals(Atom.atom("hello").withHint("text/plain").displayHint(), hinted.displayHint());
+        assertSame(hinted, interner.intern(Atom.atom("hello").withHint("text/plain")));
+    }
+
+    @Test
+    public void testLongAtomsNotInterned() {
+        ExpressionInterner interner = new ExpressionInterner(16, 4);
+        Atom a = Atom.atom("too long");
+        assertSame(a, interner.intern(a));
+        assertNotSame(a, interner.intern(Atom.atom("too long")));
+        assertEquals(0, interner.hits());
+    }
+
+    @Test
+    public void testTrees() {
+        ExpressionInterner interner = new ExpressionInterner();
+        Expression key = ExpressionList.list(Atom.atom("hash"), Atom.atom("sha256"), Atom.atom(new byte[32]));
+        Expression doc = ExpressionList.list(
+                ExpressionList.list(Atom.atom("issuer"), key),
+                ExpressionList.list(Atom.atom("subject"), key),
+                ExpressionList.list(Atom.atom("issuer"), key));
+        ExpressionList shared = (ExpressionList) interner.intern(doc);
+        assertEquals(doc, shared);
+        assertTrue(shared instanceof ImmutableExpressionList);
+        assertSame(shared.get(0), shared.get(2));
+        assertSame(((ExpressionList) shared.get(0)).get(1), ((ExpressionList) shared.get(1)).get(1));
+        assertSame(shared, interner.intern(doc));
+    }
+
+    @Test
+    public void testParser() throws IOException {
+        ExpressionInterner interner = new ExpressionInterner();
+        Expression principal = ExpressionList.list(Atom.atom("principal"), Atom.atom("alice").withHint("name"));
+        Expression doc = ExpressionList.list(Atom.atom("acl"), principal, principal, Atom.atom("principal"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CanonicalWriter(out).writeExpression(doc);
+
+        CanonicalParser parser = new CanonicalParser(new ByteArrayInputStream(out.toByteArray()), interner);
+        ExpressionList first = (ExpressionList) parser.parse();
+        assertEquals(doc, first);
+        assertSame(first.get(1), first.get(2));
+        assertSame(((ExpressionList) first.get(1)).get(0), first.get(3));
+        assertEquals(Atom.atom("x").withHint("name").displayHint(),
+                ((Atom) ((ExpressionList) first.get(1)).get(1)).displayHint());
+
+        parser.reset(new ByteArrayInputStream(out.toByteArray()));
+        assertSame(first, parser.parse());
+    }
+
+    @Test
+    public void testBuilder() {
+        ExpressionInterner interner = new ExpressionInterner();
+        ExpressionBuilder builder = ExpressionBuilder.create(interner);
+        builder.beginList().atom("a").beginList().atom("b").endList().beginList().atom("b").endList().endList();
+        ExpressionList list = (ExpressionList) builder.build();
+        assertEquals(ExpressionList.list(Atom.atom("a"), ExpressionList.list(Atom.atom("b")),
+                ExpressionList.list(Atom.atom("b"))), list);
+        assertSame(list.get(1), list.get(2));
+
+        builder = ExpressionBuilder.create(interner);
+        builder.beginList();
+        try {
+            builder.build();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestImmutableExpressionList {
+    @Test
+    public void testBuilder() {
+        ImmutableExpressionList.Builder builder = ImmutableExpressionList.builder();
+        for (int i = 0; i < 1000; i++)
+            builder.add(Atom.atom(i));
+        ImmutableExpressionList list = builder.build();
+        assertEquals(1000, list.size());
+        assertEquals(Atom.atom(999), list.get(999));
+        assertEquals(0, builder.build().size());
+        int i = 0;
+        for (Expression e : list)
+            assertEquals(Atom.atom(i++), e);
+    }
+
+    @Test
+    public void testPersistentOperations() {
+        Random random = new Random(31337);
+        List<Expression> expect = new ArrayList<>();
+        ImmutableExpressionList list = ImmutableExpressionList.of();
+        for (int step = 0; step < 5000; step++) {
+            ImmutableExpressionList before = list;
+            List<Expression> expectBefore = new ArrayList<>(expect);
+            Atom atom = Atom.atom(step);
+            int op = random.nextInt(4);
+            if (op == 0 || expect.isEmpty()) {
+                list = list.append(atom);
+                expect.add(atom);
+            } else if (op == 1) {
+                int index = random.nextInt(expect.size() + 1);
+                list = list.insert(index, atom);
+                expect.add(index, atom);
+            } else if (op == 2) {
+                int index = random.nextInt(expect.size());
+                list = list.with(index, atom);
+                expect.set(index, atom);
+            } else {
+                int index = random.nextInt(expect.size());
+                list = list.without(index);
+                expect.remove(index);
+            }
+            assertEquals(expectBefore, before);
+            if (step % 100 == 0) {
+                assertEquals(expect, list);
+                assertEquals(expect.hashCode(), list.hashCode());
+                int from = random.nextInt(expect.size() + 1);
+                int to = from + random.nextInt(expect.size() - from + 1);
+                ImmutableExpressionList sub = list.subList(from, to);
+                assertEquals(expect.subList(from, to), sub);
+                assertEquals(expect.subList(from, to), new ArrayList<>(sub));
+                assertEquals(expect.subList(0, from), list.subList(0, from).concat(list.subList(from, from)));
+            }
+        }
+        assertEquals(expect, list);
+    }
+
+    @Test
+    public void testCopyOf() {
+        ExpressionList mutable = ExpressionList.list(Atom.atom("a"), ExpressionList.list(Atom.atom("b")));
+        ImmutableExpressionList copy = ImmutableExpressionList.copyOf(mutable);
+        assertEquals(mutable, copy);
+        assertTrue(copy.get(1) instanceof ImmutableExpressionList);
+        assertSame(copy, ImmutableExpressionList.copyOf(copy));
+        assertEquals(mutable, parse(SexpCodecs.toCanonicalBytes(copy)));
+    }
+
+    private static Expression parse(byte[] bytes) {
+        try {
+            return SexpCodecs.parseCanonical(bytes);
+        } catch (ParseException pe) {
+            throw new AssertionError(pe);
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnmodifiable() {
+        ImmutableExpressionList.of(Atom.atom("a")).add(Atom.atom("b"));
+    }
+}
@@ -0,0 +1,150 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+import org.metastatic.sexp4j.mapper.SimpleMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestMetrics {
+    private static final OperationMetrics.Operation PARSE = OperationMetrics.Operation.Parse;
+    private static final OperationMetrics.Operation WRITE = OperationMetrics.Operation.Write;
+
+    private static class Collector implements MetricsRecorder {
+        final List<OperationMetrics> recorded = new ArrayList<>();
+
+        @Override
+        public void record(OperationMetrics metrics) {
+            recorded.add(metrics);
+        }
+    }
+
+    private static final Expression DOC = ExpressionList.list(Atom.atom("a"),
+        ExpressionList.list(Atom.atom("bb"), ExpressionList.list(Atom.atom("cccc"))), Atom.atom("d").withHint("h"));
+
+    @Test
+    public void testWriterAndParser() throws IOException {
+        Collector written = new Collector();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = new CanonicalWriter(out);
+        writer.setMetrics(written);
+        writer.writeExpression(DOC);
+        writer.reset(out);
+        writer.writeAtom(Atom.atom("xyz"));
+        assertEquals(2, written.recorded.size());
+        OperationMetrics first = written.recorded.get(0);
+        assertEquals(WRITE, first.operation());
+        assertEquals(out.size() - 5, first.bytes());
+        assertEquals(4, first.atoms());
+        assertEquals(3, first.lists());
+        assertEquals(3, first.maxDepth());
+        assertEquals(4, first.largestAtom());
+        assertFalse(first.error().isPresent());
+        assertEquals(5, written.recorded.get(1).bytes());
+
+        Collector parsed = new Collector();
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(new ByteArrayInputStream(out.toByteArray()));
+        parser.setMetrics(parsed);
+        parser.parse();
+        assertEquals(Arrays.asList(first.bytes(), 5L),
+            Arrays.asList(parsed.recorded.get(0).bytes(), parsed.recorded.get(1).bytes()));
+        assertEquals(4, parsed.recorded.get(0).atoms());
+        assertEquals(3, parsed.recorded.get(0).maxDepth());
+
+        parser.setMetrics(null);
+        parser.reset(new ByteArrayInputStream(out.toByteArray()));
+        parser.parse();
+        assertEquals(2, parsed.recorded.size());
+    }
+
+    @Test
+    public void testAdvancedWriter() throws IOException {
+        Collector written = new Collector();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AdvancedWriter writer = AdvancedWriter.create().outputStream(out).build();
+        writer.setMetrics(written);
+        writer.beginList();
+        writer.writeAtom(Atom.atom("a"));
+        assertTrue(written.recorded.isEmpty());
+        writer.endList();
+        assertEquals(1, written.recorded.size());
+        assertEquals(out.size(), written.recorded.get(0).bytes());
+        assertEquals(1, written.recorded.get(0).lists());
+    }
+
+    @Test
+    public void testAdvancedParserBytes() throws IOException {
+        // The parser reads all of this at once, but each expression is
+        // charged only its own bytes.
+        Collector parsed = new Collector();
+        AdvancedStreamingParser parser = new AdvancedStreamingParser(
+            new ByteArrayInputStream("(a b) c |YWJj| (d)".getBytes()));
+        parser.setMetrics(parsed);
+        parser.parse();
+        assertEquals(4, parsed.recorded.size());
+        List<Long> bytes = new ArrayList<>();
+        for (OperationMetrics m : parsed.recorded)
+            bytes.add(m.bytes());
+        assertEquals(Arrays.asList(5L, 2L, 7L, 4L), bytes);
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        SexpMetrics metrics = new SexpMetrics();
+        CanonicalStreamingParser parser = new CanonicalStreamingParser(new ByteArrayInputStream("(1:a!".getBytes()));
+        parser.setMetrics(metrics);
+        try {
+            parser.parse();
+            fail("expected ParseException");
+        } catch (ParseException expected) {
+        }
+        assertEquals(1, metrics.count(PARSE));
+        assertEquals(1, metrics.errors(PARSE));
+        assertEquals(5, metrics.bytes(PARSE));
+
+        CanonicalWriter writer = new CanonicalWriter(new ByteArrayOutputStream());
+        writer.setMetrics(metrics);
+        try {
+            writer.endList();
+            fail("expected WriteException");
+        } catch (WriteException expected) {
+        }
+        assertEquals(1, metrics.errors(WRITE));
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        final Collector large = new Collector();
+        SexpMetrics metrics = new SexpMetrics(10, large);
+        CanonicalWriter writer = new CanonicalWriter(new ByteArrayOutputStream());
+        writer.setMetrics(metrics);
+        writer.writeAtom(Atom.atom("small"));
+        writer.reset(new ByteArrayOutputStream());
+        writer.writeAtom(Atom.atom("large enough"));
+        assertEquals(2, metrics.count(WRITE));
+        assertEquals(7 + 15, metrics.bytes(WRITE));
+        assertEquals(12, metrics.largestAtom(WRITE));
+        assertEquals(1, large.recorded.size());
+        assertEquals(15, large.recorded.get(0).bytes());
+        assertEquals(2, metrics.latency(WRITE).count());
+        assertTrue(metrics.latency(WRITE).percentile(50) <= metrics.latency(WRITE).percentile(100));
+
+        SimpleMapper mapper = new SimpleMapper();
+        mapper.setMetrics(metrics);
+        Object value = mapper.decode(mapper.encode(Arrays.asList(1, Arrays.asList("x", 2L))));
+        assertEquals(Arrays.asList(1, Arrays.asList("x", 2L)), value);
+        assertEquals(1, metrics.count(OperationMetrics.Operation.Encode));
+        assertEquals(1, metrics.count(OperationMetrics.Operation.Decode));
+
+        metrics.clear();
+        assertEquals(0, metrics.count(WRITE));
+        assertEquals(0, metrics.latency(WRITE).count());
+    }
+}
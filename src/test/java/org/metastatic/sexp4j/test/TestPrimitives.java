@@ -4,6 +4,9 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.metastatic.sexp4j.Primitives;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class TestPrimitives {
     @Test
     public void testInt() {
@@ -20,4 +23,40 @@ public class TestPrimitives {
         Assert.assertArrayEquals(new byte[] {(byte) 0xde, (byte) 0xad, (byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe, (byte) 0xbe, (byte) 0xef}, bytes);
         Assert.assertEquals(value, Primitives.toLong(bytes));
     }
+
+    @Test
+    public void testIntoArray() {
+        byte[] buffer = new byte[16];
+        Assert.assertEquals(4, Primitives.bytes(0xcafebabe, buffer, 1));
+        Assert.assertEquals(0xcafebabe, Primitives.toInt(buffer, 1));
+        Assert.assertEquals((byte) 0xca, buffer[1]);
+        Primitives.bytes(0xcafebabe, buffer, 1, ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals((byte) 0xbe, buffer[1]);
+        Assert.assertEquals(0xcafebabe, Primitives.toInt(buffer, 1, ByteOrder.LITTLE_ENDIAN));
+        Assert.assertEquals(8, Primitives.bytes(0xdeadcafebabebeefL, buffer, 8, ByteOrder.LITTLE_ENDIAN));
+        Assert.assertEquals(0xdeadcafebabebeefL, Primitives.toLong(buffer, 8, ByteOrder.LITTLE_ENDIAN));
+        Primitives.bytes(Math.PI, buffer, 0);
+        Assert.assertEquals(Math.PI, Primitives.toDouble(buffer, 0), 0.0);
+        Primitives.bytes((short) -2, buffer, 3);
+        Assert.assertEquals((short) -2, Primitives.toShort(buffer, 3));
+        Primitives.bytes('\uabcd', buffer, 3, ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals('\uabcd', Primitives.toChar(buffer, 3, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIntoArrayOverflow() {
+        Primitives.bytes(1L, new byte[8], 1);
+    }
+
+    @Test
+    public void testBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        Primitives.bytes(0xcafebabe, buffer, ByteOrder.LITTLE_ENDIAN);
+        Primitives.bytes(2.5f, buffer, ByteOrder.BIG_ENDIAN);
+        Assert.assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+        Assert.assertEquals((byte) 0xbe, buffer.get(0));
+        buffer.flip();
+        Assert.assertEquals(0xcafebabe, Primitives.toInt(buffer, ByteOrder.LITTLE_ENDIAN));
+        Assert.assertEquals(2.5f, Primitives.toFloat(buffer, ByteOrder.BIG_ENDIAN), 0.0f);
+    }
 }
@@ -0,0 +1,61 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestSexpCodecs {
+    @Test
+    public void testRoundTrip() throws IOException {
+        Expression e = ExpressionList.list(Atom.atom("hello"), Atom.atom(42).withHint("i"),
+                ExpressionList.list(Atom.atom("nested")));
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = SexpCodecs.toCanonicalBytes(e);
+            assertEquals("(5:hello[1:i]4:\u0000\u0000\u0000*(6:nested))", new String(bytes, "ISO-8859-1"));
+            assertEquals(e, SexpCodecs.parseCanonical(bytes));
+        }
+        assertEquals(Atom.atom("x"), SexpCodecs.parseAdvanced(new ByteArrayInputStream("x".getBytes())));
+    }
+
+    @Test
+    public void testReuseAfterError() throws IOException {
+        try {
+            SexpCodecs.parseCanonical("(1:a!".getBytes());
+            fail("expected a ParseException");
+        } catch (ParseException expected) {
+        }
+        try {
+            SexpCodecs.parseCanonical("(5:a)".getBytes());
+            fail("expected a ParseException");
+        } catch (ParseException expected) {
+        }
+        assertEquals(ExpressionList.list(Atom.atom("b")), SexpCodecs.parseCanonical("(1:b)".getBytes()));
+    }
+
+    @Test
+    public void testWriterReset() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CanonicalWriter writer = SexpCodecs.canonicalWriter(out);
+        writer.writeAtom(Atom.atom("a"));
+        try {
+            writer.writeAtom(Atom.atom("b"));
+            fail("expected a WriteException");
+        } catch (WriteException expected) {
+        }
+        writer = SexpCodecs.canonicalWriter(out);
+        writer.writeAtom(Atom.atom("b"));
+        assertEquals("1:a1:b", out.toString("US-ASCII"));
+
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+        AdvancedWriter advanced = AdvancedWriter.create().outputStream(out).build();
+        advanced.writeAtom(Atom.atom("c"));
+        advanced.reset(out2);
+        advanced.writeAtom(Atom.atom("d"));
+        assertEquals("d", out2.toString("US-ASCII"));
+    }
+}
@@ -0,0 +1,47 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.BoundedStringCache;
+import org.metastatic.sexp4j.mapper.SimpleMapper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.metastatic.sexp4j.CollectionDSL.*;
+
+public class TestStringCache {
+    @Test
+    public void testCanonicalInstance() {
+        BoundedStringCache cache = new BoundedStringCache(16, 8);
+        String a = Atom.atom("key").stringValue(cache);
+        String b = Atom.atom("key").stringValue(cache);
+        assertEquals("key", a);
+        assertSame(a, b);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        String c = Atom.atom("much too long to cache").stringValue(cache);
+        String d = Atom.atom("much too long to cache").stringValue(cache);
+        assertEquals(c, d);
+        assertNotSame(c, d);
+        assertEquals(3, cache.misses());
+
+        assertEquals("über", Atom.atom("über").stringValue(cache));
+        cache.clear();
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void testMapperKeys() throws IOException {
+        BoundedStringCache cache = new BoundedStringCache();
+        SimpleMapper mapper = new SimpleMapper(cache);
+        List records = (List) mapper.decode(mapper.encode(list(map("id", 1), map("id", 2))));
+        String k1 = (String) ((Map) records.get(0)).keySet().iterator().next();
+        String k2 = (String) ((Map) records.get(1)).keySet().iterator().next();
+        assertSame(k1, k2);
+        assertEquals(1, cache.hits());
+    }
+}
@@ -0,0 +1,77 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestTransport {
+    @Test
+    public void testSpecExample() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransportWriter writer = new TransportWriter(out);
+        writer.writeExpression(ExpressionList.list(Atom.atom("abc"), ExpressionList.list(Atom.atom("de"))));
+        // base64 of "(3:abc(2:de))"
+        assertEquals("{KDM6YWJjKDI6ZGUpKQ==}", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+
+        out.reset();
+        writer.reset(out);
+        writer.writeAtom(Atom.atom("abc"));
+        assertEquals("{MzphYmM=}", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] blob = new byte[10000];
+        new Random(7).nextBytes(blob);
+        for (int n = 0; n < 5; n++) {
+            Expression e = ExpressionList.list(Atom.atom("data"),
+                Atom.atom(Arrays.copyOf(blob, n * 1001)).withHint("application/octet-stream"),
+                ExpressionList.list());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TransportWriter writer = new TransportWriter(out);
+            writer.beginList();
+            writer.writeExpression(e);
+            writer.writeAtom(Atom.atom("end"));
+            writer.endList();
+            ExpressionList expected = ExpressionList.list(e, Atom.atom("end"));
+            assertEquals(expected, new AdvancedParser(new ByteArrayInputStream(out.toByteArray())).parse());
+        }
+    }
+
+    @Test
+    public void testNestedInAdvanced() throws IOException {
+        String input = "(outer {KDM6YWJj\n KDI6ZGUpKQ==} tail)";
+        Expression e = new AdvancedParser(new ByteArrayInputStream(input.getBytes())).parse();
+        assertEquals(ExpressionList.list(Atom.atom("outer"),
+            ExpressionList.list(Atom.atom("abc"), ExpressionList.list(Atom.atom("de"))),
+            Atom.atom("tail")), e);
+
+        for (String bad : new String[] { "{KDM6YWJj", "{KDM6YW*j}", "{KDM6YWJjKDI6ZGUp}", "{KA==MTphKQ==}" }) {
+            try {
+                new AdvancedParser(new ByteArrayInputStream(bad.getBytes())).parse();
+                fail("expected an exception for " + bad);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testOneExpressionPerBlock() throws IOException {
+        // "", "1:a1:b" and "(1:a)[".
+        for (String bad : new String[] { "({})", "(x {MTphMTpi})", "{KDE6YSlb}" }) {
+            try {
+                new AdvancedParser(new ByteArrayInputStream(bad.getBytes())).parse();
+                fail("expected a ParseException for " + bad);
+            } catch (ParseException expected) {
+            }
+        }
+    }
+}
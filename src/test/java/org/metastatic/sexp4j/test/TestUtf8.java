@@ -0,0 +1,49 @@
+package org.metastatic.sexp4j.test;
+
+import org.junit.Test;
+import org.metastatic.sexp4j.Atom;
+import org.metastatic.sexp4j.Utf8;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TestUtf8 {
+    private static final String[] STRINGS = {
+        "", "symbol", "an ASCII string that is longer than eight bytes",
+        "café", "€100", "😀 emoji", "unpaired \ud83d surrogate", "\udc00"
+    };
+
+    @Test
+    public void testEncode() {
+        for (String s : STRINGS) {
+            byte[] expect = s.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(s, expect, Utf8.encode(s));
+            assertEquals(s, expect.length, Utf8.encodedLength(s));
+            byte[] buffer = new byte[expect.length + 2];
+            assertEquals(expect.length, Utf8.encode(s, buffer, 1));
+            ByteBuffer bb = ByteBuffer.allocate(expect.length);
+            Utf8.encode(s, bb);
+            assertArrayEquals(expect, bb.array());
+            assertArrayEquals(expect, Atom.atom(s).bytes());
+        }
+    }
+
+    @Test
+    public void testDecode() {
+        for (String s : STRINGS) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            String expect = new String(bytes, StandardCharsets.UTF_8);
+            assertEquals(expect, Utf8.decode(bytes));
+            assertEquals(expect, Atom.atom(bytes).stringValue());
+            char[] chars = new char[bytes.length + 1];
+            int n = Utf8.decode(bytes, 0, bytes.length, chars, 1);
+            assertEquals(expect, new String(chars, 1, n));
+        }
+        byte[] malformed = { 'a', (byte) 0xc3, 'b', (byte) 0xff };
+        assertEquals(new String(malformed, StandardCharsets.UTF_8), Utf8.decode(malformed));
+        assertFalse(Utf8.isAscii(malformed, 0, malformed.length));
+        assertTrue(Utf8.isAscii(malformed, 0, 1));
+    }
+}